@@ -91,11 +91,10 @@ public class AudioFrequencyLineActivity extends PassFailButtons.Activity impleme
     PipeShort mPipe = new PipeShort(65536);
     SoundPlayerObject mSPlayer;
 
-    private DspBufferComplex mC;
     private DspBufferDouble mData;
 
     private DspWindow mWindow;
-    private DspFftServer mFftServer;
+    private DspSpectrum mSpectrum;
     private VectorAverage mFreqAverageMain = new VectorAverage();
 
     private VectorAverage mFreqAverage0 = new VectorAverage();
@@ -167,12 +166,11 @@ public class AudioFrequencyLineActivity extends PassFailButtons.Activity impleme
         //Init FFT stuff
         mAudioShortArray2 = new short[mBlockSizeSamples*2];
         mData = new DspBufferDouble(mBlockSizeSamples);
-        mC = new DspBufferComplex(mBlockSizeSamples);
-        mFftServer = new DspFftServer(mBlockSizeSamples);
 
         int overlap = mBlockSizeSamples / 2;
 
         mWindow = new DspWindow(DspWindow.WINDOW_HANNING, mBlockSizeSamples, overlap);
+        mSpectrum = new DspSpectrum(mWindow);
 
         setPassFailButtonClickListeners();
         getPassButton().setEnabled(false);
@@ -651,15 +649,8 @@ public class AudioFrequencyLineActivity extends PassFailButtons.Activity impleme
 
             //for the current frame, compute FFT and send to the viewer.
 
-            //apply window and pack as complex for now.
-            DspBufferMath.mult(mData, mData, mWindow.mBuffer);
-            DspBufferMath.set(mC, mData);
-            mFftServer.fft(mC, 1);
-
-            double[] halfMagnitude = new double[mBlockSizeSamples / 2];
-            for (i = 0; i < mBlockSizeSamples / 2; i++) {
-                halfMagnitude[i] = Math.sqrt(mC.mReal[i] * mC.mReal[i] + mC.mImag[i] * mC.mImag[i]);
-            }
+            //apply window and compute the magnitude spectrum, reusing the analysis buffers.
+            double[] halfMagnitude = mSpectrum.computeHalfMagnitude(mData.mData);
 
             mFreqAverageMain.setData(halfMagnitude, false); //average all of them!
 
@@ -18,6 +18,8 @@ package com.android.cts.verifier.audio;
 
 import android.util.Log;
 
+import com.android.cts.verifier.audio.wavelib.DspCorrelation;
+
 
 public class Correlation {
 
@@ -25,6 +27,7 @@ public class Correlation {
     private int mSamplingRate = 44100;
     private double [] mDataDownsampled = new double [mBlockSize];
     private double [] mDataAutocorrelated = new double[mBlockSize];
+    private final DspCorrelation mDspCorrelation = new DspCorrelation();
 
     public double mEstimatedLatencySamples = 0;
     public double mEstimatedLatencyMs = 0;
@@ -126,28 +129,7 @@ public class Correlation {
     }
 
     private boolean autocorrelation(double [] data, double [] dataOut) {
-        boolean status = false;
-
-        double sumsquared = 0;
-        int N = data.length;
-        for (int i=0; i<N; i++) {
-            double value = data[i];
-            sumsquared += value*value;
-        }
-
-        if (sumsquared>0) {
-            for (int i = 0; i < N; i++) {
-                dataOut[i] = 0;
-                for (int j = 0; j < N - i; j++) {
-
-                    dataOut[i] += data[j] * data[i + j];
-                }
-                dataOut[i] = dataOut[i] / sumsquared;
-            }
-            status = true;
-        }
-
-        return status;
+        return mDspCorrelation.autocorrelation(data, dataOut);
     }
 
     private static void log(String msg) {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.verifier.audio.wavelib;
+
+/**
+ * Computes the autocorrelation of a block of real samples with FFTs, in O(N log N) rather than
+ * the O(N^2) of the direct sum.
+ * <p/>
+ * The block is zero padded to a power of 2 of at least twice its size, so the result is the
+ * linear (not circular) autocorrelation. Scratch buffers are kept between calls with the same
+ * block size. Not thread safe.
+ */
+public class DspCorrelation {
+    private int mBlockSize = -1;
+    private DspFftServer mFftServer;
+    private double[] mPadded;
+    private double[] mReal;
+    private double[] mImag;
+
+    /**
+     * Computes dataOut[i] = sum over j of data[j] * data[i + j], for i in [0, data.length),
+     * normalized by the energy of data, so that dataOut[0] is 1.
+     *
+     * @return false, leaving dataOut unchanged, if data is all zeros
+     */
+    public boolean autocorrelation(double[] data, double[] dataOut) {
+        int n = data.length;
+        double sumsquared = 0;
+        for (int i = 0; i < n; i++) {
+            sumsquared += data[i] * data[i];
+        }
+        if (!(sumsquared > 0)) {
+            return false;
+        }
+
+        prepare(n);
+        int size = mFftServer.getSize();
+        double[] real = mReal;
+        double[] imag = mImag;
+
+        // Forward transform of the zero padded block. Only the first n samples of the padded
+        // buffer are ever written, so the rest stay zero.
+        System.arraycopy(data, 0, mPadded, 0, n);
+        mFftServer.fftReal(mPadded, real, imag);
+
+        // Power spectrum, then the inverse transform of its Hermitian extension.
+        int half = size / 2;
+        for (int k = 0; k <= half; k++) {
+            real[k] = real[k] * real[k] + imag[k] * imag[k];
+            imag[k] = 0;
+        }
+        for (int k = half + 1; k < size; k++) {
+            real[k] = real[size - k];
+            imag[k] = 0;
+        }
+        mFftServer.fft(real, imag, -1);
+
+        double scale = 1.0 / (size * sumsquared);
+        for (int i = 0; i < n; i++) {
+            dataOut[i] = real[i] * scale;
+        }
+        return true;
+    }
+
+    private void prepare(int blockSize) {
+        if (blockSize == mBlockSize) {
+            return;
+        }
+        int size = 2;
+        while (size < 2 * blockSize) {
+            size <<= 1;
+        }
+        mBlockSize = blockSize;
+        mFftServer = new DspFftServer(size);
+        mPadded = new double[size];
+        mReal = new double[size];
+        mImag = new double[size];
+    }
+}
@@ -16,12 +16,22 @@
 
 package com.android.cts.verifier.audio.wavelib;
 
+/**
+ * Radix-2 FFT of a fixed, power of 2 size.
+ * <p/>
+ * The twiddle factors and the bit-reversal permutation are computed once, in {@link #init(int)}.
+ * Transforms work in place or into caller supplied buffers, so steady state analysis doesn't
+ * allocate. A server is not thread safe: {@link #fftReal} uses internal scratch buffers.
+ */
 public class DspFftServer {
     private int mN = 0;
     private int mOrder = 0;
 
     DspBufferDouble mCos;
     DspBufferDouble mSin;
+    private int[] mBitReverse;
+    private double[] mHalfReal;
+    private double[] mHalfImag;
     public boolean isInitialized = false;
 
     public DspFftServer(int size) {
@@ -40,6 +50,12 @@ public class DspFftServer {
                 mCos.mData[i] = Math.cos(-2 * Math.PI * i / mN);
                 mSin.mData[i] = Math.sin(-2 * Math.PI * i / mN);
             }
+            mBitReverse = new int[mN];
+            for (int i = 1; i < mN; i++) {
+                mBitReverse[i] = (mBitReverse[i >> 1] >> 1) | ((i & 1) << (mOrder - 1));
+            }
+            mHalfReal = new double[Math.max(1, mN / 2)];
+            mHalfImag = new double[Math.max(1, mN / 2)];
             status = true;
         } else {
             mN = 0;
@@ -49,50 +65,115 @@ public class DspFftServer {
         return status;
     }
 
+    public int getSize() {
+        return mN;
+    }
+
+    /**
+     * In place complex FFT of r, which must hold at least {@link #getSize()} points.
+     *
+     * @param sign 1 for the forward transform, -1 for the (unscaled) inverse transform
+     */
     public void fft(DspBufferComplex r, int sign) {
-        int ii, jj, kk, n1, n2, aa;
+        fft(r.mReal, r.mImag, sign);
+    }
+
+    /**
+     * In place complex FFT of the first {@link #getSize()} points of real and imag.
+     *
+     * @param sign 1 for the forward transform, -1 for the (unscaled) inverse transform
+     */
+    public void fft(double[] real, double[] imag, int sign) {
+        transform(real, imag, mOrder, sign);
+    }
+
+    /**
+     * Forward FFT of {@link #getSize()} real samples, computed with a complex FFT of half the
+     * size. As the spectrum of a real signal is symmetric, only bins 0 to getSize() / 2 are
+     * computed.
+     *
+     * @param input the real samples, left unchanged
+     * @param outReal receives the real part of bins 0 to getSize() / 2, inclusive
+     * @param outImag receives the imaginary part of bins 0 to getSize() / 2, inclusive
+     */
+    public void fftReal(double[] input, double[] outReal, double[] outImag) {
+        int half = mN / 2;
+        if (half == 0) {
+            outReal[0] = input[0];
+            outImag[0] = 0;
+            return;
+        }
+
+        // Pack even samples as real parts and odd samples as imaginary parts.
+        double[] zr = mHalfReal;
+        double[] zi = mHalfImag;
+        for (int i = 0; i < half; i++) {
+            zr[i] = input[2 * i];
+            zi[i] = input[2 * i + 1];
+        }
+        transform(zr, zi, mOrder - 1, 1);
+
+        // Separate the spectra of the even and odd samples, and combine them.
+        double[] cos = mCos.mData;
+        double[] sin = mSin.mData;
+        for (int k = 0; k <= half; k++) {
+            int a = (k == half) ? 0 : k;
+            int b = (k == 0) ? 0 : half - k;
+            double er = (zr[a] + zr[b]) * 0.5;
+            double ei = (zi[a] - zi[b]) * 0.5;
+            double or = (zi[a] + zi[b]) * 0.5;
+            double oi = (zr[b] - zr[a]) * 0.5;
+            double wr = (k == half) ? -1.0 : cos[k];
+            double wi = (k == half) ? 0.0 : sin[k];
+            outReal[k] = er + wr * or - wi * oi;
+            outImag[k] = ei + wr * oi + wi * or;
+        }
+    }
+
+    /**
+     * In place complex FFT of 2^order points, using the tables computed for {@link #mN} points.
+     */
+    private void transform(double[] real, double[] imag, int order, int sign) {
+        int ii, jj, kk, n1, n2, aa, step;
         double cc, ss, t1, t2;
+        int n = 1 << order;
+        int shift = mOrder - order;
 
         // Bit-reverse
-        jj = 0;
-        n2 = mN / 2;
-        for (ii = 1; ii < mN - 1; ii++) {
-            n1 = n2;
-            while (jj >= n1) {
-                jj = jj - n1;
-                n1 = n1 / 2;
-            }
-            jj = jj + n1;
-
+        for (ii = 1; ii < n - 1; ii++) {
+            jj = mBitReverse[ii] >> shift;
             if (ii < jj) {
-                t1 =  r.mReal[ii];
-                r.mReal[ii] = r.mReal[jj];
-                r.mReal[jj] = t1;
-                t1 = r.mImag[ii];
-                r.mImag[ii] = r.mImag[jj];
-                r.mImag[jj] = t1;
+                t1 = real[ii];
+                real[ii] = real[jj];
+                real[jj] = t1;
+                t1 = imag[ii];
+                imag[ii] = imag[jj];
+                imag[jj] = t1;
             }
         }
 
-        // FFT
-        n1 = 0;
+        // FFT. The tables hold twiddles for mN points; a smaller transform uses every
+        // (mN / n)th one.
+        double[] cos = mCos.mData;
+        double[] sin = mSin.mData;
         n2 = 1;
-        for (ii = 0; ii < mOrder; ii++) {
+        for (ii = 0; ii < order; ii++) {
             n1 = n2;
             n2 = n2 + n2;
             aa = 0;
+            step = 1 << (mOrder - ii - 1);
 
             for (jj = 0; jj < n1; jj++) {
-                cc = mCos.mData[aa];
-                ss = sign * mSin.mData[aa];
-                aa += 1 << (mOrder - ii - 1);
-                for (kk = jj; kk < mN; kk = kk + n2) {
-                    t1 = cc * r.mReal[kk + n1] - ss * r.mImag[kk + n1];
-                    t2 = ss * r.mReal[kk + n1] + cc * r.mImag[kk + n1];
-                    r.mReal[kk + n1] = r.mReal[kk] - t1;
-                    r.mImag[kk + n1] = r.mImag[kk] - t2;
-                    r.mReal[kk] = r.mReal[kk] + t1;
-                    r.mImag[kk] = r.mImag[kk] + t2;
+                cc = cos[aa];
+                ss = sign * sin[aa];
+                aa += step;
+                for (kk = jj; kk < n; kk = kk + n2) {
+                    t1 = cc * real[kk + n1] - ss * imag[kk + n1];
+                    t2 = ss * real[kk + n1] + cc * imag[kk + n1];
+                    real[kk + n1] = real[kk] - t1;
+                    imag[kk + n1] = imag[kk] - t2;
+                    real[kk] = real[kk] + t1;
+                    imag[kk] = imag[kk] + t2;
                 }
             }
         }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.verifier.audio.wavelib;
+
+/**
+ * Computes the magnitude spectrum of successive blocks of real samples.
+ * <p/>
+ * The window, FFT tables and all scratch buffers are set up once, so analyzing a block doesn't
+ * allocate. Not thread safe.
+ */
+public class DspSpectrum {
+    private final int mSize;
+    private final double[] mWindow;
+    private final DspFftServer mFftServer;
+    private final double[] mWindowed;
+    private final double[] mReal;
+    private final double[] mImag;
+    private final double[] mHalfMagnitude;
+
+    /**
+     * @param window the window applied to each block; its size is the block size, a power of 2
+     */
+    public DspSpectrum(DspWindow window) {
+        mSize = window.mBuffer.getSize();
+        mWindow = window.mBuffer.mData;
+        mFftServer = new DspFftServer(mSize);
+        mWindowed = new double[mSize];
+        mReal = new double[mSize / 2 + 1];
+        mImag = new double[mSize / 2 + 1];
+        mHalfMagnitude = new double[mSize / 2];
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Windows a block and computes the magnitude of the first half of its spectrum.
+     *
+     * @param data a block of {@link #getSize()} samples, left unchanged
+     * @return the magnitudes of bins 0 to getSize() / 2 - 1. The array is reused by the next
+     *     call, so callers that keep the values must copy them, as {@link VectorAverage} does.
+     */
+    public double[] computeHalfMagnitude(double[] data) {
+        for (int i = 0; i < mSize; i++) {
+            mWindowed[i] = data[i] * mWindow[i];
+        }
+        mFftServer.fftReal(mWindowed, mReal, mImag);
+        for (int i = 0; i < mHalfMagnitude.length; i++) {
+            mHalfMagnitude[i] = Math.sqrt(mReal[i] * mReal[i] + mImag[i] * mImag[i]);
+        }
+        return mHalfMagnitude;
+    }
+}
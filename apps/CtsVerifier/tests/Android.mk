@@ -0,0 +1,37 @@
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+# the analysis kernels of wavelib don't use the Android APIs, so they are tested on the host
+wavelib_dir := ../src/com/android/cts/verifier/audio/wavelib
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    $(wavelib_dir)/DspBufferBase.java \
+    $(wavelib_dir)/DspBufferComplex.java \
+    $(wavelib_dir)/DspBufferDouble.java \
+    $(wavelib_dir)/DspBufferMath.java \
+    $(wavelib_dir)/DspCorrelation.java \
+    $(wavelib_dir)/DspFftServer.java \
+    $(wavelib_dir)/DspSpectrum.java \
+    $(wavelib_dir)/DspWindow.java
+
+LOCAL_MODULE := CtsVerifierWavelibTests
+LOCAL_MODULE_TAGS := optional
+LOCAL_JAVA_LIBRARIES := junit
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+wavelib_dir :=
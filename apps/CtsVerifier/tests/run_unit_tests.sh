@@ -0,0 +1,41 @@
+#!/bin/bash
+
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#       http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# helper script for running the host unit tests of the CtsVerifier audio analysis kernels
+
+checkFile() {
+    if [ ! -f "$1" ]; then
+        echo "Unable to locate $1"
+        exit
+    fi;
+}
+
+JAR_DIR=${ANDROID_HOST_OUT}/framework
+JARS="junit.jar CtsVerifierWavelibTests.jar"
+
+for JAR in $JARS; do
+    checkFile ${JAR_DIR}/${JAR}
+    JAR_PATH=${JAR_PATH}:${JAR_DIR}/${JAR}
+done
+
+for TEST in com.android.cts.verifier.audio.wavelib.DspFftServerTest \
+        com.android.cts.verifier.audio.wavelib.DspSpectrumTest \
+        com.android.cts.verifier.audio.wavelib.DspCorrelationTest; do
+    java $RDBG_FLAG -cp ${JAR_PATH} "$@" junit.textui.TestRunner $TEST
+done
+
+# the timing comparison with the previous kernels
+java $RDBG_FLAG -cp ${JAR_PATH} com.android.cts.verifier.audio.wavelib.WavelibBenchmark
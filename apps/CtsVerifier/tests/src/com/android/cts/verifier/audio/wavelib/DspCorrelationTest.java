@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.verifier.audio.wavelib;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Known-answer tests for {@link DspCorrelation}.
+ */
+public class DspCorrelationTest extends TestCase {
+
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * Test that the result matches the direct sum the latency test used before, for block sizes
+     * that are and aren't powers of 2.
+     */
+    public void testAutocorrelation_matchesDirectSum() {
+        DspCorrelation correlation = new DspCorrelation();
+        for (int n : new int[] {1, 5, 64, 1000, 4096}) {
+            double[] data = WavelibBenchmark.randomSamples(n, n);
+            double[] expected = new double[n];
+            double[] actual = new double[n];
+            assertTrue(WavelibBenchmark.directAutocorrelation(data, expected));
+            assertTrue(correlation.autocorrelation(data, actual));
+            assertEquals(1, actual[0], EPSILON);
+            for (int i = 0; i < n; i++) {
+                assertEquals("n=" + n + " lag " + i, expected[i], actual[i], EPSILON);
+            }
+        }
+    }
+
+    /**
+     * Test that the correlation is linear, not circular: a pulse repeated after a delay peaks at
+     * the delay, and there is no wrapped peak at the block size minus the delay.
+     */
+    public void testAutocorrelation_echo() {
+        int n = 512;
+        int delay = 100;
+        double[] data = new double[n];
+        data[10] = 1;
+        data[10 + delay] = 1;
+        double[] out = new double[n];
+        assertTrue(new DspCorrelation().autocorrelation(data, out));
+        for (int i = 0; i < n; i++) {
+            assertEquals("lag " + i, i == 0 ? 1 : i == delay ? 0.5 : 0, out[i], EPSILON);
+        }
+    }
+
+    /**
+     * Test that an all zero block is reported, and leaves the output unchanged.
+     */
+    public void testAutocorrelation_silence() {
+        double[] out = new double[16];
+        Arrays.fill(out, 7);
+        assertFalse(new DspCorrelation().autocorrelation(new double[16], out));
+        for (double value : out) {
+            assertEquals(7, value, 0);
+        }
+    }
+
+    /**
+     * Test that one instance can be reused for blocks of different sizes.
+     */
+    public void testAutocorrelation_sizeChange() {
+        DspCorrelation correlation = new DspCorrelation();
+        for (int n : new int[] {300, 40, 300}) {
+            double[] data = WavelibBenchmark.randomSamples(n, n);
+            double[] expected = new double[n];
+            double[] actual = new double[n];
+            WavelibBenchmark.directAutocorrelation(data, expected);
+            correlation.autocorrelation(data, actual);
+            for (int i = 0; i < n; i++) {
+                assertEquals("n=" + n + " lag " + i, expected[i], actual[i], EPSILON);
+            }
+        }
+    }
+}
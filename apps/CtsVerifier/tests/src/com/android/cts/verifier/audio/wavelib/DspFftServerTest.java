@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.verifier.audio.wavelib;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Known-answer tests for {@link DspFftServer}.
+ */
+public class DspFftServerTest extends TestCase {
+
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Test that the spectrum of an impulse is flat.
+     */
+    public void testFft_impulse() {
+        DspFftServer server = new DspFftServer(64);
+        DspBufferComplex r = new DspBufferComplex(64);
+        r.mReal[0] = 1;
+        server.fft(r, 1);
+        for (int k = 0; k < 64; k++) {
+            assertEquals(1, r.mReal[k], EPSILON);
+            assertEquals(0, r.mImag[k], EPSILON);
+        }
+    }
+
+    /**
+     * Test that a sine of an integer number of periods lands in its bin, with the sign of a
+     * forward transform.
+     */
+    public void testFft_sineBin() {
+        int n = 256;
+        int bin = 10;
+        DspFftServer server = new DspFftServer(n);
+        DspBufferComplex r = new DspBufferComplex(n);
+        for (int i = 0; i < n; i++) {
+            r.mReal[i] = Math.sin(2 * Math.PI * bin * i / n);
+        }
+        server.fft(r, 1);
+        for (int k = 0; k < n; k++) {
+            double expected = k == bin ? -n / 2.0 : k == n - bin ? n / 2.0 : 0;
+            assertEquals("bin " + k, 0, r.mReal[k], EPSILON);
+            assertEquals("bin " + k, expected, r.mImag[k], EPSILON);
+        }
+    }
+
+    /**
+     * Test that the forward and inverse transforms round trip, up to the scale of N.
+     */
+    public void testFft_inverse() {
+        int n = 128;
+        DspFftServer server = new DspFftServer(n);
+        double[] real = WavelibBenchmark.randomSamples(n, 1);
+        double[] imag = WavelibBenchmark.randomSamples(n, 2);
+        double[] real2 = real.clone();
+        double[] imag2 = imag.clone();
+        server.fft(real2, imag2, 1);
+        server.fft(real2, imag2, -1);
+        for (int i = 0; i < n; i++) {
+            assertEquals(real[i], real2[i] / n, EPSILON);
+            assertEquals(imag[i], imag2[i] / n, EPSILON);
+        }
+    }
+
+    /**
+     * Test that the complex FFT matches a direct DFT and the FFT it replaced, for each size the
+     * activities may use.
+     */
+    public void testFft_matchesDft() {
+        for (int n = 1; n <= 1024; n *= 2) {
+            double[] real = WavelibBenchmark.randomSamples(n, n);
+            double[] imag = WavelibBenchmark.randomSamples(n, n + 1);
+            DspBufferComplex r = new DspBufferComplex(n);
+            System.arraycopy(real, 0, r.mReal, 0, n);
+            System.arraycopy(imag, 0, r.mImag, 0, n);
+            DspBufferComplex old = new DspBufferComplex(n);
+            System.arraycopy(real, 0, old.mReal, 0, n);
+            System.arraycopy(imag, 0, old.mImag, 0, n);
+
+            new DspFftServer(n).fft(r, 1);
+            WavelibBenchmark.oldFft(old, 1);
+            double[][] dft = dft(real, imag);
+            for (int k = 0; k < n; k++) {
+                assertEquals("n=" + n + " bin " + k, dft[0][k], r.mReal[k], EPSILON * n);
+                assertEquals("n=" + n + " bin " + k, dft[1][k], r.mImag[k], EPSILON * n);
+                assertEquals("n=" + n + " bin " + k, old.mReal[k], r.mReal[k], EPSILON);
+                assertEquals("n=" + n + " bin " + k, old.mImag[k], r.mImag[k], EPSILON);
+            }
+        }
+    }
+
+    /**
+     * Test that the real FFT gives the first half of the spectrum the complex FFT gives for the
+     * same samples.
+     */
+    public void testFftReal_matchesComplexFft() {
+        for (int n = 1; n <= 4096; n *= 2) {
+            double[] input = WavelibBenchmark.randomSamples(n, n);
+            double[] inputCopy = input.clone();
+            DspFftServer server = new DspFftServer(n);
+            double[] outReal = new double[n / 2 + 1];
+            double[] outImag = new double[n / 2 + 1];
+            server.fftReal(input, outReal, outImag);
+            assertTrue("input changed", Arrays.equals(inputCopy, input));
+
+            DspBufferComplex r = new DspBufferComplex(n);
+            System.arraycopy(input, 0, r.mReal, 0, n);
+            WavelibBenchmark.oldFft(r, 1);
+            for (int k = 0; k <= n / 2 && k < n; k++) {
+                assertEquals("n=" + n + " bin " + k, r.mReal[k], outReal[k], EPSILON);
+                assertEquals("n=" + n + " bin " + k, r.mImag[k], outImag[k], EPSILON);
+            }
+        }
+    }
+
+    /**
+     * Test that the real FFT of a cosine has a single real peak, including at the Nyquist bin.
+     */
+    public void testFftReal_cosineBins() {
+        int n = 64;
+        DspFftServer server = new DspFftServer(n);
+        double[] outReal = new double[n / 2 + 1];
+        double[] outImag = new double[n / 2 + 1];
+        for (int bin : new int[] {0, 1, 7, n / 2}) {
+            double[] input = new double[n];
+            for (int i = 0; i < n; i++) {
+                input[i] = Math.cos(2 * Math.PI * bin * i / n);
+            }
+            server.fftReal(input, outReal, outImag);
+            for (int k = 0; k <= n / 2; k++) {
+                double expected = k != bin ? 0 : (bin == 0 || bin == n / 2) ? n : n / 2.0;
+                assertEquals("bin " + bin + ", " + k, expected, outReal[k], EPSILON);
+                assertEquals("bin " + bin + ", " + k, 0, outImag[k], EPSILON);
+            }
+        }
+    }
+
+    /**
+     * Test that sizes other than powers of 2 are rejected.
+     */
+    public void testInit_notPowerOf2() {
+        try {
+            new DspFftServer(1000);
+            fail("RuntimeException not thrown");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    private static double[][] dft(double[] real, double[] imag) {
+        int n = real.length;
+        double[][] out = new double[2][n];
+        for (int k = 0; k < n; k++) {
+            for (int i = 0; i < n; i++) {
+                double angle = -2 * Math.PI * ((long) k * i % n) / n;
+                out[0][k] += real[i] * Math.cos(angle) - imag[i] * Math.sin(angle);
+                out[1][k] += real[i] * Math.sin(angle) + imag[i] * Math.cos(angle);
+            }
+        }
+        return out;
+    }
+}
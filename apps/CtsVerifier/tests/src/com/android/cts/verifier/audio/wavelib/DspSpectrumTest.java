@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.verifier.audio.wavelib;
+
+import junit.framework.TestCase;
+
+/**
+ * Known-answer tests for {@link DspSpectrum}.
+ */
+public class DspSpectrumTest extends TestCase {
+
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Test that a sine of an integer number of periods, with a rectangular window, has a single
+     * peak of N / 2 in its bin.
+     */
+    public void testComputeHalfMagnitude_sineBin() {
+        int n = 1024;
+        int bin = 100;
+        DspSpectrum spectrum = new DspSpectrum(new DspWindow(DspWindow.WINDOW_RECTANGULAR, n));
+        double[] data = new double[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = 0.5 * Math.sin(2 * Math.PI * bin * i / n);
+        }
+        double[] magnitude = spectrum.computeHalfMagnitude(data);
+        assertEquals(n / 2, magnitude.length);
+        for (int k = 0; k < n / 2; k++) {
+            assertEquals("bin " + k, k == bin ? n / 4.0 : 0, magnitude[k], EPSILON);
+        }
+    }
+
+    /**
+     * Test that the magnitudes match those the activities computed before, with the complex FFT
+     * of the windowed block.
+     */
+    public void testComputeHalfMagnitude_matchesComplexPath() {
+        for (int n : new int[] {2, 16, 1024, 4096}) {
+            DspWindow window = new DspWindow(DspWindow.WINDOW_HANNING, n, n / 2);
+            DspSpectrum spectrum = new DspSpectrum(window);
+            WavelibBenchmark.OldSpectrum old = new WavelibBenchmark.OldSpectrum(window);
+            for (long seed = 0; seed < 3; seed++) {
+                double[] data = WavelibBenchmark.randomSamples(n, seed);
+                double[] copy = data.clone();
+                double[] expected = old.computeHalfMagnitude(data);
+                double[] actual = spectrum.computeHalfMagnitude(copy);
+                for (int k = 0; k < n / 2; k++) {
+                    assertEquals("n=" + n + " bin " + k, expected[k], actual[k], EPSILON);
+                }
+                for (int i = 0; i < n; i++) {
+                    assertEquals("data changed", data[i], copy[i], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that the same array is returned for each block, as documented.
+     */
+    public void testComputeHalfMagnitude_reusesArray() {
+        DspSpectrum spectrum = new DspSpectrum(new DspWindow(DspWindow.WINDOW_HANNING, 64, 32));
+        double[] first = spectrum.computeHalfMagnitude(WavelibBenchmark.randomSamples(64, 1));
+        assertSame(first, spectrum.computeHalfMagnitude(WavelibBenchmark.randomSamples(64, 2)));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.verifier.audio.wavelib;
+
+import java.util.Random;
+
+/**
+ * Compares the time the audio activities spend analyzing a block with the kernels they used
+ * before: the complex FFT with its bit-reversal counter, the per-block copies and allocations of
+ * the spectrum, and the direct sum of the autocorrelation. Not a unit test: run it with
+ * <pre>
+ * java -cp CtsVerifierWavelibTests.jar \
+ *     com.android.cts.verifier.audio.wavelib.WavelibBenchmark [rounds]
+ * </pre>
+ * The previous kernels are kept here, as the unit tests check the new ones against them.
+ */
+public class WavelibBenchmark {
+
+    /** The block size of the frequency response activities. */
+    private static final int SPECTRUM_SIZE = 1024;
+    /** The block size of the latency correlation. */
+    private static final int CORRELATION_SIZE = 4096;
+
+    /**
+     * The complex FFT of DspFftServer before the bit-reversal table and the real FFT.
+     */
+    static void oldFft(DspBufferComplex r, int sign) {
+        int n = r.getSize();
+        int order = (int) (Math.log(n) / Math.log(2));
+        double[] cos = new double[n / 2];
+        double[] sin = new double[n / 2];
+        for (int i = 0; i < n / 2; i++) {
+            cos[i] = Math.cos(-2 * Math.PI * i / n);
+            sin[i] = Math.sin(-2 * Math.PI * i / n);
+        }
+        oldFft(r, sign, order, cos, sin);
+    }
+
+    private static void oldFft(DspBufferComplex r, int sign, int order, double[] cos,
+            double[] sin) {
+        int mN = 1 << order;
+        int ii, jj, kk, n1, n2, aa;
+        double cc, ss, t1, t2;
+
+        // Bit-reverse
+        jj = 0;
+        n2 = mN / 2;
+        for (ii = 1; ii < mN - 1; ii++) {
+            n1 = n2;
+            while (jj >= n1) {
+                jj = jj - n1;
+                n1 = n1 / 2;
+            }
+            jj = jj + n1;
+
+            if (ii < jj) {
+                t1 =  r.mReal[ii];
+                r.mReal[ii] = r.mReal[jj];
+                r.mReal[jj] = t1;
+                t1 = r.mImag[ii];
+                r.mImag[ii] = r.mImag[jj];
+                r.mImag[jj] = t1;
+            }
+        }
+
+        // FFT
+        n2 = 1;
+        for (ii = 0; ii < order; ii++) {
+            n1 = n2;
+            n2 = n2 + n2;
+            aa = 0;
+
+            for (jj = 0; jj < n1; jj++) {
+                cc = cos[aa];
+                ss = sign * sin[aa];
+                aa += 1 << (order - ii - 1);
+                for (kk = jj; kk < mN; kk = kk + n2) {
+                    t1 = cc * r.mReal[kk + n1] - ss * r.mImag[kk + n1];
+                    t2 = ss * r.mReal[kk + n1] + cc * r.mImag[kk + n1];
+                    r.mReal[kk + n1] = r.mReal[kk] - t1;
+                    r.mImag[kk + n1] = r.mImag[kk] - t2;
+                    r.mReal[kk] = r.mReal[kk] + t1;
+                    r.mImag[kk] = r.mImag[kk] + t2;
+                }
+            }
+        }
+    }
+
+    /**
+     * The half magnitude spectrum as the frequency response activities computed it before
+     * {@link DspSpectrum}, with tables computed once as DspFftServer did.
+     */
+    static class OldSpectrum {
+        private final DspWindow mWindow;
+        private final DspBufferDouble mData;
+        private final DspBufferComplex mC;
+        private final int mOrder;
+        private final double[] mCos;
+        private final double[] mSin;
+
+        OldSpectrum(DspWindow window) {
+            mWindow = window;
+            int n = window.mBuffer.getSize();
+            mData = new DspBufferDouble(n);
+            mC = new DspBufferComplex(n);
+            mOrder = (int) (Math.log(n) / Math.log(2));
+            mCos = new double[n / 2];
+            mSin = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                mCos[i] = Math.cos(-2 * Math.PI * i / n);
+                mSin[i] = Math.sin(-2 * Math.PI * i / n);
+            }
+        }
+
+        double[] computeHalfMagnitude(double[] data) {
+            int n = mData.getSize();
+            System.arraycopy(data, 0, mData.mData, 0, n);
+            DspBufferMath.mult(mData, mData, mWindow.mBuffer);
+            DspBufferMath.set(mC, mData);
+            oldFft(mC, 1, mOrder, mCos, mSin);
+
+            double[] halfMagnitude = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                halfMagnitude[i] = Math.sqrt(mC.mReal[i] * mC.mReal[i] + mC.mImag[i] * mC.mImag[i]);
+            }
+            return halfMagnitude;
+        }
+    }
+
+    /**
+     * The direct sum Correlation computed the autocorrelation with before {@link DspCorrelation}.
+     */
+    static boolean directAutocorrelation(double[] data, double[] dataOut) {
+        double sumsquared = 0;
+        int n = data.length;
+        for (int i = 0; i < n; i++) {
+            sumsquared += data[i] * data[i];
+        }
+        if (!(sumsquared > 0)) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            dataOut[i] = 0;
+            for (int j = 0; j < n - i; j++) {
+                dataOut[i] += data[j] * data[i + j];
+            }
+            dataOut[i] = dataOut[i] / sumsquared;
+        }
+        return true;
+    }
+
+    static double[] randomSamples(int n, long seed) {
+        Random random = new Random(seed);
+        double[] samples = new double[n];
+        for (int i = 0; i < n; i++) {
+            samples[i] = random.nextDouble() * 2 - 1;
+        }
+        return samples;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        double[] block = randomSamples(SPECTRUM_SIZE, 1);
+        DspWindow window = new DspWindow(DspWindow.WINDOW_HANNING, SPECTRUM_SIZE,
+                SPECTRUM_SIZE / 2);
+        final OldSpectrum oldSpectrum = new OldSpectrum(window);
+        final DspSpectrum spectrum = new DspSpectrum(window);
+        int blocks = 20000;
+        long oldNs = Long.MAX_VALUE;
+        long newNs = Long.MAX_VALUE;
+        double sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < blocks; i++) {
+                sink += oldSpectrum.computeHalfMagnitude(block)[i % 64];
+            }
+            oldNs = Math.min(oldNs, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < blocks; i++) {
+                sink += spectrum.computeHalfMagnitude(block)[i % 64];
+            }
+            newNs = Math.min(newNs, System.nanoTime() - start);
+        }
+        System.out.printf("spectrum of %d samples: before %.1f us, after %.1f us, %.1fx%n",
+                SPECTRUM_SIZE, oldNs / 1e3 / blocks, newNs / 1e3 / blocks, (double) oldNs / newNs);
+
+        double[] samples = randomSamples(CORRELATION_SIZE, 2);
+        double[] out = new double[CORRELATION_SIZE];
+        DspCorrelation correlation = new DspCorrelation();
+        int correlations = 20;
+        oldNs = Long.MAX_VALUE;
+        newNs = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < correlations; i++) {
+                directAutocorrelation(samples, out);
+                sink += out[i];
+            }
+            oldNs = Math.min(oldNs, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < correlations; i++) {
+                correlation.autocorrelation(samples, out);
+                sink += out[i];
+            }
+            newNs = Math.min(newNs, System.nanoTime() - start);
+        }
+        System.out.printf("autocorrelation of %d samples: before %.2f ms, after %.2f ms, %.1fx%n",
+                CORRELATION_SIZE, oldNs / 1e6 / correlations, newNs / 1e6 / correlations,
+                (double) oldNs / newNs);
+        // keeps the results alive, so the loops aren't optimized away
+        System.out.println(sink != 0 ? "" : " ");
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.scanner;
+
+import com.android.compatibility.common.scanner.SourceFile.TypeDecl;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the declarations javadoc sees of a class on the class path into a {@link SourceFile}:
+ * the class with its modifiers, superclass, methods and member classes.
+ */
+class ClassFileParser {
+
+    /** Reads the class files of the classes on the class path. */
+    interface ClassFileReader {
+        /**
+         * Returns the content of the class file of a class, or null if there is none.
+         *
+         * @param binaryName the binary name of the class, such as "a/b/Outer$Inner"
+         */
+        byte[] read(String binaryName) throws IOException;
+    }
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_PROTECTED = 0x0004;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private final String mBinaryName;
+    private final DataInputStream mIn;
+    /** The strings of the constant pool, by index. */
+    private String[] mStrings;
+    /** The index of the name of each class in the constant pool, by index. */
+    private int[] mClassNames;
+
+    private ClassFileParser(String binaryName, byte[] content) {
+        this.mBinaryName = binaryName;
+        this.mIn = new DataInputStream(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Parses a top level class and its member classes.
+     *
+     * @param binaryName the binary name of the class, such as "a/b/C"
+     * @return the class, or null if it has no class file
+     */
+    static SourceFile parse(String binaryName, ClassFileReader reader)
+            throws IOException, SourceFileParser.ParseException {
+        int slash = binaryName.lastIndexOf('/');
+        SourceFile file = new SourceFile(
+                slash == -1 ? "" : binaryName.substring(0, slash).replace('/', '.'), true);
+        TypeDecl type = parseType(file, null, binaryName.substring(slash + 1), binaryName, -1,
+                reader);
+        if (type == null) {
+            return null;
+        }
+        file.mTypes.add(type);
+        return file;
+    }
+
+    /**
+     * @param flags the access flags of a member class, which its class file only has in its
+     *     InnerClasses attribute, or -1 for a top level class
+     */
+    private static TypeDecl parseType(SourceFile file, TypeDecl enclosing, String simpleName,
+            String binaryName, int flags, ClassFileReader reader)
+            throws IOException, SourceFileParser.ParseException {
+        byte[] content = reader.read(binaryName);
+        if (content == null) {
+            return null;
+        }
+        return new ClassFileParser(binaryName, content).parseClass(file, enclosing, simpleName,
+                flags, reader);
+    }
+
+    private TypeDecl parseClass(SourceFile file, TypeDecl enclosing, String simpleName,
+            int flagsAsMember, ClassFileReader reader)
+            throws IOException, SourceFileParser.ParseException {
+        TypeDecl type;
+        List<String> memberNames = new ArrayList<String>();
+        List<String> memberBinaryNames = new ArrayList<String>();
+        List<Integer> memberFlags = new ArrayList<Integer>();
+        try {
+            if (mIn.readInt() != MAGIC) {
+                throw error("not a class file");
+            }
+            mIn.readUnsignedShort(); // minor_version
+            mIn.readUnsignedShort(); // major_version
+            readConstantPool();
+            int flags = mIn.readUnsignedShort();
+            if (flagsAsMember != -1) {
+                flags = flagsAsMember;
+            }
+            mIn.readUnsignedShort(); // this_class
+            int superclass = mIn.readUnsignedShort();
+            skip(2 * mIn.readUnsignedShort()); // interfaces
+            boolean isInterface = (flags & ACC_INTERFACE) != 0;
+            boolean visible = enclosing != null && enclosing.mInterface
+                    ? (flags & ACC_PRIVATE) == 0
+                    : (flags & (ACC_PUBLIC | ACC_PROTECTED)) != 0;
+            type = new TypeDecl(file, enclosing, simpleName, visible,
+                    (flags & (ACC_ABSTRACT | ACC_INTERFACE)) != 0, isInterface);
+            if (superclass != 0 && !isInterface) {
+                type.mSuperclass = getClassName(superclass).replace('/', '.').replace('$', '.');
+            }
+
+            int fields = mIn.readUnsignedShort();
+            for (int i = 0; i < fields; i++) {
+                skip(6); // access_flags, name_index, descriptor_index
+                skipAttributes();
+            }
+            int methods = mIn.readUnsignedShort();
+            for (int i = 0; i < methods; i++) {
+                int methodFlags = mIn.readUnsignedShort();
+                String name = mStrings[mIn.readUnsignedShort()];
+                mIn.readUnsignedShort(); // descriptor_index
+                skipAttributes();
+                boolean visibleMethod = isInterface ? (methodFlags & ACC_PRIVATE) == 0
+                        : (methodFlags & (ACC_PUBLIC | ACC_PROTECTED)) != 0;
+                // constructors, initializers and bridges are not methods to javadoc
+                if (visibleMethod && (methodFlags & ACC_SYNTHETIC) == 0
+                        && !name.startsWith("<")) {
+                    type.mMethods.add(name);
+                }
+            }
+
+            int attributes = mIn.readUnsignedShort();
+            for (int i = 0; i < attributes; i++) {
+                String name = mStrings[mIn.readUnsignedShort()];
+                int length = mIn.readInt();
+                if (!name.equals("InnerClasses")) {
+                    skip(length);
+                    continue;
+                }
+                int classes = mIn.readUnsignedShort();
+                for (int j = 0; j < classes; j++) {
+                    int inner = mIn.readUnsignedShort();
+                    int outer = mIn.readUnsignedShort();
+                    int innerName = mIn.readUnsignedShort();
+                    int innerFlags = mIn.readUnsignedShort();
+                    // only the member classes of this class, not local or anonymous ones
+                    if (outer == 0 || innerName == 0
+                            || !getClassName(outer).equals(mBinaryName)) {
+                        continue;
+                    }
+                    memberNames.add(mStrings[innerName]);
+                    memberBinaryNames.add(getClassName(inner));
+                    memberFlags.add(innerFlags);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NullPointerException e) {
+            throw error("bad constant pool index");
+        } catch (EOFException e) {
+            throw error("truncated class file");
+        }
+        for (int i = 0; i < memberNames.size(); i++) {
+            TypeDecl memberType = parseType(file, type, memberNames.get(i),
+                    memberBinaryNames.get(i), memberFlags.get(i), reader);
+            if (memberType != null) {
+                type.mMemberTypes.add(memberType);
+            }
+        }
+        return type;
+    }
+
+    private void readConstantPool() throws IOException, SourceFileParser.ParseException {
+        int count = mIn.readUnsignedShort();
+        mStrings = new String[count];
+        mClassNames = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = mIn.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    mStrings[i] = mIn.readUTF();
+                    break;
+                case CONSTANT_CLASS:
+                    mClassNames[i] = mIn.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    skip(2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    skip(3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    skip(4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    skip(8);
+                    // these take two entries
+                    i++;
+                    break;
+                default:
+                    throw error("unknown constant pool tag " + tag);
+            }
+        }
+    }
+
+    private String getClassName(int index) throws SourceFileParser.ParseException {
+        String name = mStrings[mClassNames[index]];
+        if (name == null) {
+            throw error("bad class index " + index);
+        }
+        return name;
+    }
+
+    private void skipAttributes() throws IOException {
+        int attributes = mIn.readUnsignedShort();
+        for (int i = 0; i < attributes; i++) {
+            mIn.readUnsignedShort(); // attribute_name_index
+            skip(mIn.readInt());
+        }
+    }
+
+    private void skip(int length) throws IOException {
+        mIn.readFully(new byte[length]);
+    }
+
+    private SourceFileParser.ParseException error(String message) {
+        return new SourceFileParser.ParseException(mBinaryName + ".class: " + message);
+    }
+}
@@ -16,19 +16,38 @@
 
 package com.android.compatibility.common.scanner;
 
+import com.android.compatibility.common.scanner.SourceFile.TypeDecl;
 import com.android.compatibility.common.util.KeyValueArgsParser;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Scans a source directory for java tests and outputs a list of test classes and methods.
+ *
+ * The sources are scanned in process, finding the same tests {@link JavaScannerDoclet} finds
+ * when run by javadoc: the public and protected, non abstract classes extending
+ * junit.framework.TestCase, and the public and protected methods named test* of them and of their
+ * superclasses. Superclasses
+ * are looked up on the same source path and class path javadoc is given, preferring sources. With
+ * "-m javadoc", javadoc is run with the doclet instead.
  */
 public class JavaScanner {
 
@@ -43,30 +62,92 @@ public class JavaScanner {
         "./common/util/src"
     };
     static final String[] CLASS_PATHS = {
-        "./prebuilts/misc/common/tradefed/tradefed-prebuilt.java",
-        "./prebuilts/misc/common/ub-uiautomator/ub-uiautomator.java"
+        "./prebuilts/misc/common/tradefed/tradefed-prebuilt.jar",
+        "./prebuilts/misc/common/ub-uiautomator/ub-uiautomator.jar"
     };
+    private static final String JUNIT_TEST_CASE_CLASS_NAME = "junit.framework.testcase";
+
     private final File mSourceDir;
     private final File mDocletDir;
+    private final List<String> mSourcePaths;
+    private final List<String> mClassPaths;
+    private final List<File> mSourcePath = new ArrayList<File>();
+    private final List<File> mClassPath = new ArrayList<File>();
+    private final SourceFileCache mCache;
+    /** Whether a class of the source or class path couldn't be read. */
+    private boolean mFailed = false;
+    /** The top level classes looked up so far by qualified name, null if not found. */
+    private final Map<String, TypeDecl> mTopLevelTypes = new HashMap<String, TypeDecl>();
 
     /**
+     * Creates a scanner that runs javadoc with {@link JavaScannerDoclet}.
+     *
      * @param sourceDir The directory holding the source to scan.
      * @param docletDir The directory holding the doclet (or its jar).
      */
     JavaScanner(File sourceDir, File docletDir) {
+        this(sourceDir, docletDir, Arrays.asList(SOURCE_PATHS), Arrays.asList(CLASS_PATHS));
+    }
+
+    /**
+     * Creates a scanner that runs javadoc with {@link JavaScannerDoclet}.
+     *
+     * @param sourceDir The directory holding the source to scan.
+     * @param docletDir The directory holding the doclet (or its jar).
+     * @param sourcePaths The directories to look up superclasses in, besides sourceDir.
+     * @param classPaths The directories and jars to look up superclasses in.
+     */
+    JavaScanner(File sourceDir, File docletDir, List<String> sourcePaths,
+            List<String> classPaths) {
+        this(sourceDir, docletDir, sourcePaths, classPaths, null);
+    }
+
+    /**
+     * Creates a scanner that scans the sources in process.
+     *
+     * @param sourceDir The directory holding the source to scan.
+     * @param sourcePaths The directories to look up superclasses in, besides sourceDir.
+     * @param classPaths The directories and jars to look up superclasses in.
+     * @param cache The cache of parsed source files, which may be shared by many scanners.
+     */
+    JavaScanner(File sourceDir, List<String> sourcePaths, List<String> classPaths,
+            SourceFileCache cache) {
+        this(sourceDir, null, sourcePaths, classPaths, cache);
+    }
+
+    private JavaScanner(File sourceDir, File docletDir, List<String> sourcePaths,
+            List<String> classPaths, SourceFileCache cache) {
         this.mSourceDir = sourceDir;
         this.mDocletDir = docletDir;
+        this.mSourcePaths = sourcePaths;
+        this.mClassPaths = classPaths;
+        this.mCache = cache;
+        for (String path : sourcePaths) {
+            mSourcePath.add(new File(path));
+        }
+        mSourcePath.add(sourceDir);
+        for (String path : classPaths) {
+            mClassPath.add(new File(path));
+        }
     }
 
     int scan() throws Exception {
+        return scan(System.out);
+    }
+
+    int scan(PrintStream out) throws Exception {
+        return mDocletDir != null ? scanWithDoclet(out) : scanSources(out);
+    }
+
+    private int scanWithDoclet(PrintStream out) throws Exception {
         final ArrayList<String> args = new ArrayList<String>();
         args.add("javadoc");
         args.add("-doclet");
         args.add("com.android.compatibility.common.scanner.JavaScannerDoclet");
         args.add("-sourcepath");
-        args.add(getSourcePath(mSourceDir));
+        args.add(getSourcePath());
         args.add("-classpath");
-        args.add(getClassPath());
+        args.add(join(mClassPaths, ":"));
         args.add("-docletpath");
         args.add(mDocletDir.toString());
         args.addAll(getSourceFiles(mSourceDir));
@@ -80,7 +161,7 @@ public class JavaScanner {
                 if (line.startsWith("suite:") ||
                     line.startsWith("case:") ||
                     line.startsWith("test:")) {
-                    System.out.println(line);
+                    out.println(line);
                 }
             }
         } finally {
@@ -92,14 +173,234 @@ public class JavaScanner {
         return p.waitFor();
     }
 
-    private static String getSourcePath(File sourceDir) {
-        final ArrayList<String> sourcePath = new ArrayList<String>(Arrays.asList(SOURCE_PATHS));
-        sourcePath.add(sourceDir.toString());
-        return join(sourcePath, ":");
+    private int scanSources(PrintStream out) throws IOException {
+        int result = 0;
+        List<SourceFile> sourceFiles = new ArrayList<SourceFile>();
+        for (String path : getSourceFiles(mSourceDir)) {
+            try {
+                SourceFile sourceFile = mCache.get(new File(path));
+                sourceFiles.add(sourceFile);
+                // like javac, know all the classes of the files given, whatever the file names
+                for (TypeDecl type : sourceFile.mTypes) {
+                    mTopLevelTypes.put(type.getQualifiedName(), type);
+                }
+            } catch (SourceFileParser.ParseException e) {
+                System.err.println(e.getMessage());
+                result = 1;
+            }
+        }
+
+        List<TypeDecl> classes = new ArrayList<TypeDecl>();
+        for (SourceFile sourceFile : sourceFiles) {
+            for (TypeDecl type : sourceFile.mTypes) {
+                addAllClasses(type, classes);
+            }
+        }
+        for (TypeDecl clazz : classes) {
+            if (clazz.mAbstract || !isValidJUnitTestCase(clazz)) {
+                continue;
+            }
+            out.println("suite:" + clazz.mFile.mPackageName);
+            out.println("case:" + clazz.getName());
+            for (TypeDecl type = clazz; type != null; type = getSuperclass(type)) {
+                for (String method : type.mMethods) {
+                    if (method.startsWith("test")) {
+                        out.println("test:" + method);
+                    }
+                }
+            }
+        }
+        return mFailed ? 1 : result;
+    }
+
+    /**
+     * Adds a class javadoc documents, and then its documented member classes, in the order
+     * javadoc lists them.
+     */
+    private static void addAllClasses(TypeDecl type, List<TypeDecl> classes) {
+        if (!type.mVisible || classes.contains(type)) {
+            return;
+        }
+        classes.add(type);
+        for (TypeDecl memberType : type.mMemberTypes) {
+            addAllClasses(memberType, classes);
+        }
+    }
+
+    private boolean isValidJUnitTestCase(TypeDecl clazz) {
+        Set<TypeDecl> seen = new HashSet<TypeDecl>();
+        while (seen.add(clazz) && (clazz = getSuperclass(clazz)) != null) {
+            if (JUNIT_TEST_CASE_CLASS_NAME.equals(clazz.getQualifiedName().toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the superclass of a class, or null if it has none or it isn't on the source path
+     * or class path.
+     */
+    private TypeDecl getSuperclass(TypeDecl type) {
+        if (type.mSuperclass == null) {
+            return null;
+        }
+        String[] names = type.mSuperclass.split("\\.");
+        if (type.mFile.mCompiled) {
+            // already resolved by the compiler
+            return resolveQualifiedName(names);
+        }
+        TypeDecl superclass = resolveSimpleName(type, names[0]);
+        if (superclass != null) {
+            return getMemberType(superclass, names, 1);
+        }
+        return resolveQualifiedName(names);
+    }
+
+    /**
+     * Resolves the simple name of a class used in the declaration of another class, looking in
+     * the scopes javac looks in, in the same order.
+     */
+    private TypeDecl resolveSimpleName(TypeDecl context, String name) {
+        for (TypeDecl outer = context.mEnclosing; outer != null; outer = outer.mEnclosing) {
+            TypeDecl memberType = outer.getMemberType(name);
+            if (memberType != null) {
+                return memberType;
+            }
+        }
+        SourceFile file = context.mFile;
+        TypeDecl type = file.getType(name);
+        if (type != null) {
+            return type;
+        }
+        String imported = file.mImports.get(name);
+        if (imported != null) {
+            return resolveQualifiedName(imported.split("\\."));
+        }
+        type = findTopLevelType(file.mPackageName, name);
+        if (type != null) {
+            return type;
+        }
+        for (String onDemand : file.mOnDemandImports) {
+            type = resolveQualifiedName((onDemand + "." + name).split("\\."));
+            if (type != null) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves a qualified class name, trying the shortest package name first, as javac does.
+     */
+    private TypeDecl resolveQualifiedName(String[] names) {
+        StringBuilder packageName = new StringBuilder(names[0]);
+        for (int i = 1; i < names.length; i++) {
+            TypeDecl type = findTopLevelType(packageName.toString(), names[i]);
+            if (type != null) {
+                return getMemberType(type, names, i + 1);
+            }
+            packageName.append('.').append(names[i]);
+        }
+        return null;
+    }
+
+    private static TypeDecl getMemberType(TypeDecl type, String[] names, int start) {
+        for (int i = start; i < names.length && type != null; i++) {
+            type = type.getMemberType(names[i]);
+        }
+        return type;
+    }
+
+    /**
+     * Finds a top level class among the sources given, on the source path, and then on the class
+     * path.
+     */
+    private TypeDecl findTopLevelType(String packageName, String name) {
+        String qualifiedName = packageName.isEmpty() ? name : packageName + "." + name;
+        if (mTopLevelTypes.containsKey(qualifiedName)) {
+            return mTopLevelTypes.get(qualifiedName);
+        }
+        TypeDecl type = null;
+        String fileName = qualifiedName.replace('.', File.separatorChar) + ".java";
+        for (File root : mSourcePath) {
+            File file = new File(root, fileName);
+            if (file.isFile()) {
+                try {
+                    type = mCache.get(file).getType(name);
+                } catch (Exception e) {
+                    System.err.println("Couldn't read " + file + ": " + e.getMessage());
+                    mFailed = true;
+                }
+                mTopLevelTypes.put(qualifiedName, type);
+                return type;
+            }
+        }
+        for (File entry : mClassPath) {
+            try {
+                SourceFile classFile = mCache.getClass(entry, qualifiedName);
+                if (classFile != null) {
+                    type = classFile.getType(name);
+                    break;
+                }
+            } catch (Exception e) {
+                System.err.println("Couldn't read " + qualifiedName + " from " + entry + ": "
+                        + e.getMessage());
+                mFailed = true;
+                break;
+            }
+        }
+        mTopLevelTypes.put(qualifiedName, type);
+        return type;
+    }
+
+    /**
+     * Scans many source directories in process, in parallel, writing the tests found in each to
+     * a file of its own. Files shared by the directories, such as their superclasses, are only
+     * parsed once.
+     *
+     * @return 0 if all the directories could be scanned
+     */
+    static int scanAll(List<File> sourceDirs, List<File> outputFiles, final SourceFileCache cache,
+            int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < sourceDirs.size(); i++) {
+                final File sourceDir = sourceDirs.get(i);
+                final File outputFile = outputFiles.get(i);
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        PrintStream out = new PrintStream(outputFile);
+                        try {
+                            return new JavaScanner(sourceDir, Arrays.asList(SOURCE_PATHS),
+                                    Arrays.asList(CLASS_PATHS), cache).scan(out);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                }));
+            }
+            int result = 0;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    result = Math.max(result, results.get(i).get());
+                } catch (ExecutionException e) {
+                    System.err.println("Failed to scan " + sourceDirs.get(i) + ": " + e.getCause());
+                    result = Math.max(result, 1);
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdown();
+        }
     }
 
-    private static String getClassPath() {
-        return join(Arrays.asList(CLASS_PATHS), ":");
+    private String getSourcePath() {
+        final ArrayList<String> sourcePath = new ArrayList<String>(mSourcePaths);
+        sourcePath.add(mSourceDir.toString());
+        return join(sourcePath, ":");
     }
 
     private static ArrayList<String> getSourceFiles(File sourceDir) {
@@ -120,6 +421,9 @@ public class JavaScanner {
     }
 
     private static String join(List<String> list, String delimiter) {
+        if (list.isEmpty()) {
+            return "";
+        }
         final StringBuilder builder = new StringBuilder();
         for (String s : list) {
             builder.append(s);
@@ -134,15 +438,50 @@ public class JavaScanner {
         final HashMap<String, String> argsMap = KeyValueArgsParser.parse(args);
         final String sourcePath = argsMap.get("-s");
         final String docletPath = argsMap.get("-d");
-        if (sourcePath == null || docletPath == null) {
+        final String listPath = argsMap.get("-l");
+        final String cachePath = argsMap.get("-c");
+        final String threads = argsMap.get("-j");
+        final boolean javadoc = "javadoc".equals(argsMap.get("-m"));
+        if ((sourcePath == null) == (listPath == null) || (javadoc && docletPath == null)
+                || (javadoc && listPath != null)) {
             usage(args);
         }
-        System.exit(new JavaScanner(new File(sourcePath), new File(docletPath)).scan());
+        final SourceFileCache cache = new SourceFileCache(
+                cachePath == null ? null : new File(cachePath));
+        if (listPath != null) {
+            final List<File> sourceDirs = new ArrayList<File>();
+            final List<File> outputFiles = new ArrayList<File>();
+            final BufferedReader in = new BufferedReader(new FileReader(listPath));
+            try {
+                String line = null;
+                while ((line = in.readLine()) != null) {
+                    final String[] parts = line.trim().split("\\s+");
+                    if (parts.length == 2) {
+                        sourceDirs.add(new File(parts[0]));
+                        outputFiles.add(new File(parts[1]));
+                    } else if (!line.trim().isEmpty()) {
+                        usage(args);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            System.exit(scanAll(sourceDirs, outputFiles, cache, threads == null
+                    ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads)));
+        }
+        if (javadoc) {
+            System.exit(new JavaScanner(new File(sourcePath), new File(docletPath)).scan());
+        }
+        System.exit(new JavaScanner(new File(sourcePath), Arrays.asList(SOURCE_PATHS),
+                Arrays.asList(CLASS_PATHS), cache).scan());
     }
 
     private static void usage(String[] args) {
         System.err.println("Arguments: " + Arrays.toString(args));
-        System.err.println("Usage: javascanner -s SOURCE_DIR -d DOCLET_PATH");
+        System.err.println("Usage: javascanner -s SOURCE_DIR [-d DOCLET_PATH -m javadoc] "
+                + "[-c CACHE_DIR]");
+        System.err.println("       javascanner -l LIST_FILE [-c CACHE_DIR] [-j THREADS]");
+        System.err.println("where each line of LIST_FILE is: SOURCE_DIR OUTPUT_FILE");
         System.exit(1);
     }
 }
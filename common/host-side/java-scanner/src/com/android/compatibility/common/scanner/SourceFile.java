@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.scanner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The declarations of a java source file the scanner needs: its package, its imports and the
+ * classes it declares, with their superclasses and methods.
+ */
+class SourceFile implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final String mPackageName;
+    /**
+     * Whether the classes were read from class files, so their superclasses are qualified
+     * names, with '.' for both packages and enclosing classes.
+     */
+    final boolean mCompiled;
+    /** Single type imports, by simple name. */
+    final Map<String, String> mImports = new LinkedHashMap<String, String>();
+    /** The packages and classes of on demand imports. */
+    final List<String> mOnDemandImports = new ArrayList<String>();
+    /** The top level classes, in declaration order. */
+    final List<TypeDecl> mTypes = new ArrayList<TypeDecl>();
+
+    SourceFile(String packageName) {
+        this(packageName, false);
+    }
+
+    SourceFile(String packageName, boolean compiled) {
+        this.mPackageName = packageName;
+        this.mCompiled = compiled;
+    }
+
+    /**
+     * Returns the top level class with the given name, or null if there is none.
+     */
+    TypeDecl getType(String simpleName) {
+        for (TypeDecl type : mTypes) {
+            if (type.mSimpleName.equals(simpleName)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A class, interface, enum or annotation type.
+     */
+    static class TypeDecl implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final SourceFile mFile;
+        final TypeDecl mEnclosing;
+        final String mSimpleName;
+        /** Whether javadoc documents the class by default, that is it is public or protected. */
+        final boolean mVisible;
+        /** Whether the class is abstract, an interface or an annotation type. */
+        final boolean mAbstract;
+        final boolean mInterface;
+        /** The superclass as written, without type arguments, or null if there is none. */
+        String mSuperclass;
+        /** The names of the public and protected methods, in declaration order. */
+        final List<String> mMethods = new ArrayList<String>();
+        /** The member classes, in declaration order. */
+        final List<TypeDecl> mMemberTypes = new ArrayList<TypeDecl>();
+
+        TypeDecl(SourceFile file, TypeDecl enclosing, String simpleName, boolean visible,
+                boolean isAbstract, boolean isInterface) {
+            this.mFile = file;
+            this.mEnclosing = enclosing;
+            this.mSimpleName = simpleName;
+            this.mVisible = visible;
+            this.mAbstract = isAbstract;
+            this.mInterface = isInterface;
+        }
+
+        /**
+         * Returns the name of the class within its package, such as "Outer.Inner".
+         */
+        String getName() {
+            return mEnclosing == null ? mSimpleName : mEnclosing.getName() + "." + mSimpleName;
+        }
+
+        String getQualifiedName() {
+            return mFile.mPackageName.isEmpty() ? getName()
+                    : mFile.mPackageName + "." + getName();
+        }
+
+        /**
+         * Returns the member class with the given name, or null if there is none.
+         */
+        TypeDecl getMemberType(String simpleName) {
+            for (TypeDecl type : mMemberTypes) {
+                if (type.mSimpleName.equals(simpleName)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
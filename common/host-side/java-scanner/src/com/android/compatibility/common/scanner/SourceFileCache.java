@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.scanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Parses source files, keeping the results by the hash of the file content, so a file shared by
+ * many modules, or unchanged since the last run, is only parsed once. The classes of the class
+ * path are read once as well.
+ *
+ * The results are kept in memory, and also in a directory if one is given, so they last from one
+ * run to the next. The cache is safe to use from many threads.
+ */
+class SourceFileCache {
+
+    /** Changed whenever {@link SourceFile} or the parser change, to leave old entries behind. */
+    private static final String CACHE_VERSION = "1-";
+
+    private final ConcurrentHashMap<String, SourceFile> mFiles =
+            new ConcurrentHashMap<String, SourceFile>();
+    /** The classes read from the class path, by class path entry and qualified name. */
+    private final ConcurrentHashMap<String, SourceFile> mClasses =
+            new ConcurrentHashMap<String, SourceFile>();
+    private final Map<File, ZipFile> mJars = new HashMap<File, ZipFile>();
+    private final File mCacheDir;
+
+    /**
+     * @param cacheDir The directory to keep the results in, or null to only keep them in memory.
+     */
+    SourceFileCache(File cacheDir) {
+        this.mCacheDir = cacheDir;
+        if (cacheDir != null) {
+            cacheDir.mkdirs();
+        }
+    }
+
+    /**
+     * Returns the declarations of a source file.
+     */
+    SourceFile get(File file) throws IOException, SourceFileParser.ParseException {
+        byte[] content = readFile(file);
+        String hash = hash(content);
+        SourceFile sourceFile = mFiles.get(hash);
+        if (sourceFile == null) {
+            sourceFile = load(hash);
+            if (sourceFile == null) {
+                // javadoc reads sources in the default encoding too
+                sourceFile = SourceFileParser.parse(file.getPath(),
+                        new String(content, Charset.defaultCharset()));
+                store(hash, sourceFile);
+            }
+            mFiles.put(hash, sourceFile);
+        }
+        return sourceFile;
+    }
+
+    /**
+     * Returns the declarations of a top level class on the class path, or null if the class path
+     * entry has no such class. The results are only kept in memory.
+     *
+     * @param classPathEntry a directory or jar of class files
+     * @param qualifiedName the qualified name of the class
+     */
+    SourceFile getClass(final File classPathEntry, String qualifiedName)
+            throws IOException, SourceFileParser.ParseException {
+        String key = classPathEntry.getPath() + File.pathSeparator + qualifiedName;
+        SourceFile classFile = mClasses.get(key);
+        if (classFile == null) {
+            if (!classPathEntry.isDirectory() && getJar(classPathEntry) == null) {
+                return null;
+            }
+            classFile = ClassFileParser.parse(qualifiedName.replace('.', '/'),
+                    new ClassFileParser.ClassFileReader() {
+                        @Override
+                        public byte[] read(String binaryName) throws IOException {
+                            return readClassFile(classPathEntry, binaryName);
+                        }
+                    });
+            if (classFile == null) {
+                return null;
+            }
+            mClasses.put(key, classFile);
+        }
+        return classFile;
+    }
+
+    private byte[] readClassFile(File classPathEntry, String binaryName) throws IOException {
+        String fileName = binaryName + ".class";
+        if (classPathEntry.isDirectory()) {
+            File file = new File(classPathEntry, fileName);
+            return file.isFile() ? readFile(file) : null;
+        }
+        ZipFile jar = getJar(classPathEntry);
+        ZipEntry entry = jar.getEntry(fileName);
+        if (entry == null) {
+            return null;
+        }
+        return readFully(jar.getInputStream(entry), (int) entry.getSize());
+    }
+
+    /**
+     * Returns a jar of the class path, opened once and kept open, or null if there is no such
+     * file.
+     */
+    private ZipFile getJar(File file) throws IOException {
+        synchronized (mJars) {
+            ZipFile jar = mJars.get(file);
+            if (jar == null && file.isFile()) {
+                jar = new ZipFile(file);
+                mJars.put(file, jar);
+            }
+            return jar;
+        }
+    }
+
+    private SourceFile load(String hash) {
+        if (mCacheDir == null) {
+            return null;
+        }
+        File cached = new File(mCacheDir, CACHE_VERSION + hash);
+        if (!cached.exists()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new FileInputStream(cached));
+            try {
+                return (SourceFile) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // a cache entry from another version, or a partly written one; parse again
+            return null;
+        }
+    }
+
+    private void store(String hash, SourceFile sourceFile) throws IOException {
+        if (mCacheDir == null) {
+            return;
+        }
+        // written aside and renamed, so other processes never read a partly written entry
+        File temp = File.createTempFile(hash, ".tmp", mCacheDir);
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeObject(sourceFile);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(mCacheDir, CACHE_VERSION + hash))) {
+            temp.delete();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readFully(new FileInputStream(file), (int) file.length());
+    }
+
+    private static byte[] readFully(InputStream in, int size) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(size, 32));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.scanner;
+
+import com.android.compatibility.common.scanner.SourceFile.TypeDecl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses the declarations of a java source file into a {@link SourceFile}.
+ *
+ * Only what javadoc would see is parsed: the package, the imports, and the classes with their
+ * modifiers, superclasses, methods and member classes. Method bodies, field initializers and
+ * everything else are skipped by matching brackets, so local and anonymous classes are never
+ * seen.
+ */
+class SourceFileParser {
+
+    /** Thrown if a source file can't be parsed. */
+    static class ParseException extends Exception {
+        ParseException(String message) {
+            super(message);
+        }
+    }
+
+    private static final String EOF = "";
+    /** The token for any string, character or number literal. */
+    private static final String LITERAL = "\"";
+
+    private static final Set<String> MODIFIERS = new HashSet<String>(Arrays.asList(
+            "public", "protected", "private", "static", "abstract", "final", "native",
+            "synchronized", "transient", "volatile", "strictfp", "default"));
+
+    private final String mName;
+    private final List<String> mTokens;
+    private int mPos = 0;
+
+    private SourceFileParser(String name, String content) throws ParseException {
+        this.mName = name;
+        this.mTokens = tokenize(name, content);
+    }
+
+    /**
+     * @param name the name of the file, for error messages
+     * @param content the content of the file
+     */
+    static SourceFile parse(String name, String content) throws ParseException {
+        return new SourceFileParser(name, content).parseCompilationUnit();
+    }
+
+    private SourceFile parseCompilationUnit() throws ParseException {
+        skipAnnotations();
+        String packageName = "";
+        if (accept("package")) {
+            packageName = parseQualifiedName();
+            expect(";");
+        }
+        SourceFile file = new SourceFile(packageName);
+        while (accept("import")) {
+            if (accept("static")) {
+                // static imports only bring in members
+                skipPast(";");
+                continue;
+            }
+            String name = parseQualifiedName();
+            if (accept(".")) {
+                expect("*");
+                file.mOnDemandImports.add(name);
+            } else {
+                file.mImports.put(name.substring(name.lastIndexOf('.') + 1), name);
+            }
+            expect(";");
+        }
+        while (!peek().equals(EOF)) {
+            if (accept(";")) {
+                continue;
+            }
+            Set<String> modifiers = parseModifiers();
+            file.mTypes.add(parseTypeDecl(file, null, modifiers));
+        }
+        return file;
+    }
+
+    /**
+     * Parses a class declaration following its modifiers.
+     */
+    private TypeDecl parseTypeDecl(SourceFile file, TypeDecl enclosing, Set<String> modifiers)
+            throws ParseException {
+        String kind = next();
+        if (kind.equals("@")) {
+            expect("interface");
+            kind = "@interface";
+        }
+        boolean isInterface = kind.equals("interface") || kind.equals("@interface");
+        if (!isInterface && !kind.equals("class") && !kind.equals("enum")) {
+            throw error("class, interface or enum expected, found '" + kind + "'");
+        }
+        String simpleName = parseIdentifier();
+        boolean visible;
+        if (enclosing == null) {
+            visible = modifiers.contains("public");
+        } else if (enclosing.mInterface) {
+            // members of interfaces are implicitly public
+            visible = !modifiers.contains("private");
+        } else {
+            visible = modifiers.contains("public") || modifiers.contains("protected");
+        }
+        TypeDecl type = new TypeDecl(file, enclosing, simpleName, visible,
+                isInterface || modifiers.contains("abstract"), isInterface);
+        if (peek().equals("<")) {
+            skipTypeArguments();
+        }
+        while (!peek().equals("{")) {
+            if (accept("extends") && kind.equals("class")) {
+                type.mSuperclass = parseType();
+            } else {
+                // implements clauses and the superinterfaces of interfaces
+                next();
+            }
+            if (peek().equals(EOF)) {
+                throw error("'{' expected");
+            }
+        }
+        expect("{");
+        if (kind.equals("enum")) {
+            skipEnumConstants();
+        }
+        parseClassBody(type);
+        return type;
+    }
+
+    private void skipEnumConstants() throws ParseException {
+        while (true) {
+            String token = peek();
+            if (token.equals(";")) {
+                next();
+                return;
+            }
+            if (token.equals("}")) {
+                return;
+            }
+            if (token.equals("(") || token.equals("{")) {
+                skipBalanced();
+            } else if (token.equals(EOF)) {
+                throw error("'}' expected");
+            } else {
+                next();
+            }
+        }
+    }
+
+    private void parseClassBody(TypeDecl type) throws ParseException {
+        while (!accept("}")) {
+            if (accept(";")) {
+                continue;
+            }
+            Set<String> modifiers = parseModifiers();
+            String token = peek();
+            if (token.equals("{")) {
+                // initializer
+                skipBalanced();
+                continue;
+            }
+            if (token.equals("class") || token.equals("interface") || token.equals("enum")
+                    || (token.equals("@") && peek(1).equals("interface"))) {
+                type.mMemberTypes.add(parseTypeDecl(type.mFile, type, modifiers));
+                continue;
+            }
+            if (token.equals("<")) {
+                // type parameters of a generic method or constructor
+                skipTypeArguments();
+            }
+            parseType();
+            if (peek().equals("(")) {
+                // a constructor
+                skipMethodRest();
+                continue;
+            }
+            String name = parseIdentifier();
+            if (peek().equals("(")) {
+                boolean visible = type.mInterface ? !modifiers.contains("private")
+                        : modifiers.contains("public") || modifiers.contains("protected");
+                if (visible) {
+                    type.mMethods.add(name);
+                }
+                skipMethodRest();
+            } else {
+                // a field, up to the end of its initializer
+                skipPastAtDepth(";");
+            }
+        }
+    }
+
+    /**
+     * Skips the parameters, throws clause, default value and body of a method or constructor.
+     */
+    private void skipMethodRest() throws ParseException {
+        skipBalanced();
+        while (true) {
+            String token = peek();
+            if (token.equals(";")) {
+                next();
+                return;
+            }
+            if (token.equals("{")) {
+                skipBalanced();
+                return;
+            }
+            if (token.equals("default")) {
+                // the default value of an annotation type element
+                skipPastAtDepth(";");
+                return;
+            }
+            if (token.equals(EOF)) {
+                throw error("method body expected");
+            }
+            next();
+        }
+    }
+
+    private Set<String> parseModifiers() throws ParseException {
+        Set<String> modifiers = new HashSet<String>();
+        while (true) {
+            String token = peek();
+            if (token.equals("@") && !peek(1).equals("interface")) {
+                skipAnnotation();
+            } else if (MODIFIERS.contains(token)) {
+                modifiers.add(next());
+            } else {
+                return modifiers;
+            }
+        }
+    }
+
+    private void skipAnnotations() throws ParseException {
+        while (peek().equals("@") && !peek(1).equals("interface")) {
+            skipAnnotation();
+        }
+    }
+
+    private void skipAnnotation() throws ParseException {
+        expect("@");
+        parseQualifiedName();
+        if (peek().equals("(")) {
+            skipBalanced();
+        }
+    }
+
+    /**
+     * Parses a type, returning its name without type arguments, annotations or array brackets.
+     */
+    private String parseType() throws ParseException {
+        skipAnnotations();
+        StringBuilder name = new StringBuilder(parseIdentifier());
+        while (true) {
+            if (peek().equals("<")) {
+                skipTypeArguments();
+            } else if (peek().equals(".") && !peek(1).equals(".")) {
+                next();
+                skipAnnotations();
+                name.append('.').append(parseIdentifier());
+            } else if (peek().equals("[")) {
+                next();
+                expect("]");
+            } else if (peek().equals(".")) {
+                // varargs
+                expect(".");
+                expect(".");
+                expect(".");
+            } else {
+                return name.toString();
+            }
+        }
+    }
+
+    private String parseQualifiedName() throws ParseException {
+        StringBuilder name = new StringBuilder(parseIdentifier());
+        while (peek().equals(".") && isIdentifier(peek(1))) {
+            next();
+            name.append('.').append(next());
+        }
+        return name.toString();
+    }
+
+    private String parseIdentifier() throws ParseException {
+        String token = next();
+        if (!isIdentifier(token)) {
+            throw error("identifier expected, found '" + token + "'");
+        }
+        return token;
+    }
+
+    private void skipTypeArguments() throws ParseException {
+        expect("<");
+        int depth = 1;
+        while (depth > 0) {
+            String token = next();
+            if (token.equals("<")) {
+                depth++;
+            } else if (token.equals(">")) {
+                depth--;
+            } else if (token.equals(EOF)) {
+                throw error("'>' expected");
+            }
+        }
+    }
+
+    /**
+     * Skips a bracketed group, such as a block or a parameter list, including the brackets.
+     */
+    private void skipBalanced() throws ParseException {
+        int depth = 0;
+        do {
+            String token = next();
+            if (token.equals("(") || token.equals("{") || token.equals("[")) {
+                depth++;
+            } else if (token.equals(")") || token.equals("}") || token.equals("]")) {
+                depth--;
+            } else if (token.equals(EOF)) {
+                throw error("unbalanced brackets");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Skips past the next occurrence of the token outside of any brackets.
+     */
+    private void skipPastAtDepth(String end) throws ParseException {
+        while (true) {
+            String token = peek();
+            if (token.equals(end)) {
+                next();
+                return;
+            }
+            if (token.equals("(") || token.equals("{") || token.equals("[")) {
+                skipBalanced();
+            } else if (token.equals(EOF)) {
+                throw error("'" + end + "' expected");
+            } else {
+                next();
+            }
+        }
+    }
+
+    private void skipPast(String end) throws ParseException {
+        while (!next().equals(end)) {
+            if (peek().equals(EOF)) {
+                throw error("'" + end + "' expected");
+            }
+        }
+    }
+
+    private String peek() {
+        return peek(0);
+    }
+
+    private String peek(int ahead) {
+        int pos = mPos + ahead;
+        return pos < mTokens.size() ? mTokens.get(pos) : EOF;
+    }
+
+    private String next() {
+        String token = peek();
+        if (mPos < mTokens.size()) {
+            mPos++;
+        }
+        return token;
+    }
+
+    private boolean accept(String token) {
+        if (peek().equals(token)) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) throws ParseException {
+        String found = next();
+        if (!found.equals(token)) {
+            throw error("'" + token + "' expected, found '" + found + "'");
+        }
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(mName + ": " + message);
+    }
+
+    private static boolean isIdentifier(String token) {
+        return !token.equals(EOF) && Character.isJavaIdentifierStart(token.charAt(0));
+    }
+
+    /**
+     * Splits the content into identifiers, literals and single character symbols, dropping
+     * whitespace and comments.
+     */
+    private static List<String> tokenize(String name, String content) throws ParseException {
+        List<String> tokens = new ArrayList<String>();
+        int length = content.length();
+        int i = 0;
+        while (i < length) {
+            char c = content.charAt(i);
+            if (Character.isWhitespace(c) || c == '\u001a') {
+                i++;
+            } else if (content.startsWith("//", i)) {
+                int end = content.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else if (content.startsWith("/*", i)) {
+                int end = content.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw new ParseException(name + ": unterminated comment");
+                }
+                i = end + 2;
+            } else if (c == '"' || c == '\'') {
+                i = skipQuoted(name, content, i, c);
+                tokens.add(LITERAL);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < length && Character.isJavaIdentifierPart(content.charAt(i))) {
+                    i++;
+                }
+                tokens.add(content.substring(start, i));
+            } else if (Character.isDigit(c)) {
+                // numbers, including suffixes, exponents and hexadecimal digits
+                while (i < length && (Character.isLetterOrDigit(content.charAt(i))
+                        || content.charAt(i) == '.' || content.charAt(i) == '_'
+                        || ((content.charAt(i) == '+' || content.charAt(i) == '-')
+                                && isExponent(content.charAt(i - 1))))) {
+                    i++;
+                }
+                tokens.add(LITERAL);
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isExponent(char c) {
+        return c == 'e' || c == 'E' || c == 'p' || c == 'P';
+    }
+
+    private static int skipQuoted(String name, String content, int start, char quote)
+            throws ParseException {
+        int i = start + 1;
+        while (i < content.length()) {
+            char c = content.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else if (c == '\n') {
+                break;
+            } else {
+                i++;
+            }
+        }
+        throw new ParseException(name + ": unterminated literal");
+    }
+}
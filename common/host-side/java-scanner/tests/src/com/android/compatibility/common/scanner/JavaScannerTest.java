@@ -17,10 +17,21 @@
 package com.android.compatibility.common.scanner;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 import junit.framework.TestCase;
 
@@ -72,6 +83,100 @@ public class JavaScannerTest extends TestCase {
         "  }" +
         "}";
 
+    // Member classes are listed after their enclosing class, and inherited tests after the tests
+    // of the class itself.
+    private static final String NESTED_RESULT =
+        "suite:com.android.test" +
+        "case:NestedTest" +
+        "test:testA" +
+        "suite:com.android.test" +
+        "case:NestedTest.Inner" +
+        "test:testB" +
+        "test:testA";
+
+    private static final String NESTED_FILENAME = "NestedTest";
+    private static final String NESTED =
+        "package com.android.test;" +
+        "import junit.framework.TestCase;" +
+        "public class NestedTest extends TestCase {" +
+        "  public void testA() throws Exception {" +
+        "    new Runnable() { public void run() {} };" +
+        "  }" +
+        "  private void testPrivate() {}" +
+        "  public static class Inner extends NestedTest {" +
+        "    protected void testB() {}" +
+        "  }" +
+        "  static class Hidden extends NestedTest {}" +
+        "}";
+
+    // Superclasses and their tests are found on the class path too.
+    private static final String CLASS_PATH_RESULT =
+        "suite:com.android.test" +
+        "case:ClassPathTest" +
+        "test:testA" +
+        "test:testBase" +
+        "test:testProtected" +
+        "suite:com.android.test" +
+        "case:ClassPathTest.Inner" +
+        "test:testB" +
+        "test:testNested" +
+        "test:testBase" +
+        "test:testProtected";
+
+    private static final String CLASS_PATH_FILENAME = "ClassPathTest";
+    private static final String CLASS_PATH =
+        "package com.android.test;" +
+        "import com.android.example.BaseTestCase;" +
+        "public class ClassPathTest extends BaseTestCase {" +
+        "  public void testA() {}" +
+        "  public static class Inner extends BaseTestCase.Nested {" +
+        "    public void testB() {}" +
+        "  }" +
+        "}";
+
+    // The classes of the jar on the class path, with a TestCase of their own in case junit isn't
+    // on the source path.
+    private static final String[][] CLASS_PATH_SOURCES = {
+        {"junit/framework/TestCase.java",
+            "package junit.framework;" +
+            "public abstract class TestCase {" +
+            "  public void runBare() {}" +
+            "}"},
+        {"com/android/example/BaseTestCase.java",
+            "package com.android.example;" +
+            "public abstract class BaseTestCase extends junit.framework.TestCase {" +
+            "  public void testBase() {}" +
+            "  protected void testProtected() {}" +
+            "  void testPackagePrivate() {}" +
+            "  public static abstract class Nested extends BaseTestCase {" +
+            "    public void testNested() {}" +
+            "  }" +
+            "}"},
+    };
+
+    // Sources that don't parse
+    private static final String UNPARSABLE_FILENAME = "Unparsable";
+    private static final String UNPARSABLE =
+        "package com.android.test;" +
+        "public class Unparsable extends junit.framework.TestCase {" +
+        "  /* unterminated comment";
+
+    private File mTempDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempDir = File.createTempFile("javascanner", "");
+        mTempDir.delete();
+        mTempDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mTempDir);
+        super.tearDown();
+    }
+
     public void testValidFile() throws Exception {
         String result = runScanner(VALID_FILENAME, VALID);
         assertEquals(VALID_RESULT, result);
@@ -85,6 +190,82 @@ public class JavaScannerTest extends TestCase {
         assertEquals("", runScanner(INVALID_B_FILENAME, INVALID_B));
     }
 
+    public void testValidFile_inProcess() throws Exception {
+        assertEquals(VALID_RESULT, runSourceScanner(VALID_FILENAME, VALID));
+    }
+
+    public void testInvalidFileA_inProcess() throws Exception {
+        assertEquals("", runSourceScanner(INVALID_A_FILENAME, INVALID_A));
+    }
+
+    public void testInvalidFileB_inProcess() throws Exception {
+        assertEquals("", runSourceScanner(INVALID_B_FILENAME, INVALID_B));
+    }
+
+    public void testNestedFile_inProcess() throws Exception {
+        assertEquals(NESTED_RESULT, runSourceScanner(NESTED_FILENAME, NESTED));
+    }
+
+    public void testClassPath_inProcess() throws Exception {
+        File sourceDir = writeTestSource(CLASS_PATH_FILENAME, CLASS_PATH);
+        String output = scan(sourceDir, null, Arrays.asList(createClassPathJar().getPath()));
+        assertEquals(CLASS_PATH_RESULT, output.replace(System.getProperty("line.separator"), ""));
+    }
+
+    public void testUnparsableFile_inProcess() throws Exception {
+        assertNull(runSourceScanner(UNPARSABLE_FILENAME, UNPARSABLE));
+    }
+
+    /**
+     * Test that a superclass on the source path that doesn't parse fails the scan.
+     */
+    public void testUnparsableSuperclass_inProcess() throws Exception {
+        File sourceDir = writeTestSource(CLASS_PATH_FILENAME, CLASS_PATH);
+        File sourcePath = new File(mTempDir, "sourcepath");
+        write(new File(sourcePath, "com/android/example/BaseTestCase.java"),
+                "package com.android.example; public class BaseTestCase {");
+        assertNull(scan(sourceDir, Arrays.asList(sourcePath.getPath()),
+                Arrays.asList(createClassPathJar().getPath())));
+    }
+
+    /**
+     * Test that a superclass on the class path that can't be read fails the scan.
+     */
+    public void testUnreadableSuperclass_inProcess() throws Exception {
+        File sourceDir = writeTestSource(CLASS_PATH_FILENAME, CLASS_PATH);
+        File classPath = new File(mTempDir, "classpath");
+        write(new File(classPath, "com/android/example/BaseTestCase.class"), "not a class");
+        assertNull(scan(sourceDir, null, Arrays.asList(classPath.getPath())));
+    }
+
+    /**
+     * Test that the in process scanner prints exactly what the doclet prints, on each of the
+     * fixtures.
+     */
+    public void testDocletGolden() throws Exception {
+        List<String> classPaths = Arrays.asList(createClassPathJar().getPath());
+        String[][] fixtures = {
+            {VALID_FILENAME, VALID, VALID_RESULT},
+            {INVALID_A_FILENAME, INVALID_A, ""},
+            {INVALID_B_FILENAME, INVALID_B, ""},
+            {NESTED_FILENAME, NESTED, NESTED_RESULT},
+            {CLASS_PATH_FILENAME, CLASS_PATH, CLASS_PATH_RESULT},
+        };
+        for (String[] fixture : fixtures) {
+            File sourceDir = writeTestSource(fixture[0], fixture[1]);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final PrintStream output = new PrintStream(bytes);
+            assertEquals(0, new JavaScanner(sourceDir, new File(JAR),
+                    Arrays.asList(JavaScanner.SOURCE_PATHS), classPaths).scan(output));
+            output.close();
+            String golden = bytes.toString();
+            assertEquals(fixture[0], fixture[2],
+                    golden.replace(System.getProperty("line.separator"), ""));
+            assertEquals(fixture[0], golden, scan(sourceDir, null, classPaths));
+            delete(sourceDir);
+        }
+    }
+
     private static String runScanner(String filename, String content) throws Exception {
         final File parent0 = new File(System.getProperty("java.io.tmpdir"));
         final File parent1 = new File(parent0, "tmp" + System.currentTimeMillis());
@@ -107,6 +288,8 @@ public class JavaScannerTest extends TestCase {
             args.add(parent1.toString());
             args.add("-d");
             args.add(JAR);
+            args.add("-m");
+            args.add("javadoc");
 
             final Process p = new ProcessBuilder(args).start();
             final StringBuilder output = new StringBuilder();
@@ -130,4 +313,124 @@ public class JavaScannerTest extends TestCase {
         }
         return null;
     }
+
+    /**
+     * Runs the in process scanner on a source directory.
+     *
+     * @param sourcePaths the source path, or null for the default one
+     * @return the output, or null if the scanner failed
+     */
+    private static String scan(File sourceDir, List<String> sourcePaths, List<String> classPaths)
+            throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream output = new PrintStream(bytes);
+        final int ret = new JavaScanner(sourceDir, sourcePaths != null ? sourcePaths
+                : Arrays.asList(JavaScanner.SOURCE_PATHS), classPaths,
+                new SourceFileCache(null)).scan(output);
+        output.close();
+        return ret == 0 ? bytes.toString() : null;
+    }
+
+    /**
+     * Writes a test source file in package com.android.test of a new source directory.
+     */
+    private File writeTestSource(String filename, String content) throws Exception {
+        File sourceDir = File.createTempFile("src", "", mTempDir);
+        sourceDir.delete();
+        write(new File(sourceDir, "com/android/test/" + filename + ".java"), content);
+        return sourceDir;
+    }
+
+    /**
+     * Compiles {@link #CLASS_PATH_SOURCES} into a jar.
+     */
+    private File createClassPathJar() throws Exception {
+        File sourceDir = new File(mTempDir, "jarsrc");
+        File classesDir = new File(mTempDir, "classes");
+        classesDir.mkdirs();
+        List<String> args = new ArrayList<String>(Arrays.asList(
+                "-d", classesDir.getPath(), "-nowarn"));
+        for (String[] source : CLASS_PATH_SOURCES) {
+            File file = new File(sourceDir, source[0]);
+            write(file, source[1]);
+            args.add(file.getPath());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+        File jar = new File(mTempDir, "classpath.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            addToJar(out, classesDir, "");
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private static void addToJar(JarOutputStream out, File dir, String prefix) throws Exception {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                addToJar(out, file, prefix + file.getName() + "/");
+            } else {
+                out.putNextEntry(new JarEntry(prefix + file.getName()));
+                out.write(Files.readAllBytes(file.toPath()));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void write(File file, String content) throws Exception {
+        file.getParentFile().mkdirs();
+        final PrintWriter out = new PrintWriter(file);
+        out.print(content);
+        out.close();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Runs the in process scanner on a file, returning its output the way {@link #runScanner}
+     * does.
+     */
+    private static String runSourceScanner(String filename, String content) throws Exception {
+        final File parent0 = new File(System.getProperty("java.io.tmpdir"));
+        final File parent1 = new File(parent0, "tmp" + System.currentTimeMillis());
+        final File parent2 = new File(parent1, "com");
+        final File parent3 = new File(parent2, "android");
+        final File parent4 = new File(parent3, "test");
+        File f = null;
+        try {
+            parent4.mkdirs();
+            f = new File(parent4, filename + ".java");
+            final PrintWriter out = new PrintWriter(f);
+            out.print(content);
+            out.flush();
+            out.close();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final PrintStream output = new PrintStream(bytes);
+            final int ret = new JavaScanner(parent1, Arrays.asList(JavaScanner.SOURCE_PATHS),
+                    Arrays.asList(JavaScanner.CLASS_PATHS), new SourceFileCache(null)).scan(output);
+            output.close();
+            if (ret == 0) {
+                return bytes.toString().replace(System.getProperty("line.separator"), "");
+            }
+        } finally {
+            if (f != null) {
+                f.delete();
+            }
+            parent4.delete();
+            parent3.delete();
+            parent2.delete();
+            parent1.delete();
+        }
+        return null;
+    }
 }
@@ -16,12 +16,42 @@
 
 package com.android.compatibility.common.util;
 
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * Provides a mechanism to measure the time taken to run a piece of code.
  *
  * The code will be run multiple times and the time taken by each run will returned.
  */
 public class MeasureTime {
+
+    /** Source of the time, replaced by a synthetic one in tests. */
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /** The default bounds of {@link #measureAdaptive(MeasureRun)}. */
+    public static final int DEFAULT_MIN_COUNT = 10;
+    public static final int DEFAULT_MAX_COUNT = 1000;
+    public static final double DEFAULT_TARGET_RELATIVE_WIDTH = 0.05;
+    public static final long DEFAULT_TIME_BUDGET_MS = 60 * 1000;
+
+    /** The confidence level of the interval on the median. */
+    private static final double CONFIDENCE = 0.95;
+    private static final int BOOTSTRAP_RESAMPLES = 500;
+    /** Runs slower than the steady state median by this many scaled MADs are warmup runs. */
+    private static final double WARMUP_MADS = 3.0;
+    private static final double MAD_TO_STDDEV = 1.4826;
+    private static final double NANOS_PER_MS = 1000000.0;
+
     /**
      * measure time taken for each run for given count
      * @param count
@@ -30,15 +60,217 @@ public class MeasureTime {
      * @throws Exception
      */
     public static double[] measure(int count, MeasureRun run) throws Exception {
+        return measure(count, run, SYSTEM_CLOCK);
+    }
+
+    static double[] measure(int count, MeasureRun run, Clock clock) throws Exception {
         double[] result = new double[count];
 
         for (int i = 0; i < count; i++) {
             run.prepare(i);
-            long start = System.currentTimeMillis();
+            long start = clock.nanoTime();
             run.run(i);
-            long end =  System.currentTimeMillis();
-            result[i] = end - start;
+            long end = clock.nanoTime();
+            result[i] = (end - start) / NANOS_PER_MS;
         }
         return result;
     }
+
+    /**
+     * The times measured by {@link MeasureTime#measureAdaptive}, with the warmup runs left out,
+     * and a confidence interval on their median.
+     */
+    public static class Result {
+        private final double[] mValues;
+        private final int mWarmupCount;
+        private final double mMedian;
+        private final double mLower;
+        private final double mUpper;
+        private final boolean mConverged;
+
+        Result(double[] values, int warmupCount, double median, double lower, double upper,
+                boolean converged) {
+            mValues = values;
+            mWarmupCount = warmupCount;
+            mMedian = median;
+            mLower = lower;
+            mUpper = upper;
+            mConverged = converged;
+        }
+
+        /** Returns the time taken by each run after the warmup, in msec. */
+        public double[] getValues() {
+            return mValues;
+        }
+
+        /** Returns the number of runs discarded as warmup. */
+        public int getWarmupCount() {
+            return mWarmupCount;
+        }
+
+        /** Returns the number of runs, including the warmup. */
+        public int getIterations() {
+            return mWarmupCount + mValues.length;
+        }
+
+        public double getMedian() {
+            return mMedian;
+        }
+
+        /** Returns the lower bound of the 95% confidence interval on the median. */
+        public double getMedianLower() {
+            return mLower;
+        }
+
+        /** Returns the upper bound of the 95% confidence interval on the median. */
+        public double getMedianUpper() {
+            return mUpper;
+        }
+
+        /**
+         * Returns true if the confidence interval got as narrow as targeted, false if the runs
+         * stopped at the count or time limit first.
+         */
+        public boolean isConverged() {
+            return mConverged;
+        }
+
+        /**
+         * Adds the times, their median with its confidence interval, and the number of runs to a
+         * report.
+         */
+        public void report(ReportLog reportLog, String message) {
+            String location = Stacktrace.getTestCallerClassMethodNameLineNumber();
+            reportLog.addValues(message, mValues, ResultType.LOWER_BETTER, ResultUnit.MS,
+                    location);
+            reportLog.addValue(message + " median", mMedian, ResultType.LOWER_BETTER,
+                    ResultUnit.MS, location);
+            reportLog.addValues(message + " median 95% confidence interval",
+                    new double[] {mLower, mUpper}, ResultType.NEUTRAL, ResultUnit.MS, location);
+            reportLog.addValue(message + " iterations", getIterations(), ResultType.NEUTRAL,
+                    ResultUnit.COUNT, location);
+        }
+    }
+
+    /**
+     * Measures the time taken by each run, with the default bounds.
+     *
+     * @see #measureAdaptive(MeasureRun, int, int, double, long)
+     */
+    public static Result measureAdaptive(MeasureRun run) throws Exception {
+        return measureAdaptive(run, DEFAULT_MIN_COUNT, DEFAULT_MAX_COUNT,
+                DEFAULT_TARGET_RELATIVE_WIDTH, DEFAULT_TIME_BUDGET_MS);
+    }
+
+    /**
+     * Measures the time taken by each run, running until the time is known well enough instead
+     * of a fixed number of times. The first runs are discarded as long as they are slower than
+     * the steady state. The runs stop once the 95% confidence interval on the median of the
+     * remaining times, found by bootstrap, is narrower than the given fraction of the median, or
+     * when the count or time limit is reached.
+     *
+     * @param minCount the number of runs after the warmup before checking the interval
+     * @param maxCount the maximum number of runs, including the warmup
+     * @param targetRelativeWidth the width of the interval to reach, relative to the median
+     * @param timeBudgetMs the time after which no new run is started, in msec
+     */
+    public static Result measureAdaptive(MeasureRun run, int minCount, int maxCount,
+            double targetRelativeWidth, long timeBudgetMs) throws Exception {
+        return measureAdaptive(run, minCount, maxCount, targetRelativeWidth, timeBudgetMs,
+                SYSTEM_CLOCK, new Random(0));
+    }
+
+    static Result measureAdaptive(MeasureRun run, int minCount, int maxCount,
+            double targetRelativeWidth, long timeBudgetMs, Clock clock, Random random)
+            throws Exception {
+        if (minCount < 1 || maxCount < minCount) {
+            throw new IllegalArgumentException("Invalid run counts " + minCount + ", " + maxCount);
+        }
+        double[] times = new double[Math.min(maxCount, 64)];
+        int count = 0;
+        long deadline = clock.nanoTime() + timeBudgetMs * 1000000L;
+        // checking the interval takes time of its own, so it is checked less often as runs add up
+        int nextCheck = minCount;
+        Result result = null;
+        while (count < maxCount) {
+            run.prepare(count);
+            long start = clock.nanoTime();
+            run.run(count);
+            long end = clock.nanoTime();
+            if (count == times.length) {
+                times = Arrays.copyOf(times, Math.min(maxCount, count * 2));
+            }
+            times[count++] = (end - start) / NANOS_PER_MS;
+
+            boolean outOfTime = end - deadline >= 0;
+            if (count >= nextCheck || count == maxCount || outOfTime) {
+                result = analyze(Arrays.copyOf(times, count), targetRelativeWidth, random);
+                if (result.isConverged() && result.getValues().length >= minCount) {
+                    break;
+                }
+                nextCheck = count + Math.max(1, count / 10);
+            }
+            if (outOfTime) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits the warmup off the times and computes the confidence interval on the median of the
+     * rest.
+     */
+    static Result analyze(double[] times, double targetRelativeWidth, Random random) {
+        int warmupCount = findWarmupCount(times);
+        double[] values = Arrays.copyOfRange(times, warmupCount, times.length);
+        double median = median(values.clone());
+
+        double[] medians = new double[BOOTSTRAP_RESAMPLES];
+        double[] sample = new double[values.length];
+        for (int i = 0; i < BOOTSTRAP_RESAMPLES; i++) {
+            for (int j = 0; j < sample.length; j++) {
+                sample[j] = values[random.nextInt(values.length)];
+            }
+            medians[i] = median(sample);
+        }
+        Arrays.sort(medians);
+        double tail = (1.0 - CONFIDENCE) / 2;
+        double lower = medians[(int) (tail * (BOOTSTRAP_RESAMPLES - 1))];
+        double upper = medians[(int) Math.ceil((1.0 - tail) * (BOOTSTRAP_RESAMPLES - 1))];
+        boolean converged = values.length > 1
+                && upper - lower <= targetRelativeWidth * Math.abs(median);
+        return new Result(values, warmupCount, median, lower, upper, converged);
+    }
+
+    /**
+     * Returns the number of leading runs that are slower than the steady state, taken to be the
+     * second half of the runs. At most half of the runs are counted as warmup.
+     */
+    static int findWarmupCount(double[] times) {
+        double[] steady = Arrays.copyOfRange(times, times.length / 2, times.length);
+        double median = median(steady.clone());
+        double[] deviations = new double[steady.length];
+        for (int i = 0; i < steady.length; i++) {
+            deviations[i] = Math.abs(steady[i] - median);
+        }
+        double spread = median(deviations) * MAD_TO_STDDEV;
+        // runs within the resolution of the clock are never warmup
+        double threshold = median + Math.max(WARMUP_MADS * spread, 0.01 * median + 1e-6);
+        int warmupCount = 0;
+        while (warmupCount < times.length / 2 && times[warmupCount] > threshold) {
+            warmupCount++;
+        }
+        return warmupCount;
+    }
+
+    /** Returns the median of the values, sorting them in place. */
+    private static double median(double[] values) {
+        Arrays.sort(values);
+        int middle = values.length / 2;
+        if (values.length % 2 == 1) {
+            return values[middle];
+        }
+        return (values[middle - 1] + values[middle]) / 2.0;
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link MeasureTime}
+ */
+public class MeasureTimeTest extends TestCase {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    /**
+     * A clock that only moves when a run takes time, each run taking the next of the given
+     * durations, repeated as needed.
+     */
+    private static class SyntheticRun extends MeasureRun implements MeasureTime.Clock {
+        private final double[] mDurationsMs;
+        private long mNow;
+        private int mRuns;
+
+        SyntheticRun(double... durationsMs) {
+            mDurationsMs = durationsMs;
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public void run(int i) {
+            assertEquals(mRuns, i);
+            mNow += (long) (mDurationsMs[mRuns % mDurationsMs.length] * NANOS_PER_MS);
+            mRuns++;
+        }
+    }
+
+    public void testMeasure() throws Exception {
+        SyntheticRun run = new SyntheticRun(1.5, 0.25);
+        double[] times = MeasureTime.measure(3, run, run);
+        assertEquals(3, times.length);
+        assertEquals(1.5, times[0]);
+        assertEquals(0.25, times[1]);
+        assertEquals(1.5, times[2]);
+    }
+
+    public void testMeasureAdaptive_stable() throws Exception {
+        SyntheticRun run = new SyntheticRun(10.0, 10.02, 9.98, 10.0);
+        MeasureTime.Result result = measure(run, 1000);
+        assertTrue(result.isConverged());
+        assertEquals(10, result.getIterations());
+        assertEquals(0, result.getWarmupCount());
+        assertEquals(10.0, result.getMedian(), 0.001);
+        assertTrue(result.getMedianLower() <= result.getMedian());
+        assertTrue(result.getMedianUpper() >= result.getMedian());
+    }
+
+    public void testMeasureAdaptive_warmup() throws Exception {
+        double[] durations = new double[200];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = i < 4 ? 100.0 / (i + 1) : 5.0 + (i % 3) * 0.1;
+        }
+        MeasureTime.Result result = measure(new SyntheticRun(durations), 1000);
+        assertTrue(result.isConverged());
+        assertEquals(4, result.getWarmupCount());
+        assertEquals(5.1, result.getMedian(), 0.001);
+        for (double value : result.getValues()) {
+            assertTrue(value < 6.0);
+        }
+    }
+
+    public void testMeasureAdaptive_noisy() throws Exception {
+        // runs spread uniformly over a wide range never give a narrow interval
+        Random random = new Random(1);
+        double[] durations = new double[500];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = 1.0 + random.nextDouble() * 100.0;
+        }
+        MeasureTime.Result result = measure(new SyntheticRun(durations), 1000);
+        assertFalse(result.isConverged());
+        assertEquals(200, result.getIterations());
+        assertTrue(result.getMedianUpper() - result.getMedianLower() > 0.01 * result.getMedian());
+    }
+
+    public void testMeasureAdaptive_timeBudget() throws Exception {
+        SyntheticRun run = new SyntheticRun(100.0, 300.0);
+        MeasureTime.Result result = measure(run, 1);
+        assertFalse(result.isConverged());
+        // the run that crosses the budget is the last one
+        assertEquals(6, result.getIterations());
+    }
+
+    public void testMeasureAdaptive_invalidCounts() throws Exception {
+        try {
+            MeasureTime.measureAdaptive(new SyntheticRun(1.0), 10, 5, 0.01, 1000);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testReport() throws Exception {
+        MeasureTime.Result result = measure(new SyntheticRun(2.0), 1000);
+        ReportLog reportLog = new ReportLog();
+        result.report(reportLog, "time");
+        assertEquals(4, reportLog.getDetailedMetrics().size());
+        ReportLog.Result iterations = reportLog.getDetailedMetrics().get(3);
+        assertEquals("time iterations", iterations.getMessage());
+        assertEquals(10.0, iterations.getValues()[0]);
+        assertEquals(ResultUnit.COUNT, iterations.getUnit());
+    }
+
+    private static MeasureTime.Result measure(SyntheticRun run, long timeBudgetSeconds)
+            throws Exception {
+        return MeasureTime.measureAdaptive(run, 10, 200, 0.01, timeBudgetSeconds * 1000, run,
+                new Random(0));
+    }
+}
@@ -26,6 +26,7 @@ public class UnitTests extends TestSuite {
     public UnitTests() {
         super();
 
+        addTestSuite(MeasureTimeTest.class);
         addTestSuite(MetricsStoreTest.class);
         addTestSuite(MetricsXmlSerializerTest.class);
         addTestSuite(ReportLogTest.class);
@@ -17,6 +17,7 @@
 package com.android.cts.appsecurity;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.PackageStateTracker;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.testtype.DeviceTestCase;
@@ -55,19 +56,13 @@ public class DocumentsTest extends DeviceTestCase implements IAbiReceiver, IBuil
         assertNotNull(mAbi);
         assertNotNull(mCtsBuild);
 
-        getDevice().uninstallPackage(PROVIDER_PKG);
-        getDevice().uninstallPackage(CLIENT_PKG);
-
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(PROVIDER_APK), false));
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(CLIENT_APK), false));
-    }
-
-    @Override
-    protected void tearDown() throws Exception {
-        super.tearDown();
-
-        getDevice().uninstallPackage(PROVIDER_PKG);
-        getDevice().uninstallPackage(CLIENT_PKG);
+        // the apps are installed once, and their data, including the uri grants between them,
+        // cleared for each test
+        PackageStateTracker tracker = PackageStateTracker.getInstance(getDevice());
+        assertNull(tracker.ensureInstalled(PROVIDER_PKG, mCtsBuild.getTestApp(PROVIDER_APK)));
+        assertNull(tracker.ensureInstalled(CLIENT_PKG, mCtsBuild.getTestApp(CLIENT_APK)));
+        tracker.clearData(PROVIDER_PKG);
+        tracker.clearData(CLIENT_PKG);
     }
 
     public void testOpenSimple() throws Exception {
@@ -17,6 +17,7 @@
 package com.android.cts.appsecurity;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.PackageStateTracker;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.testtype.DeviceTestCase;
@@ -53,20 +54,11 @@ public class PermissionsHostTest extends DeviceTestCase implements IAbiReceiver,
 
         assertNotNull(mAbi);
         assertNotNull(mCtsBuild);
-
-        getDevice().uninstallPackage(PKG);
-    }
-
-    @Override
-    protected void tearDown() throws Exception {
-        super.tearDown();
-
-        getDevice().uninstallPackage(PKG);
     }
 
     public void testFail() throws Exception {
         // Sanity check that remote failure is host failure
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         try {
             runDeviceTests(PKG, ".UsePermissionTest", "testFail");
             fail("Expected remote failure");
@@ -76,7 +68,7 @@ public class PermissionsHostTest extends DeviceTestCase implements IAbiReceiver,
 
     public void testKill() throws Exception {
         // Sanity check that remote kill is host failure
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         try {
             runDeviceTests(PKG, ".UsePermissionTest", "testKill");
             fail("Expected remote failure");
@@ -85,44 +77,56 @@ public class PermissionsHostTest extends DeviceTestCase implements IAbiReceiver,
     }
 
     public void testDefault() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         runDeviceTests(PKG, ".UsePermissionTest", "testDefault");
     }
 
     public void testGranted() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         grantPermission(PKG, "android.permission.READ_EXTERNAL_STORAGE");
         grantPermission(PKG, "android.permission.WRITE_EXTERNAL_STORAGE");
         runDeviceTests(PKG, ".UsePermissionTest", "testGranted");
     }
 
     public void testInteractiveGrant() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         runDeviceTests(PKG, ".UsePermissionTest", "testInteractiveGrant");
     }
 
     public void testRuntimeGroupGrantSpecificity() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         runDeviceTests(PKG, ".UsePermissionTest", "testRuntimeGroupGrantSpecificity");
     }
 
     public void testRuntimeGroupGrantExpansion() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK), false, false));
+        installApp(APK);
         runDeviceTests(PKG, ".UsePermissionTest", "testRuntimeGroupGrantExpansion");
     }
 
     public void testCompatDefault() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK_COMPAT), false, false));
+        installApp(APK_COMPAT);
         runDeviceTests(PKG, ".UsePermissionCompatTest", "testCompatDefault");
     }
 
     public void testCompatRevoked() throws Exception {
-        assertNull(getDevice().installPackage(mCtsBuild.getTestApp(APK_COMPAT), false, false));
+        installApp(APK_COMPAT);
         setAppOps(PKG, "android:read_external_storage", "deny");
         setAppOps(PKG, "android:write_external_storage", "deny");
+        // clearing the data of the package doesn't reset app ops
+        PackageStateTracker.getInstance(getDevice()).invalidate(PKG);
         runDeviceTests(PKG, ".UsePermissionCompatTest", "testCompatRevoked");
     }
 
+    /**
+     * Installs an app unless it is already installed from the apk, and resets its data and runtime
+     * permissions otherwise.
+     */
+    private void installApp(String apk) throws Exception {
+        PackageStateTracker tracker = PackageStateTracker.getInstance(getDevice());
+        assertNull(tracker.ensureInstalled(PKG, mCtsBuild.getTestApp(apk), false));
+        tracker.clearData(PKG);
+    }
+
     private void runDeviceTests(String packageName, String testClassName, String testMethodName)
             throws DeviceNotAvailableException {
         Utils.runDeviceTests(getDevice(), packageName, testClassName, testMethodName);
@@ -17,22 +17,18 @@
 package android.atrace.cts;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.FtraceParser;
 import com.android.ddmlib.Log;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.testtype.DeviceTestCase;
 import com.android.tradefed.testtype.IBuildReceiver;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.Reader;
-import java.io.StringReader;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Test to check that atrace is usable, to enable usage of systrace.
@@ -41,83 +37,6 @@ public class AtraceHostTest extends DeviceTestCase implements IBuildReceiver {
     private static final String TEST_APK = "CtsAtraceTestApp.apk";
     private static final String TEST_PKG = "com.android.cts.atracetestapp";
 
-    private interface FtraceEntryCallback {
-        void onTraceEntry(String threadName, int pid, int tid, String eventType, String args);
-        void onFinished();
-    }
-
-    /**
-     * Helper for parsing ftrace data.
-     * Regexs copied from (and should be kept in sync with) ftrace importer in catapult.
-     */
-    private static class FtraceParser {
-        // Matches the trace record in 3.2 and later with the print-tgid option:
-        //          <idle>-0    0 [001] d...  1.23: sched_switch
-        private static final Pattern sLineWithTgid = Pattern.compile(
-                "^\\s*(.+)-(\\d+)\\s+\\(\\s*(\\d+|-+)\\)\\s\\[(\\d+)\\]"
-                + "\\s+[dX.][N.][Hhs.][0-9a-f.]"
-                + "\\s+(\\d+\\.\\d+):\\s+(\\S+):\\s(.*)");
-
-        // Matches the default trace record in 3.2 and later (includes irq-info):
-        //          <idle>-0     [001] d...  1.23: sched_switch
-        private static final Pattern sLineWithIrqInfo = Pattern.compile(
-                "^\\s*(.+)-(\\d+)\\s+\\[(\\d+)\\]"
-                + "\\s+[dX.][N.][Hhs.][0-9a-f.]"
-                + "\\s+(\\d+\\.\\d+):\\s+(\\S+):\\s(.*)$");
-
-        // Matches the default trace record pre-3.2:
-        //          <idle>-0     [001]  1.23: sched_switch
-        private static final Pattern sLineLegacy = Pattern.compile(
-                "^\\s*(.+)-(\\d+)\\s+\\[(\\d+)\\]\\s*(\\d+\\.\\d+):\\s+(\\S+):\\s(.*)");
-        private static void parseLine(String line, FtraceEntryCallback callback) {
-            Matcher m = sLineWithTgid.matcher(line);
-            if (m.matches()) {
-                callback.onTraceEntry(
-                        /*threadname*/ m.group(1),
-                        /*pid*/ m.group(3).startsWith("-") ? -1 : Integer.parseInt(m.group(3)),
-                        /*tid*/ Integer.parseInt(m.group(2)),
-                        /*eventName*/ m.group(6),
-                        /*details*/ m.group(7));
-                return;
-            }
-
-            m = sLineWithIrqInfo.matcher(line);
-            if (m.matches()) {
-                callback.onTraceEntry(
-                        /*threadname*/ m.group(1),
-                        /*pid*/ -1,
-                        /*tid*/ Integer.parseInt(m.group(2)),
-                        /*eventName*/ m.group(5),
-                        /*details*/ m.group(6));
-                return;
-            }
-
-            m = sLineLegacy.matcher(line);
-            if (m.matches()) {
-                callback.onTraceEntry(
-                        /*threadname*/ m.group(1),
-                        /*pid*/ -1,
-                        /*tid*/ Integer.parseInt(m.group(2)),
-                        /*eventName*/ m.group(5),
-                        /*details*/ m.group(6));
-                return;
-            }
-            System.err.println("line doesn't match: " + line);
-        }
-
-        private static void parse(Reader reader, FtraceEntryCallback callback) throws Exception {
-            try {
-                BufferedReader bufferedReader = new BufferedReader(reader);
-                String line;
-                while ((line = bufferedReader.readLine()) != null) {
-                    FtraceParser.parseLine(line, callback);
-                }
-            } finally {
-                callback.onFinished();
-            }
-        }
-    }
-
     private CtsBuildHelper mCtsBuild;
 
     /**
@@ -227,7 +146,10 @@ public class AtraceHostTest extends DeviceTestCase implements IBuildReceiver {
         assertTrue(dataStart >= 0);
         String traceData = atraceOutput.substring(dataStart + MARKER.length());
 
-        FtraceEntryCallback callback = new FtraceEntryCallback() {
+        // only userspace trace events are of interest
+        FtraceParser parser = new FtraceParser();
+        parser.setEventFilter("tracing_mark_write");
+        FtraceParser.Callback callback = new FtraceParser.Callback() {
             private int userSpaceMatches = 0;
             private int beginMatches = 0;
             private int nextSectionIndex = -1;
@@ -247,24 +169,19 @@ public class AtraceHostTest extends DeviceTestCase implements IBuildReceiver {
             };
 
             @Override
-            public void onTraceEntry(String truncatedThreadName, int pid, int tid,
-                    String eventName, String details) {
-                if (!"tracing_mark_write".equals(eventName)) {
-                    // not userspace trace, ignore
-                    return;
-                }
-
-                assertNotNull(truncatedThreadName);
+            public void onTraceEntry(FtraceParser.Entry entry) {
+                int tid = entry.getTid();
+                assertTrue(entry.getThreadNameLength() > 0);
                 assertTrue(tid > 0);
                 userSpaceMatches++;
 
-                if (details == null || !details.startsWith("B|")) {
+                if (!entry.payloadStartsWith("B|")) {
                     // not a begin event
                     return;
                 }
                 beginMatches++;
 
-                if (details.endsWith("|" + initialSection)) {
+                if (entry.payloadEndsWith("|" + initialSection)) {
                     // initial section observed, start looking for others in order
                     assertEquals(nextSectionIndex, -1);
                     nextSectionIndex = 0;
@@ -275,7 +192,7 @@ public class AtraceHostTest extends DeviceTestCase implements IBuildReceiver {
                 if (nextSectionIndex >= 0
                         && tid == appTid
                         && nextSectionIndex < requiredSectionList.length
-                        && details.endsWith("|" + requiredSectionList[nextSectionIndex])) {
+                        && entry.payloadEndsWith("|" + requiredSectionList[nextSectionIndex])) {
                     // found next required section in sequence
                     nextSectionIndex++;
                 }
@@ -294,6 +211,6 @@ public class AtraceHostTest extends DeviceTestCase implements IBuildReceiver {
             }
         };
 
-        FtraceParser.parse(new StringReader(traceData), callback);
+        parser.parse(traceData, callback);
     }
 }
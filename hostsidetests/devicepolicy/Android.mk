@@ -28,5 +28,22 @@ LOCAL_CTS_TEST_PACKAGE := android.adminhostside
 
 include $(BUILD_CTS_HOST_JAVA_LIBRARY)
 
+################################################################################
+# Build the host side unit tests
+###############################################################################
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := CtsDevicePolicyManagerTestCases-tests
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, tests/src)
+
+LOCAL_JAVA_LIBRARIES := tradefed-prebuilt tools-common-prebuilt cts-tradefed \
+    CtsDevicePolicyManagerTestCases
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
 # Build the test APKs using their own makefiles
 include $(call all-makefiles-under,$(LOCAL_PATH))
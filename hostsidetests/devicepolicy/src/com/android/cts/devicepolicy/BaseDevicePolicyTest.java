@@ -36,6 +36,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -46,10 +47,13 @@ import javax.annotation.Nullable;
  */
 public class BaseDevicePolicyTest extends DeviceTestCase implements IBuildReceiver {
 
-    private static final String RUNNER = "android.support.test.runner.AndroidJUnitRunner";
+    static final String RUNNER = "android.support.test.runner.AndroidJUnitRunner";
 
     protected CtsBuildHelper mCtsBuild;
 
+    /** The state the tests of the class share on the device. */
+    protected ClassFixture mFixture;
+
     private String mPackageVerifier;
     private HashSet<String> mAvailableFeatures;
     protected boolean mHasFeature;
@@ -63,6 +67,7 @@ public class BaseDevicePolicyTest extends DeviceTestCase implements IBuildReceiv
     protected void setUp() throws Exception {
         super.setUp();
         assertNotNull(mCtsBuild);  // ensure build has been set before test is run.
+        mFixture = ClassFixture.get(getDevice(), getClass());
         mHasFeature = getDevice().getApiLevel() >= 21 /* Build.VERSION_CODES.L */
                 && hasDeviceFeature("android.software.device_admin");
         // disable the package verifier to avoid the dialog when installing an app
@@ -71,11 +76,23 @@ public class BaseDevicePolicyTest extends DeviceTestCase implements IBuildReceiv
         getDevice().executeShellCommand("settings put global package_verifier_enable 0");
     }
 
+    @Override
+    protected void runTest() throws Throwable {
+        try {
+            super.runTest();
+        } catch (Throwable t) {
+            // the test may have left the fixture in any state
+            mFixture.invalidate();
+            throw t;
+        }
+    }
+
     @Override
     protected void tearDown() throws Exception {
         // reset the package verifier setting to its original value
         getDevice().executeShellCommand("settings put global package_verifier_enable "
                 + mPackageVerifier);
+        mFixture.finishTest();
         super.tearDown();
     }
 
@@ -87,6 +104,18 @@ public class BaseDevicePolicyTest extends DeviceTestCase implements IBuildReceiv
                 installResult);
     }
 
+    /**
+     * Installs an app shared by the tests of the class. It is installed by the first test that
+     * needs it, and its data is cleared after each test.
+     */
+    protected void installFixtureApp(String fileName, String pkgName)
+            throws FileNotFoundException, DeviceNotAvailableException {
+        if (!mFixture.hasPackage(pkgName)) {
+            installApp(fileName);
+            mFixture.addPackage(pkgName, true);
+        }
+    }
+
     protected void installAppAsUser(String appFileName, int userId) throws FileNotFoundException,
             DeviceNotAvailableException {
         final ITestDevice device = getDevice();
@@ -207,6 +236,29 @@ public class BaseDevicePolicyTest extends DeviceTestCase implements IBuildReceiv
         return !runResult.hasFailedTests() && runResult.getNumTestsInState(TestStatus.PASSED) > 0;
     }
 
+    /**
+     * Returns a batch of test methods of a package to run as the given user in one
+     * instrumentation, for tests that don't depend on each other.
+     */
+    protected DeviceTestBatch newDeviceTestBatch(String pkgName, int userId) {
+        return new DeviceTestBatch(getDevice(), pkgName, userId);
+    }
+
+    /** Runs a batch of tests, and fails with the failure of each test that didn't pass. */
+    protected void assertDeviceTestsPassed(DeviceTestBatch batch)
+            throws DeviceNotAvailableException {
+        printTestResult(batch.run());
+        List<String> failures = batch.getFailures();
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            message.append(failures.size() + " of " + batch.size() + " tests failed");
+            for (String failure : failures) {
+                message.append("\n").append(failure);
+            }
+            fail(message.toString());
+        }
+    }
+
     /** Helper method to run tests and return the listener that collected the results. */
     private TestRunResult doRunTests(
             String pkgName, String testClassName,
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.devicepolicy;
+
+import com.android.cts.tradefed.util.DeviceReleaseRegistry;
+import com.android.cts.tradefed.util.IDeviceReleaser;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State that the tests of a class set up on the device once and share, such as a managed profile
+ * and the apps they install, instead of setting it up again for each test.
+ * <p/>
+ * Between tests, the data of the shared apps is cleared. A test that changes the state in a way
+ * that can't be reset cheaply, for example by setting a policy in the profile, invalidates the
+ * fixture, which is then torn down after the test and set up again by the next one. The fixture
+ * is torn down after the last test of the class, when a test of another class starts on the
+ * device, or by {@link #releaseDevice} once the tests of the jar are done, in case only some of
+ * the tests of the class were run. The fixture registers that with the
+ * {@link DeviceReleaseRegistry} when it is set up.
+ */
+public class ClassFixture {
+
+    private static final int USER_OWNER = 0;
+
+    /** The fixture on each device, by serial number. A device has one fixture at a time. */
+    private static final Map<String, ClassFixture> sFixtures = new HashMap<>();
+
+    private static final IDeviceReleaser RELEASER = new IDeviceReleaser() {
+        @Override
+        public void releaseDevice(ITestDevice device) throws DeviceNotAvailableException {
+            ClassFixture.releaseDevice(device);
+        }
+    };
+
+    private final String mSerialNumber;
+    private final String mTestClassName;
+    private ITestDevice mDevice;
+    private int mRemainingTests;
+    private boolean mValid = true;
+
+    private int mProfileId = -1;
+    /** The packages installed for the tests, uninstalled when the fixture is torn down. */
+    private final Set<String> mPackages = new LinkedHashSet<>();
+    /** The packages whose data is cleared between tests. */
+    private final Set<String> mClearedPackages = new LinkedHashSet<>();
+
+    private ClassFixture(ITestDevice device, Class<?> testClass) {
+        mSerialNumber = device.getSerialNumber();
+        mTestClassName = testClass.getName();
+        mDevice = device;
+        mRemainingTests = countTests(testClass);
+    }
+
+    /**
+     * Returns the fixture of a test class on a device, tearing down the fixture of another class
+     * left on the device.
+     */
+    static synchronized ClassFixture get(ITestDevice device, Class<?> testClass)
+            throws DeviceNotAvailableException {
+        ClassFixture fixture = sFixtures.get(device.getSerialNumber());
+        if (fixture != null && fixture.mTestClassName.equals(testClass.getName())) {
+            // the device may have been reconnected since the last test
+            fixture.mDevice = device;
+            return fixture;
+        }
+        if (fixture != null) {
+            fixture.release();
+        }
+        fixture = new ClassFixture(device, testClass);
+        sFixtures.put(fixture.mSerialNumber, fixture);
+        DeviceReleaseRegistry.register(device, RELEASER);
+        return fixture;
+    }
+
+    /**
+     * Tears down the fixture left on a device, if any. Does nothing if the fixture of the last
+     * class was already torn down after its last test.
+     */
+    static void releaseDevice(ITestDevice device) throws DeviceNotAvailableException {
+        ClassFixture fixture;
+        synchronized (ClassFixture.class) {
+            fixture = sFixtures.get(device.getSerialNumber());
+        }
+        if (fixture != null) {
+            fixture.mDevice = device;
+            fixture.release();
+        }
+    }
+
+    /** Returns the id of the managed profile of the fixture, or -1 if it has none yet. */
+    public int getProfileId() {
+        return mProfileId;
+    }
+
+    /** Records the managed profile the tests of the class share. */
+    public void setProfile(int userId) {
+        mProfileId = userId;
+    }
+
+    public boolean hasPackage(String pkgName) {
+        return mPackages.contains(pkgName);
+    }
+
+    /**
+     * Records a package installed for the tests of the class.
+     *
+     * @param clearBetweenTests whether to clear the data of the package after each test. The data
+     *        of an admin package is kept, as clearing it would remove the admin.
+     */
+    public void addPackage(String pkgName, boolean clearBetweenTests) {
+        mPackages.add(pkgName);
+        if (clearBetweenTests) {
+            mClearedPackages.add(pkgName);
+        }
+    }
+
+    /** Has the fixture torn down after the current test, as the test changes it for good. */
+    public void invalidate() {
+        mValid = false;
+    }
+
+    /** Resets the fixture for the next test, or tears it down after the last test of the class. */
+    void finishTest() throws DeviceNotAvailableException {
+        mRemainingTests--;
+        if (mRemainingTests <= 0) {
+            release();
+        } else if (!mValid) {
+            tearDown();
+        } else {
+            for (String pkgName : mClearedPackages) {
+                clearData(pkgName, USER_OWNER);
+                if (mProfileId != -1) {
+                    clearData(pkgName, mProfileId);
+                }
+            }
+        }
+    }
+
+    /** Tears down the fixture, and forgets it. */
+    void release() throws DeviceNotAvailableException {
+        tearDown();
+        synchronized (ClassFixture.class) {
+            if (sFixtures.get(mSerialNumber) == this) {
+                sFixtures.remove(mSerialNumber);
+            }
+        }
+    }
+
+    private void tearDown() throws DeviceNotAvailableException {
+        if (mProfileId != -1) {
+            executeShellCommand("am stop-user -w " + mProfileId);
+            executeShellCommand("pm remove-user " + mProfileId);
+            mProfileId = -1;
+        }
+        for (String pkgName : mPackages) {
+            CLog.logAndDisplay(LogLevel.INFO, "Uninstalling " + pkgName);
+            mDevice.uninstallPackage(pkgName);
+        }
+        mPackages.clear();
+        mClearedPackages.clear();
+        mValid = true;
+    }
+
+    private void clearData(String pkgName, int userId) throws DeviceNotAvailableException {
+        executeShellCommand("pm clear --user " + userId + " " + pkgName);
+    }
+
+    private void executeShellCommand(String command) throws DeviceNotAvailableException {
+        CLog.logAndDisplay(LogLevel.INFO, "Output for command " + command + ": "
+                + mDevice.executeShellCommand(command));
+    }
+
+    /** Counts the test methods of a class, the way JUnit finds them. */
+    private static int countTests(Class<?> testClass) {
+        int count = 0;
+        for (Method method : testClass.getMethods()) {
+            if (method.getName().startsWith("test") && method.getParameterTypes().length == 0
+                    && method.getReturnType() == Void.TYPE
+                    && !Modifier.isStatic(method.getModifiers())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.devicepolicy;
+
+import com.android.ddmlib.testrunner.InstrumentationResultParser;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CollectingTestListener;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of device side test methods of one package that are run as one user in a single
+ * instrumentation, instead of an instrumentation each.
+ * <p/>
+ * The runner runs the tests of each class in the order of the class, not in the order they were
+ * added in, so only tests that don't depend on each other should be batched together.
+ */
+public class DeviceTestBatch {
+
+    private final ITestDevice mDevice;
+    private final String mPkgName;
+    private final int mUserId;
+    private final Set<TestIdentifier> mTests = new LinkedHashSet<>();
+    private TestRunResult mRunResult;
+
+    public DeviceTestBatch(ITestDevice device, String pkgName, int userId) {
+        mDevice = device;
+        mPkgName = pkgName;
+        mUserId = userId;
+    }
+
+    /**
+     * Adds a test method to the batch. A test class name starting with "." is relative to the
+     * package of the batch.
+     */
+    public DeviceTestBatch add(String testClassName, String testMethodName) {
+        mTests.add(new TestIdentifier(getClassName(testClassName), testMethodName));
+        return this;
+    }
+
+    /** Returns the number of test methods in the batch. */
+    public int size() {
+        return mTests.size();
+    }
+
+    /** Returns the instrumentation command that runs the batch. */
+    String getCommand() {
+        StringBuilder testsToRun = new StringBuilder();
+        for (TestIdentifier test : mTests) {
+            if (testsToRun.length() > 0) {
+                testsToRun.append(",");
+            }
+            testsToRun.append(test.getClassName()).append("#").append(test.getTestName());
+        }
+        return "am instrument --user " + mUserId + " -w -r -e class " + testsToRun + " "
+                + mPkgName + "/" + BaseDevicePolicyTest.RUNNER;
+    }
+
+    /** Runs all the tests of the batch in one instrumentation. */
+    public TestRunResult run() throws DeviceNotAvailableException {
+        String command = getCommand();
+        CLog.i("Running " + command);
+
+        CollectingTestListener listener = new CollectingTestListener();
+        InstrumentationResultParser parser = new InstrumentationResultParser(mPkgName, listener);
+        mDevice.executeShellCommand(command, parser);
+        mRunResult = listener.getCurrentRunResults();
+        return mRunResult;
+    }
+
+    /**
+     * Returns true if a test of the batch passed. A test the instrumentation didn't get to, for
+     * example because it crashed, didn't pass.
+     */
+    public boolean passed(String testClassName, String testMethodName) {
+        TestResult result = getResult(
+                new TestIdentifier(getClassName(testClassName), testMethodName));
+        return result != null && result.getStatus() == TestStatus.PASSED;
+    }
+
+    /**
+     * Returns a description of each test of the batch that didn't pass, in the order the tests
+     * were added in.
+     */
+    public List<String> getFailures() {
+        List<String> failures = new ArrayList<>();
+        for (TestIdentifier test : mTests) {
+            TestResult result = getResult(test);
+            if (result == null) {
+                String reason = mRunResult.isRunFailure()
+                        ? mRunResult.getRunFailureMessage() : "the test was not run";
+                failures.add(test + ": " + reason);
+            } else if (result.getStatus() != TestStatus.PASSED) {
+                failures.add(test + ": " + result.getStatus() + "\n" + result.getStackTrace());
+            }
+        }
+        return failures;
+    }
+
+    private TestResult getResult(TestIdentifier test) {
+        if (mRunResult == null) {
+            throw new IllegalStateException("The batch has not been run");
+        }
+        return mRunResult.getTestResults().get(test);
+    }
+
+    private String getClassName(String testClassName) {
+        return testClassName.startsWith(".") ? mPkgName + testClassName : testClassName;
+    }
+}
@@ -75,24 +75,21 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         mHasNfcFeature = hasDeviceFeature("android.hardware.nfc");
 
         if (mHasFeature) {
-            removeTestUsers();
-            mUserId = createManagedProfile();
-
-            installApp(MANAGED_PROFILE_APK);
-            setProfileOwnerOrFail(MANAGED_PROFILE_PKG + "/" + ADMIN_RECEIVER_TEST_CLASS, mUserId);
-            startUser(mUserId);
-        }
-    }
-
-    @Override
-    protected void tearDown() throws Exception {
-        if (mHasFeature) {
-            removeUser(mUserId);
-            getDevice().uninstallPackage(MANAGED_PROFILE_PKG);
-            getDevice().uninstallPackage(INTENT_SENDER_PKG);
-            getDevice().uninstallPackage(INTENT_RECEIVER_PKG);
+            // The profile is shared by the tests of the class, and only set up again after a test
+            // that changes it.
+            mUserId = mFixture.getProfileId();
+            if (mUserId == -1) {
+                removeTestUsers();
+                mUserId = createManagedProfile();
+                mFixture.setProfile(mUserId);
+
+                installApp(MANAGED_PROFILE_APK);
+                mFixture.addPackage(MANAGED_PROFILE_PKG, false);
+                setProfileOwnerOrFail(MANAGED_PROFILE_PKG + "/" + ADMIN_RECEIVER_TEST_CLASS,
+                        mUserId);
+                startUser(mUserId);
+            }
         }
-        super.tearDown();
     }
 
     public void testManagedProfileSetup() throws Exception {
@@ -110,11 +107,12 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
+        mFixture.invalidate();
         assertTrue(listUsers().contains(mUserId));
         assertTrue(runDeviceTestsAsUser(
                 MANAGED_PROFILE_PKG, MANAGED_PROFILE_PKG + ".WipeDataTest", mUserId));
-        // Note: the managed profile is removed by this test, which will make removeUserCommand in
-        // tearDown() to complain, but that should be OK since its result is not asserted.
+        // Note: the managed profile is removed by this test, which will make the removal of the
+        // profile by the fixture complain, but that should be OK since its result is not asserted.
         assertFalse(listUsers().contains(mUserId));
     }
 
@@ -138,6 +136,7 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature || !hasDeviceFeature(FEATURE_WIFI)) {
             return;
         }
+        mFixture.invalidate();
         assertTrue("WiFi config already exists and could not be removed", runDeviceTestsAsUser(
                 MANAGED_PROFILE_PKG, ".WifiTest", "testRemoveWifiNetworkIfExists", USER_OWNER));
         try {
@@ -158,6 +157,7 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
+        mFixture.invalidate();
         // Set up activities: ManagedProfileActivity will only be enabled in the managed profile and
         // PrimaryUserActivity only in the primary one
         disableActivityForUser("ManagedProfileActivity", 0);
@@ -179,12 +179,13 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
+        mFixture.invalidate();
         // Disable all pre-existing browsers in the managed profile so they don't interfere with
         // intents resolution.
         assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".CrossProfileUtils",
                 "testDisableAllBrowsers", mUserId));
-        installApp(INTENT_RECEIVER_APK);
-        installApp(INTENT_SENDER_APK);
+        installFixtureApp(INTENT_RECEIVER_APK, INTENT_RECEIVER_PKG);
+        installFixtureApp(INTENT_SENDER_APK, INTENT_SENDER_PKG);
 
         changeVerificationStatus(USER_OWNER, INTENT_RECEIVER_PKG, "ask");
         changeVerificationStatus(mUserId, INTENT_RECEIVER_PKG, "ask");
@@ -230,8 +231,10 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
-        installApp(INTENT_RECEIVER_APK);
-        installApp(INTENT_SENDER_APK);
+        // changes the cross profile intent filters
+        mFixture.invalidate();
+        installFixtureApp(INTENT_RECEIVER_APK, INTENT_RECEIVER_PKG);
+        installFixtureApp(INTENT_SENDER_APK, INTENT_SENDER_PKG);
 
         // Test from parent to managed
         assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".CrossProfileUtils",
@@ -253,8 +256,10 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
-        installApp(INTENT_RECEIVER_APK);
-        installApp(INTENT_SENDER_APK);
+        // changes the cross profile intent filters and the copy paste policy
+        mFixture.invalidate();
+        installFixtureApp(INTENT_RECEIVER_APK, INTENT_RECEIVER_PKG);
+        installFixtureApp(INTENT_SENDER_APK, INTENT_SENDER_PKG);
 
         assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".CrossProfileUtils",
                 "testAllowCrossProfileCopyPaste", mUserId));
@@ -308,6 +313,7 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
             return;
         }
         String restriction = "no_debugging_features";  // UserManager.DISALLOW_DEBUGGING_FEATURES
+        mFixture.invalidate();
 
         String addRestrictionCommandOutput =
                 changeUserRestrictionForUser(restriction, ADD_RESTRICTION_COMMAND, mUserId);
@@ -331,14 +337,11 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
             return ;
         }
 
-        assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".BluetoothTest",
-                "testEnableDisable", mUserId));
-        assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".BluetoothTest",
-                "testGetAddress", mUserId));
-        assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".BluetoothTest",
-                "testListenUsingRfcommWithServiceRecord", mUserId));
-        assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".BluetoothTest",
-                "testGetRemoteDevice", mUserId));
+        assertDeviceTestsPassed(newDeviceTestBatch(MANAGED_PROFILE_PKG, mUserId)
+                .add(".BluetoothTest", "testEnableDisable")
+                .add(".BluetoothTest", "testGetAddress")
+                .add(".BluetoothTest", "testListenUsingRfcommWithServiceRecord")
+                .add(".BluetoothTest", "testGetRemoteDevice"));
     }
 
     public void testCameraPolicy() throws Exception {
@@ -392,6 +395,8 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
             return;
         }
 
+        // leaves the cross profile caller id disabled
+        mFixture.invalidate();
         try {
             // Insert Primary profile Contacts
             assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
@@ -411,99 +416,99 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
             assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
                     "testSetCrossProfileCallerIdDisabled_false", mUserId));
 
+            // The lookups only read the contacts, so each profile runs them in one batch.
+            DeviceTestBatch primaryLookups = newDeviceTestBatch(MANAGED_PROFILE_PKG, 0);
             // Primary user cannot use ordinary phone/email lookup api to access managed contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfilePhoneLookup_canNotAccessEnterpriseContact", 0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEmailLookup_canNotAccessEnterpriseContact", 0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfilePhoneLookup_canNotAccessEnterpriseContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEmailLookup_canNotAccessEnterpriseContact");
             // Primary user can use ENTERPRISE_CONTENT_FILTER_URI to access primary contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterprisePhoneLookup_canAccessPrimaryContact", 0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterpriseEmailLookup_canAccessPrimaryContact", 0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterprisePhoneLookup_canAccessPrimaryContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterpriseEmailLookup_canAccessPrimaryContact");
             // Primary user can use ENTERPRISE_CONTENT_FILTER_URI to access managed profile contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterprisePhoneLookup_canAccessEnterpriseContact", 0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterpriseEmailLookup_canAccessEnterpriseContact", 0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterprisePhoneLookup_canAccessEnterpriseContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterpriseEmailLookup_canAccessEnterpriseContact");
             // When there exist contacts with the same phone/email in primary & enterprise,
             // primary user can use ENTERPRISE_CONTENT_FILTER_URI to access the primary contact.
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterpriseEmailLookupDuplicated_canAccessPrimaryContact",
-                    0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterprisePhoneLookupDuplicated_canAccessPrimaryContact",
-                    0));
-
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterpriseEmailLookupDuplicated_canAccessPrimaryContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterprisePhoneLookupDuplicated_canAccessPrimaryContact");
             // Make sure SIP enterprise lookup works too.
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterpriseSipLookup_canAccessEnterpriseContact", 0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterpriseSipLookup_canAccessEnterpriseContact");
+            assertDeviceTestsPassed(primaryLookups);
 
+            DeviceTestBatch managedLookups = newDeviceTestBatch(MANAGED_PROFILE_PKG, mUserId);
             // Managed user cannot use ordinary phone/email lookup api to access primary contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfilePhoneLookup_canNotAccessPrimaryContact", mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEmailLookup_canNotAccessPrimaryContact", mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfilePhoneLookup_canNotAccessPrimaryContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEmailLookup_canNotAccessPrimaryContact");
             // Managed user can use ENTERPRISE_CONTENT_FILTER_URI to access enterprise contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterprisePhoneLookup_canAccessEnterpriseContact", mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterpriseEmailLookup_canAccessEnterpriseContact", mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterprisePhoneLookup_canAccessEnterpriseContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterpriseEmailLookup_canAccessEnterpriseContact");
             // Managed user cannot use ENTERPRISE_CONTENT_FILTER_URI to access primary contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterprisePhoneLookup_canNotAccessPrimaryContact", mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterpriseEmailLookup_canNotAccessPrimaryContact", mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterprisePhoneLookup_canNotAccessPrimaryContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterpriseEmailLookup_canNotAccessPrimaryContact");
             // When there exist contacts with the same phone/email in primary & enterprise,
             // managed user can use ENTERPRISE_CONTENT_FILTER_URI to access the enterprise contact.
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterpriseEmailLookupDuplicated_canAccessEnterpriseContact",
-                    mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterprisePhoneLookupDuplicated_canAccessEnterpriseContact",
-                    mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterpriseEmailLookupDuplicated_canAccessEnterpriseContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterprisePhoneLookupDuplicated_canAccessEnterpriseContact");
+            assertDeviceTestsPassed(managedLookups);
 
             // Set cross profile caller id to disabled
             assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
                     "testSetCrossProfileCallerIdDisabled_true", mUserId));
 
+            primaryLookups = newDeviceTestBatch(MANAGED_PROFILE_PKG, 0);
             // Primary user cannot use ordinary phone/email lookup api to access managed contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfilePhoneLookup_canNotAccessEnterpriseContact", 0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEmailLookup_canNotAccessEnterpriseContact", 0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfilePhoneLookup_canNotAccessEnterpriseContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEmailLookup_canNotAccessEnterpriseContact");
             // Primary user cannot use ENTERPRISE_CONTENT_FILTER_URI to access managed contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterprisePhoneLookup_canNotAccessEnterpriseContact", 0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterpriseEmailLookup_canNotAccessEnterpriseContact", 0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterprisePhoneLookup_canNotAccessEnterpriseContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterpriseEmailLookup_canNotAccessEnterpriseContact");
             // When there exist contacts with the same phone/email in primary & enterprise,
             // primary user can use ENTERPRISE_CONTENT_FILTER_URI to access primary contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterpriseEmailLookupDuplicated_canAccessPrimaryContact",
-                    0));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testPrimaryProfileEnterprisePhoneLookupDuplicated_canAccessPrimaryContact",
-                    0));
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterpriseEmailLookupDuplicated_canAccessPrimaryContact");
+            primaryLookups.add(".ContactsTest",
+                    "testPrimaryProfileEnterprisePhoneLookupDuplicated_canAccessPrimaryContact");
+            assertDeviceTestsPassed(primaryLookups);
 
+            managedLookups = newDeviceTestBatch(MANAGED_PROFILE_PKG, mUserId);
             // Managed user cannot use ordinary phone/email lookup api to access primary contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfilePhoneLookup_canNotAccessPrimaryContact", mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEmailLookup_canNotAccessPrimaryContact", mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfilePhoneLookup_canNotAccessPrimaryContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEmailLookup_canNotAccessPrimaryContact");
             // Managed user cannot use ENTERPRISE_CONTENT_FILTER_URI to access primary contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterprisePhoneLookup_canNotAccessPrimaryContact", mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterpriseEmailLookup_canNotAccessPrimaryContact", mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterprisePhoneLookup_canNotAccessPrimaryContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterpriseEmailLookup_canNotAccessPrimaryContact");
             // When there exist contacts with the same phone/email in primary & enterprise,
             // managed user can use ENTERPRISE_CONTENT_FILTER_URI to access enterprise contacts
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterpriseEmailLookupDuplicated_canAccessEnterpriseContact",
-                    mUserId));
-            assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
-                    "testManagedProfileEnterprisePhoneLookupDuplicated_canAccessEnterpriseContact",
-                    mUserId));
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterpriseEmailLookupDuplicated_canAccessEnterpriseContact");
+            managedLookups.add(".ContactsTest",
+                    "testManagedProfileEnterprisePhoneLookupDuplicated_canAccessEnterpriseContact");
+            assertDeviceTestsPassed(managedLookups);
         } finally {
             // Clean up in managed profile and primary profile
             runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
@@ -517,6 +522,8 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
+        // leaves bluetooth contact sharing disabled
+        mFixture.invalidate();
         assertTrue(runDeviceTestsAsUser(MANAGED_PROFILE_PKG, ".ContactsTest",
                 "testSetBluetoothContactSharingDisabled_setterAndGetter", mUserId));
     }
@@ -525,6 +532,8 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
         if (!mHasFeature) {
             return;
         }
+        // installs an app in the profile
+        mFixture.invalidate();
         // verify that we can't set the same admin receiver as profile owner again
         assertFalse(setProfileOwner(
                 MANAGED_PROFILE_PKG + "/" + ADMIN_RECEIVER_TEST_CLASS, mUserId));
@@ -561,6 +570,7 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
 
         String restriction = "no_outgoing_beam";  // UserManager.DISALLOW_OUTGOING_BEAM
         String command = "add-restriction";
+        mFixture.invalidate();
 
         String addRestrictionCommandOutput =
                 changeUserRestrictionForUser(restriction, command, mUserId);
@@ -591,10 +601,11 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
 
             assertTrue(runDeviceTests(MANAGED_PROFILE_PKG, ".CrossProfileWidgetTest",
                     "testCrossProfileWidgetProviderAdded", mUserId));
-            assertTrue(runDeviceTests(MANAGED_PROFILE_PKG, ".CrossProfileWidgetPrimaryUserTest",
-                    "testHasCrossProfileWidgetProvider_true", 0));
-            assertTrue(runDeviceTests(MANAGED_PROFILE_PKG, ".CrossProfileWidgetPrimaryUserTest",
-                    "testHostReceivesWidgetUpdates_true", 0));
+            assertDeviceTestsPassed(newDeviceTestBatch(MANAGED_PROFILE_PKG, 0)
+                    .add(".CrossProfileWidgetPrimaryUserTest",
+                            "testHasCrossProfileWidgetProvider_true")
+                    .add(".CrossProfileWidgetPrimaryUserTest",
+                            "testHostReceivesWidgetUpdates_true"));
 
             commandOutput = changeCrossProfileWidgetForUser(WIDGET_PROVIDER_PKG,
                     "remove-cross-profile-widget", mUserId);
@@ -603,10 +614,11 @@ public class ManagedProfileTest extends BaseDevicePolicyTest {
 
             assertTrue(runDeviceTests(MANAGED_PROFILE_PKG, ".CrossProfileWidgetTest",
                     "testCrossProfileWidgetProviderRemoved", mUserId));
-            assertTrue(runDeviceTests(MANAGED_PROFILE_PKG, ".CrossProfileWidgetPrimaryUserTest",
-                    "testHasCrossProfileWidgetProvider_false", 0));
-            assertTrue(runDeviceTests(MANAGED_PROFILE_PKG, ".CrossProfileWidgetPrimaryUserTest",
-                    "testHostReceivesWidgetUpdates_false", 0));
+            assertDeviceTestsPassed(newDeviceTestBatch(MANAGED_PROFILE_PKG, 0)
+                    .add(".CrossProfileWidgetPrimaryUserTest",
+                            "testHasCrossProfileWidgetProvider_false")
+                    .add(".CrossProfileWidgetPrimaryUserTest",
+                            "testHostReceivesWidgetUpdates_false"));
         } finally {
             changeCrossProfileWidgetForUser(WIDGET_PROVIDER_PKG, "remove-cross-profile-widget",
                     mUserId);
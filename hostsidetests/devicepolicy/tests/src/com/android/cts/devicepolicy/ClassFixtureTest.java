@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.devicepolicy;
+
+import com.android.cts.tradefed.util.DeviceReleaseRegistry;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ClassFixture}.
+ */
+public class ClassFixtureTest extends TestCase {
+
+    private static final String ADMIN_PKG = "com.example.admin";
+    private static final String APP_PKG = "com.example.app";
+
+    /** A test class with three tests. */
+    public static class ThreeTests {
+        public void testOne() {
+        }
+
+        public void testTwo() {
+        }
+
+        public void testThree() {
+        }
+
+        public void testWithArgument(int i) {
+        }
+
+        public void helper() {
+        }
+    }
+
+    public static class OtherTests {
+        public void testOne() {
+        }
+    }
+
+    private RecordingTestDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // the fixtures are kept by serial number, so each test uses a device of its own
+        mDevice = new RecordingTestDevice(getName());
+    }
+
+    /**
+     * Test that the tests of a class share the fixture, and that only the data of apps is
+     * cleared between them.
+     */
+    public void testFinishTest_reset() throws Exception {
+        ClassFixture fixture = setUpFixture(ThreeTests.class);
+        fixture.finishTest();
+
+        assertEquals(Arrays.asList("pm clear --user 0 " + APP_PKG, "pm clear --user 10 " + APP_PKG),
+                mDevice.takeCommands());
+        assertSame(fixture, ClassFixture.get(mDevice.getDevice(), ThreeTests.class));
+        assertEquals(10, fixture.getProfileId());
+        assertTrue(fixture.hasPackage(APP_PKG));
+    }
+
+    /**
+     * Test that the fixture is torn down after the last test of the class.
+     */
+    public void testFinishTest_lastTest() throws Exception {
+        ClassFixture fixture = setUpFixture(ThreeTests.class);
+        fixture.finishTest();
+        fixture.finishTest();
+        mDevice.takeCommands();
+        fixture.finishTest();
+
+        assertEquals(Arrays.asList("am stop-user -w 10", "pm remove-user 10",
+                "uninstall " + ADMIN_PKG, "uninstall " + APP_PKG), mDevice.takeCommands());
+        assertNotSame(fixture, ClassFixture.get(mDevice.getDevice(), ThreeTests.class));
+    }
+
+    /**
+     * Test that an invalidated fixture is torn down after the test, and set up again for the
+     * remaining tests of the class.
+     */
+    public void testFinishTest_invalidated() throws Exception {
+        ClassFixture fixture = setUpFixture(ThreeTests.class);
+        fixture.invalidate();
+        fixture.finishTest();
+
+        assertEquals(Arrays.asList("am stop-user -w 10", "pm remove-user 10",
+                "uninstall " + ADMIN_PKG, "uninstall " + APP_PKG), mDevice.takeCommands());
+        assertSame(fixture, ClassFixture.get(mDevice.getDevice(), ThreeTests.class));
+        assertEquals(-1, fixture.getProfileId());
+        assertFalse(fixture.hasPackage(APP_PKG));
+
+        // the next test doesn't tear it down again
+        fixture.finishTest();
+        assertEquals(Collections.emptyList(), mDevice.takeCommands());
+    }
+
+    /**
+     * Test that the fixture of a class is torn down when a test of another class starts, in case
+     * some of its tests didn't run.
+     */
+    public void testGet_otherClass() throws Exception {
+        ClassFixture fixture = setUpFixture(ThreeTests.class);
+        fixture.finishTest();
+        mDevice.takeCommands();
+
+        ClassFixture other = ClassFixture.get(mDevice.getDevice(), OtherTests.class);
+        assertNotSame(fixture, other);
+        assertEquals(Arrays.asList("am stop-user -w 10", "pm remove-user 10",
+                "uninstall " + ADMIN_PKG, "uninstall " + APP_PKG), mDevice.takeCommands());
+        assertEquals(-1, other.getProfileId());
+
+        // the only test of the other class releases its fixture
+        other.finishTest();
+        assertNotSame(other, ClassFixture.get(mDevice.getDevice(), OtherTests.class));
+    }
+
+    /**
+     * Test that the fixture of a class whose last test was not run is torn down once the tests of
+     * the jar are done, as the fixture registered itself to be released.
+     */
+    public void testReleaseDevice() throws Exception {
+        ClassFixture fixture = setUpFixture(ThreeTests.class);
+        fixture.finishTest();
+        mDevice.takeCommands();
+
+        DeviceReleaseRegistry.releaseDevice(mDevice.getDevice());
+        assertEquals(Arrays.asList("am stop-user -w 10", "pm remove-user 10",
+                "uninstall " + ADMIN_PKG, "uninstall " + APP_PKG), mDevice.takeCommands());
+
+        // nothing is left to tear down
+        DeviceReleaseRegistry.releaseDevice(mDevice.getDevice());
+        ClassFixture.releaseDevice(mDevice.getDevice());
+        assertEquals(Collections.emptyList(), mDevice.takeCommands());
+        assertNotSame(fixture, ClassFixture.get(mDevice.getDevice(), ThreeTests.class));
+    }
+
+    private ClassFixture setUpFixture(Class<?> testClass) throws Exception {
+        ClassFixture fixture = ClassFixture.get(mDevice.getDevice(), testClass);
+        assertEquals(-1, fixture.getProfileId());
+        fixture.setProfile(10);
+        fixture.addPackage(ADMIN_PKG, false);
+        fixture.addPackage(APP_PKG, true);
+        return fixture;
+    }
+}
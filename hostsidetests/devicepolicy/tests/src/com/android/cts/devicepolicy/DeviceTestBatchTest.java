@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.devicepolicy;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DeviceTestBatch}.
+ */
+public class DeviceTestBatchTest extends TestCase {
+
+    private static final String PKG = "com.example";
+
+    private RecordingTestDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDevice = new RecordingTestDevice("serial");
+    }
+
+    /**
+     * Test that all the tests of a batch are requested from one instrumentation, once each.
+     */
+    public void testGetCommand() {
+        DeviceTestBatch batch = new DeviceTestBatch(mDevice.getDevice(), PKG, 10)
+                .add(".A", "testOne")
+                .add("com.example.B", "testThree")
+                .add("com.example.A", "testOne");
+        assertEquals(2, batch.size());
+        assertEquals("am instrument --user 10 -w -r -e class "
+                + "com.example.A#testOne,com.example.B#testThree "
+                + "com.example/android.support.test.runner.AndroidJUnitRunner",
+                batch.getCommand());
+    }
+
+    /**
+     * Test that the results of one instrumentation are handed out to each test, and that a test
+     * the instrumentation didn't get to fails.
+     */
+    public void testRun() throws Exception {
+        mDevice.setOutput("am instrument", join(
+                "INSTRUMENTATION_STATUS: numtests=3",
+                "INSTRUMENTATION_STATUS: stream=",
+                "INSTRUMENTATION_STATUS: id=AndroidJUnitRunner",
+                "INSTRUMENTATION_STATUS: test=testOne",
+                "INSTRUMENTATION_STATUS: class=com.example.A",
+                "INSTRUMENTATION_STATUS: current=1",
+                "INSTRUMENTATION_STATUS_CODE: 1",
+                "INSTRUMENTATION_STATUS: numtests=3",
+                "INSTRUMENTATION_STATUS: stream=.",
+                "INSTRUMENTATION_STATUS: id=AndroidJUnitRunner",
+                "INSTRUMENTATION_STATUS: test=testOne",
+                "INSTRUMENTATION_STATUS: class=com.example.A",
+                "INSTRUMENTATION_STATUS: current=1",
+                "INSTRUMENTATION_STATUS_CODE: 0",
+                "INSTRUMENTATION_STATUS: numtests=3",
+                "INSTRUMENTATION_STATUS: stream=",
+                "INSTRUMENTATION_STATUS: id=AndroidJUnitRunner",
+                "INSTRUMENTATION_STATUS: test=testTwo",
+                "INSTRUMENTATION_STATUS: class=com.example.A",
+                "INSTRUMENTATION_STATUS: current=2",
+                "INSTRUMENTATION_STATUS_CODE: 1",
+                "INSTRUMENTATION_STATUS: numtests=3",
+                "INSTRUMENTATION_STATUS: stream=F",
+                "INSTRUMENTATION_STATUS: id=AndroidJUnitRunner",
+                "INSTRUMENTATION_STATUS: test=testTwo",
+                "INSTRUMENTATION_STATUS: class=com.example.A",
+                "INSTRUMENTATION_STATUS: stack=junit.framework.AssertionFailedError: two",
+                "INSTRUMENTATION_STATUS: current=2",
+                "INSTRUMENTATION_STATUS_CODE: -2",
+                "INSTRUMENTATION_RESULT: shortMsg=Process crashed.",
+                "INSTRUMENTATION_CODE: 0"));
+        DeviceTestBatch batch = new DeviceTestBatch(mDevice.getDevice(), PKG, 0)
+                .add(".A", "testOne")
+                .add(".A", "testTwo")
+                .add(".B", "testThree");
+        batch.run();
+
+        assertEquals(Arrays.asList(batch.getCommand()), mDevice.takeCommands());
+        assertTrue(batch.passed(".A", "testOne"));
+        assertFalse(batch.passed("com.example.A", "testTwo"));
+        assertFalse(batch.passed(".B", "testThree"));
+        List<String> failures = batch.getFailures();
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(0), failures.get(0).startsWith("com.example.A#testTwo: "));
+        assertTrue(failures.get(0), failures.get(0).contains("AssertionFailedError: two"));
+        assertTrue(failures.get(1), failures.get(1).startsWith("com.example.B#testThree: "));
+    }
+
+    /**
+     * Test that results can't be asked for before the batch has run.
+     */
+    public void testPassed_notRun() {
+        DeviceTestBatch batch = new DeviceTestBatch(mDevice.getDevice(), PKG, 0)
+                .add(".A", "testOne");
+        try {
+            batch.passed(".A", "testOne");
+            fail("IllegalStateException not thrown");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(mDevice.takeCommands().isEmpty());
+    }
+
+    private static String join(String... lines) {
+        StringBuilder output = new StringBuilder();
+        for (String line : lines) {
+            output.append(line).append("\r\n");
+        }
+        return output.toString();
+    }
+}
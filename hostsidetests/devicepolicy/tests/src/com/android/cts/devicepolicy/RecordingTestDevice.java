@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.devicepolicy;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mock {@link ITestDevice} that records the shell commands run on it, and the packages
+ * uninstalled from it, so tests can run without a device.
+ */
+public class RecordingTestDevice implements InvocationHandler {
+
+    private final String mSerialNumber;
+    private final List<String> mCommands = new ArrayList<String>();
+    /** The output of commands, by the start of the command. */
+    private final Map<String, String> mOutputs = new LinkedHashMap<String, String>();
+    private final ITestDevice mDevice;
+
+    public RecordingTestDevice(String serialNumber) {
+        mSerialNumber = serialNumber;
+        mDevice = (ITestDevice) Proxy.newProxyInstance(ITestDevice.class.getClassLoader(),
+                new Class<?>[] { ITestDevice.class }, this);
+    }
+
+    public ITestDevice getDevice() {
+        return mDevice;
+    }
+
+    /** Sets the output of the commands starting with the given prefix. */
+    public void setOutput(String commandPrefix, String output) {
+        mOutputs.put(commandPrefix, output);
+    }
+
+    /** Returns the commands run so far, and forgets them. */
+    public List<String> takeCommands() {
+        List<String> commands = new ArrayList<String>(mCommands);
+        mCommands.clear();
+        return commands;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getSerialNumber")) {
+            return mSerialNumber;
+        } else if (name.equals("uninstallPackage")) {
+            mCommands.add("uninstall " + args[0]);
+            return null;
+        } else if (name.equals("executeShellCommand")) {
+            String command = (String) args[0];
+            mCommands.add(command);
+            String output = getOutput(command);
+            if (args.length == 1) {
+                return output;
+            }
+            IShellOutputReceiver receiver = (IShellOutputReceiver) args[1];
+            byte[] data = output.getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+            return null;
+        } else if (name.equals("toString")) {
+            return "RecordingTestDevice " + mSerialNumber;
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("equals")) {
+            return proxy == args[0];
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private String getOutput(String command) {
+        for (Map.Entry<String, String> output : mOutputs.entrySet()) {
+            if (command.startsWith(output.getKey())) {
+                return output.getValue();
+            }
+        }
+        return "";
+    }
+}
@@ -16,7 +16,18 @@
 
 package android.dumpsys.cts;
 
+import static com.android.cts.tradefed.util.CheckinSchema.DOUBLE;
+import static com.android.cts.tradefed.util.CheckinSchema.INTEGER;
+import static com.android.cts.tradefed.util.CheckinSchema.STRING;
+import static com.android.cts.tradefed.util.CheckinSchema.composite;
+import static com.android.cts.tradefed.util.CheckinSchema.integerOr;
+import static com.android.cts.tradefed.util.CheckinSchema.oneOf;
+
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.CheckinParser;
+import com.android.cts.tradefed.util.CheckinSchema;
+import com.android.cts.tradefed.util.CheckinSchema.FieldType;
+import com.android.cts.tradefed.util.CheckinSchema.Section;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.testtype.DeviceTestCase;
@@ -26,8 +37,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * Test to check the format of the dumps of various services (currently only procstats is tested).
@@ -49,288 +59,206 @@ public class DumpsysHostTest extends DeviceTestCase implements IBuildReceiver {
     }
 
     /**
-     * Tests the output of "dumpsys procstats -c". This is a proxy for testing "dumpsys procstats
-     * --checkin", since the latter is not idempotent.
-     *
-     * @throws Exception
+     * A procstats state tag, e.g. "0na": screen state, memory state, and process state if
+     * hasProcess is true.
      */
-    public void testProcstatsOutput() throws Exception {
-        String procstats = mDevice.executeShellCommand("dumpsys procstats -c");
-        assertNotNull(procstats);
-        assertTrue(procstats.length() > 0);
-
-        Set<String> seenTags = new HashSet<>();
-        int version = -1;
-
-        try (BufferedReader reader = new BufferedReader(
-                new StringReader(procstats))) {
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.isEmpty()) {
-                    continue;
+    private static FieldType procstatsTag(final boolean hasProcess) {
+        return new FieldType(hasProcess ? "a process state tag" : "a state tag") {
+            @Override
+            public boolean matches(byte[] line, int start, int end) {
+                if (end - start != (hasProcess ? 3 : 2)) {
+                    return false;
                 }
-
-                // extra space to make sure last column shows up.
-                if (line.endsWith(",")) {
-                  line = line + " ";
+                // screen: 0 = off, 1 = on
+                byte s = line[start];
+                if (s != '0' && s != '1') {
+                    return false;
                 }
-                String[] parts = line.split(",");
-                seenTags.add(parts[0]);
-
-                switch (parts[0]) {
-                    case "vers":
-                        assertEquals(2, parts.length);
-                        version = Integer.parseInt(parts[1]);
-                        break;
-                    case "period":
-                        checkPeriod(parts);
-                        break;
-                    case "pkgproc":
-                        checkPkgProc(parts, version);
-                        break;
-                    case "pkgpss":
-                        checkPkgPss(parts, version);
-                        break;
-                    case "pkgsvc-bound":
-                    case "pkgsvc-exec":
-                    case "pkgsvc-run":
-                    case "pkgsvc-start":
-                        checkPkgSvc(parts, version);
-                        break;
-                    case "pkgkills":
-                        checkPkgKills(parts, version);
-                        break;
-                    case "proc":
-                        checkProc(parts);
-                        break;
-                    case "pss":
-                        checkPss(parts);
-                        break;
-                    case "kills":
-                        checkKills(parts);
-                        break;
-                    case "total":
-                        checkTotal(parts);
-                        break;
-                    default:
-                        break;
+                // memory: n = normal, m = moderate, l = low, c = critical
+                byte m = line[start + 1];
+                if (m != 'n' && m != 'm' && m != 'l' && m != 'c') {
+                    return false;
                 }
+                return !hasProcess || (line[start + 2] >= 'a' && line[start + 2] <= 'z');
             }
-        }
-
-        // spot check a few tags
-        assertSeenTag(seenTags, "pkgproc");
-        assertSeenTag(seenTags, "proc");
-        assertSeenTag(seenTags, "pss");
-        assertSeenTag(seenTags, "total");
-    }
-
-    private void checkPeriod(String[] parts) {
-        assertEquals(5, parts.length);
-        assertNotNull(parts[1]); // date
-        assertInteger(parts[2]); // start time (msec)
-        assertInteger(parts[3]); // end time (msec)
-        assertNotNull(parts[4]); // status
-    }
-
-    private void checkPkgProc(String[] parts, int version) {
-        int statesStartIndex;
-
-        if (version < 4) {
-            assertTrue(parts.length >= 4);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertNotNull(parts[3]); // process
-            statesStartIndex = 4;
-        } else {
-            assertTrue(parts.length >= 5);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertInteger(parts[3]); // app version
-            assertNotNull(parts[4]); // process
-            statesStartIndex = 5;
-        }
-
-        for (int i = statesStartIndex; i < parts.length; i++) {
-            String[] subparts = parts[i].split(":");
-            assertEquals(2, subparts.length);
-            checkTag(subparts[0], true); // tag
-            assertInteger(subparts[1]); // duration (msec)
-        }
-    }
-
-    private void checkTag(String tag, boolean hasProcess) {
-        assertEquals(hasProcess ? 3 : 2, tag.length());
-
-        // screen: 0 = off, 1 = on
-        char s = tag.charAt(0);
-        if (s != '0' && s != '1') {
-            fail("malformed tag: " + tag);
-        }
-
-        // memory: n = normal, m = moderate, l = low, c = critical
-        char m = tag.charAt(1);
-        if (m != 'n' && m != 'm' && m != 'l' && m != 'c') {
-            fail("malformed tag: " + tag);
-        }
-
-        if (hasProcess) {
-            char p = tag.charAt(2);
-            assertTrue("malformed tag: " + tag, p >= 'a' && p <= 'z');
-        }
-    }
-
-    private void checkPkgPss(String[] parts, int version) {
-        int statesStartIndex;
-
-        if (version < 4) {
-            assertTrue(parts.length >= 4);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertNotNull(parts[3]); // process
-            statesStartIndex = 4;
-        } else {
-            assertTrue(parts.length >= 5);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertInteger(parts[3]); // app version
-            assertNotNull(parts[4]); // process
-            statesStartIndex = 5;
-        }
-
-        for (int i = statesStartIndex; i < parts.length; i++) {
-            String[] subparts = parts[i].split(":");
-            assertEquals(8, subparts.length);
-            checkTag(subparts[0], true); // tag
-            assertInteger(subparts[1]); // sample size
-            assertInteger(subparts[2]); // pss min
-            assertInteger(subparts[3]); // pss avg
-            assertInteger(subparts[4]); // pss max
-            assertInteger(subparts[5]); // uss min
-            assertInteger(subparts[6]); // uss avg
-            assertInteger(subparts[7]); // uss max
-        }
+        };
     }
 
-    private void checkPkgSvc(String[] parts, int version) {
-        int statesStartIndex;
-
-        if (version < 4) {
-            assertTrue(parts.length >= 5);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertNotNull(parts[3]); // service name
-            assertInteger(parts[4]); // count
-            statesStartIndex = 5;
-        } else {
-            assertTrue(parts.length >= 6);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertInteger(parts[3]); // app version
-            assertNotNull(parts[4]); // service name
-            assertInteger(parts[5]); // count
-            statesStartIndex = 6;
-        }
-
-        for (int i = statesStartIndex; i < parts.length; i++) {
-            String[] subparts = parts[i].split(":");
-            assertEquals(2, subparts.length);
-            checkTag(subparts[0], false); // tag
-            assertInteger(subparts[1]); // duration (msec)
-        }
-    }
-
-    private void checkPkgKills(String[] parts, int version) {
-        String pssStr;
-
-        if (version < 4) {
-            assertEquals(8, parts.length);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertNotNull(parts[3]); // process
-            assertInteger(parts[4]); // wakes
-            assertInteger(parts[5]); // cpu
-            assertInteger(parts[6]); // cached
-            pssStr = parts[7];
-        } else {
-            assertEquals(9, parts.length);
-            assertNotNull(parts[1]); // package name
-            assertInteger(parts[2]); // uid
-            assertInteger(parts[3]); // app version
-            assertNotNull(parts[4]); // process
-            assertInteger(parts[5]); // wakes
-            assertInteger(parts[6]); // cpu
-            assertInteger(parts[7]); // cached
-            pssStr = parts[8];
-        }
-
-        String[] subparts = pssStr.split(":");
-        assertEquals(3, subparts.length);
-        assertInteger(subparts[0]); // pss min
-        assertInteger(subparts[1]); // pss avg
-        assertInteger(subparts[2]); // pss max
-    }
-
-    private void checkProc(String[] parts) {
-        assertTrue(parts.length >= 3);
-        assertNotNull(parts[1]); // package name
-        assertInteger(parts[2]); // uid
-
-        for (int i = 3; i < parts.length; i++) {
-            String[] subparts = parts[i].split(":");
-            assertEquals(2, subparts.length);
-            checkTag(subparts[0], true); // tag
-            assertInteger(subparts[1]); // duration (msec)
-        }
+    private static FieldType[] integers(int count) {
+        FieldType[] types = new FieldType[count];
+        Arrays.fill(types, INTEGER);
+        return types;
     }
 
-    private void checkPss(String[] parts) {
-        assertTrue(parts.length >= 3);
-        assertNotNull(parts[1]); // package name
-        assertInteger(parts[2]); // uid
+    /** tag:duration (msec) */
+    private static final FieldType PROC_DURATION = composite(procstatsTag(true), INTEGER);
+    /** tag:duration (msec) */
+    private static final FieldType STATE_DURATION = composite(procstatsTag(false), INTEGER);
+    /** tag:sample size:pss min:pss avg:pss max:uss min:uss avg:uss max */
+    private static final FieldType PROC_PSS = composite(procstatsTag(true),
+            INTEGER, INTEGER, INTEGER, INTEGER, INTEGER, INTEGER, INTEGER);
+    /** pss min:pss avg:pss max */
+    private static final FieldType KILL_PSS = composite(INTEGER, INTEGER, INTEGER);
 
-        for (int i = 3; i < parts.length; i++) {
-            String[] subparts = parts[i].split(":");
-            assertEquals(8, subparts.length);
-            checkTag(subparts[0], true); // tag
-            assertInteger(subparts[1]); // sample size
-            assertInteger(subparts[2]); // pss min
-            assertInteger(subparts[3]); // pss avg
-            assertInteger(subparts[4]); // pss max
-            assertInteger(subparts[5]); // uss min
-            assertInteger(subparts[6]); // uss avg
-            assertInteger(subparts[7]); // uss max
+    /**
+     * Layout of "dumpsys procstats -c". Packages gained an app version column in version 4.
+     */
+    private static final CheckinSchema PROCSTATS_SCHEMA = new CheckinSchema()
+            .setVersionField("vers", 0)
+            .addSection(new Section("vers").fields(INTEGER))
+            // date, start time (msec), end time (msec), status
+            .addSection(new Section("period").fields(STRING, INTEGER, INTEGER, STRING))
+            // package name, uid, [app version,] process
+            .addSection(new Section("pkgproc").versions(Integer.MIN_VALUE, 3)
+                    .fields(STRING, INTEGER, STRING).repeated(PROC_DURATION))
+            .addSection(new Section("pkgproc").versions(4, Integer.MAX_VALUE)
+                    .fields(STRING, INTEGER, INTEGER, STRING).repeated(PROC_DURATION))
+            .addSection(new Section("pkgpss").versions(Integer.MIN_VALUE, 3)
+                    .fields(STRING, INTEGER, STRING).repeated(PROC_PSS))
+            .addSection(new Section("pkgpss").versions(4, Integer.MAX_VALUE)
+                    .fields(STRING, INTEGER, INTEGER, STRING).repeated(PROC_PSS))
+            // package name, uid, [app version,] service name, count
+            .addSection(pkgSvc("pkgsvc-bound", false)).addSection(pkgSvc("pkgsvc-bound", true))
+            .addSection(pkgSvc("pkgsvc-exec", false)).addSection(pkgSvc("pkgsvc-exec", true))
+            .addSection(pkgSvc("pkgsvc-run", false)).addSection(pkgSvc("pkgsvc-run", true))
+            .addSection(pkgSvc("pkgsvc-start", false)).addSection(pkgSvc("pkgsvc-start", true))
+            // package name, uid, [app version,] process, wakes, cpu, cached, pss
+            .addSection(new Section("pkgkills").versions(Integer.MIN_VALUE, 3)
+                    .fields(STRING, INTEGER, STRING, INTEGER, INTEGER, INTEGER, KILL_PSS))
+            .addSection(new Section("pkgkills").versions(4, Integer.MAX_VALUE)
+                    .fields(STRING, INTEGER, INTEGER, STRING, INTEGER, INTEGER, INTEGER,
+                            KILL_PSS))
+            // package name, uid
+            .addSection(new Section("proc").fields(STRING, INTEGER).repeated(PROC_DURATION))
+            .addSection(new Section("pss").fields(STRING, INTEGER).repeated(PROC_PSS))
+            // package name, uid, wakes, cpu, cached, pss
+            .addSection(new Section("kills")
+                    .fields(STRING, INTEGER, INTEGER, INTEGER, INTEGER, KILL_PSS))
+            // see b/18340771 for the sysmemusage tail
+            .addSection(new Section("total").repeated(STATE_DURATION)
+                    .repeatedUntil("sysmemusage"));
+
+    private static Section pkgSvc(String name, boolean hasAppVersion) {
+        Section section = new Section(name).repeated(STATE_DURATION);
+        if (hasAppVersion) {
+            return section.versions(4, Integer.MAX_VALUE)
+                    .fields(STRING, INTEGER, INTEGER, STRING, INTEGER);
         }
+        return section.versions(Integer.MIN_VALUE, 3).fields(STRING, INTEGER, STRING, INTEGER);
     }
 
-    private void checkKills(String[] parts) {
-        assertEquals(7, parts.length);
-        assertNotNull(parts[1]); // package name
-        assertInteger(parts[2]); // uid
-        assertInteger(parts[3]); // wakes
-        assertInteger(parts[4]); // cpu
-        assertInteger(parts[5]); // cached
-        String pssStr = parts[6];
-
-        String[] subparts = pssStr.split(":");
-        assertEquals(3, subparts.length);
-        assertInteger(subparts[0]); // pss min
-        assertInteger(subparts[1]); // pss avg
-        assertInteger(subparts[2]); // pss max
-    }
+    /**
+     * Layout of "dumpsys batterystats --checkin". Every line starts with the old version, the
+     * UID and the aggregation type. Time fields are in milliseconds unless noted otherwise.
+     */
+    private static final CheckinSchema BATTERYSTATS_SCHEMA =
+            new CheckinSchema(INTEGER, INTEGER, oneOf("i", "l", "c", "u"))
+            // checkinVersion, parcelVersion, startPlatformVersion, endPlatformVersion
+            .addSection(new Section("vers").fields(INTEGER, INTEGER, STRING, STRING))
+            // uid, pkgName
+            .addSection(new Section("uid").fields(INTEGER, STRING))
+            // wakeups, apk, service, startTime, starts, launches
+            .addSection(new Section("apk")
+                    .fields(INTEGER, STRING, STRING, INTEGER, INTEGER, INTEGER))
+            // process, userMillis, systemMillis, foregroundMillis, starts
+            .addSection(new Section("pr").fields(STRING, INTEGER, INTEGER, INTEGER, INTEGER)
+                    .allowExtraFields())
+            // sensorNumber, totalTime, count
+            .addSection(new Section("sr").fields(integers(3)))
+            // totalTime, count
+            .addSection(new Section("vib").fields(integers(2)))
+            .addSection(new Section("fg").fields(integers(2)))
+            // foreground, active, running
+            .addSection(new Section("st").fields(integers(3)))
+            // wakelock, then totalTime, type, count for full, partial and window wakelocks
+            .addSection(new Section("wl").fields(STRING,
+                    INTEGER, oneOf("f"), INTEGER,
+                    INTEGER, oneOf("p"), INTEGER,
+                    INTEGER, oneOf("w"), INTEGER))
+            // sync/job, totalTime, count
+            .addSection(new Section("sy").fields(STRING, INTEGER, INTEGER))
+            .addSection(new Section("jb").fields(STRING, INTEGER, INTEGER))
+            // name (may contain commas), totalTime, count
+            .addSection(new Section("kwl").fields(STRING).repeated(STRING)
+                    .trailing(INTEGER, INTEGER))
+            .addSection(new Section("wr").fields(STRING).repeated(STRING)
+                    .trailing(INTEGER, INTEGER))
+            // mobile/wifi bytes rx/tx, mobile/wifi packets rx/tx,
+            // mobileActiveTime (usec), mobileActiveCount
+            .addSection(new Section("nt").fields(integers(10)))
+            // other, button, touch
+            .addSection(new Section("ua").fields(integers(3)))
+            // startCount, batteryRealtime, batteryUptime, totalRealtime, totalUptime,
+            // startClockTime, batteryScreenOffRealtime, batteryScreenOffUptime
+            .addSection(new Section("bt").fields(integerOr("N/A"),
+                    INTEGER, INTEGER, INTEGER, INTEGER, INTEGER, INTEGER, INTEGER))
+            // low, high, screenOn, screenOff
+            .addSection(new Section("dc").fields(integers(4)))
+            // startLevel, currentLevel
+            .addSection(new Section("lv").fields(integers(2)))
+            // fullWifiLockOnTime, wifiScanTime, uidWifiRunningTime (usec)
+            .addSection(new Section("wfl").fields(integers(3)))
+            // screenOnTime, phoneOnTime, fullWakeLockTimeTotal, partialWakeLockTimeTotal,
+            // mobileRadioActiveTime, mobileRadioActiveAdjustedTime, interactiveTime,
+            // lowPowerModeEnabledTime, connChanges, deviceIdleModeEnabledTime,
+            // deviceIdleModeEnabledCount, deviceIdlingTime, deviceIdlingCount,
+            // mobileRadioActiveCount, mobileRadioActiveUnknownTime
+            .addSection(new Section("m").fields(integers(15)).allowExtraFields())
+            // mobile/wifi rx/tx total bytes, mobile/wifi rx/tx total packets
+            .addSection(new Section("gn").fields(integers(8)))
+            // dark, dim, medium, light, bright
+            .addSection(new Section("br").fields(integers(5)))
+            // none, poor, moderate, good, great
+            .addSection(new Section("sgt").fields(integers(5)).allowExtraFields())
+            .addSection(new Section("sgc").fields(integers(5)).allowExtraFields())
+            // signalScanningTime
+            .addSection(new Section("sst").fields(INTEGER))
+            // none, gprs, edge, umts, cdma, evdo_0, evdo_A, 1xrtt, hsdpa, hsupa, hspa, iden,
+            // evdo_b, lte, ehrpd, hspap, other
+            .addSection(new Section("dct").fields(integers(17)))
+            .addSection(new Section("dcc").fields(integers(17)))
+            // off, scanning, no_net, disconn, sta, p2p, sta_p2p, soft_ap
+            .addSection(new Section("wst").fields(integers(8)))
+            .addSection(new Section("wsc").fields(integers(8)))
+            // inv, dsc, dis, inact, scan, auth, ascing, asced, 4-way, group, compl, dorm, uninit
+            .addSection(new Section("wsst").fields(integers(13)))
+            .addSection(new Section("wssc").fields(integers(13)))
+            // none, poor, moderate, good, great
+            .addSection(new Section("wsgt").fields(integers(5)))
+            .addSection(new Section("wsgc").fields(integers(5)))
+            // inactive, low, med, high
+            .addSection(new Section("bst").fields(integers(4)))
+            .addSection(new Section("bsc").fields(integers(4)))
+            // batteryCapacity, computedPower, minDrainedPower, maxDrainedPower
+            .addSection(new Section("pws").fields(DOUBLE, DOUBLE, DOUBLE, DOUBLE))
+            // label, mAh
+            .addSection(new Section("pwi").fields(STRING, DOUBLE))
+            // duration, level, screen, power-save, device-idle
+            .addSection(new Section("dsd")
+                    .fields(INTEGER, integerOr("?"), STRING, STRING, STRING))
+            .addSection(new Section("csd")
+                    .fields(INTEGER, integerOr("?"), STRING, STRING, STRING))
+            // batteryTimeRemaining
+            .addSection(new Section("dtr").fields(INTEGER))
+            // chargeTimeRemaining
+            .addSection(new Section("ctr").fields(INTEGER));
 
-    private void checkTotal(String[] parts) {
-        assertTrue(parts.length >= 2);
-        for (int i = 1; i < parts.length; i++) {
-            String[] subparts = parts[i].split(":");
-            checkTag(subparts[0], false); // tag
+    /**
+     * Tests the output of "dumpsys procstats -c". This is a proxy for testing "dumpsys procstats
+     * --checkin", since the latter is not idempotent.
+     *
+     * @throws Exception
+     */
+    public void testProcstatsOutput() throws Exception {
+        CheckinParser parser = new CheckinParser(PROCSTATS_SCHEMA);
+        mDevice.executeShellCommand("dumpsys procstats -c", parser);
+        assertValidCheckin(parser);
 
-            if (subparts[1].contains("sysmemusage")) {
-                break; // see b/18340771
-            }
-            assertInteger(subparts[1]); // duration (msec)
-        }
+        // spot check a few tags
+        assertSeenTag(parser, "pkgproc");
+        assertSeenTag(parser, "proc");
+        assertSeenTag(parser, "pss");
+        assertSeenTag(parser, "total");
     }
 
     /**
@@ -339,479 +267,27 @@ public class DumpsysHostTest extends DeviceTestCase implements IBuildReceiver {
      * @throws Exception
      */
     public void testBatterystatsOutput() throws Exception {
-        String batterystats = mDevice.executeShellCommand("dumpsys batterystats --checkin");
-        assertNotNull(batterystats);
-        assertTrue(batterystats.length() > 0);
-
-        Set<String> seenTags = new HashSet<>();
-        int version = -1;
-
-        try (BufferedReader reader = new BufferedReader(
-                new StringReader(batterystats))) {
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.isEmpty()) {
-                    continue;
-                }
-
-
-                // With a default limit of 0, empty strings at the end are discarded.
-                // We still consider the empty string as a valid value in some cases.
-                // Using any negative number for the limit will preserve a trailing empty string.
-                // @see String#split(String, int)
-                String[] parts = line.split(",", -1);
-                assertInteger(parts[0]); // old version
-                assertInteger(parts[1]); // UID
-                switch (parts[2]) { // aggregation type
-                    case "i":
-                    case "l":
-                    case "c":
-                    case "u":
-                        break;
-                    default:
-                        fail("malformed stat: " + parts[2]);
-                }
-                assertNotNull(parts[3]);
-                seenTags.add(parts[3]);
-
-                // Note the time fields are measured in milliseconds by default.
-                switch (parts[3]) {
-                    case "vers":
-                        checkVersion(parts);
-                        break;
-                    case "uid":
-                        checkUid(parts);
-                        break;
-                    case "apk":
-                        checkApk(parts);
-                        break;
-                    case "pr":
-                        checkProcess(parts);
-                        break;
-                    case "sr":
-                        checkSensor(parts);
-                        break;
-                    case "vib":
-                        checkVibrator(parts);
-                        break;
-                    case "fg":
-                        checkForeground(parts);
-                        break;
-                    case "st":
-                        checkStateTime(parts);
-                        break;
-                    case "wl":
-                        checkWakelock(parts);
-                        break;
-                    case "sy":
-                        checkSync(parts);
-                        break;
-                    case "jb":
-                        checkJob(parts);
-                        break;
-                    case "kwl":
-                        checkKernelWakelock(parts);
-                        break;
-                    case "wr":
-                        checkWakeupReason(parts);
-                        break;
-                    case "nt":
-                        checkNetwork(parts);
-                        break;
-                    case "ua":
-                        checkUserActivity(parts);
-                        break;
-                    case "bt":
-                        checkBattery(parts);
-                        break;
-                    case "dc":
-                        checkBatteryDischarge(parts);
-                        break;
-                    case "lv":
-                        checkBatteryLevel(parts);
-                        break;
-                    case "wfl":
-                        checkWifi(parts);
-                        break;
-                    case "m":
-                        checkMisc(parts);
-                        break;
-                    case "gn":
-                        checkGlobalNetwork(parts);
-                        break;
-                    case "br":
-                        checkScreenBrightness(parts);
-                        break;
-                    case "sgt":
-                    case "sgc":
-                        checkSignalStrength(parts);
-                        break;
-                    case "sst":
-                        checkSignalScanningTime(parts);
-                        break;
-                    case "dct":
-                    case "dcc":
-                        checkDataConnection(parts);
-                        break;
-                    case "wst":
-                    case "wsc":
-                        checkWifiState(parts);
-                        break;
-                    case "wsst":
-                    case "wssc":
-                        checkWifiSupplState(parts);
-                        break;
-                    case "wsgt":
-                    case "wsgc":
-                        checkWifiSignalStrength(parts);
-                        break;
-                    case "bst":
-                    case "bsc":
-                        checkBluetoothState(parts);
-                        break;
-                    case "pws":
-                        checkPowerUseSummary(parts);
-                        break;
-                    case "pwi":
-                        checkPowerUseItem(parts);
-                        break;
-                    case "dsd":
-                    case "csd":
-                        checkChargeDischargeStep(parts);
-                        break;
-                    case "dtr":
-                        checkDischargeTimeRemain(parts);
-                        break;
-                    case "ctr":
-                        checkChargeTimeRemain(parts);
-                        break;
-                    default:
-                        break;
-                }
-            }
-        }
+        CheckinParser parser = new CheckinParser(BATTERYSTATS_SCHEMA);
+        mDevice.executeShellCommand("dumpsys batterystats --checkin", parser);
+        assertValidCheckin(parser);
 
         // spot check a few tags
-        assertSeenTag(seenTags, "vers");
-        assertSeenTag(seenTags, "bt");
-        assertSeenTag(seenTags, "dc");
-        assertSeenTag(seenTags, "m");
-    }
-
-    private void checkVersion(String[] parts) {
-        assertEquals(8, parts.length);
-        assertInteger(parts[4]); // checkinVersion
-        assertInteger(parts[5]); // parcelVersion
-        assertNotNull(parts[6]); // startPlatformVersion
-        assertNotNull(parts[7]); // endPlatformVersion
-    }
-
-    private void checkUid(String[] parts) {
-        assertEquals(6, parts.length);
-        assertInteger(parts[4]); // uid
-        assertNotNull(parts[5]); // pkgName
-    }
-
-    private void checkApk(String[] parts) {
-        assertEquals(10, parts.length);
-        assertInteger(parts[4]); // wakeups
-        assertNotNull(parts[5]); // apk
-        assertNotNull(parts[6]); // service
-        assertInteger(parts[7]); // startTime
-        assertInteger(parts[8]); // starts
-        assertInteger(parts[9]); // launches
-    }
-
-    private void checkProcess(String[] parts) {
-        assertTrue(parts.length >= 9);
-        assertNotNull(parts[4]); // process
-        assertInteger(parts[5]); // userMillis
-        assertInteger(parts[6]); // systemMillis
-        assertInteger(parts[7]); // foregroundMillis
-        assertInteger(parts[8]); // starts
-    }
-
-    private void checkSensor(String[] parts) {
-        assertEquals(7, parts.length);
-        assertInteger(parts[4]); // sensorNumber
-        assertInteger(parts[5]); // totalTime
-        assertInteger(parts[6]); // count
-    }
-
-    private void checkVibrator(String[] parts) {
-        assertEquals(6, parts.length);
-        assertInteger(parts[4]); // totalTime
-        assertInteger(parts[5]); // count
-    }
-
-    private void checkForeground(String[] parts) {
-        assertEquals(6, parts.length);
-        assertInteger(parts[4]); // totalTime
-        assertInteger(parts[5]); // count
-    }
-
-    private void checkStateTime(String[] parts) {
-        assertEquals(7, parts.length);
-        assertInteger(parts[4]); // foreground
-        assertInteger(parts[5]); // active
-        assertInteger(parts[6]); // running
-    }
-
-    private void checkWakelock(String[] parts) {
-        assertEquals(14, parts.length);
-        assertNotNull(parts[4]);      // wakelock
-        assertInteger(parts[5]);      // full totalTime
-        assertEquals("f", parts[6]);  // full
-        assertInteger(parts[7]);      // full count
-        assertInteger(parts[8]);      // partial totalTime
-        assertEquals("p", parts[9]);  // partial
-        assertInteger(parts[10]);     // partial count
-        assertInteger(parts[11]);     // window totalTime
-        assertEquals("w", parts[12]); // window
-        assertInteger(parts[13]);     // window count
-    }
-
-    private void checkSync(String[] parts) {
-        assertEquals(7, parts.length);
-        assertNotNull(parts[4]); // sync
-        assertInteger(parts[5]); // totalTime
-        assertInteger(parts[6]); // count
-    }
-
-    private void checkJob(String[] parts) {
-        assertEquals(7, parts.length);
-        assertNotNull(parts[4]); // job
-        assertInteger(parts[5]); // totalTime
-        assertInteger(parts[6]); // count
-    }
-
-    private void checkKernelWakelock(String[] parts) {
-        assertTrue(parts.length >= 7);
-	assertNotNull(parts[4]); // Kernel wakelock
-	assertInteger(parts[parts.length-2]); // totalTime
-        assertInteger(parts[parts.length-1]); // count
-    }
-
-    private void checkWakeupReason(String[] parts) {
-        assertTrue(parts.length >= 7);
-        for (int i = 4; i < parts.length-2; i++) {
-            assertNotNull(parts[i]); // part of wakeup
-        }
-        assertInteger(parts[parts.length-2]); // totalTime
-        assertInteger(parts[parts.length-1]); // count
-    }
-
-    private void checkNetwork(String[] parts) {
-        assertEquals(14, parts.length);
-        assertInteger(parts[4]);  // mobileBytesRx
-        assertInteger(parts[5]);  // mobileBytesTx
-        assertInteger(parts[6]);  // wifiBytesRx
-        assertInteger(parts[7]);  // wifiBytesTx
-        assertInteger(parts[8]);  // mobilePacketsRx
-        assertInteger(parts[9]);  // mobilePacketsTx
-        assertInteger(parts[10]); // wifiPacketsRx
-        assertInteger(parts[11]); // wifiPacketsTx
-        assertInteger(parts[12]); // mobileActiveTime (usec)
-        assertInteger(parts[13]); // mobileActiveCount
-    }
-
-    private void checkUserActivity(String[] parts) {
-        assertEquals(7, parts.length);
-        assertInteger(parts[4]); // other
-        assertInteger(parts[5]); // button
-        assertInteger(parts[6]); // touch
-    }
-
-    private void checkBattery(String[] parts) {
-        assertEquals(12, parts.length);
-        if (!parts[4].equals("N/A")) {
-            assertInteger(parts[4]);  // startCount
-        }
-        assertInteger(parts[5]);  // batteryRealtime
-        assertInteger(parts[6]);  // batteryUptime
-        assertInteger(parts[7]);  // totalRealtime
-        assertInteger(parts[8]);  // totalUptime
-        assertInteger(parts[9]);  // startClockTime
-        assertInteger(parts[10]); // batteryScreenOffRealtime
-        assertInteger(parts[11]); // batteryScreenOffUptime
-    }
-
-    private void checkBatteryDischarge(String[] parts) {
-        assertEquals(8, parts.length);
-        assertInteger(parts[4]); // low
-        assertInteger(parts[5]); // high
-        assertInteger(parts[6]); // screenOn
-        assertInteger(parts[7]); // screenOff
-    }
-
-    private void checkBatteryLevel(String[] parts) {
-        assertEquals(6, parts.length);
-        assertInteger(parts[4]); // startLevel
-        assertInteger(parts[5]); // currentLevel
-    }
-
-    private void checkWifi(String[] parts) {
-        assertEquals(7, parts.length);
-        assertInteger(parts[4]); // fullWifiLockOnTime (usec)
-        assertInteger(parts[5]); // wifiScanTime (usec)
-        assertInteger(parts[6]); // uidWifiRunningTime (usec)
-    }
-
-    private void checkMisc(String[] parts) {
-        assertTrue(parts.length >= 19);
-        assertInteger(parts[4]);      // screenOnTime
-        assertInteger(parts[5]);      // phoneOnTime
-        assertInteger(parts[6]);      // fullWakeLockTimeTotal
-        assertInteger(parts[7]);      // partialWakeLockTimeTotal
-        assertInteger(parts[8]);      // mobileRadioActiveTime
-        assertInteger(parts[9]);      // mobileRadioActiveAdjustedTime
-        assertInteger(parts[10]);     // interactiveTime
-        assertInteger(parts[11]);     // lowPowerModeEnabledTime
-        assertInteger(parts[12]);     // connChanges
-        assertInteger(parts[13]);     // deviceIdleModeEnabledTime
-        assertInteger(parts[14]);     // deviceIdleModeEnabledCount
-        assertInteger(parts[15]);     // deviceIdlingTime
-        assertInteger(parts[16]);     // deviceIdlingCount
-        assertInteger(parts[17]);     // mobileRadioActiveCount
-        assertInteger(parts[18]);     // mobileRadioActiveUnknownTime
-    }
-
-    private void checkGlobalNetwork(String[] parts) {
-        assertEquals(12, parts.length);
-        assertInteger(parts[4]);  // mobileRxTotalBytes
-        assertInteger(parts[5]);  // mobileTxTotalBytes
-        assertInteger(parts[6]);  // wifiRxTotalBytes
-        assertInteger(parts[7]);  // wifiTxTotalBytes
-        assertInteger(parts[8]);  // mobileRxTotalPackets
-        assertInteger(parts[9]);  // mobileTxTotalPackets
-        assertInteger(parts[10]); // wifiRxTotalPackets
-        assertInteger(parts[11]); // wifiTxTotalPackets
-    }
-
-    private void checkScreenBrightness(String[] parts) {
-        assertEquals(9, parts.length);
-        assertInteger(parts[4]); // dark
-        assertInteger(parts[5]); // dim
-        assertInteger(parts[6]); // medium
-        assertInteger(parts[7]); // light
-        assertInteger(parts[8]); // bright
-    }
-
-    private void checkSignalStrength(String[] parts) {
-        assertTrue(parts.length >= 9);
-        assertInteger(parts[4]); // none
-        assertInteger(parts[5]); // poor
-        assertInteger(parts[6]); // moderate
-        assertInteger(parts[7]); // good
-        assertInteger(parts[8]); // great
-    }
-
-    private void checkSignalScanningTime(String[] parts) {
-        assertEquals(5, parts.length);
-        assertInteger(parts[4]); // signalScanningTime
-    }
-
-    private void checkDataConnection(String[] parts) {
-        assertEquals(21, parts.length);
-        assertInteger(parts[4]);  // none
-        assertInteger(parts[5]);  // gprs
-        assertInteger(parts[6]);  // edge
-        assertInteger(parts[7]);  // umts
-        assertInteger(parts[8]);  // cdma
-        assertInteger(parts[9]);  // evdo_0
-        assertInteger(parts[10]); // evdo_A
-        assertInteger(parts[11]); // 1xrtt
-        assertInteger(parts[12]); // hsdpa
-        assertInteger(parts[13]); // hsupa
-        assertInteger(parts[14]); // hspa
-        assertInteger(parts[15]); // iden
-        assertInteger(parts[16]); // evdo_b
-        assertInteger(parts[17]); // lte
-        assertInteger(parts[18]); // ehrpd
-        assertInteger(parts[19]); // hspap
-        assertInteger(parts[20]); // other
-    }
-
-    private void checkWifiState(String[] parts) {
-        assertEquals(12, parts.length);
-        assertInteger(parts[4]);  // off
-        assertInteger(parts[5]);  // scanning
-        assertInteger(parts[6]);  // no_net
-        assertInteger(parts[7]);  // disconn
-        assertInteger(parts[8]);  // sta
-        assertInteger(parts[9]);  // p2p
-        assertInteger(parts[10]); // sta_p2p
-        assertInteger(parts[11]); // soft_ap
-    }
-
-    private void checkWifiSupplState(String[] parts) {
-        assertEquals(17, parts.length);
-        assertInteger(parts[4]);  // inv
-        assertInteger(parts[5]);  // dsc
-        assertInteger(parts[6]);  // dis
-        assertInteger(parts[7]);  // inact
-        assertInteger(parts[8]);  // scan
-        assertInteger(parts[9]);  // auth
-        assertInteger(parts[10]); // ascing
-        assertInteger(parts[11]); // asced
-        assertInteger(parts[12]); // 4-way
-        assertInteger(parts[13]); // group
-        assertInteger(parts[14]); // compl
-        assertInteger(parts[15]); // dorm
-        assertInteger(parts[16]); // uninit
-    }
-
-    private void checkWifiSignalStrength(String[] parts) {
-        assertEquals(9, parts.length);
-        assertInteger(parts[4]); // none
-        assertInteger(parts[5]); // poor
-        assertInteger(parts[6]); // moderate
-        assertInteger(parts[7]); // good
-        assertInteger(parts[8]); // great
-    }
-
-    private void checkBluetoothState(String[] parts) {
-        assertEquals(8, parts.length);
-        assertInteger(parts[4]); // inactive
-        assertInteger(parts[5]); // low
-        assertInteger(parts[6]); // med
-        assertInteger(parts[7]); // high
-    }
-
-    private void checkPowerUseSummary(String[] parts) {
-        assertEquals(8, parts.length);
-        assertDouble(parts[4]); // batteryCapacity
-        assertDouble(parts[5]); // computedPower
-        assertDouble(parts[6]); // minDrainedPower
-        assertDouble(parts[7]); // maxDrainedPower
-    }
-
-    private void checkPowerUseItem(String[] parts) {
-        assertEquals(6, parts.length);
-        assertNotNull(parts[4]); // label
-        assertDouble(parts[5]);  // mAh
-    }
-
-    private void checkChargeDischargeStep(String[] parts) {
-        assertEquals(9, parts.length);
-        assertInteger(parts[4]); // duration
-        if (!parts[5].equals("?")) {
-            assertInteger(parts[5]); // level
+        assertSeenTag(parser, "vers");
+        assertSeenTag(parser, "bt");
+        assertSeenTag(parser, "dc");
+        assertSeenTag(parser, "m");
+    }
+
+    private static void assertValidCheckin(CheckinParser parser) {
+        assertTrue("No checkin output", parser.getLineCount() > 0);
+        if (parser.getErrorCount() > 0) {
+            StringBuilder message = new StringBuilder();
+            message.append(parser.getErrorCount()).append(" malformed lines:");
+            for (String error : parser.getErrors()) {
+                message.append('\n').append(error);
+            }
+            fail(message.toString());
         }
-        assertNotNull(parts[6]); // screen
-        assertNotNull(parts[7]); // power-save
-        assertNotNull(parts[8]); // device-idle
-    }
-
-    private void checkDischargeTimeRemain(String[] parts) {
-        assertEquals(5, parts.length);
-        assertInteger(parts[4]); // batteryTimeRemaining
-    }
-
-    private void checkChargeTimeRemain(String[] parts) {
-        assertEquals(5, parts.length);
-        assertInteger(parts[4]); // chargeTimeRemaining
     }
 
     /**
@@ -919,15 +395,7 @@ public class DumpsysHostTest extends DeviceTestCase implements IBuildReceiver {
         }
     }
 
-    private static void assertDouble(String input) {
-        try {
-            Double.parseDouble(input);
-        } catch (NumberFormatException e) {
-            fail("Expected a double but found \"" + input + "\"");
-        }
-    }
-
-    private static void assertSeenTag(Set<String> seenTags, String tag) {
-        assertTrue("No line starting with \"" + tag + ",\"", seenTags.contains(tag));
+    private static void assertSeenTag(CheckinParser parser, String tag) {
+        assertTrue("No line starting with \"" + tag + ",\"", parser.hasSeenSection(tag));
     }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.cts.security;
+
+import com.android.tradefed.device.CollectingOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A snapshot of the processes running on a device and their SELinux labels, indexed by domain
+ * and by executable.
+ * <p/>
+ * Snapshots are taken with a single "ps -Z" and cached per device, so that the many domain
+ * assertions of a test class share one device round trip. Call {@link #refresh(ITestDevice)}
+ * when a test needs to observe processes started after the snapshot was taken.
+ */
+class ProcessTable {
+
+    private static final Pattern PS_LINE = Pattern.compile(
+            "^([\\w_:]+)\\s+([\\w_]+)\\s+(\\d+)\\s+(\\d+)\\s+(\\p{Graph}+)$",
+            Pattern.MULTILINE);
+
+    /** Snapshots by device serial number. */
+    private static final Map<String, ProcessTable> sSnapshots = new HashMap<>();
+
+    /**
+     * A process, as listed by "ps -Z".
+     */
+    static class ProcessDetails {
+        public final String label;
+        public final String user;
+        public final int pid;
+        public final int ppid;
+        public final String procTitle;
+        private final ProcessTable mTable;
+
+        ProcessDetails(ProcessTable table, String label, String user, int pid, int ppid,
+                String procTitle) {
+            mTable = table;
+            this.label = label;
+            this.user = user;
+            this.pid = pid;
+            this.ppid = ppid;
+            this.procTitle = procTitle;
+        }
+
+        public boolean isKernel() {
+            return (pid == mTable.mKernelParentThreadPid || ppid == mTable.mKernelParentThreadPid);
+        }
+
+        @Override
+        public String toString() {
+            return "label: " + label
+                    + " user: " + user
+                    + " pid: " + pid
+                    + " ppid: " + ppid
+                    + " cmd: " + procTitle;
+        }
+    }
+
+    private final Map<String, List<ProcessDetails>> mByDomain = new HashMap<>();
+    private final Map<String, List<ProcessDetails>> mByExecutable = new HashMap<>();
+    private int mKernelParentThreadPid = -1;
+
+    /**
+     * @return the cached snapshot for the given device, taking one if there is none yet
+     */
+    static ProcessTable get(ITestDevice device) throws DeviceNotAvailableException {
+        String serial = device.getSerialNumber();
+        synchronized (sSnapshots) {
+            ProcessTable table = sSnapshots.get(serial);
+            if (table == null) {
+                table = capture(device);
+                sSnapshots.put(serial, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Replaces the cached snapshot for the given device with a new one.
+     *
+     * @return the new snapshot
+     */
+    static ProcessTable refresh(ITestDevice device) throws DeviceNotAvailableException {
+        ProcessTable table = capture(device);
+        synchronized (sSnapshots) {
+            sSnapshots.put(device.getSerialNumber(), table);
+        }
+        return table;
+    }
+
+    /**
+     * Takes a new snapshot of the given device, without caching it.
+     */
+    static ProcessTable capture(ITestDevice device) throws DeviceNotAvailableException {
+        CollectingOutputReceiver psOut = new CollectingOutputReceiver();
+        device.executeShellCommand("ps -Z", psOut);
+        return parse(psOut.getOutput());
+    }
+
+    /**
+     * Builds a snapshot from the output of "ps -Z".
+     */
+    static ProcessTable parse(String psOutput) {
+        ProcessTable table = new ProcessTable();
+        Matcher m = PS_LINE.matcher(psOutput);
+        while (m.find()) {
+            String domainLabel = m.group(1);
+            String user = m.group(2);
+            int pid = Integer.parseInt(m.group(3));
+            int ppid = Integer.parseInt(m.group(4));
+            String procTitle = m.group(5);
+            ProcessDetails proc = new ProcessDetails(table, domainLabel, user, pid, ppid,
+                    procTitle);
+            add(table.mByDomain, domainLabel, proc);
+            add(table.mByExecutable, procTitle, proc);
+            if (procTitle.equals("kthreadd") && ppid == 0) {
+                table.mKernelParentThreadPid = pid;
+            }
+        }
+        return table;
+    }
+
+    private static void add(Map<String, List<ProcessDetails>> map, String key,
+            ProcessDetails proc) {
+        List<ProcessDetails> procs = map.get(key);
+        if (procs == null) {
+            procs = new ArrayList<>();
+            map.put(key, procs);
+        }
+        procs.add(proc);
+    }
+
+    /**
+     * @return the processes running in the given domain, or null if there are none
+     */
+    List<ProcessDetails> getByDomain(String domain) {
+        List<ProcessDetails> procs = mByDomain.get(domain);
+        return procs == null ? null : Collections.unmodifiableList(procs);
+    }
+
+    /**
+     * @return the processes running the given executable, or null if there are none
+     */
+    List<ProcessDetails> getByExecutable(String executable) {
+        List<ProcessDetails> procs = mByExecutable.get(executable);
+        return procs == null ? null : Collections.unmodifiableList(procs);
+    }
+}
@@ -16,11 +16,12 @@
 
 package android.cts.security;
 
+import android.cts.security.ProcessTable.ProcessDetails;
+
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.build.IBuildInfo;
-import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.testtype.DeviceTestCase;
@@ -29,19 +30,11 @@ import com.android.tradefed.testtype.IBuildReceiver;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.String;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.Scanner;
 import java.util.Set;
 
@@ -54,14 +47,19 @@ import java.util.Set;
  */
 public class SELinuxHostTest extends DeviceTestCase {
 
-    private File sepolicyAnalyze;
-    private File checkSeapp;
-    private File checkFc;
+    /* keys of the tool invocations started in setUp */
+    private static final String PERMISSIVE_CHECK = "permissive";
+    private static final String BOOLEANS_CHECK = "booleans";
+    private static final String ATTRIBUTE_CHECK = "attribute ";
+    private static final String SEAPP_CHECK = "seapp_contexts";
+    private static final String FILE_CONTEXTS_CHECK = "file_contexts";
+    private static final String PROPERTY_CONTEXTS_CHECK = "property_contexts";
+    private static final String SERVICE_CONTEXTS_CHECK = "service_contexts";
+
     private File aospSeappFile;
     private File aospFcFile;
     private File aospPcFile;
     private File aospSvcFile;
-    private File devicePolicyFile;
     private File deviceSeappFile;
     private File deviceFcFile;
     private File devicePcFile;
@@ -72,67 +70,73 @@ public class SELinuxHostTest extends DeviceTestCase {
      */
     private ITestDevice mDevice;
 
-    private File copyResourceToTempFile(String resName) throws IOException {
-        InputStream is = this.getClass().getResourceAsStream(resName);
-        File tempFile = File.createTempFile("SELinuxHostTest", ".tmp");
-        FileOutputStream os = new FileOutputStream(tempFile);
-        int rByte = 0;
-        while ((rByte = is.read()) != -1) {
-            os.write(rByte);
-        }
-        os.flush();
-        os.close();
-        tempFile.deleteOnExit();
-        return tempFile;
-    }
+    /**
+     * The tools and policy files shared by all tests run against the device.
+     */
+    private SELinuxTools mTools;
 
     @Override
     protected void setUp() throws Exception {
         super.setUp();
         mDevice = getDevice();
 
-        /* retrieve the sepolicy-analyze executable from jar */
-        sepolicyAnalyze = copyResourceToTempFile("/sepolicy-analyze");
-        sepolicyAnalyze.setExecutable(true);
+        /* obtain sepolicy and *_contexts files from running device, once per device */
+        mTools = SELinuxTools.forDevice(mDevice);
+        deviceSeappFile = mTools.getDeviceFile(mDevice, "/seapp_contexts");
+        deviceFcFile = mTools.getDeviceFile(mDevice, "/file_contexts");
+        devicePcFile = mTools.getDeviceFile(mDevice, "/property_contexts");
+        deviceSvcFile = mTools.getDeviceFile(mDevice, "/service_contexts");
 
-        /* retrieve the checkseapp executable from jar */
-        checkSeapp = copyResourceToTempFile("/checkseapp");
-        checkSeapp.setExecutable(true);
+        /* retrieve the AOSP *_contexts files from jar */
+        aospSeappFile = SELinuxTools.getResource("/general_seapp_contexts");
+        aospFcFile = SELinuxTools.getResource("/general_file_contexts");
+        aospPcFile = SELinuxTools.getResource("/general_property_contexts");
+        aospSvcFile = SELinuxTools.getResource("/general_service_contexts");
 
-        /* retrieve the checkfc executable from jar */
-        checkFc = copyResourceToTempFile("/checkfc");
-        checkFc.setExecutable(true);
+        startPolicyChecks();
+    }
 
-        /* obtain sepolicy file from running device */
-        devicePolicyFile = File.createTempFile("sepolicy", ".tmp");
-        devicePolicyFile.deleteOnExit();
-        mDevice.pullFile("/sys/fs/selinux/policy", devicePolicyFile);
+    /**
+     * Starts all the policy tool invocations of this class concurrently. Only the first call for
+     * a device starts anything; later tests reuse the results already computed or in progress.
+     */
+    private void startPolicyChecks() throws Exception {
+        if (mTools.hasStarted(PERMISSIVE_CHECK)) {
+            return;
+        }
+        String policy = mTools.getDevicePolicyFile().getAbsolutePath();
+        String sepolicyAnalyze = SELinuxTools.getTool("sepolicy-analyze").getAbsolutePath();
+        String checkSeapp = SELinuxTools.getTool("checkseapp").getAbsolutePath();
+        String checkFc = SELinuxTools.getTool("checkfc").getAbsolutePath();
 
-        /* obtain seapp_contexts file from running device */
-        deviceSeappFile = File.createTempFile("seapp_contexts", ".tmp");
-        deviceSeappFile.deleteOnExit();
-        mDevice.pullFile("/seapp_contexts", deviceSeappFile);
+        /* run sepolicy-analyze permissive check on policy file */
+        mTools.start(PERMISSIVE_CHECK, sepolicyAnalyze, policy, "permissive");
 
-        /* obtain file_contexts file from running device */
-        deviceFcFile = File.createTempFile("file_contexts", ".tmp");
-        deviceFcFile.deleteOnExit();
-        mDevice.pullFile("/file_contexts", deviceFcFile);
+        /* run sepolicy-analyze booleans check on policy file */
+        mTools.start(BOOLEANS_CHECK, sepolicyAnalyze, policy, "booleans");
 
-        /* obtain property_contexts file from running device */
-        devicePcFile = File.createTempFile("property_contexts", ".tmp");
-        devicePcFile.deleteOnExit();
-        mDevice.pullFile("/property_contexts", devicePcFile);
+        /* run sepolicy-analyze attribute check on policy file */
+        for (String attribute : new String[] {"mlstrustedsubject", "mlstrustedobject"}) {
+            mTools.start(ATTRIBUTE_CHECK + attribute, sepolicyAnalyze, policy, "attribute",
+                    attribute);
+        }
 
-        /* obtain service_contexts file from running device */
-        deviceSvcFile = File.createTempFile("service_contexts", ".tmp");
-        deviceSvcFile.deleteOnExit();
-        mDevice.pullFile("/service_contexts", deviceSvcFile);
+        /* run checkseapp on seapp_contexts */
+        File seappOutputFile = File.createTempFile("seapp_output", ".tmp");
+        seappOutputFile.deleteOnExit();
+        mTools.start(SEAPP_CHECK, checkSeapp, "-p", policy, deviceSeappFile.getAbsolutePath(),
+                "-o", seappOutputFile.getAbsolutePath());
 
-        /* retrieve the AOSP *_contexts files from jar */
-        aospSeappFile = copyResourceToTempFile("/general_seapp_contexts");
-        aospFcFile = copyResourceToTempFile("/general_file_contexts");
-        aospPcFile = copyResourceToTempFile("/general_property_contexts");
-        aospSvcFile = copyResourceToTempFile("/general_service_contexts");
+        /* run checkfc on file_contexts */
+        mTools.start(FILE_CONTEXTS_CHECK, checkFc, policy, deviceFcFile.getAbsolutePath());
+
+        /* run checkfc -p on property_contexts */
+        mTools.start(PROPERTY_CONTEXTS_CHECK, checkFc, "-p", policy,
+                devicePcFile.getAbsolutePath());
+
+        /* run checkfc -p on service_contexts */
+        mTools.start(SERVICE_CONTEXTS_CHECK, checkFc, "-p", policy,
+                devicePcFile.getAbsolutePath());
     }
 
     /**
@@ -141,21 +145,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      * @throws Exception
      */
     public void testAllEnforcing() throws Exception {
-
-        /* run sepolicy-analyze permissive check on policy file */
-        ProcessBuilder pb = new ProcessBuilder(sepolicyAnalyze.getAbsolutePath(),
-                devicePolicyFile.getAbsolutePath(), "permissive");
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\n");
-        }
+        String errorString = mTools.getOutput(PERMISSIVE_CHECK);
         assertTrue("The following SELinux domains were found to be in permissive mode:\n"
                    + errorString, errorString.length() == 0);
     }
@@ -170,16 +160,8 @@ public class SELinuxHostTest extends DeviceTestCase {
      *  The type name.
      */
     private void assertNotInAttribute(String attribute, String badtype) throws Exception {
-        /* run sepolicy-analyze attribute check on policy file */
-        ProcessBuilder pb = new ProcessBuilder(sepolicyAnalyze.getAbsolutePath(),
-                devicePolicyFile.getAbsolutePath(), "attribute", attribute);
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String type;
-        while ((type = result.readLine()) != null) {
+        String result = mTools.getOutput(ATTRIBUTE_CHECK + attribute);
+        for (String type : result.split("\\r?\\n")) {
             assertFalse("Attribute " + attribute + " includes " + type + "\n",
                         type.equals(badtype));
         }
@@ -204,25 +186,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      * @throws Exception
      */
     public void testValidSeappContexts() throws Exception {
-        File OutputFile = File.createTempFile("seapp_output", ".tmp");
-        OutputFile.deleteOnExit();
-
-        /* run checkseapp on seapp_contexts */
-        ProcessBuilder pb = new ProcessBuilder(checkSeapp.getAbsolutePath(),
-                "-p", devicePolicyFile.getAbsolutePath(),
-                deviceSeappFile.getAbsolutePath(),
-                "-o", OutputFile.getAbsolutePath());
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\n");
-        }
+        String errorString = mTools.getOutput(SEAPP_CHECK);
         assertTrue("The seapp_contexts file was invalid:\n"
                    + errorString, errorString.length() == 0);
     }
@@ -292,22 +256,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      * @throws Exception
      */
     public void testValidFileContexts() throws Exception {
-
-        /* run checkfc on file_contexts */
-        ProcessBuilder pb = new ProcessBuilder(checkFc.getAbsolutePath(),
-                devicePolicyFile.getAbsolutePath(),
-                deviceFcFile.getAbsolutePath());
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\n");
-        }
+        String errorString = mTools.getOutput(FILE_CONTEXTS_CHECK);
         assertTrue("The file_contexts file was invalid:\n"
                    + errorString, errorString.length() == 0);
     }
@@ -318,22 +267,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      * @throws Exception
      */
     public void testValidPropertyContexts() throws Exception {
-
-        /* run checkfc -p on property_contexts */
-        ProcessBuilder pb = new ProcessBuilder(checkFc.getAbsolutePath(),
-                "-p", devicePolicyFile.getAbsolutePath(),
-                devicePcFile.getAbsolutePath());
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\n");
-        }
+        String errorString = mTools.getOutput(PROPERTY_CONTEXTS_CHECK);
         assertTrue("The property_contexts file was invalid:\n"
                    + errorString, errorString.length() == 0);
     }
@@ -344,22 +278,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      * @throws Exception
      */
     public void testValidServiceContexts() throws Exception {
-
-        /* run checkfc -p on service_contexts */
-        ProcessBuilder pb = new ProcessBuilder(checkFc.getAbsolutePath(),
-                "-p", devicePolicyFile.getAbsolutePath(),
-                devicePcFile.getAbsolutePath());
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\n");
-        }
+        String errorString = mTools.getOutput(SERVICE_CONTEXTS_CHECK);
         assertTrue("The service_contexts file was invalid:\n"
                    + errorString, errorString.length() == 0);
     }
@@ -370,21 +289,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      * @throws Exception
      */
     public void testNoBooleans() throws Exception {
-
-        /* run sepolicy-analyze booleans check on policy file */
-        ProcessBuilder pb = new ProcessBuilder(sepolicyAnalyze.getAbsolutePath(),
-                devicePolicyFile.getAbsolutePath(), "booleans");
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\n");
-        }
+        String errorString = mTools.getOutput(BOOLEANS_CHECK);
         assertTrue("The policy contained booleans:\n"
                    + errorString, errorString.length() == 0);
     }
@@ -400,7 +305,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      *  The domain or SELinux context to check.
      */
     private void assertDomainEmpty(String domain) throws DeviceNotAvailableException {
-        List<ProcessDetails> procs = ProcessDetails.getProcMap(mDevice).get(domain);
+        List<ProcessDetails> procs = ProcessTable.get(mDevice).getByDomain(domain);
         String msg = "Expected no processes in SELinux domain \"" + domain + "\""
             + " Found: \"" + procs + "\"";
         assertNull(msg, procs);
@@ -416,8 +321,8 @@ public class SELinuxHostTest extends DeviceTestCase {
      *  The path of the executable or application package name.
      */
     private void assertDomainOne(String domain, String executable) throws DeviceNotAvailableException {
-        List<ProcessDetails> procs = ProcessDetails.getProcMap(mDevice).get(domain);
-        List<ProcessDetails> exeProcs = ProcessDetails.getExeMap(mDevice).get(executable);
+        List<ProcessDetails> procs = ProcessTable.get(mDevice).getByDomain(domain);
+        List<ProcessDetails> exeProcs = ProcessTable.get(mDevice).getByExecutable(executable);
         String msg = "Expected 1 process in SELinux domain \"" + domain + "\""
             + " Found \"" + procs + "\"";
         assertNotNull(msg, procs);
@@ -449,8 +354,8 @@ public class SELinuxHostTest extends DeviceTestCase {
      */
     private void assertDomainZeroOrOne(String domain, String executable)
         throws DeviceNotAvailableException {
-        List<ProcessDetails> procs = ProcessDetails.getProcMap(mDevice).get(domain);
-        List<ProcessDetails> exeProcs = ProcessDetails.getExeMap(mDevice).get(executable);
+        List<ProcessDetails> procs = ProcessTable.get(mDevice).getByDomain(domain);
+        List<ProcessDetails> exeProcs = ProcessTable.get(mDevice).getByExecutable(executable);
 
         if (procs != null) {
             String msg = "Expected 1 process in SELinux domain \"" + domain + "\""
@@ -484,7 +389,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      */
     private void assertDomainN(String domain, String... executables)
         throws DeviceNotAvailableException {
-        List<ProcessDetails> procs = ProcessDetails.getProcMap(mDevice).get(domain);
+        List<ProcessDetails> procs = ProcessTable.get(mDevice).getByDomain(domain);
         String msg = "Expected 1 or more processes in SELinux domain but found none.";
         assertNotNull(msg, procs);
 
@@ -497,7 +402,7 @@ public class SELinuxHostTest extends DeviceTestCase {
         }
 
         for (String exe : executables) {
-            List<ProcessDetails> exeProcs = ProcessDetails.getExeMap(mDevice).get(exe);
+            List<ProcessDetails> exeProcs = ProcessTable.get(mDevice).getByExecutable(exe);
 
             if (exeProcs != null) {
                 for (ProcessDetails p : exeProcs) {
@@ -519,7 +424,7 @@ public class SELinuxHostTest extends DeviceTestCase {
      */
     private void assertDomainHasExecutable(String domain, String... executables)
         throws DeviceNotAvailableException {
-        List<ProcessDetails> procs = ProcessDetails.getProcMap(mDevice).get(domain);
+        List<ProcessDetails> procs = ProcessTable.get(mDevice).getByDomain(domain);
 
         if (procs != null) {
             Set<String> execList = new HashSet<String>(Arrays.asList(executables));
@@ -532,7 +437,7 @@ public class SELinuxHostTest extends DeviceTestCase {
         }
 
         for (String exe : executables) {
-            List<ProcessDetails> exeProcs = ProcessDetails.getExeMap(mDevice).get(exe);
+            List<ProcessDetails> exeProcs = ProcessTable.get(mDevice).getByExecutable(exe);
 
             if (exeProcs != null) {
                 for (ProcessDetails p : exeProcs) {
@@ -672,93 +577,10 @@ public class SELinuxHostTest extends DeviceTestCase {
      */
     public void testKernelDomain() throws DeviceNotAvailableException {
         String domain = "u:r:kernel:s0";
-        List<ProcessDetails> procs = ProcessDetails.getProcMap(mDevice).get(domain);
+        List<ProcessDetails> procs = ProcessTable.get(mDevice).getByDomain(domain);
         assertNotNull(procs);
         for (ProcessDetails p : procs) {
             assertTrue("Non Kernel thread \"" + p + "\" found!", p.isKernel());
         }
     }
-
-    private static class ProcessDetails {
-        public String label;
-        public String user;
-        public int pid;
-        public int ppid;
-        public String procTitle;
-
-        private static HashMap<String, ArrayList<ProcessDetails>> procMap;
-        private static HashMap<String, ArrayList<ProcessDetails>> exeMap;
-        private static int kernelParentThreadpid = -1;
-
-        ProcessDetails(String label, String user, int pid, int ppid, String procTitle) {
-            this.label = label;
-            this.user = user;
-            this.pid = pid;
-            this.ppid = ppid;
-            this.procTitle = procTitle;
-        }
-
-        @Override
-        public String toString() {
-            return "label: " + label
-                    + " user: " + user
-                    + " pid: " + pid
-                    + " ppid: " + ppid
-                    + " cmd: " + procTitle;
-        }
-
-
-        private static void createProcMap(ITestDevice tDevice) throws DeviceNotAvailableException {
-
-            /* take the output of a ps -Z to do our analysis */
-            CollectingOutputReceiver psOut = new CollectingOutputReceiver();
-            tDevice.executeShellCommand("ps -Z", psOut);
-            String psOutString = psOut.getOutput();
-            Pattern p = Pattern.compile(
-                    "^([\\w_:]+)\\s+([\\w_]+)\\s+(\\d+)\\s+(\\d+)\\s+(\\p{Graph}+)$",
-                    Pattern.MULTILINE);
-            Matcher m = p.matcher(psOutString);
-            procMap = new HashMap<String, ArrayList<ProcessDetails>>();
-            exeMap = new HashMap<String, ArrayList<ProcessDetails>>();
-            while(m.find()) {
-                String domainLabel = m.group(1);
-                String user = m.group(2);
-                int pid = Integer.parseInt(m.group(3));
-                int ppid = Integer.parseInt(m.group(4));
-                String procTitle = m.group(5);
-                ProcessDetails proc = new ProcessDetails(domainLabel, user, pid, ppid, procTitle);
-                if (procMap.get(domainLabel) == null) {
-                    procMap.put(domainLabel, new ArrayList<ProcessDetails>());
-                }
-                procMap.get(domainLabel).add(proc);
-                if (procTitle.equals("kthreadd") && ppid == 0) {
-                    kernelParentThreadpid = pid;
-                }
-                if (exeMap.get(procTitle) == null) {
-                    exeMap.put(procTitle, new ArrayList<ProcessDetails>());
-                }
-                exeMap.get(procTitle).add(proc);
-            }
-        }
-
-        public static HashMap<String, ArrayList<ProcessDetails>> getProcMap(ITestDevice tDevice)
-                throws DeviceNotAvailableException{
-            if (procMap == null) {
-                createProcMap(tDevice);
-            }
-            return procMap;
-        }
-
-        public static HashMap<String, ArrayList<ProcessDetails>> getExeMap(ITestDevice tDevice)
-                throws DeviceNotAvailableException{
-            if (exeMap == null) {
-                createProcMap(tDevice);
-            }
-            return exeMap;
-        }
-
-        public boolean isKernel() {
-            return (pid == kernelParentThreadpid || ppid == kernelParentThreadpid);
-        }
-    }
 }
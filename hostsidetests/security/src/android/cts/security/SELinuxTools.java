@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.cts.security;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The host side SELinux tools and the policy files of a device, shared by the SELinux tests.
+ * <p/>
+ * The tool binaries and AOSP reference files are extracted from the test jar once per JVM, and
+ * the policy and context files are pulled once per device rather than once per test method.
+ * Tool invocations run on a shared pool, so a test class can start all of its policy checks at
+ * once and collect the results as each test method needs them; results are memoized by key.
+ */
+class SELinuxTools {
+
+    /** Extracted resources by resource name. */
+    private static final Map<String, File> sResources = new HashMap<>();
+
+    /** Instances by device serial number. */
+    private static final Map<String, SELinuxTools> sInstances = new HashMap<>();
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SELinuxTools");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final File mDevicePolicyFile;
+    private final Map<String, File> mDeviceFiles = new HashMap<>();
+    private final Map<String, Future<String>> mResults = new HashMap<>();
+
+    private SELinuxTools(File devicePolicyFile) {
+        mDevicePolicyFile = devicePolicyFile;
+    }
+
+    /**
+     * @return the shared instance for the given device, pulling its policy file if needed
+     */
+    static SELinuxTools forDevice(ITestDevice device)
+            throws DeviceNotAvailableException, IOException {
+        String serial = device.getSerialNumber();
+        synchronized (sInstances) {
+            SELinuxTools tools = sInstances.get(serial);
+            if (tools == null) {
+                /* obtain sepolicy file from running device */
+                File policy = File.createTempFile("sepolicy", ".tmp");
+                policy.deleteOnExit();
+                device.pullFile("/sys/fs/selinux/policy", policy);
+                tools = new SELinuxTools(policy);
+                sInstances.put(serial, tools);
+            }
+            return tools;
+        }
+    }
+
+    /**
+     * @return the policy file in use on the device
+     */
+    File getDevicePolicyFile() {
+        return mDevicePolicyFile;
+    }
+
+    /**
+     * @return a local copy of the given file from the device, pulled on first use
+     */
+    File getDeviceFile(ITestDevice device, String devicePath)
+            throws DeviceNotAvailableException, IOException {
+        synchronized (mDeviceFiles) {
+            File file = mDeviceFiles.get(devicePath);
+            if (file == null) {
+                file = File.createTempFile(new File(devicePath).getName(), ".tmp");
+                file.deleteOnExit();
+                device.pullFile(devicePath, file);
+                mDeviceFiles.put(devicePath, file);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * @return a local copy of the given resource of the test jar, extracted on first use
+     */
+    static File getResource(String resName) throws IOException {
+        synchronized (sResources) {
+            File file = sResources.get(resName);
+            if (file == null) {
+                file = copyResourceToTempFile(resName);
+                sResources.put(resName, file);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * @return a local copy of the given tool from the test jar, extracted on first use
+     */
+    static File getTool(String toolName) throws IOException {
+        File tool = getResource("/" + toolName);
+        tool.setExecutable(true);
+        return tool;
+    }
+
+    /**
+     * Starts a tool invocation in the background, unless one was already started under the same
+     * key, in which case its result is reused.
+     *
+     * @param key identifies the invocation for {@link #getOutput(String)}
+     * @param command the tool and its arguments
+     */
+    void start(String key, final String... command) {
+        synchronized (mResults) {
+            if (mResults.containsKey(key)) {
+                return;
+            }
+            mResults.put(key, sExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return run(command);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return true if a tool invocation was started under the given key
+     */
+    boolean hasStarted(String key) {
+        synchronized (mResults) {
+            return mResults.containsKey(key);
+        }
+    }
+
+    /**
+     * @return the combined stdout and stderr of the invocation started under the given key
+     */
+    String getOutput(String key) throws Exception {
+        Future<String> result;
+        synchronized (mResults) {
+            result = mResults.get(key);
+        }
+        if (result == null) {
+            throw new IllegalStateException("No tool invocation started for " + key);
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a tool in the calling thread.
+     *
+     * @return the combined stdout and stderr of the tool
+     */
+    static String run(String... command) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        // Drain the output before waiting, so a verbose tool can't fill the pipe and block.
+        StringBuilder output = new StringBuilder();
+        try (Reader reader = new InputStreamReader(p.getInputStream())) {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                output.append(buffer, 0, read);
+            }
+        }
+        p.waitFor();
+        return output.toString();
+    }
+
+    private static File copyResourceToTempFile(String resName) throws IOException {
+        File tempFile = File.createTempFile("SELinuxHostTest", ".tmp");
+        tempFile.deleteOnExit();
+        try (InputStream is = SELinuxTools.class.getResourceAsStream(resName);
+                OutputStream os = new FileOutputStream(tempFile)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        }
+        return tempFile;
+    }
+}
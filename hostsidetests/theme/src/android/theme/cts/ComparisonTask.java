@@ -18,7 +18,6 @@ package android.theme.cts;
 
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.tradefed.device.ITestDevice;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
@@ -26,57 +25,79 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.String;
 import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.ImageIO;
 
 /**
- * Compares the images generated by the device with the reference images.
+ * Compares an image generated by the device with its reference image.
  */
-public class ComparisonTask implements Callable<Boolean> {
+public class ComparisonTask implements Callable<ComparisonTask.Result> {
     private static final String TAG = "ComparisonTask";
 
     private static final int IMAGE_THRESHOLD = 2;
 
-    private final ITestDevice mDevice;
-    private final File mExpected;
-    private final File mActual;
+    /**
+     * The outcome of a comparison.
+     */
+    public static class Result {
+        /** The name of the compared image. */
+        public final String name;
+
+        /** Whether the images are similar within the threshold. */
+        public final boolean success;
+
+        /**
+         * The number of pixels differing by more than the threshold, or -1 if the images could
+         * not be compared, for example because their sizes differ.
+         */
+        public final int mismatchedPixels;
+
+        /** The largest difference found in any channel of any pixel. */
+        public final int maxDifference;
+
+        Result(String name, boolean success, int mismatchedPixels, int maxDifference) {
+            this.name = name;
+            this.success = success;
+            this.mismatchedPixels = mismatchedPixels;
+            this.maxDifference = maxDifference;
+        }
+    }
 
-    public ComparisonTask(ITestDevice device, File expected, File actual) {
-        mDevice = device;
+    private final String mName;
+    private final FutureTask<RawImage> mExpected;
+    private final byte[] mActual;
+
+    /**
+     * @param name the name of the image
+     * @param expected the reference image, see {@link ReferenceCache}
+     * @param actual the encoded image generated by the device
+     */
+    public ComparisonTask(String name, FutureTask<RawImage> expected, byte[] actual) {
+        mName = name;
         mExpected = expected;
         mActual = actual;
     }
 
-    public Boolean call() {
-        boolean success = false;
-
+    @Override
+    public Result call() {
         try {
-            final BufferedImage expected = ImageIO.read(mExpected);
-            final BufferedImage actual = ImageIO.read(mActual);
-            if (compare(expected, actual, IMAGE_THRESHOLD)) {
-                success = true;
-            } else {
-                final File diff = File.createTempFile("diff_" + mExpected.getName(), ".png");
+            final RawImage expected = ReferenceCache.await(mExpected);
+            final RawImage actual = RawImage.decode(mActual);
+            final Result result = compare(mName, expected, actual, IMAGE_THRESHOLD);
+            if (!result.success) {
+                final File diff = File.createTempFile("diff_" + mName, ".png");
                 createDiff(expected, actual, diff);
                 Log.logAndDisplay(LogLevel.INFO, TAG, "Diff created: " + diff.getPath());
             }
+            return result;
         } catch (IOException e) {
-            Log.logAndDisplay(LogLevel.ERROR, TAG, e.toString());
+            Log.logAndDisplay(LogLevel.ERROR, TAG, mName + ": " + e.toString());
             e.printStackTrace();
+            return new Result(mName, false, -1, 0);
         }
-
-        return success;
     }
 
-    /**
-     * Verifies that the pixels of reference and generated images are similar
-     * within a specified threshold.
-     *
-     * @param expected expected image
-     * @param actual actual image
-     * @param threshold maximum difference per channel
-     * @return {@code true} if the images are similar, false otherwise
-     */
     private static int getAlphaScaledBlue(final int color) {
         return (color & 0x000000FF) * getAlpha(color) / 255;
     }
@@ -94,44 +115,60 @@ public class ComparisonTask implements Callable<Boolean> {
         return (color & 0xFF000000) >>> 24;
     }
 
-    private static boolean compare(BufferedImage reference, BufferedImage generated, int threshold) {
-        final int w = generated.getWidth();
-        final int h = generated.getHeight();
-        if (w != reference.getWidth() || h != reference.getHeight()) {
-            return false;
+    /**
+     * Verifies that the pixels of reference and generated images are similar
+     * within a specified threshold.
+     *
+     * @param name the name of the image
+     * @param expected expected image
+     * @param actual actual image
+     * @param threshold maximum difference per channel
+     * @return the result, successful if the images are similar
+     */
+    private static Result compare(String name, RawImage expected, RawImage actual,
+            int threshold) {
+        if (actual.width != expected.width || actual.height != expected.height) {
+            return new Result(name, false, -1, 0);
         }
 
-        for (int i = 0; i < w; i++) {
-            for (int j = 0; j < h; j++) {
-                final int p1 = reference.getRGB(i, j);
-                final int p2 = generated.getRGB(i, j);
+        final int[] p1s = expected.pixels;
+        final int[] p2s = actual.pixels;
+        int mismatched = 0;
+        int maxDifference = 0;
+        for (int i = 0; i < p1s.length; i++) {
+            final int p1 = p1s[i];
+            final int p2 = p2s[i];
+            if (p1 == p2) {
+                continue;
+            }
 
-                final int dr = getAlphaScaledRed(p1) - getAlphaScaledRed(p2);
-                final int dg = getAlphaScaledGreen(p1) - getAlphaScaledGreen(p2);
-                final int db = getAlphaScaledBlue(p1) - getAlphaScaledBlue(p2);
+            final int dr = Math.abs(getAlphaScaledRed(p1) - getAlphaScaledRed(p2));
+            final int dg = Math.abs(getAlphaScaledGreen(p1) - getAlphaScaledGreen(p2));
+            final int db = Math.abs(getAlphaScaledBlue(p1) - getAlphaScaledBlue(p2));
+            final int d = Math.max(dr, Math.max(dg, db));
 
-                if (Math.abs(db) > threshold ||
-                        Math.abs(dg) > threshold ||
-                        Math.abs(dr) > threshold) {
-                    return false;
-                }
+            if (d > threshold) {
+                mismatched++;
+            }
+            if (d > maxDifference) {
+                maxDifference = d;
             }
         }
-        return true;
+        return new Result(name, mismatched == 0, mismatched, maxDifference);
     }
 
-    private static void createDiff(BufferedImage expected, BufferedImage actual, File out)
+    private static void createDiff(RawImage expected, RawImage actual, File out)
             throws IOException {
-        final int w1 = expected.getWidth();
-        final int h1 = expected.getHeight();
-        final int w2 = actual.getWidth();
-        final int h2 = actual.getHeight();
+        final int w1 = expected.width;
+        final int h1 = expected.height;
+        final int w2 = actual.width;
+        final int h2 = actual.height;
         final int width = Math.max(w1, w2);
         final int height = Math.max(h1, h2);
 
         // The diff will contain image1, image2 and the difference between the two.
-        final BufferedImage diff = new BufferedImage(
-                width * 3, height, BufferedImage.TYPE_INT_ARGB);
+        final int diffWidth = width * 3;
+        final int[] diffPixels = new int[diffWidth * height];
 
         for (int i = 0; i < width; i++) {
             for (int j = 0; j < height; j++) {
@@ -141,28 +178,29 @@ public class ComparisonTask implements Callable<Boolean> {
                 int colorActual = Color.WHITE.getRGB();
                 int colorDiff;
                 if (inBounds1 && inBounds2) {
-                    colorExpected = expected.getRGB(i, j);
-                    colorActual = actual.getRGB(i, j);
+                    colorExpected = expected.getPixel(i, j);
+                    colorActual = actual.getPixel(i, j);
                     colorDiff = colorExpected == colorActual ? colorExpected : Color.RED.getRGB();
                 } else if (inBounds1 && !inBounds2) {
-                    colorExpected = expected.getRGB(i, j);
+                    colorExpected = expected.getPixel(i, j);
                     colorDiff = Color.BLUE.getRGB();
                 } else if (!inBounds1 && inBounds2) {
-                    colorActual = actual.getRGB(i, j);
+                    colorActual = actual.getPixel(i, j);
                     colorDiff = Color.GREEN.getRGB();
                 } else {
                     colorDiff = Color.MAGENTA.getRGB();
                 }
 
-                int x = i;
-                diff.setRGB(x, j, colorExpected);
-                x += width;
-                diff.setRGB(x, j, colorActual);
-                x += width;
-                diff.setRGB(x, j, colorDiff);
+                final int row = j * diffWidth;
+                diffPixels[row + i] = colorExpected;
+                diffPixels[row + width + i] = colorActual;
+                diffPixels[row + 2 * width + i] = colorDiff;
             }
         }
 
+        final BufferedImage diff = new BufferedImage(
+                diffWidth, height, BufferedImage.TYPE_INT_ARGB);
+        diff.setRGB(0, 0, diffWidth, height, diffPixels, 0, diffWidth);
         ImageIO.write(diff, "png", out);
     }
 
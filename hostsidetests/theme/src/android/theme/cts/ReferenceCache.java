@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.theme.cts;
+
+import com.android.cts.tradefed.util.HostTestCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The reference images of the theme test.
+ * <p/>
+ * Each density bucket's zip is read once per load of the test jar, straight from the jar. Its
+ * images are kept encoded until first compared, then decoded. Decoded images are keyed by the
+ * digest of their encoded bytes, so identical references, for example the same widget under two
+ * themes or two density buckets, are only decoded and held once.
+ * <p/>
+ * The jar is loaded again for each device, so the static fields of this class are not shared
+ * between devices. The decoded pixels are held in {@link HostTestCache} instead, which is shared
+ * by every device tested by this JVM.
+ */
+class ReferenceCache {
+
+    /** Reference images by zip resource name, then by image name. */
+    private static final Map<String, Map<String, FutureTask<RawImage>>> sReferences =
+            new HashMap<>();
+
+    /** The prefix of the keys of decoded images in {@link HostTestCache}. */
+    private static final String SHARED_KEY_PREFIX = "android.theme.cts.RawImage:";
+
+    /** Decoded images by digest of their encoded bytes. */
+    private static final ConcurrentHashMap<String, FutureTask<RawImage>> sImages =
+            new ConcurrentHashMap<>();
+
+    private ReferenceCache() {}
+
+    /**
+     * @param zipResource the name of a zip of reference images in the test jar
+     * @return the reference images by image name, or null if there is no such resource
+     */
+    static Map<String, FutureTask<RawImage>> get(String zipResource) throws IOException {
+        synchronized (sReferences) {
+            if (sReferences.containsKey(zipResource)) {
+                return sReferences.get(zipResource);
+            }
+            final InputStream zipStream = ReferenceCache.class.getResourceAsStream(zipResource);
+            Map<String, FutureTask<RawImage>> references = null;
+            if (zipStream != null) {
+                references = Collections.unmodifiableMap(load(zipStream));
+            }
+            sReferences.put(zipResource, references);
+            return references;
+        }
+    }
+
+    /**
+     * @return the decoded image, decoding it in the calling thread if no other thread has
+     */
+    static RawImage await(FutureTask<RawImage> image) throws IOException {
+        // FutureTask only runs once, so this is a no-op for an image that is already decoded or
+        // being decoded by another thread.
+        image.run();
+        try {
+            return image.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding reference image", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to decode reference image", e.getCause());
+        }
+    }
+
+    /**
+     * Reads the current entry of a zip stream into memory.
+     */
+    static byte[] readEntry(ZipInputStream in, ZipEntry entry, byte[] buffer)
+            throws IOException {
+        final long size = entry.getSize();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                size > 0 && size < Integer.MAX_VALUE ? (int) size : buffer.length);
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, FutureTask<RawImage>> load(InputStream zipStream)
+            throws IOException {
+        final Map<String, FutureTask<RawImage>> references = new HashMap<>();
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[16 * 1024];
+        try (ZipInputStream in = new ZipInputStream(zipStream)) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final byte[] data = readEntry(in, entry, buffer);
+                final String key = toHex(digest.digest(data));
+                final FutureTask<RawImage> image = new FutureTask<>(new Callable<RawImage>() {
+                    @Override
+                    public RawImage call() throws IOException {
+                        return decodeShared(key, data);
+                    }
+                });
+                final FutureTask<RawImage> existing = sImages.putIfAbsent(key, image);
+                references.put(entry.getName(), existing != null ? existing : image);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Decodes an image, or gets it from {@link HostTestCache} if it was decoded for another
+     * device. The pixels are shared as JDK types, as {@link RawImage} is loaded anew with the jar.
+     */
+    private static RawImage decodeShared(String key, final byte[] data) throws IOException {
+        final Object[] fields;
+        try {
+            fields = (Object[]) HostTestCache.get(SHARED_KEY_PREFIX + key,
+                    new Callable<Object[]>() {
+                        @Override
+                        public Object[] call() throws IOException {
+                            final RawImage image = RawImage.decode(data);
+                            return new Object[] {image.width, image.height, image.pixels};
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding reference image", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to decode reference image", e.getCause());
+        }
+        return new RawImage((Integer) fields[0], (Integer) fields[1], (int[]) fields[2]);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
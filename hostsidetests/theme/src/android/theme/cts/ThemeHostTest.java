@@ -29,17 +29,20 @@ import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IAbiReceiver;
 import com.android.tradefed.testtype.IBuildReceiver;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.String;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -67,7 +70,11 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
     private static final String DENSITY_PROP_DEVICE = "ro.sf.lcd_density";
     private static final String DENSITY_PROP_EMULATOR = "qemu.sf.lcd_density";
 
-    private final HashMap<String, File> mReferences = new HashMap<>();
+    /** The suffix of the image of a layout that every theme renders. */
+    private static final String THEME_MARKER_SUFFIX = "_button.png";
+
+    /** The reference images for the density of the device, shared with other devices. */
+    private Map<String, FutureTask<RawImage>> mReferences;
 
     /** The ABI to use. */
     private IAbi mAbi;
@@ -80,7 +87,7 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
 
     private ExecutorService mExecutionService;
 
-    private ExecutorCompletionService<Boolean> mCompletionService;
+    private ExecutorCompletionService<ComparisonTask.Result> mCompletionService;
 
     @Override
     public void setAbi(IAbi abi) {
@@ -110,33 +117,10 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
         final String zipFile = String.format("/%s.zip", density);
         Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Loading resources from " + zipFile);
 
-        final InputStream zipStream = ThemeHostTest.class.getResourceAsStream(zipFile);
-        if (zipStream != null) {
-            final ZipInputStream in = new ZipInputStream(zipStream);
-            try {
-                ZipEntry ze;
-                final byte[] buffer = new byte[1024];
-                while ((ze = in.getNextEntry()) != null) {
-                    final String name = ze.getName();
-                    final File tmp = File.createTempFile("ref_" + name, ".png");
-                    final FileOutputStream out = new FileOutputStream(tmp);
-
-                    int count;
-                    while ((count = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, count);
-                    }
-
-                    out.flush();
-                    out.close();
-                    mReferences.put(name, tmp);
-                }
-            } catch (IOException e) {
-                Log.logAndDisplay(LogLevel.ERROR, LOG_TAG, "Failed to unzip assets: " + zipFile);
-            } finally {
-                in.close();
-            }
-        } else {
+        mReferences = ReferenceCache.get(zipFile);
+        if (mReferences == null) {
             Log.logAndDisplay(LogLevel.ERROR, LOG_TAG, "Failed to get resource: " + zipFile);
+            mReferences = Collections.emptyMap();
         }
 
         final int numCores = Runtime.getRuntime().availableProcessors();
@@ -146,11 +130,6 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
 
     @Override
     protected void tearDown() throws Exception {
-        // Delete the temp files
-        for (File ref : mReferences.values()) {
-            ref.delete();
-        }
-
         mExecutionService.shutdown();
 
         // Remove the APK.
@@ -184,46 +163,58 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
 
         int numTasks = 0;
 
-        Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Extracting generated images...");
-
-        // Extract generated images to temporary files.
-        final byte[] data = new byte[4096];
-        final ZipInputStream zipInput = new ZipInputStream(new FileInputStream(localZip));
-        ZipEntry entry;
-        while ((entry = zipInput.getNextEntry()) != null) {
-            final String name = entry.getName();
-            final File expected = mReferences.get(name);
-            if (expected != null && expected.exists()) {
-                final File actual = File.createTempFile("actual_" + name, ".png");
-                final FileOutputStream pngOutput = new FileOutputStream(actual);
-
-                int count;
-                while ((count = zipInput.read(data, 0, data.length)) != -1) {
-                    pngOutput.write(data, 0, count);
+        Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Comparing generated images...");
+
+        // Stream generated images straight out of the ZIP file and into the comparison tasks.
+        final byte[] buffer = new byte[16 * 1024];
+        try (ZipInputStream zipInput = new ZipInputStream(
+                new BufferedInputStream(new FileInputStream(localZip)))) {
+            ZipEntry entry;
+            while ((entry = zipInput.getNextEntry()) != null) {
+                final String name = entry.getName();
+                final FutureTask<RawImage> expected = mReferences.get(name);
+                if (expected != null) {
+                    final byte[] actual = ReferenceCache.readEntry(zipInput, entry, buffer);
+                    mCompletionService.submit(new ComparisonTask(name, expected, actual));
+                    numTasks++;
+                } else {
+                    Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Missing reference image for " + name);
                 }
 
-                pngOutput.flush();
-                pngOutput.close();
-
-                mCompletionService.submit(new ComparisonTask(mDevice, expected, actual));
-                numTasks++;
-            } else {
-                Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Missing reference image for " + name);
+                zipInput.closeEntry();
             }
-
-            zipInput.closeEntry();
+        } finally {
+            localZip.delete();
         }
 
-        zipInput.close();
-
         Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Waiting for comparison tasks...");
 
+        final Set<String> themes = getThemeNames(mReferences.keySet());
+        final Map<String, ThemeStats> stats = new TreeMap<>();
         int failures = 0;
         for (int i = numTasks; i > 0; i--) {
-            failures += mCompletionService.take().get() ? 0 : 1;
+            final ComparisonTask.Result result = mCompletionService.take().get();
+            final String theme = getThemeName(result.name, themes);
+            ThemeStats themeStats = stats.get(theme);
+            if (themeStats == null) {
+                themeStats = new ThemeStats();
+                stats.put(theme, themeStats);
+            }
+            themeStats.add(result);
+            failures += result.success ? 0 : 1;
+        }
+
+        final StringBuilder failedThemes = new StringBuilder();
+        for (Map.Entry<String, ThemeStats> entry : stats.entrySet()) {
+            final ThemeStats themeStats = entry.getValue();
+            if (themeStats.failures > 0) {
+                Log.logAndDisplay(LogLevel.INFO, LOG_TAG, entry.getKey() + ": " + themeStats);
+                failedThemes.append(failedThemes.length() == 0 ? "" : ", ").append(entry.getKey());
+            }
         }
 
-        assertTrue(failures + " failures in theme test", failures == 0);
+        assertTrue(failures + " failures in theme test, in themes: " + failedThemes,
+                failures == 0);
 
         Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Finished!");
     }
@@ -316,6 +307,35 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
         }
     }
 
+    /**
+     * Finds the themes that reference images were generated for. Image names are the theme name
+     * followed by the layout name, and both may contain underscores, so themes are recognized by
+     * the image of a layout that every theme renders.
+     */
+    private static Set<String> getThemeNames(Set<String> imageNames) {
+        final Set<String> themes = new HashSet<>();
+        for (String name : imageNames) {
+            if (name.endsWith(THEME_MARKER_SUFFIX)) {
+                themes.add(name.substring(0, name.length() - THEME_MARKER_SUFFIX.length()));
+            }
+        }
+        return themes;
+    }
+
+    /**
+     * @return the longest of the given themes that the image name starts with, or the image name
+     *     itself if there is none
+     */
+    private static String getThemeName(String imageName, Set<String> themes) {
+        for (int i = imageName.lastIndexOf('_'); i > 0; i = imageName.lastIndexOf('_', i - 1)) {
+            final String prefix = imageName.substring(0, i);
+            if (themes.contains(prefix)) {
+                return prefix;
+            }
+        }
+        return imageName;
+    }
+
     private static boolean checkHardwareTypeSkipTest(String hardwareTypeString) {
         if (hardwareTypeString.contains("android.hardware.type.watch")) {
             return true;
@@ -323,4 +343,35 @@ public class ThemeHostTest extends DeviceTestCase implements IAbiReceiver, IBuil
 
         return false;
     }
+
+    /**
+     * Mismatch statistics for the images of one theme.
+     */
+    private static class ThemeStats {
+        int images;
+        int failures;
+        int sizeMismatches;
+        long mismatchedPixels;
+        int maxDifference;
+
+        void add(ComparisonTask.Result result) {
+            images++;
+            if (!result.success) {
+                failures++;
+            }
+            if (result.mismatchedPixels < 0) {
+                sizeMismatches++;
+            } else {
+                mismatchedPixels += result.mismatchedPixels;
+            }
+            maxDifference = Math.max(maxDifference, result.maxDifference);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d images differ (%d unreadable or resized), "
+                    + "%d mismatched pixels, max channel difference %d",
+                    failures, images, sizeMismatches, mismatchedPixels, maxDifference);
+        }
+    }
 }
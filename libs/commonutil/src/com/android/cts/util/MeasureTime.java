@@ -17,6 +17,10 @@
 package com.android.cts.util;
 
 
+/**
+ * Measures the time taken by a fixed number of runs of a piece of code. For the adaptive
+ * measurement, see com.android.compatibility.common.util.MeasureTime.
+ */
 public class MeasureTime {
     /**
      * measure time taken for each run for given count
@@ -30,10 +34,10 @@ public class MeasureTime {
 
         for (int i = 0; i < count; i++) {
             run.prepare(i);
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             run.run(i);
-            long end =  System.currentTimeMillis();
-            result[i] = end - start;
+            long end = System.nanoTime();
+            result[i] = (end - start) / 1000000.0;
         }
         return result;
     }
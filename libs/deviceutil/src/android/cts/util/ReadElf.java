@@ -17,14 +17,32 @@
 package android.cts.util;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A poor man's implementation of the readelf command. This program is designed
  * to parse ELF (Executable and Linkable Format) files.
+ *
+ * Only the headers are read when the file is opened, with one read each. The sections needed
+ * to look up symbols or dynamic entries are memory mapped the first time they are used, and
+ * dynamic symbols are looked up through the hash table of the file when it has one.
  */
 public class ReadElf implements AutoCloseable {
     /** The magic values for the ELF identification. */
@@ -52,12 +70,21 @@ public class ReadElf implements AutoCloseable {
 
     private static final int EV_CURRENT = 1;
 
-    private static final long PT_LOAD = 1;
+    /** Size of the ELF header of a 64 bit file, the bigger one. */
+    private static final int ELF64_EHDR_SIZE = 64;
 
     private static final int SHT_SYMTAB = 2;
     private static final int SHT_STRTAB = 3;
+    private static final int SHT_HASH = 5;
     private static final int SHT_DYNAMIC = 6;
     private static final int SHT_DYNSYM = 11;
+    private static final int SHT_GNU_HASH = 0x6ffffff6;
+
+    private static final long DT_NULL = 0;
+    private static final long DT_NEEDED = 1;
+    private static final long DT_SONAME = 14;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     public static class Symbol {
         public static final int STB_LOCAL = 0;
@@ -122,64 +149,203 @@ public class ReadElf implements AutoCloseable {
         }
     }
 
+    public static class ProgramHeader {
+        public static final long PT_NULL = 0;
+        public static final long PT_LOAD = 1;
+        public static final long PT_DYNAMIC = 2;
+        public static final long PT_INTERP = 3;
+
+        public final long type;
+        public final long flags;
+        public final long offset;
+        public final long vaddr;
+        public final long filesz;
+        public final long memsz;
+
+        ProgramHeader(long type, long flags, long offset, long vaddr, long filesz, long memsz) {
+            this.type = type;
+            this.flags = flags;
+            this.offset = offset;
+            this.vaddr = vaddr;
+            this.filesz = filesz;
+            this.memsz = memsz;
+        }
+
+        @Override
+        public String toString() {
+            return "ProgramHeader[" + type + ",0x" + Long.toHexString(vaddr) + "]";
+        }
+    }
+
+    /**
+     * Called by {@link ReadElf#scanDirectory} with each ELF file found. The file is closed when
+     * the call returns.
+     */
+    public interface Visitor {
+        /** Called from several threads at once. */
+        void visit(ReadElf elf) throws IOException;
+    }
+
+    /** A section header, and the content of the section once it has been mapped. */
+    private static class Section {
+        long nameOffset;
+        String name;
+        long type;
+        long offset;
+        long size;
+        int link;
+        ByteBuffer content;
+    }
+
     private final String mPath;
     private final RandomAccessFile mFile;
-    private final byte[] mBuffer = new byte[512];
+    private final FileChannel mChannel;
     private int mEndian;
     private boolean mIsDynamic;
     private boolean mIsPIE;
     private int mType;
     private int mAddrSize;
 
-    /** Symbol Table offset */
-    private long mSymTabOffset;
-
-    /** Symbol Table size */
-    private long mSymTabSize;
-
-    /** Dynamic Symbol Table offset */
-    private long mDynSymOffset;
-
-    /** Dynamic Symbol Table size */
-    private long mDynSymSize;
+    private Section[] mSections;
+    private List<ProgramHeader> mProgramHeaders;
 
-    /** Section Header String Table offset */
-    private long mShStrTabOffset;
+    /** Symbol Table and its String Table */
+    private Section mSymTab;
+    private Section mStrTab;
 
-    /** Section Header String Table size */
-    private long mShStrTabSize;
+    /** Dynamic Symbol Table, its String Table and hash table */
+    private Section mDynSym;
+    private Section mDynStr;
+    private Section mHash;
+    private Section mGnuHash;
 
-    /** String Table offset */
-    private long mStrTabOffset;
-
-    /** String Table size */
-    private long mStrTabSize;
-
-    /** Dynamic String Table offset */
-    private long mDynStrOffset;
-
-    /** Dynamic String Table size */
-    private long mDynStrSize;
+    /** Dynamic section */
+    private Section mDynamic;
 
     /** Symbol Table symbol names */
     private Map<String, Symbol> mSymbols;
 
-    /** Dynamic Symbol Table symbol names */
+    /** Dynamic Symbol Table symbol names, only used if there is no hash table */
     private Map<String, Symbol> mDynamicSymbols;
 
     public static ReadElf read(File file) throws IOException {
         return new ReadElf(file);
     }
 
+    /**
+     * Reads the ELF files given, or the ELF files under the directories given, and prints how
+     * long it took. Used to benchmark the reader on a host, for example over /usr/lib.
+     */
     public static void main(String[] args) throws IOException {
         for (String arg : args) {
-            ReadElf re = new ReadElf(new File(arg));
-            re.getSymbol("x");
-            re.getDynamicSymbol("x");
-            re.close();
+            File file = new File(arg);
+            long start = System.nanoTime();
+            if (file.isDirectory()) {
+                final int[] needed = new int[1];
+                int count = scanDirectory(file, null, new Visitor() {
+                    @Override
+                    public void visit(ReadElf elf) {
+                        elf.getSymbol("x");
+                        elf.getDynamicSymbol("x");
+                        synchronized (needed) {
+                            needed[0] += elf.getNeeded().size();
+                        }
+                    }
+                });
+                System.out.println(arg + ": " + count + " ELF files, " + needed[0]
+                        + " DT_NEEDED entries in " + (System.nanoTime() - start) / 1000000
+                        + " ms");
+            } else {
+                ReadElf re = new ReadElf(file);
+                re.getSymbol("x");
+                re.getDynamicSymbol("x");
+                re.close();
+                System.out.println(arg + ": " + (System.nanoTime() - start) / 1000 + " us");
+            }
         }
     }
 
+    /**
+     * Reads the files under a directory that are accepted by the filter, in parallel, and passes
+     * each of them that is an ELF file to the visitor. Symbolic links to directories are not
+     * followed.
+     *
+     * @param filter selects the files to read, or null to read all the files
+     * @return the number of ELF files visited
+     * @throws IOException the first error reading an ELF file, or thrown by the visitor
+     */
+    public static int scanDirectory(File dir, FileFilter filter, final Visitor visitor)
+            throws IOException {
+        List<File> files = new ArrayList<File>();
+        collectFiles(dir, filter, files);
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.size());
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        ReadElf elf;
+                        try {
+                            elf = read(file);
+                        } catch (IllegalArgumentException notElf) {
+                            return false;
+                        }
+                        try {
+                            visitor.visit(elf);
+                        } finally {
+                            elf.close();
+                        }
+                        return true;
+                    }
+                }));
+            }
+            int count = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted scanning " + dir);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void collectFiles(File dir, FileFilter filter, List<File> files)
+            throws IOException {
+        if (!dir.getAbsolutePath().equals(dir.getCanonicalPath())) {
+            return; // symbolic link
+        }
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, filter, files);
+            } else if (filter == null || filter.accept(child)) {
+                files.add(child);
+            }
+        }
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
     public boolean isDynamic() {
         return mIsDynamic;
     }
@@ -192,15 +358,25 @@ public class ReadElf implements AutoCloseable {
         return mIsPIE;
     }
 
+    public List<ProgramHeader> getProgramHeaders() {
+        return mProgramHeaders;
+    }
+
     private ReadElf(File file) throws IOException {
         mPath = file.getPath();
         mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
 
-        if (mFile.length() < EI_NIDENT) {
-            throw new IllegalArgumentException("Too small to be an ELF file: " + file);
-        }
+        try {
+            if (mFile.length() < EI_NIDENT) {
+                throw new IllegalArgumentException("Too small to be an ELF file: " + file);
+            }
 
-        readHeader();
+            readHeader();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
     }
 
     @Override
@@ -221,15 +397,14 @@ public class ReadElf implements AutoCloseable {
     }
 
     private void readHeader() throws IOException {
-        mFile.seek(0);
-        mFile.readFully(mBuffer, 0, EI_NIDENT);
+        ByteBuffer header = readAt(0, (int) Math.min(mFile.length(), ELF64_EHDR_SIZE));
 
-        if (mBuffer[0] != ELFMAG[0] || mBuffer[1] != ELFMAG[1] ||
-                mBuffer[2] != ELFMAG[2] || mBuffer[3] != ELFMAG[3]) {
+        if (header.get(0) != ELFMAG[0] || header.get(1) != ELFMAG[1] ||
+                header.get(2) != ELFMAG[2] || header.get(3) != ELFMAG[3]) {
             throw new IllegalArgumentException("Invalid ELF file: " + mPath);
         }
 
-        int elfClass = mBuffer[EI_CLASS];
+        int elfClass = header.get(EI_CLASS);
         if (elfClass == ELFCLASS32) {
             mAddrSize = 4;
         } else if (elfClass == ELFCLASS64) {
@@ -238,7 +413,7 @@ public class ReadElf implements AutoCloseable {
             throw new IOException("Invalid ELF EI_CLASS: " + elfClass + ": " + mPath);
         }
 
-        mEndian = mBuffer[EI_DATA];
+        mEndian = header.get(EI_DATA);
         if (mEndian == ELFDATA2LSB) {
         } else if (mEndian == ELFDATA2MSB) {
             throw new IOException("Unsupported ELFDATA2MSB file: " + mPath);
@@ -246,9 +421,14 @@ public class ReadElf implements AutoCloseable {
             throw new IOException("Invalid ELF EI_DATA: " + mEndian + ": " + mPath);
         }
 
-        mType = readHalf();
+        if (header.limit() < (mAddrSize == 8 ? ELF64_EHDR_SIZE : 52)) {
+            throw new IOException("Truncated ELF header: " + mPath);
+        }
+        header.position(EI_NIDENT);
 
-        int e_machine = readHalf();
+        mType = readHalf(header);
+
+        int e_machine = readHalf(header);
         if (e_machine != EM_386 && e_machine != EM_X86_64 &&
                 e_machine != EM_AARCH64 && e_machine != EM_ARM &&
                 e_machine != EM_MIPS &&
@@ -266,23 +446,23 @@ public class ReadElf implements AutoCloseable {
                     e_machine + "/" + elfClass + ": " + mPath);
         }
 
-        long e_version = readWord();
+        long e_version = readWord(header);
         if (e_version != EV_CURRENT) {
             throw new IOException("Invalid e_version: " + e_version + ": " + mPath);
         }
 
-        long e_entry = readAddr();
+        long e_entry = readAddr(header);
 
-        long ph_off = readOff();
-        long sh_off = readOff();
+        long ph_off = readOff(header);
+        long sh_off = readOff(header);
 
-        long e_flags = readWord();
-        int e_ehsize = readHalf();
-        int e_phentsize = readHalf();
-        int e_phnum = readHalf();
-        int e_shentsize = readHalf();
-        int e_shnum = readHalf();
-        int e_shstrndx = readHalf();
+        long e_flags = readWord(header);
+        int e_ehsize = readHalf(header);
+        int e_phentsize = readHalf(header);
+        int e_phnum = readHalf(header);
+        int e_shentsize = readHalf(header);
+        int e_shnum = readHalf(header);
+        int e_shstrndx = readHalf(header);
 
         readSectionHeaders(sh_off, e_shnum, e_shentsize, e_shstrndx);
         readProgramHeaders(ph_off, e_phnum, e_phentsize);
@@ -290,205 +470,446 @@ public class ReadElf implements AutoCloseable {
 
     private void readSectionHeaders(long sh_off, int e_shnum, int e_shentsize, int e_shstrndx)
             throws IOException {
-        // Read the Section Header String Table offset first.
-        {
-            mFile.seek(sh_off + e_shstrndx * e_shentsize);
-
-            long sh_name = readWord();
-            long sh_type = readWord();
-            long sh_flags = readX(mAddrSize);
-            long sh_addr = readAddr();
-            long sh_offset = readOff();
-            long sh_size = readX(mAddrSize);
-            // ...
-
-            if (sh_type == SHT_STRTAB) {
-                mShStrTabOffset = sh_offset;
-                mShStrTabSize = sh_size;
-            }
+        if (e_shnum > 0 && e_shentsize < (mAddrSize == 8 ? 64 : 40)) {
+            throw new IOException("Invalid e_shentsize: " + e_shentsize + ": " + mPath);
+        }
+        ByteBuffer headers = readAt(sh_off, e_shnum * e_shentsize);
+        mSections = new Section[e_shnum];
+        for (int i = 0; i < e_shnum; ++i) {
+            headers.position(i * e_shentsize);
+
+            Section section = new Section();
+            section.nameOffset = readWord(headers);
+            section.type = readWord(headers);
+            long sh_flags = readX(headers, mAddrSize);
+            long sh_addr = readAddr(headers);
+            section.offset = readOff(headers);
+            section.size = readX(headers, mAddrSize);
+            section.link = (int) readWord(headers);
+            mSections[i] = section;
+        }
+
+        // Read the Section Header String Table first.
+        ByteBuffer shStrTab = null;
+        if (e_shstrndx < e_shnum && mSections[e_shstrndx].type == SHT_STRTAB) {
+            Section section = mSections[e_shstrndx];
+            shStrTab = readAt(section.offset, (int) section.size);
         }
 
         for (int i = 0; i < e_shnum; ++i) {
-            // Don't bother to re-read the Section Header StrTab.
+            Section section = mSections[i];
             if (i == e_shstrndx) {
                 continue;
             }
-
-            mFile.seek(sh_off + i * e_shentsize);
-
-            long sh_name = readWord();
-            long sh_type = readWord();
-            long sh_flags = readX(mAddrSize);
-            long sh_addr = readAddr();
-            long sh_offset = readOff();
-            long sh_size = readX(mAddrSize);
-
-            if (sh_type == SHT_SYMTAB || sh_type == SHT_DYNSYM) {
-                final String symTabName = readShStrTabEntry(sh_name);
-                if (".symtab".equals(symTabName)) {
-                    mSymTabOffset = sh_offset;
-                    mSymTabSize = sh_size;
-                } else if (".dynsym".equals(symTabName)) {
-                    mDynSymOffset = sh_offset;
-                    mDynSymSize = sh_size;
+            if (section.type == SHT_SYMTAB || section.type == SHT_DYNSYM) {
+                section.name = readString(shStrTab, section.nameOffset);
+                if (".symtab".equals(section.name)) {
+                    mSymTab = section;
+                } else if (".dynsym".equals(section.name)) {
+                    mDynSym = section;
                 }
-            } else if (sh_type == SHT_STRTAB) {
-                final String strTabName = readShStrTabEntry(sh_name);
-                if (".strtab".equals(strTabName)) {
-                    mStrTabOffset = sh_offset;
-                    mStrTabSize = sh_size;
-                } else if (".dynstr".equals(strTabName)) {
-                    mDynStrOffset = sh_offset;
-                    mDynStrSize = sh_size;
+            } else if (section.type == SHT_STRTAB) {
+                section.name = readString(shStrTab, section.nameOffset);
+                if (".strtab".equals(section.name)) {
+                    mStrTab = section;
+                } else if (".dynstr".equals(section.name)) {
+                    mDynStr = section;
                 }
-            } else if (sh_type == SHT_DYNAMIC) {
+            } else if (section.type == SHT_DYNAMIC) {
                 mIsDynamic = true;
+                mDynamic = section;
+            }
+        }
+
+        // Only use the hash tables of the dynamic symbol table. sh_link is unsigned, so a corrupt
+        // value may be negative once cast.
+        for (Section section : mSections) {
+            if (mDynSym != null && section.link >= 0 && section.link < e_shnum
+                    && mSections[section.link] == mDynSym) {
+                if (section.type == SHT_GNU_HASH) {
+                    mGnuHash = section;
+                } else if (section.type == SHT_HASH) {
+                    mHash = section;
+                }
             }
         }
     }
 
     private void readProgramHeaders(long ph_off, int e_phnum, int e_phentsize) throws IOException {
+        if (e_phnum > 0 && e_phentsize < (mAddrSize == 8 ? 56 : 32)) {
+            throw new IOException("Invalid e_phentsize: " + e_phentsize + ": " + mPath);
+        }
+        ByteBuffer headers = readAt(ph_off, e_phnum * e_phentsize);
+        List<ProgramHeader> programHeaders = new ArrayList<ProgramHeader>(e_phnum);
         for (int i = 0; i < e_phnum; ++i) {
-            mFile.seek(ph_off + i * e_phentsize);
+            headers.position(i * e_phentsize);
 
-            long p_type = readWord();
-            if (p_type == PT_LOAD) {
-                if (mAddrSize == 8) {
-                    // Only in Elf64_phdr; in Elf32_phdr p_flags is at the end.
-                    long p_flags = readWord();
-                }
-                long p_offset = readOff();
-                long p_vaddr = readAddr();
-                // ...
+            long p_type = readWord(headers);
+            long p_flags = 0;
+            if (mAddrSize == 8) {
+                // Only in Elf64_phdr; in Elf32_phdr p_flags is at the end.
+                p_flags = readWord(headers);
+            }
+            long p_offset = readOff(headers);
+            long p_vaddr = readAddr(headers);
+            long p_paddr = readAddr(headers);
+            long p_filesz = readX(headers, mAddrSize);
+            long p_memsz = readX(headers, mAddrSize);
+            if (mAddrSize == 4) {
+                p_flags = readWord(headers);
+            }
 
+            if (p_type == ProgramHeader.PT_LOAD) {
                 if (p_vaddr == 0) {
                     mIsPIE = true;
                 }
             }
+            programHeaders.add(
+                    new ProgramHeader(p_type, p_flags, p_offset, p_vaddr, p_filesz, p_memsz));
         }
+        mProgramHeaders = Collections.unmodifiableList(programHeaders);
     }
 
-    private HashMap<String, Symbol> readSymbolTable(long symStrOffset, long symStrSize,
-            long tableOffset, long tableSize) throws IOException {
-        HashMap<String, Symbol> result = new HashMap<String, Symbol>();
-        mFile.seek(tableOffset);
-        while (mFile.getFilePointer() < tableOffset + tableSize) {
-            long st_name = readWord();
-            int st_info;
-            if (mAddrSize == 8) {
-                st_info = readByte();
-                int st_other = readByte();
-                int st_shndx = readHalf();
-                long st_value = readAddr();
-                long st_size = readX(mAddrSize);
-            } else {
-                long st_value = readAddr();
-                long st_size = readWord();
-                st_info = readByte();
-                int st_other = readByte();
-                int st_shndx = readHalf();
+    /**
+     * Returns the libraries the file depends on, from its DT_NEEDED entries, in order.
+     */
+    public List<String> getNeeded() {
+        List<String> needed = new ArrayList<String>();
+        try {
+            ByteBuffer dynamic = getContent(mDynamic);
+            ByteBuffer dynStr = getContent(mDynStr);
+            if (dynamic == null || dynStr == null) {
+                return needed;
+            }
+            int entrySize = 2 * mAddrSize;
+            for (int pos = 0; pos + entrySize <= dynamic.limit(); pos += entrySize) {
+                long d_tag = readX(dynamic, pos, mAddrSize);
+                if (d_tag == DT_NULL) {
+                    break;
+                } else if (d_tag == DT_NEEDED) {
+                    String name = readString(dynStr, readX(dynamic, pos + mAddrSize, mAddrSize));
+                    if (name != null) {
+                        needed.add(name);
+                    }
+                }
             }
+        } catch (IOException e) {
+            // same as a file without dependencies
+        }
+        return needed;
+    }
+
+    /**
+     * Returns the DT_SONAME of a shared library, or null if it has none.
+     */
+    public String getSoname() {
+        try {
+            ByteBuffer dynamic = getContent(mDynamic);
+            ByteBuffer dynStr = getContent(mDynStr);
+            if (dynamic == null || dynStr == null) {
+                return null;
+            }
+            int entrySize = 2 * mAddrSize;
+            for (int pos = 0; pos + entrySize <= dynamic.limit(); pos += entrySize) {
+                long d_tag = readX(dynamic, pos, mAddrSize);
+                if (d_tag == DT_NULL) {
+                    break;
+                } else if (d_tag == DT_SONAME) {
+                    return readString(dynStr, readX(dynamic, pos + mAddrSize, mAddrSize));
+                }
+            }
+        } catch (IOException e) {
+            // same as a file without a soname
+        }
+        return null;
+    }
+
+    public Symbol getSymbol(String name) {
+        if (mSymbols == null) {
+            try {
+                mSymbols = readSymbolTable(mStrTab, mSymTab);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return mSymbols.get(name);
+    }
+
+    public Symbol getDynamicSymbol(String name) {
+        try {
+            if (mGnuHash != null) {
+                return lookUpGnuHash(name);
+            } else if (mHash != null) {
+                return lookUpHash(name);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (mDynamicSymbols == null) {
+            try {
+                mDynamicSymbols = readSymbolTable(mDynStr, mDynSym);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return mDynamicSymbols.get(name);
+    }
+
+    private HashMap<String, Symbol> readSymbolTable(Section strTab, Section symTab)
+            throws IOException {
+        HashMap<String, Symbol> result = new HashMap<String, Symbol>();
+        ByteBuffer strings = getContent(strTab);
+        ByteBuffer symbols = getContent(symTab);
+        if (strings == null || symbols == null) {
+            return result;
+        }
+        int count = symbols.limit() / getSymbolSize();
+        for (int i = 0; i < count; i++) {
+            int pos = i * getSymbolSize();
+            long st_name = readX(symbols, pos, 4);
             if (st_name == 0) {
                 continue;
             }
 
-            final String symName = readStrTabEntry(symStrOffset, symStrSize, st_name);
+            final String symName = readString(strings, st_name);
             if (symName != null) {
-                Symbol s = new Symbol(symName, st_info);
+                Symbol s = new Symbol(symName, getSymbolInfo(symbols, pos));
                 result.put(symName, s);
             }
         }
         return result;
     }
 
-    private String readShStrTabEntry(long strOffset) throws IOException {
-        if (mShStrTabOffset == 0 || strOffset < 0 || strOffset >= mShStrTabSize) {
+    /**
+     * Looks a dynamic symbol up in the DT_GNU_HASH table. The table only holds the symbols
+     * defined by the file, so the undefined symbols before and after them are searched one by
+     * one. When several symbols have the name, as with versioned symbols, the last one is
+     * returned, as when the whole table is read.
+     */
+    private Symbol lookUpGnuHash(String name) throws IOException {
+        ByteBuffer table = getContent(mGnuHash);
+        ByteBuffer symbols = getContent(mDynSym);
+        ByteBuffer strings = getContent(mDynStr);
+        if (table == null || symbols == null || strings == null || table.limit() < 16) {
             return null;
         }
-        return readString(mShStrTabOffset + strOffset);
+        byte[] nameBytes = name.getBytes(UTF_8);
+        int symbolCount = symbols.limit() / getSymbolSize();
+
+        long nbuckets = readX(table, 0, 4);
+        long symoffset = readX(table, 4, 4);
+        long bloomSize = readX(table, 8, 4);
+        int bloomShift = (int) readX(table, 12, 4);
+        long bloomOffset = 16;
+        long bucketsOffset = bloomOffset + bloomSize * mAddrSize;
+        long chainsOffset = bucketsOffset + nbuckets * 4;
+        if (chainsOffset > table.limit() || symoffset > symbolCount) {
+            throw new IOException("Invalid .gnu.hash section: " + mPath);
+        }
+        long hashedEnd = Math.min(symbolCount, symoffset + (table.limit() - chainsOffset) / 4);
+
+        long index = findSymbol(symbols, strings, hashedEnd, symbolCount, nameBytes);
+        if (index < 0 && nbuckets > 0 && bloomSize > 0) {
+            long hash = gnuHash(nameBytes);
+            int wordBits = mAddrSize * 8;
+            long wordOffset = bloomOffset + ((hash / wordBits) % bloomSize) * mAddrSize;
+            long word = readX(table, (int) wordOffset, mAddrSize);
+            long mask = (1L << (hash % wordBits)) | (1L << ((hash >> bloomShift) % wordBits));
+            if ((word & mask) == mask) {
+                long i = readX(table, (int) (bucketsOffset + (hash % nbuckets) * 4), 4);
+                for (; i >= symoffset && i < hashedEnd; i++) {
+                    long chainHash = readX(table, (int) (chainsOffset + (i - symoffset) * 4), 4);
+                    if ((hash | 1) == (chainHash | 1)
+                            && nameEquals(symbols, strings, i, nameBytes)) {
+                        index = i;
+                    }
+                    if ((chainHash & 1) != 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (index < 0) {
+            index = findSymbol(symbols, strings, 1, Math.min(symoffset, symbolCount), nameBytes);
+        }
+        return index < 0 ? null : newSymbol(symbols, index, name);
     }
 
-    private String readStrTabEntry(long tableOffset, long tableSize, long strOffset)
-            throws IOException {
-        if (tableOffset == 0 || strOffset < 0 || strOffset >= tableSize) {
+    /**
+     * Looks a dynamic symbol up in the DT_HASH table, which holds all the symbols. When several
+     * symbols have the name, the last one is returned.
+     */
+    private Symbol lookUpHash(String name) throws IOException {
+        ByteBuffer table = getContent(mHash);
+        ByteBuffer symbols = getContent(mDynSym);
+        ByteBuffer strings = getContent(mDynStr);
+        if (table == null || symbols == null || strings == null || table.limit() < 8) {
             return null;
         }
-        return readString(tableOffset + strOffset);
+        byte[] nameBytes = name.getBytes(UTF_8);
+        int symbolCount = symbols.limit() / getSymbolSize();
+
+        long nbucket = readX(table, 0, 4);
+        long nchain = readX(table, 4, 4);
+        if (8 + (nbucket + nchain) * 4 > table.limit()) {
+            throw new IOException("Invalid .hash section: " + mPath);
+        }
+        if (nbucket == 0) {
+            return null;
+        }
+        long hash = elfHash(nameBytes);
+        long i = readX(table, (int) (8 + (hash % nbucket) * 4), 4);
+        long index = -1;
+        // a chain can not be longer than the number of symbols, even in a corrupt file
+        for (long steps = 0; i != 0 && i < symbolCount && i < nchain && steps < nchain;
+                steps++) {
+            if (i > index && nameEquals(symbols, strings, i, nameBytes)) {
+                index = i;
+            }
+            i = readX(table, (int) (8 + (nbucket + i) * 4), 4);
+        }
+        return index < 0 ? null : newSymbol(symbols, index, name);
+    }
+
+    /**
+     * Returns the index of the last symbol with the name between from, inclusive, and to,
+     * exclusive, or -1.
+     */
+    private long findSymbol(ByteBuffer symbols, ByteBuffer strings, long from, long to,
+            byte[] name) {
+        for (long i = to - 1; i >= from; i--) {
+            if (nameEquals(symbols, strings, i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long gnuHash(byte[] name) {
+        long hash = 5381;
+        for (byte b : name) {
+            hash = (hash * 33 + (b & 0xff)) & 0xffffffffL;
+        }
+        return hash;
     }
 
-    private int readHalf() throws IOException {
-        return (int) readX(2);
+    private static long elfHash(byte[] name) {
+        long hash = 0;
+        for (byte b : name) {
+            hash = ((hash << 4) + (b & 0xff)) & 0xffffffffL;
+            long high = hash & 0xf0000000L;
+            if (high != 0) {
+                hash ^= high >> 24;
+            }
+            hash &= ~high;
+        }
+        return hash;
     }
 
-    private long readWord() throws IOException {
-        return readX(4);
+    /** Compares the name of a symbol with the given bytes, without making it a String. */
+    private boolean nameEquals(ByteBuffer symbols, ByteBuffer strings, long index, byte[] name) {
+        long st_name = readX(symbols, (int) (index * getSymbolSize()), 4);
+        if (st_name == 0 || st_name + name.length >= strings.limit()) {
+            return false;
+        }
+        int start = (int) st_name;
+        for (int i = 0; i < name.length; i++) {
+            if (strings.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return strings.get(start + name.length) == 0;
     }
 
-    private long readOff() throws IOException {
-        return readX(mAddrSize);
+    private Symbol newSymbol(ByteBuffer symbols, long index, String name) {
+        return new Symbol(name, getSymbolInfo(symbols, (int) (index * getSymbolSize())));
     }
 
-    private long readAddr() throws IOException {
-        return readX(mAddrSize);
+    private int getSymbolSize() {
+        return mAddrSize == 8 ? 24 : 16;
     }
 
-    private long readX(int byteCount) throws IOException {
-        mFile.readFully(mBuffer, 0, byteCount);
+    private int getSymbolInfo(ByteBuffer symbols, int pos) {
+        // st_info follows st_name in Elf64_Sym, and st_value and st_size in Elf32_Sym.
+        return symbols.get(pos + (mAddrSize == 8 ? 4 : 12)) & 0xff;
+    }
 
-        int answer = 0;
-        if (mEndian == ELFDATA2LSB) {
-            for (int i = byteCount - 1; i >= 0; i--) {
-                answer = (answer << 8) | (mBuffer[i] & 0xff);
+    /**
+     * Returns the content of a section, mapping it the first time, or null if the file has no
+     * such section.
+     */
+    private ByteBuffer getContent(Section section) throws IOException {
+        if (section == null) {
+            return null;
+        }
+        synchronized (section) {
+            if (section.content == null) {
+                if (section.offset < 0 || section.size < 0
+                        || section.offset + section.size > mChannel.size()) {
+                    throw new IOException("Section outside of the file: " + mPath);
+                }
+                section.content = mChannel.map(FileChannel.MapMode.READ_ONLY, section.offset,
+                        section.size).order(ByteOrder.LITTLE_ENDIAN);
             }
-        } else {
-            final int N = byteCount - 1;
-            for (int i = 0; i <= N; ++i) {
-                answer = (answer << 8) | (mBuffer[i] & 0xff);
+            return section.content;
+        }
+    }
+
+    /** Reads part of the file into a buffer, in one read. */
+    private ByteBuffer readAt(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > mChannel.size()) {
+            throw new IOException("Header outside of the file: " + mPath);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file: " + mPath);
             }
         }
+        buffer.flip();
+        return buffer;
+    }
 
-        return answer;
+    private static String readString(ByteBuffer strings, long offset) {
+        if (strings == null || offset < 0 || offset >= strings.limit()) {
+            return null;
+        }
+        int start = (int) offset;
+        int end = start;
+        while (end < strings.limit() && strings.get(end) != 0) {
+            end++;
+        }
+        if (end == strings.limit()) {
+            return null;
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = strings.get(start + i);
+        }
+        return new String(bytes);
     }
 
-    private String readString(long offset) throws IOException {
-        long originalOffset = mFile.getFilePointer();
-        mFile.seek(offset);
-        mFile.readFully(mBuffer, 0, (int) Math.min(mBuffer.length, mFile.length() - offset));
-        mFile.seek(originalOffset);
+    private static int readHalf(ByteBuffer buffer) {
+        return buffer.getShort() & 0xffff;
+    }
 
-        for (int i = 0; i < mBuffer.length; ++i) {
-            if (mBuffer[i] == 0) {
-                return new String(mBuffer, 0, i);
-            }
-        }
+    private static long readWord(ByteBuffer buffer) {
+        return buffer.getInt() & 0xffffffffL;
+    }
 
-        return null;
+    private long readOff(ByteBuffer buffer) {
+        return readX(buffer, mAddrSize);
     }
 
-    private int readByte() throws IOException {
-        return mFile.read() & 0xff;
+    private long readAddr(ByteBuffer buffer) {
+        return readX(buffer, mAddrSize);
     }
 
-    public Symbol getSymbol(String name) {
-        if (mSymbols == null) {
-            try {
-                mSymbols = readSymbolTable(mStrTabOffset, mStrTabSize, mSymTabOffset, mSymTabSize);
-            } catch (IOException e) {
-                return null;
-            }
-        }
-        return mSymbols.get(name);
+    private static long readX(ByteBuffer buffer, int byteCount) {
+        return byteCount == 8 ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
     }
 
-    public Symbol getDynamicSymbol(String name) {
-        if (mDynamicSymbols == null) {
-            try {
-                mDynamicSymbols = readSymbolTable(
-                        mDynStrOffset, mDynStrSize, mDynSymOffset, mDynSymSize);
-            } catch (IOException e) {
-                return null;
-            }
-        }
-        return mDynamicSymbols.get(name);
+    private static long readX(ByteBuffer buffer, int pos, int byteCount) {
+        return byteCount == 8 ? buffer.getLong(pos) : buffer.getInt(pos) & 0xffffffffL;
     }
 }
@@ -0,0 +1,35 @@
+#!/bin/bash
+
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#       http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Rebuilds the ELF files ReadElfTest reads, with the host gcc and GNU ld: the same library with
+# a .gnu.hash or a .hash section, for x86 and x86_64.
+
+set -e
+
+DIR=$(cd $(dirname $0) && pwd)
+OUT=${DIR}/../res/android/cts/util
+
+# no libc, symbol table, build id or unwind tables, to keep the files small
+FLAGS="-shared -fPIC -nostdlib -Os -s -fno-asynchronous-unwind-tables \
+    -Wl,--version-script=${DIR}/readelf_test.map -Wl,--build-id=none \
+    -Wl,-z,max-page-size=4096 -Wl,-z,noseparate-code"
+
+for HASH in gnu sysv; do
+    gcc -m64 ${FLAGS} -Wl,--hash-style=${HASH} -o ${OUT}/lib${HASH}hash64.so \
+        ${DIR}/readelf_test.c
+    gcc -m32 ${FLAGS} -Wl,--hash-style=${HASH} -o ${OUT}/lib${HASH}hash32.so \
+        ${DIR}/readelf_test.c
+done
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * The source of the libraries ReadElfTest reads, built by make_fixtures.sh.
+ */
+
+int global_data = 1;
+
+int defined_func(void) { return 1; }
+
+/* "versioned" is defined twice: an object of VERS_1, and the default, a function of VERS_2 */
+int versioned_v1 = 1;
+int versioned_v2(void) { return 2; }
+__asm__(".symver versioned_v1,versioned@VERS_1");
+__asm__(".symver versioned_v2,versioned@@VERS_2");
+
+extern int undefined_func(void);
+
+int calls_undefined(void) { return undefined_func(); }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.cts.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ReadElf}, on the libraries built from elf/readelf_test.c by
+ * elf/make_fixtures.sh.
+ */
+public class ReadElfTest extends TestCase {
+
+    private static final String GNU_HASH_32 = "libgnuhash32.so";
+    private static final String GNU_HASH_64 = "libgnuhash64.so";
+    private static final String SYSV_HASH_32 = "libsysvhash32.so";
+    private static final String SYSV_HASH_64 = "libsysvhash64.so";
+
+    private static final int SHT_PROGBITS = 1;
+    private static final int SHT_HASH = 5;
+    private static final int SHT_GNU_HASH = 0x6ffffff6;
+
+    /** The names looked up, defined or not. */
+    private static final String[] NAMES = {
+            "global_data", "defined_func", "versioned", "calls_undefined", "undefined_func",
+            "missing", "defined", "defined_func_", "VERS_1", "" };
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("readelf", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test the headers and dynamic section of the libraries.
+     */
+    public void testRead() throws Exception {
+        for (String name : new String[] {GNU_HASH_32, GNU_HASH_64, SYSV_HASH_32, SYSV_HASH_64}) {
+            ReadElf elf = ReadElf.read(copyFixture(name));
+            try {
+                assertTrue(name, elf.isDynamic());
+                assertTrue(name, elf.isPIE());
+                assertTrue(name, elf.getNeeded().isEmpty());
+                assertNull(name, elf.getSoname());
+            } finally {
+                elf.close();
+            }
+        }
+    }
+
+    /**
+     * Test looking up dynamic symbols through the .gnu.hash table.
+     */
+    public void testGetDynamicSymbol_gnuHash() throws Exception {
+        checkDynamicSymbols(GNU_HASH_32);
+        checkDynamicSymbols(GNU_HASH_64);
+    }
+
+    /**
+     * Test looking up dynamic symbols through the .hash table.
+     */
+    public void testGetDynamicSymbol_sysvHash() throws Exception {
+        checkDynamicSymbols(SYSV_HASH_32);
+        checkDynamicSymbols(SYSV_HASH_64);
+    }
+
+    /**
+     * Test that looking up a dynamic symbol through a hash table finds the same symbol as
+     * reading the whole table, for the symbols that are there and the ones that aren't.
+     */
+    public void testGetDynamicSymbol_sameWithoutHash() throws Exception {
+        for (String name : new String[] {GNU_HASH_32, GNU_HASH_64, SYSV_HASH_32, SYSV_HASH_64}) {
+            ReadElf hashed = ReadElf.read(copyFixture(name));
+            ReadElf unhashed = ReadElf.read(removeHashTables(copyFixture(name)));
+            try {
+                for (String symbol : NAMES) {
+                    assertEquals(name + " " + symbol,
+                            String.valueOf(unhashed.getDynamicSymbol(symbol)),
+                            String.valueOf(hashed.getDynamicSymbol(symbol)));
+                }
+            } finally {
+                hashed.close();
+                unhashed.close();
+            }
+        }
+    }
+
+    /**
+     * Test that the symbol table was stripped from the libraries, so the dynamic symbols aren't
+     * found in it.
+     */
+    public void testGetSymbol_stripped() throws Exception {
+        ReadElf elf = ReadElf.read(copyFixture(GNU_HASH_64));
+        try {
+            assertNull(elf.getSymbol("defined_func"));
+        } finally {
+            elf.close();
+        }
+    }
+
+    /**
+     * Test that a file that isn't an ELF file is rejected.
+     */
+    public void testRead_notElf() throws Exception {
+        File file = new File(mDir, "notelf");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("not an ELF file".getBytes("UTF-8"));
+            out.write(new byte[64]);
+        } finally {
+            out.close();
+        }
+        try {
+            ReadElf.read(file);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void checkDynamicSymbols(String name) throws Exception {
+        ReadElf elf = ReadElf.read(copyFixture(name));
+        try {
+            checkSymbol(elf.getDynamicSymbol("global_data"), "global_data",
+                    ReadElf.Symbol.STB_GLOBAL, ReadElf.Symbol.STT_OBJECT);
+            checkSymbol(elf.getDynamicSymbol("defined_func"), "defined_func",
+                    ReadElf.Symbol.STB_GLOBAL, ReadElf.Symbol.STT_FUNC);
+            // the last of the two symbols is the default version, the function
+            checkSymbol(elf.getDynamicSymbol("versioned"), "versioned",
+                    ReadElf.Symbol.STB_GLOBAL, ReadElf.Symbol.STT_FUNC);
+            // undefined symbols aren't in the .gnu.hash table
+            checkSymbol(elf.getDynamicSymbol("undefined_func"), "undefined_func",
+                    ReadElf.Symbol.STB_GLOBAL, ReadElf.Symbol.STT_NOTYPE);
+            // the version definitions are absolute symbols
+            checkSymbol(elf.getDynamicSymbol("VERS_1"), "VERS_1",
+                    ReadElf.Symbol.STB_GLOBAL, ReadElf.Symbol.STT_OBJECT);
+
+            assertNull(elf.getDynamicSymbol("missing"));
+            // prefixes and extensions of names that are there
+            assertNull(elf.getDynamicSymbol("defined"));
+            assertNull(elf.getDynamicSymbol("defined_func_"));
+            // a local symbol of the library, hidden by the version script
+            assertNull(elf.getDynamicSymbol("versioned_v1"));
+            assertNull(elf.getDynamicSymbol(""));
+        } finally {
+            elf.close();
+        }
+    }
+
+    private static void checkSymbol(ReadElf.Symbol symbol, String name, int bind, int type) {
+        assertNotNull(name + " not found", symbol);
+        assertEquals(name, symbol.name);
+        assertEquals(name, bind, symbol.bind);
+        assertEquals(name, type, symbol.type);
+    }
+
+    /** Copies a library to the temporary directory, as ReadElf reads files. */
+    private File copyFixture(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        assertNotNull("missing " + name, in);
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Changes the hash tables of a little endian library into SHT_PROGBITS sections, so the whole
+     * dynamic symbol table is read to look a symbol up.
+     */
+    private static File removeHashTables(File file) throws IOException {
+        byte[] content = readFile(file);
+        ByteBuffer elf = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        boolean is64 = elf.get(4) == 2;
+        long shoff = is64 ? elf.getLong(0x28) : elf.getInt(0x20) & 0xffffffffL;
+        int shentsize = elf.getShort(is64 ? 0x3a : 0x2e) & 0xffff;
+        int shnum = elf.getShort(is64 ? 0x3c : 0x30) & 0xffff;
+        int removed = 0;
+        for (int i = 0; i < shnum; i++) {
+            int typeOffset = (int) shoff + i * shentsize + 4;
+            int type = elf.getInt(typeOffset);
+            if (type == SHT_HASH || type == SHT_GNU_HASH) {
+                elf.putInt(typeOffset, SHT_PROGBITS);
+                removed++;
+            }
+        }
+        assertEquals(file.getName(), 1, removed);
+        File copy = new File(file.getParentFile(), "nohash-" + file.getName());
+        FileOutputStream out = new FileOutputStream(copy);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return copy;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+}
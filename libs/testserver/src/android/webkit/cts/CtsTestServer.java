@@ -27,8 +27,8 @@ import org.apache.http.NameValuePair;
 import org.apache.http.RequestLine;
 import org.apache.http.StatusLine;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultHttpServerConnection;
@@ -39,6 +39,7 @@ import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.net.Uri;
@@ -50,6 +51,8 @@ import android.webkit.MimeTypeMap;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -91,6 +94,9 @@ import javax.net.ssl.X509TrustManager;
 
 /**
  * Simple http test server for testing webkit client functionality.
+ *
+ * Connections are served by a {@link NioHttpServer}, unless {@link #createHttpServerConnection}
+ * is overridden.
  */
 public class CtsTestServer {
     private static final String TAG = "CtsTestServer";
@@ -139,6 +145,7 @@ public class CtsTestServer {
     private static Hashtable<Integer, String> sReasons;
 
     private ServerThread mServerThread;
+    private NioHttpServer mHttpServer;
     private String mServerUri;
     private AssetManager mAssets;
     private Context mContext;
@@ -209,20 +216,62 @@ public class CtsTestServer {
         mMap = MimeTypeMap.getSingleton();
         mQueries = new Vector<String>();
         mTrustManager = trustManager;
-        mServerThread = new ServerThread(this, mSsl);
         if (mSsl == SslMode.INSECURE) {
             mServerUri = "http:";
         } else {
             mServerUri = "https:";
         }
-        mServerUri += "//localhost:" + mServerThread.mSocket.getLocalPort();
-        mServerThread.start();
+        if (overridesHttpServerConnection()) {
+            mServerThread = new ServerThread(this, mSsl);
+            mServerUri += "//localhost:" + mServerThread.mSocket.getLocalPort();
+            mServerThread.start();
+        } else {
+            SSLContext sslContext = null;
+            if (mSsl != SslMode.INSECURE) {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(ServerThread.getKeyManagers(), getTrustManagers(), null);
+            }
+            mHttpServer = new NioHttpServer(TAG, new NioHttpServer.Handler() {
+                @Override
+                public HttpResponse handle(HttpRequest request) throws Exception {
+                    return getResponse(request);
+                }
+            }, NioHttpServer.MAX_WORKERS, sslContext, mSsl == SslMode.WANTS_CLIENT_AUTH,
+                    mSsl == SslMode.NEEDS_CLIENT_AUTH);
+            mServerUri += "//localhost:" + mHttpServer.getPort();
+            mHttpServer.start();
+        }
+    }
+
+    /**
+     * Returns true if a subclass provides its own connections, which then need the
+     * blocking sockets of {@link ServerThread}.
+     */
+    private boolean overridesHttpServerConnection() {
+        for (Class<?> c = getClass(); c != CtsTestServer.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("createHttpServerConnection");
+                return true;
+            } catch (NoSuchMethodException e) {
+                // keep looking
+            }
+        }
+        return false;
     }
 
     /**
      * Terminate the http server.
      */
     public void shutdown() {
+        if (mHttpServer != null) {
+            try {
+                // Block until the connections are closed and the pending requests handled.
+                mHttpServer.shutdown();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
         try {
             // Avoid a deadlock between two threads where one is trying to call
             // close() and the other one is calling accept() by sending a GET
@@ -687,7 +736,7 @@ public class CtsTestServer {
             path = path.substring(ASSET_PREFIX.length());
             // request for an asset file
             try {
-                InputStream in;
+                AbstractHttpEntity entity;
                 if (path.startsWith(RAW_PREFIX)) {
                   String resourceName = path.substring(RAW_PREFIX.length());
                   int id = mResources.getIdentifier(resourceName, "raw", mContext.getPackageName());
@@ -695,12 +744,25 @@ public class CtsTestServer {
                     Log.w(TAG, "Can't find raw resource " + resourceName);
                     throw new IOException();
                   }
-                  in = mResources.openRawResource(id);
+                  AssetFileDescriptor fd = null;
+                  try {
+                    fd = mResources.openRawResourceFd(id);
+                  } catch (Resources.NotFoundException e) {
+                    // compressed, only readable as a stream
+                  }
+                  entity = fd != null ? createRegionEntity(fd)
+                          : createStreamEntity(mResources.openRawResource(id));
                 } else {
-                  in = mAssets.open(path);
+                  AssetFileDescriptor fd = null;
+                  try {
+                    fd = mAssets.openFd(path);
+                  } catch (FileNotFoundException e) {
+                    // compressed, only readable as a stream
+                  }
+                  entity = fd != null ? createRegionEntity(fd)
+                          : createStreamEntity(mAssets.open(path));
                 }
                 response = createResponse(HttpStatus.SC_OK);
-                InputStreamEntity entity = new InputStreamEntity(in, in.available());
                 String mimeType =
                     mMap.getMimeTypeFromExtension(MimeTypeMap.getFileExtensionFromUrl(path));
                 if (mimeType == null) {
@@ -710,6 +772,9 @@ public class CtsTestServer {
                 response.setEntity(entity);
                 if (query == null || !query.contains(NOLENGTH_POSTFIX)) {
                     response.setHeader("Content-Length", "" + entity.getContentLength());
+                } else {
+                    // the end of the body can only be told by closing the connection
+                    response.setHeader("Connection", "close");
                 }
             } catch (IOException e) {
                 response = null;
@@ -858,6 +923,24 @@ public class CtsTestServer {
         return response;
     }
 
+    /**
+     * Create an entity sending an uncompressed asset straight from the apk.
+     */
+    private static AbstractHttpEntity createRegionEntity(AssetFileDescriptor fd)
+            throws IOException {
+        FileInputStream in = fd.createInputStream();
+        long length = fd.getLength();
+        if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+            length = in.getChannel().size() - fd.getStartOffset();
+        }
+        return new NioHttpServer.FileRegionEntity(in.getChannel(), fd.getStartOffset(), length,
+                fd);
+    }
+
+    private static AbstractHttpEntity createStreamEntity(InputStream in) throws IOException {
+        return new InputStreamEntity(in, in.available());
+    }
+
     /**
      * Create a string entity for the given content.
      */
@@ -891,7 +974,8 @@ public class CtsTestServer {
         return response;
     }
 
-    private static FileEntity createFileEntity(String downloadId, int numBytes) throws IOException {
+    private static AbstractHttpEntity createFileEntity(String downloadId, int numBytes)
+            throws IOException {
         String storageState = Environment.getExternalStorageState();
         if (Environment.MEDIA_MOUNTED.equalsIgnoreCase(storageState)) {
             File storageDir = Environment.getExternalStorageDirectory();
@@ -910,12 +994,20 @@ public class CtsTestServer {
             } finally {
                 stream.close();
             }
-            return new FileEntity(file, "application/octet-stream");
+            FileInputStream in = new FileInputStream(file);
+            AbstractHttpEntity entity = new NioHttpServer.FileRegionEntity(in.getChannel(), 0,
+                    file.length(), in);
+            entity.setContentType("application/octet-stream");
+            return entity;
         } else {
             throw new IllegalStateException("External storage must be mounted for this test!");
         }
     }
 
+    /**
+     * Overriding this makes the server use a blocking socket and a thread for each connection,
+     * since the connection writes the responses.
+     */
     protected DefaultHttpServerConnection createHttpServerConnection() {
         return new DefaultHttpServerConnection();
     }
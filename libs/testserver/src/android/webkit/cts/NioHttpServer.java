@@ -0,0 +1,1068 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit.cts;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ParseException;
+import org.apache.http.ProtocolException;
+import org.apache.http.RequestLine;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultHttpRequestFactory;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+/**
+ * HTTP/1.1 server core shared by {@link CtsTestServer} and {@link TestWebServer}.
+ *
+ * One thread runs a selector over the listening socket and all the connections, so the number of
+ * connections is not limited by a thread pool. Requests are parsed on that thread and handed to
+ * worker threads, so that slow handlers (delayed responses, test hooks) do not hold the other
+ * connections up. A server with a single worker handles the requests of all the connections one
+ * at a time, in the order they were received. Connections are kept alive and pipelined requests are answered in order, one
+ * at a time per connection. Each connection reads into a buffer of bounded size and stops
+ * reading when it is full, and bodies are written a buffer at a time; {@link FileRegionEntity}
+ * bodies are sent with {@link FileChannel#transferTo} on cleartext connections. TLS is done
+ * with an {@link SSLEngine}.
+ *
+ * Responses are written with the protocol version of the request, whatever the version of the
+ * {@link HttpResponse}. A Content-Length header is added when the length of the entity is known,
+ * unless the response has a "Connection: close" header, in which case the end of the body is
+ * signaled by closing the connection, as in HTTP/1.0. As with DefaultHttpServerConnection, the
+ * content type of the entity is not sent unless it is also set as a header.
+ */
+class NioHttpServer {
+    private static final String TAG = "NioHttpServer";
+
+    /** Produces the response to a request, on a worker thread. */
+    interface Handler {
+        HttpResponse handle(HttpRequest request) throws Exception;
+    }
+
+    /** Number of requests a server handles at once by default. */
+    static final int MAX_WORKERS = 32;
+
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+    private static final int INITIAL_INPUT_SIZE = 16 * 1024;
+    /** Largest request accepted, headers and body. */
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final Handler mHandler;
+    private final SSLContext mSslContext;
+    private final boolean mWantClientAuth;
+    private final boolean mNeedClientAuth;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final ThreadPoolExecutor mExecutor;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread mThread;
+    private volatile boolean mStopping;
+
+    /**
+     * Create a server listening on a free port. It does not accept connections until it is
+     * started.
+     * @param name used to name the threads of the server.
+     * @param maxWorkers the number of requests handled at once, 1 to call the handler serially.
+     * @param sslContext the context of the TLS connections, or null for cleartext HTTP.
+     */
+    NioHttpServer(String name, Handler handler, int maxWorkers, SSLContext sslContext,
+            boolean wantClientAuth, boolean needClientAuth) throws Exception {
+        mHandler = handler;
+        mSslContext = sslContext;
+        mWantClientAuth = wantClientAuth;
+        mNeedClientAuth = needClientAuth;
+        mServerChannel = bind();
+        mSelector = Selector.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        final String workerName = name + "Worker";
+        final AtomicInteger workerCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, workerName + workerCount.incrementAndGet());
+                    }
+                });
+        // idle workers go away, so that a server kept for a whole test class costs no threads
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mThread = new Thread(name) {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+    }
+
+    private static ServerSocketChannel bind() throws Exception {
+        int retry = 3;
+        while (true) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.socket().setReuseAddress(true);
+                channel.socket().bind(new InetSocketAddress(0));
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                Log.w(TAG, e);
+                if (--retry == 0) {
+                    throw e;
+                }
+                // sleep in case server socket is still being closed
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+    int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Close the listening socket and all the connections, and wait for the requests being
+     * handled to complete.
+     */
+    void shutdown() throws InterruptedException {
+        mStopping = true;
+        mSelector.wakeup();
+        mThread.join();
+        mExecutor.shutdown();
+        if (!mExecutor.awaitTermination(1L, TimeUnit.MINUTES)) {
+            Log.e(TAG, "Requests still running after shutdown");
+            mExecutor.shutdownNow();
+        }
+        // the connections are closed, this releases the responses completed since
+        runTasks();
+    }
+
+    private void runLoop() {
+        try {
+            while (!mStopping) {
+                mSelector.select();
+                runTasks();
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        connection.updateInterest();
+                    } catch (IOException e) {
+                        // normal when the client goes away
+                        Log.w(TAG, "Closing connection: " + e);
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Closing connection", e);
+                        connection.close();
+                    }
+                }
+                mSelector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Server loop failed", e);
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly(mServerChannel);
+            closeQuietly(mSelector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            // responses are written whole, and waiting for more would delay keep-alive ones
+            channel.socket().setTcpNoDelay(true);
+            SslTransport ssl = null;
+            if (mSslContext != null) {
+                SSLEngine engine = mSslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                if (mNeedClientAuth) {
+                    engine.setNeedClientAuth(true);
+                } else if (mWantClientAuth) {
+                    engine.setWantClientAuth(true);
+                }
+                engine.beginHandshake();
+                ssl = new SslTransport(engine, channel);
+            }
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key, ssl));
+        }
+    }
+
+    /** Runs the given task on the server thread. */
+    private void post(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ignored) {
+            // safe to ignore
+        }
+    }
+
+    /**
+     * An entity backed by a region of a file, such as an uncompressed asset in an apk. It is
+     * sent with {@link FileChannel#transferTo} when the connection allows it, and read through
+     * {@link #getContent()} otherwise.
+     */
+    static class FileRegionEntity extends AbstractHttpEntity {
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final long mLength;
+        private final Closeable mOwner;
+
+        /**
+         * @param owner closed with the entity, since the channel may not own its descriptor.
+         */
+        FileRegionEntity(FileChannel channel, long offset, long length, Closeable owner) {
+            mChannel = channel;
+            mOffset = offset;
+            mLength = length;
+            mOwner = owner;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new InputStream() {
+                private long mPosition = mOffset;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    long left = mOffset + mLength - mPosition;
+                    if (left <= 0) {
+                        return -1;
+                    }
+                    int n = mChannel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, left)),
+                            mPosition);
+                    if (n > 0) {
+                        mPosition += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    FileRegionEntity.this.close();
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+                out.flush();
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            close();
+        }
+
+        /**
+         * Send part of the region to the socket.
+         * @param done number of bytes of the region already sent.
+         * @return number of bytes sent, 0 if the socket is full, or -1 if the file is shorter
+         *         than the region.
+         */
+        long transferTo(long done, SocketChannel target) throws IOException {
+            long position = mOffset + done;
+            if (position >= mChannel.size()) {
+                return -1;
+            }
+            return mChannel.transferTo(position, mLength - done, target);
+        }
+
+        void close() throws IOException {
+            mChannel.close();
+            if (mOwner != null) {
+                mOwner.close();
+            }
+        }
+    }
+
+    /** Encrypts and decrypts the data of a connection with an {@link SSLEngine}. */
+    private static class SslTransport {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final SSLEngine mEngine;
+        private final SocketChannel mChannel;
+        private final int mApplicationBufferSize;
+        /** Received records not decrypted yet, in write mode. */
+        private ByteBuffer mNetIn;
+        /** Records not sent yet, in write mode. */
+        private ByteBuffer mNetOut;
+
+        SslTransport(SSLEngine engine, SocketChannel channel) {
+            mEngine = engine;
+            mChannel = channel;
+            SSLSession session = engine.getSession();
+            mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            mNetOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            mApplicationBufferSize = session.getApplicationBufferSize();
+        }
+
+        /** The space the destination of {@link #read} needs to decrypt a record. */
+        int getApplicationBufferSize() {
+            return mApplicationBufferSize;
+        }
+
+        /**
+         * Decrypt what can be read without blocking into dst, taking part in the handshake as
+         * needed.
+         * @return the number of bytes decrypted, or -1 at the end of the stream.
+         */
+        int read(ByteBuffer dst) throws IOException {
+            int produced = 0;
+            boolean eof = mChannel.read(mNetIn) < 0;
+            while (true) {
+                mNetIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = mEngine.unwrap(mNetIn, dst);
+                } finally {
+                    mNetIn.compact();
+                }
+                produced += result.bytesProduced();
+                boolean progress = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                progress |= handshake();
+                SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    eof = true;
+                    break;
+                } else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if (!mNetIn.hasRemaining()) {
+                        mNetIn = grow(mNetIn, mEngine.getSession().getPacketBufferSize());
+                    }
+                    int n = mChannel.read(mNetIn);
+                    if (n < 0) {
+                        eof = true;
+                    }
+                    if (n <= 0) {
+                        break;
+                    }
+                } else if (status == SSLEngineResult.Status.BUFFER_OVERFLOW || !progress) {
+                    // the caller reads again once it has room
+                    break;
+                }
+            }
+            return produced == 0 && eof ? -1 : produced;
+        }
+
+        /**
+         * Encrypt and send as much of src as the socket takes without blocking.
+         */
+        void write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining() && flush()) {
+                SSLEngineResult result = mEngine.wrap(src, mNetOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new IOException("Connection closed by peer");
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    mNetOut = grow(mNetOut, mEngine.getSession().getPacketBufferSize());
+                }
+                if (!handshake() && result.bytesConsumed() == 0
+                        && result.getStatus() == SSLEngineResult.Status.OK) {
+                    // waiting for the peer, as in a renegotiation
+                    break;
+                }
+            }
+            flush();
+        }
+
+        /**
+         * Run the steps of the handshake that do not need data from the peer.
+         * @return true if anything was done.
+         */
+        boolean handshake() throws IOException {
+            boolean progress = false;
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = mEngine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (!flush()) {
+                        return progress;
+                    }
+                    SSLEngineResult result = mEngine.wrap(EMPTY, mNetOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flush();
+                        return true;
+                    }
+                } else {
+                    return progress;
+                }
+                progress = true;
+            }
+        }
+
+        /**
+         * Send the pending records.
+         * @return true if they were all sent.
+         */
+        boolean flush() throws IOException {
+            if (mNetOut.position() > 0) {
+                mNetOut.flip();
+                try {
+                    mChannel.write(mNetOut);
+                } finally {
+                    mNetOut.compact();
+                }
+            }
+            return mNetOut.position() == 0;
+        }
+
+        boolean hasPendingOutput() {
+            return mNetOut.position() > 0
+                    || mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+        }
+
+        /** Start sending close_notify. */
+        void closeOutbound() throws IOException {
+            mEngine.closeOutbound();
+            handshake();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minFree) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                buffer.position() + minFree));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * A client connection. Only used on the server thread, except for the request and the
+     * response handed to and from the worker threads.
+     */
+    private class Connection {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final SslTransport mSsl;
+        /** Received bytes not parsed yet, in write mode. */
+        private ByteBuffer mIn;
+        /** Bytes of the response not written yet, in read mode. */
+        private ByteBuffer mOut = ByteBuffer.allocate(0);
+        private boolean mInputClosed;
+        private boolean mClosed;
+        /** The connection is closed once the pending output is sent. */
+        private boolean mClosing;
+        /** A request is being handled, or its response written. */
+        private boolean mBusy;
+        /** The response is known and being written. */
+        private boolean mWriting;
+        private boolean mKeepAlive;
+
+        // The body of the response being written, from one of these.
+        private InputStream mBody;
+        private FileRegionEntity mRegion;
+        private long mRegionSent;
+        /** Bytes of the body left to write, or -1 to write until the end of the entity. */
+        private long mBodyRemaining;
+
+        Connection(SocketChannel channel, SelectionKey key, SslTransport ssl) {
+            mChannel = channel;
+            mKey = key;
+            mSsl = ssl;
+            mIn = ByteBuffer.allocate(Math.max(INITIAL_INPUT_SIZE, 2 * getMinFreeInput()));
+        }
+
+        private int getMinFreeInput() {
+            return mSsl == null ? 1 : mSsl.getApplicationBufferSize();
+        }
+
+        void onReadable() throws IOException {
+            if (mClosed || mInputClosed || mIn.remaining() < getMinFreeInput()) {
+                processInput();
+                return;
+            }
+            int n = mSsl == null ? mChannel.read(mIn) : mSsl.read(mIn);
+            if (n < 0) {
+                mInputClosed = true;
+            }
+            processInput();
+        }
+
+        void onWritable() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            if (mSsl != null) {
+                mSsl.flush();
+                if (mSsl.handshake()) {
+                    // the handshake may have been waiting to send before reading
+                    onReadable();
+                }
+                if (mSsl.hasPendingOutput()) {
+                    return;
+                }
+            }
+            if (mClosing) {
+                close();
+                return;
+            }
+            while (mWriting) {
+                if (mOut.hasRemaining()) {
+                    if (mSsl == null) {
+                        mChannel.write(mOut);
+                    } else {
+                        mSsl.write(mOut);
+                    }
+                    if (mOut.hasRemaining() || (mSsl != null && mSsl.hasPendingOutput())) {
+                        return;
+                    }
+                } else if (mRegion != null && mBodyRemaining > 0) {
+                    long n = mRegion.transferTo(mRegionSent, mChannel);
+                    if (n == 0) {
+                        return;
+                    } else if (n < 0) {
+                        // the file is shorter than announced, the client has to be told
+                        mKeepAlive = false;
+                        finishResponse();
+                    } else {
+                        mRegionSent += n;
+                        mBodyRemaining -= n;
+                    }
+                } else if (!fillOutput()) {
+                    finishResponse();
+                }
+            }
+        }
+
+        /**
+         * Read the next part of the body into the output buffer.
+         * @return false at the end of the body.
+         */
+        private boolean fillOutput() throws IOException {
+            if (mBody == null || mBodyRemaining == 0) {
+                return false;
+            }
+            if (mOut.capacity() < OUTPUT_BUFFER_SIZE) {
+                mOut = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+            }
+            mOut.clear();
+            int max = mOut.capacity();
+            if (mBodyRemaining > 0 && mBodyRemaining < max) {
+                max = (int) mBodyRemaining;
+            }
+            int n = mBody.read(mOut.array(), 0, max);
+            if (n < 0) {
+                mOut.limit(0);
+                if (mBodyRemaining > 0) {
+                    mKeepAlive = false;
+                }
+                return false;
+            }
+            mOut.limit(n);
+            if (mBodyRemaining > 0) {
+                mBodyRemaining -= n;
+            }
+            return true;
+        }
+
+        private void finishResponse() throws IOException {
+            closeBody();
+            mWriting = false;
+            mBusy = false;
+            if (!mKeepAlive || mStopping) {
+                mClosing = true;
+                if (mSsl != null) {
+                    mSsl.closeOutbound();
+                    mSsl.flush();
+                }
+                if (mSsl == null || !mSsl.hasPendingOutput()) {
+                    close();
+                }
+                return;
+            }
+            // answer the requests pipelined meanwhile
+            onReadable();
+        }
+
+        /** Dispatch the next complete request, if any and if none is being handled. */
+        private void processInput() throws IOException {
+            if (mBusy || mClosing || mClosed) {
+                return;
+            }
+            mIn.flip();
+            int end;
+            try {
+                end = parseRequest();
+            } catch (HttpException e) {
+                Log.w(TAG, "Invalid request: " + e);
+                mIn.clear();
+                sendError(e instanceof MethodNotSupportedException
+                        ? HttpStatus.SC_NOT_IMPLEMENTED : HttpStatus.SC_BAD_REQUEST);
+                return;
+            } catch (ParseException e) {
+                Log.w(TAG, "Invalid request: " + e);
+                mIn.clear();
+                sendError(HttpStatus.SC_BAD_REQUEST);
+                return;
+            }
+            if (end >= 0) {
+                mIn.position(end);
+                mIn.compact();
+                return;
+            }
+            // back to write mode, waiting for the rest of the request
+            mIn.position(mIn.limit());
+            mIn.limit(mIn.capacity());
+            if (mIn.remaining() < getMinFreeInput()) {
+                if (mIn.position() >= MAX_REQUEST_SIZE) {
+                    mIn.clear();
+                    sendError(HttpStatus.SC_REQUEST_TOO_LONG);
+                    return;
+                }
+                mIn = grow(mIn, getMinFreeInput());
+                // the rest may already be decrypted and waiting
+                onReadable();
+                return;
+            }
+            if (mInputClosed) {
+                close();
+            }
+        }
+
+        /**
+         * Parse the request at the start of the input and dispatch it.
+         * @return the end of the request in the input, or -1 if it is not complete yet.
+         */
+        private int parseRequest() throws HttpException {
+            int start = 0;
+            while (start < mIn.limit() && (mIn.get(start) == '\r' || mIn.get(start) == '\n')) {
+                start++;
+            }
+            int headerEnd = findHeaderEnd(mIn, start);
+            if (headerEnd < 0) {
+                return -1;
+            }
+            String[] lines = new String(mIn.array(), start, headerEnd - start, ASCII)
+                    .split("\r?\n");
+            RequestLine requestLine = BasicLineParser.parseRequestLine(lines[0], null);
+            HttpRequest request = new DefaultHttpRequestFactory().newHttpRequest(requestLine);
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].length() > 0) {
+                    request.addHeader(BasicLineParser.parseHeader(lines[i], null));
+                }
+            }
+
+            int end = headerEnd;
+            byte[] body = null;
+            Header encoding = request.getFirstHeader("Transfer-Encoding");
+            Header length = request.getFirstHeader("Content-Length");
+            if (encoding != null && !"identity".equalsIgnoreCase(encoding.getValue())) {
+                ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+                end = decodeChunked(mIn, headerEnd, chunks);
+                if (end < 0) {
+                    return -1;
+                }
+                body = chunks.toByteArray();
+            } else if (length != null) {
+                long contentLength;
+                try {
+                    contentLength = Long.parseLong(length.getValue().trim());
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid Content-Length: " + length.getValue());
+                }
+                if (contentLength < 0 || headerEnd + contentLength > MAX_REQUEST_SIZE) {
+                    throw new ProtocolException("Invalid Content-Length: " + contentLength);
+                }
+                if (headerEnd + contentLength > mIn.limit()) {
+                    return -1;
+                }
+                end = headerEnd + (int) contentLength;
+                body = new byte[(int) contentLength];
+                System.arraycopy(mIn.array(), headerEnd, body, 0, body.length);
+            }
+            if (request instanceof HttpEntityEnclosingRequest) {
+                ByteArrayEntity entity = new ByteArrayEntity(body == null ? new byte[0] : body);
+                entity.setContentType(request.getFirstHeader("Content-Type"));
+                ((HttpEntityEnclosingRequest) request).setEntity(entity);
+            }
+
+            boolean http11 = requestLine.getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+            Header connection = request.getFirstHeader("Connection");
+            mKeepAlive = http11 ? !hasToken(connection, "close")
+                    : hasToken(connection, "keep-alive");
+            dispatch(request);
+            return end;
+        }
+
+        private void dispatch(final HttpRequest request) {
+            mBusy = true;
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        HttpResponse response = null;
+                        try {
+                            response = mHandler.handle(request);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error handling request:", e);
+                        }
+                        final HttpResponse result = response;
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                startResponse(request, result);
+                            }
+                        });
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                close();
+            }
+        }
+
+        private void sendError(int status) throws IOException {
+            mBusy = true;
+            mKeepAlive = false;
+            mInputClosed = true;
+            startResponse(null, new BasicHttpResponse(HttpVersion.HTTP_1_0, status, null));
+        }
+
+        /** Start writing the response to a request, on the server thread. */
+        private void startResponse(HttpRequest request, HttpResponse response) {
+            HttpEntity entity = response == null ? null : response.getEntity();
+            if (mClosed) {
+                closeEntity(entity);
+                return;
+            }
+            if (response == null) {
+                response = new BasicHttpResponse(HttpVersion.HTTP_1_0,
+                        HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
+                mKeepAlive = false;
+            }
+            try {
+                boolean http11 = request != null && request.getRequestLine()
+                        .getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+                boolean isHead = request != null
+                        && "HEAD".equals(request.getRequestLine().getMethod());
+                StatusLine statusLine = response.getStatusLine();
+                int status = statusLine.getStatusCode();
+                boolean noBody = isHead || status / 100 == 1 || status == HttpStatus.SC_NO_CONTENT
+                        || status == HttpStatus.SC_NOT_MODIFIED;
+                if (hasToken(response.getFirstHeader("Connection"), "close")) {
+                    mKeepAlive = false;
+                }
+
+                StringBuilder head = new StringBuilder(256);
+                head.append(http11 ? "HTTP/1.1 " : "HTTP/1.0 ").append(status).append(' ');
+                if (statusLine.getReasonPhrase() != null) {
+                    head.append(statusLine.getReasonPhrase());
+                }
+                head.append("\r\n");
+                for (Header header : response.getAllHeaders()) {
+                    head.append(header.getName()).append(": ").append(header.getValue())
+                            .append("\r\n");
+                }
+                long length = -1;
+                Header lengthHeader = response.getFirstHeader("Content-Length");
+                if (lengthHeader != null) {
+                    try {
+                        length = Long.parseLong(lengthHeader.getValue().trim());
+                    } catch (NumberFormatException e) {
+                        length = -1;
+                    }
+                } else if (mKeepAlive && !noBody) {
+                    length = entity == null ? 0 : entity.getContentLength();
+                    if (length >= 0) {
+                        head.append("Content-Length: ").append(length).append("\r\n");
+                    }
+                }
+                if (length < 0 && !noBody) {
+                    // the body ends with the connection
+                    mKeepAlive = false;
+                }
+                if (mKeepAlive && !http11) {
+                    head.append("Connection: keep-alive\r\n");
+                } else if (!mKeepAlive && http11 && response.getFirstHeader("Connection") == null) {
+                    head.append("Connection: close\r\n");
+                }
+                head.append("\r\n");
+
+                mOut = ByteBuffer.wrap(head.toString().getBytes(ASCII));
+                mBodyRemaining = noBody || entity == null ? 0 : length;
+                if (mBodyRemaining == 0) {
+                    closeEntity(entity);
+                } else if (entity instanceof FileRegionEntity && mSsl == null) {
+                    mRegion = (FileRegionEntity) entity;
+                    mRegionSent = 0;
+                    if (mBodyRemaining < 0) {
+                        mBodyRemaining = mRegion.getContentLength();
+                    }
+                } else {
+                    mBody = entity.getContent();
+                }
+                mWriting = true;
+                onWritable();
+                updateInterest();
+            } catch (IOException e) {
+                Log.w(TAG, "Closing connection: " + e);
+                closeEntity(entity);
+                close();
+            }
+        }
+
+        void updateInterest() {
+            if (mClosed) {
+                return;
+            }
+            int ops = 0;
+            if (!mInputClosed && !mClosing && mIn.remaining() >= getMinFreeInput()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (mWriting || (mSsl != null && mSsl.hasPendingOutput())) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            mKey.interestOps(ops);
+        }
+
+        private void closeBody() {
+            if (mBody != null) {
+                closeQuietly(mBody);
+                mBody = null;
+            }
+            if (mRegion != null) {
+                closeEntity(mRegion);
+                mRegion = null;
+            }
+        }
+
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mWriting = false;
+            closeBody();
+            mKey.cancel();
+            closeQuietly(mChannel);
+        }
+    }
+
+    private static void closeEntity(HttpEntity entity) {
+        try {
+            if (entity instanceof FileRegionEntity) {
+                ((FileRegionEntity) entity).close();
+            } else if (entity != null && entity.isStreaming()) {
+                entity.getContent().close();
+            }
+        } catch (IOException ignored) {
+            // safe to ignore
+        }
+    }
+
+    private static boolean hasToken(Header header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.getValue().split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the index after the empty line ending the headers that start at from, or -1.
+     */
+    private static int findHeaderEnd(ByteBuffer in, int from) {
+        for (int i = from; i < in.limit(); i++) {
+            if (in.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < in.limit() && in.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < in.limit() && in.get(i + 1) == '\r' && in.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decode a chunked body.
+     * @return the index after the body, or -1 if it is not complete yet.
+     */
+    private static int decodeChunked(ByteBuffer in, int from, ByteArrayOutputStream body)
+            throws ProtocolException {
+        int position = from;
+        while (true) {
+            int lineEnd = indexOf(in, '\n', position);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            String line = new String(in.array(), position, lineEnd - position, ASCII);
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+            int size;
+            try {
+                size = Integer.parseInt(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+            if (size < 0 || size > MAX_REQUEST_SIZE) {
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+            position = lineEnd + 1;
+            if (size == 0) {
+                // skip the trailers, up to an empty line
+                while (true) {
+                    lineEnd = indexOf(in, '\n', position);
+                    if (lineEnd < 0) {
+                        return -1;
+                    }
+                    boolean empty = lineEnd == position
+                            || (lineEnd == position + 1 && in.get(position) == '\r');
+                    position = lineEnd + 1;
+                    if (empty) {
+                        return position;
+                    }
+                }
+            }
+            if (position + size > in.limit()) {
+                return -1;
+            }
+            body.write(in.array(), position, size);
+            lineEnd = indexOf(in, '\n', position + size);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            position = lineEnd + 1;
+        }
+    }
+
+    private static int indexOf(ByteBuffer in, char c, int from) {
+        for (int i = from; i < in.limit(); i++) {
+            if (in.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -27,29 +27,38 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import vogar.util.Log;
 import vogar.util.Strings;
-import vogar.util.Threads;
 
 /**
  * An out of process executable.
  */
 public final class Command {
+    /**
+     * Receives the output of a command a line at a time, as it is produced.
+     */
+    public interface LineListener {
+        void onLine(String line);
+    }
+
     private final List<String> args;
     private final Map<String, String> env;
     private final File workingDirectory;
     private final boolean permitNonZeroExitStatus;
     private final PrintStream tee;
     private final boolean nativeOutput;
+    private final int maxOutputLines;
+    private final LineListener lineListener;
     private volatile Process process;
 
     public Command(String... args) {
@@ -63,6 +72,8 @@ public final class Command {
         this.permitNonZeroExitStatus = false;
         this.tee = null;
         this.nativeOutput = false;
+        this.maxOutputLines = -1;
+        this.lineListener = null;
     }
 
     private Command(Builder builder) {
@@ -79,6 +90,8 @@ public final class Command {
             }
         }
         this.nativeOutput = builder.nativeOutput;
+        this.maxOutputLines = builder.maxOutputLines;
+        this.lineListener = builder.lineListener;
     }
 
     public void start() throws IOException {
@@ -118,31 +131,27 @@ public final class Command {
             throw new IllegalStateException("Not started!");
         }
 
+        InputStream inputStream = getInputStream();
         BufferedReader in = new BufferedReader(
-                new InputStreamReader(getInputStream(), "UTF-8"));
-        List<String> outputLines = new ArrayList<String>();
-        String outputLine;
-        while ((outputLine = in.readLine()) != null) {
-            if (tee != null) {
-                tee.println(outputLine);
-            }
-            if (nativeOutput) {
-                Log.nativeOutput(outputLine);
-            }
-            outputLines.add(outputLine);
-        }
-
-        if (process.waitFor() != 0 && !permitNonZeroExitStatus) {
-            StringBuilder message = new StringBuilder();
-            for (String line : outputLines) {
-                message.append("\n").append(line);
+                new InputStreamReader(inputStream, "UTF-8"));
+        Output output = new Output();
+        // holding the lock of the stream keeps the JDK from closing it when
+        // the process exits, so the output of grandchildren isn't lost
+        synchronized (inputStream) {
+            String outputLine;
+            while ((outputLine = in.readLine()) != null) {
+                output.add(outputLine);
             }
-            throw new CommandFailedException(args, outputLines);
         }
 
-        return outputLines;
+        return output.finish(process.waitFor());
     }
 
+    /**
+     * Executes the command and returns its output, read until its end. That
+     * includes the output of grandchild processes that inherited the output of
+     * the command, so this waits for them too.
+     */
     public List<String> execute() {
         try {
             start();
@@ -167,33 +176,42 @@ public final class Command {
             return execute();
         }
 
+        Future<List<String>> result = executeLater();
         try {
-            return executeLater().get(timeoutSeconds, TimeUnit.SECONDS);
+            return result.get(timeoutSeconds, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while executing process: " + args, e);
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
         } finally {
+            result.cancel(true);
             destroy();
         }
     }
 
     /**
-     * Executes the command on a new background thread. This method returns
-     * immediately.
+     * Starts the command and returns immediately. The output of the command is
+     * read on a pool of threads shared by all commands, so many commands may
+     * run at once without a new thread each. As with {@link #execute}, the
+     * output is read until its end, so the future completes once the command
+     * and the grandchild processes that inherited its output are done with it.
+     *
+     * <p>The process is started by the thread that reads its output, so that
+     * the reader is ready when it exits. A failure to start it is reported by
+     * the future.
+     *
+     * <p>Cancelling the returned future destroys the process.
      *
      * @return a future to retrieve the command's output.
      */
     public Future<List<String>> executeLater() {
-        ExecutorService executor = Threads.fixedThreadsExecutor("command", 1);
-        Future<List<String>> result = executor.submit(new Callable<List<String>>() {
-            public List<String> call() throws Exception {
-                start();
-                return gatherOutput();
-            }
-        });
-        executor.shutdown();
-        return result;
+        if (isStarted()) {
+            throw new IllegalStateException("Already started!");
+        }
+
+        Execution execution = new Execution();
+        OutputPump.getInstance().register(execution);
+        return execution.future;
     }
 
     /**
@@ -217,6 +235,97 @@ public final class Command {
         }
     }
 
+    /**
+     * A command started by {@link #executeLater}, whose output is read by the
+     * {@link OutputPump}.
+     */
+    private final class Execution extends OutputPump.Stream
+            implements Callable<List<String>> {
+        private final Output output = new Output();
+        private volatile IOException error;
+        private final FutureTask<List<String>> future = new FutureTask<List<String>>(this) {
+            @Override public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    OutputPump.getInstance().unregister(Execution.this);
+                    destroy();
+                }
+                return cancelled;
+            }
+        };
+
+        @Override InputStream open() throws IOException {
+            start();
+            if (future.isCancelled()) {
+                // cancelled while starting, before there was a process to destroy
+                destroy();
+                throw new IOException("cancelled");
+            }
+            return getInputStream();
+        }
+
+        @Override void onLine(String line) {
+            output.add(line);
+        }
+
+        @Override void onFinished(IOException e) {
+            error = e;
+            future.run();
+        }
+
+        public List<String> call() throws Exception {
+            if (error != null) {
+                throw error;
+            }
+            return output.finish(process.waitFor());
+        }
+    }
+
+    /**
+     * The output lines of a running command, of which at most
+     * {@code maxOutputLines} of the latest are kept.
+     */
+    private final class Output {
+        private final LinkedList<String> lines = new LinkedList<String>();
+        private int droppedLines = 0;
+
+        void add(String line) {
+            if (tee != null) {
+                tee.println(line);
+            }
+            if (nativeOutput) {
+                Log.nativeOutput(line);
+            }
+            if (lineListener != null) {
+                lineListener.onLine(line);
+            }
+            if (maxOutputLines == 0) {
+                droppedLines++;
+                return;
+            }
+            if (maxOutputLines != -1 && lines.size() == maxOutputLines) {
+                lines.removeFirst();
+                droppedLines++;
+            }
+            lines.add(line);
+        }
+
+        /**
+         * Returns the kept lines, or throws if the exit status is a failure.
+         */
+        List<String> finish(int exitStatus) {
+            if (exitStatus != 0 && !permitNonZeroExitStatus) {
+                List<String> failureLines = new ArrayList<String>(lines.size() + 1);
+                if (droppedLines > 0) {
+                    failureLines.add("[" + droppedLines + " earlier lines omitted]");
+                }
+                failureLines.addAll(lines);
+                throw new CommandFailedException(args, failureLines);
+            }
+            return new ArrayList<String>(lines);
+        }
+    }
+
     @Override public String toString() {
         String envString = !env.isEmpty() ? (Strings.join(env.entrySet(), " ") + " ") : "";
         return envString + Strings.join(args, " ");
@@ -230,6 +339,8 @@ public final class Command {
         private PrintStream tee = null;
         private boolean nativeOutput;
         private int maxLength = -1;
+        private int maxOutputLines = -1;
+        private LineListener lineListener;
 
         public Builder args(Object... objects) {
             for (Object object : objects) {
@@ -278,6 +389,29 @@ public final class Command {
             return this;
         }
 
+        /**
+         * Keeps only the last {@code maxOutputLines} lines of output, so a
+         * verbose command can't exhaust memory. Use a {@link LineListener}
+         * to see every line.
+         */
+        public Builder maxOutputLines(int maxOutputLines) {
+            if (maxOutputLines < -1) {
+                throw new IllegalArgumentException("maxOutputLines < -1: " + maxOutputLines);
+            }
+            this.maxOutputLines = maxOutputLines;
+            return this;
+        }
+
+        /**
+         * Sets a listener that sees each line of output as it is produced. For
+         * {@link Command#executeLater} the listener is called on a reader
+         * thread shared by all commands, so it should return quickly.
+         */
+        public Builder lineListener(LineListener lineListener) {
+            this.lineListener = lineListener;
+            return this;
+        }
+
         public Command build() {
             return new Command(this);
         }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.commands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vogar.util.Log;
+
+/**
+ * Reads the output of any number of processes on a shared pool of reader
+ * threads.
+ *
+ * <p>Each stream is read until the end of its output, like
+ * {@link Command#execute} does, which includes the output of grandchild
+ * processes that inherited the pipe. When a process exits, the JDK drains what
+ * is available of its output and closes the pipe, unless a reader holds the
+ * lock of the stream, and what the grandchildren write later is lost. So every
+ * process is started by its reader, which then holds the lock of its output
+ * until the end. A process that exits before its reader takes the lock, such as
+ * one that exits as soon as it starts, can still lose the output of its
+ * grandchildren.
+ * The readers are pooled and reused, and get small stacks, so hundreds of
+ * processes may run at once cheaply.
+ *
+ * <p>The bytes read are split into lines the way
+ * {@link java.io.BufferedReader#readLine} does, and handed to the stream. Line
+ * callbacks run on the reader threads and should return quickly.
+ */
+final class OutputPump {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+    /** Longer lines are split, so a process that never prints a newline can't exhaust memory. */
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    /** The readers spend their time blocked in read(), which needs little stack. */
+    private static final long READER_STACK_SIZE = 256 * 1024;
+
+    private static final OutputPump INSTANCE = new OutputPump();
+
+    private final ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger nextId = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(null, r, "command-output-" + nextId.getAndIncrement(),
+                    READER_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The output of a process.
+     */
+    abstract static class Stream {
+        private volatile InputStream in;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private boolean skipLineFeed = false;
+        private volatile boolean unregistered = false;
+
+        /**
+         * Starts the process, on the reader thread, and returns its output.
+         */
+        abstract InputStream open() throws IOException;
+
+        /** Called for each line of output. */
+        abstract void onLine(String line);
+
+        /**
+         * Called once the output is complete.
+         *
+         * @param error the error that ended the output, or null if the output
+         *     was read completely
+         */
+        abstract void onFinished(IOException error);
+
+        private void consume(byte[] buffer, int count) {
+            for (int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if (b == '\n' && skipLineFeed) {
+                    skipLineFeed = false;
+                    continue;
+                }
+                skipLineFeed = b == '\r';
+                if (b == '\n' || b == '\r') {
+                    emitLine();
+                } else {
+                    line.write(b);
+                    if (line.size() >= MAX_LINE_LENGTH) {
+                        emitLine();
+                    }
+                }
+            }
+        }
+
+        private void emitLine() {
+            String string = new String(line.toByteArray(), UTF_8);
+            line.reset();
+            onLine(string);
+        }
+
+        private void finish(IOException error) {
+            if (line.size() > 0) {
+                emitLine();
+            }
+            closeInput();
+            onFinished(error);
+        }
+
+        private void closeInput() {
+            InputStream in = this.in;
+            if (in == null) {
+                return;
+            }
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private OutputPump() {}
+
+    static OutputPump getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the process of a stream, and reading its output.
+     */
+    void register(final Stream stream) {
+        readers.execute(new Runnable() {
+            public void run() {
+                read(stream);
+            }
+        });
+    }
+
+    /**
+     * Stops reading the output of a stream, without finishing it. A reader
+     * blocked on the output of a grandchild may stay blocked until that
+     * grandchild closes it, but the stream gets no more callbacks.
+     */
+    void unregister(Stream stream) {
+        stream.unregistered = true;
+        stream.closeInput();
+    }
+
+    private void read(Stream stream) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        IOException error = null;
+        try {
+            InputStream in = stream.open();
+            stream.in = in;
+            // holding the lock between reads keeps the JDK from closing the
+            // pipe when the process exits, see the class comment
+            synchronized (in) {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    if (stream.unregistered) {
+                        return;
+                    }
+                    stream.consume(buffer, count);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            Log.warn("failed to handle command output: " + e);
+            error = new IOException(e);
+        }
+        if (!stream.unregistered) {
+            stream.finish(error);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.commands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link Command} and the {@link OutputPump} that reads the
+ * output of {@link Command#executeLater}.
+ */
+public class CommandTest extends TestCase {
+
+    private static final int LARGE_OUTPUT_LINES = 50000;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    /**
+     * Test that output larger than the pipe buffer is read completely, by
+     * both {@link Command#execute} and {@link Command#executeLater}.
+     */
+    public void testLargeOutput() throws Exception {
+        String script = "i=0; while [ $i -lt " + LARGE_OUTPUT_LINES + " ]; do "
+                + "echo line$i; i=$((i+1)); done";
+        List<String> expected = new ArrayList<String>(LARGE_OUTPUT_LINES);
+        for (int i = 0; i < LARGE_OUTPUT_LINES; i++) {
+            expected.add("line" + i);
+        }
+        assertEquals(expected, shell(script).execute());
+        assertEquals(expected, get(shell(script).executeLater()));
+    }
+
+    /**
+     * Test that the output of a grandchild that inherited the output of the
+     * command, and writes to it after the command exited, isn't lost.
+     */
+    public void testGrandchildOutput() throws Exception {
+        // the command runs a little, as the output of a command that exits
+        // while it is started may be closed by the JDK before it's read
+        String script = "(sleep 1; echo late) & echo early; sleep 0.1";
+        assertEquals(Arrays.asList("early", "late"), shell(script).execute());
+        assertEquals(Arrays.asList("early", "late"), get(shell(script).executeLater()));
+        assertEquals(Arrays.asList("early", "late"),
+                shell(script).executeWithTimeout(TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Test that many commands may run at once on the shared pump, and each
+     * gets its own output.
+     */
+    public void testConcurrentCommands() throws Exception {
+        List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(shell("echo " + i + "; sleep 0.1; echo done" + i).executeLater());
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Arrays.asList(String.valueOf(i), "done" + i), get(futures.get(i)));
+        }
+    }
+
+    /**
+     * Test that lines are split on any line terminator, and that a last line
+     * without one is kept.
+     */
+    public void testLineTerminators() throws Exception {
+        assertEquals(Arrays.asList("a", "b", "c", "", "d"),
+                get(shell("printf 'a\\r\\nb\\rc\\n\\nd'").executeLater()));
+    }
+
+    /**
+     * Test that a command that runs too long is destroyed and reported.
+     */
+    public void testTimeout() throws Exception {
+        long start = System.nanoTime();
+        try {
+            shell("echo started; sleep 60").executeWithTimeout(1);
+            fail("TimeoutException not thrown");
+        } catch (TimeoutException expected) {
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Test that the timeout also bounds the wait for a grandchild that keeps
+     * the output open after the command exited.
+     */
+    public void testTimeout_grandchild() throws Exception {
+        long start = System.nanoTime();
+        try {
+            shell("sleep 5 & echo started").executeWithTimeout(1);
+            fail("TimeoutException not thrown");
+        } catch (TimeoutException expected) {
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+    }
+
+    /**
+     * Test that a command that fails reports the end of its output.
+     */
+    public void testNonZeroExitStatus() throws Exception {
+        try {
+            get(new Command.Builder().args("sh", "-c", "echo a; echo b; exit 3")
+                    .maxOutputLines(1).build().executeLater());
+            fail("CommandFailedException not thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CommandFailedException);
+            assertEquals(Arrays.asList("[1 earlier lines omitted]", "b"),
+                    ((CommandFailedException) e.getCause()).getOutputLines());
+        }
+    }
+
+    private static Command shell(String script) {
+        return new Command("sh", "-c", script);
+    }
+
+    private static List<String> get(Future<List<String>> future) throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
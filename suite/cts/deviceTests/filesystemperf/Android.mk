@@ -30,3 +30,4 @@ cts_runtime_hint := 28
 
 include $(BUILD_CTS_PACKAGE)
 
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -137,4 +137,17 @@ public class AlmostFullTest extends CtsAndroidTestCase {
         FileUtil.doRandomWriteTest(getContext(), DIR_RANDOM_WR, getReportLog(), fileSize,
                 BUFFER_SIZE);
     }
+
+    @TimeoutReq(minutes = 60)
+    public void testRandomUpdateQueueDepth4() throws Exception {
+        final int BUFFER_SIZE = 4 * 1024;
+        final long fileSize = 256L * 1024L * 1024L;
+        long freeDisk = SystemUtil.getFreeDiskSize(getContext());
+        if (freeDisk < fileSize) {
+            Log.w(TAG, "too little space: " + freeDisk);
+            return;
+        }
+        FileUtil.doRandomWriteTest(getContext(), DIR_RANDOM_WR, getReportLog(), fileSize,
+                BUFFER_SIZE, new IoEngine(IoEngine.Mode.DIRECT, 4));
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.filesystemperf;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Buffers of data to write, generated before measuring so that generating the data is not timed,
+ * and different from one write to the next so that the storage can not take shortcuts with
+ * repeated data. The content only depends on the seed, not on what else generated data before.
+ */
+public class DataPool {
+    private final byte[][] mBuffers;
+    private final ByteBuffer[] mDirectBuffers;
+
+    /**
+     * @param bufferSize size of each buffer
+     * @param count number of different buffers, used in turn
+     * @param seed
+     */
+    public DataPool(int bufferSize, int count, long seed) {
+        Random random = new Random(seed);
+        mBuffers = new byte[count][];
+        mDirectBuffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            mBuffers[i] = new byte[bufferSize];
+            random.nextBytes(mBuffers[i]);
+        }
+    }
+
+    public int getBufferSize() {
+        return mBuffers[0].length;
+    }
+
+    /**
+     * @param i index of the operation
+     * @return the data for the i-th write. Should not be modified.
+     */
+    public byte[] get(int i) {
+        return mBuffers[i % mBuffers.length];
+    }
+
+    /**
+     * @param i index of the operation
+     * @return a direct buffer with the data for the i-th write, positioned at its start.
+     */
+    public ByteBuffer getDirect(int i) {
+        int index = i % mBuffers.length;
+        ByteBuffer buffer;
+        synchronized (mDirectBuffers) {
+            buffer = mDirectBuffers[index];
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(mBuffers[index].length);
+                buffer.put(mBuffers[index]);
+                mDirectBuffers[index] = buffer;
+            }
+        }
+        // each caller gets its own position and limit
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        return duplicate;
+    }
+}
@@ -26,7 +26,6 @@ import java.io.RandomAccessFile;
 import java.util.Random;
 
 import com.android.cts.util.MeasureRun;
-import com.android.cts.util.MeasureTime;
 import com.android.cts.util.ResultType;
 import com.android.cts.util.ResultUnit;
 import com.android.cts.util.ReportLog;
@@ -40,6 +39,7 @@ public class FileUtil {
     private static final String TAG = "FileUtil";
     private static final Random mRandom = new Random(0);
     private static long mFileId = 0;
+    private static final int DATA_POOL_SIZE = 16 * 1024 * 1024;
     /**
      * create array with different data per each call
      *
@@ -72,7 +72,18 @@ public class FileUtil {
      * @return
      */
     public static File createNewFile(Context context, String dirName) {
-        File topDir = new File(context.getFilesDir(), dirName);
+        return createNewFile(context.getFilesDir(), dirName);
+    }
+
+    /**
+     * create a new file under the given dirName of parentDir.
+     * Existing files will not be affected.
+     * @param parentDir
+     * @param dirName
+     * @return
+     */
+    public static File createNewFile(File parentDir, String dirName) {
+        File topDir = new File(parentDir, dirName);
         topDir.mkdir();
         String[] list = topDir.list();
 
@@ -139,8 +150,21 @@ public class FileUtil {
      */
     public static File createNewFilledFile(Context context, String dirName, long length)
             throws IOException {
+        return createNewFilledFile(context.getFilesDir(), dirName, length);
+    }
+
+    /**
+     * create a new file with given length under the given dirName of parentDir.
+     * @param parentDir
+     * @param dirName
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static File createNewFilledFile(File parentDir, String dirName, long length)
+            throws IOException {
         final int BUFFER_SIZE = 10 * 1024 * 1024;
-        File file = createNewFile(context, dirName);
+        File file = createNewFile(parentDir, dirName);
         FileOutputStream out = new FileOutputStream(file);
         byte[] data = generateRandomData(BUFFER_SIZE);
         long written = 0;
@@ -269,44 +293,56 @@ public class FileUtil {
      */
     public static void doRandomReadTest(Context context, String dirName, ReportLog report,
             long fileSize, int bufferSize) throws Exception {
+        doRandomReadTest(context, dirName, report, fileSize, bufferSize, IoEngine.DEFAULT);
+    }
+
+    /**
+     *
+     * @param context
+     * @param dirName
+     * @param report
+     * @param fileSize
+     * @param bufferSize should be power of two
+     * @param engine how the reads are issued
+     * @throws IOException
+     */
+    public static void doRandomReadTest(Context context, String dirName, ReportLog report,
+            long fileSize, int bufferSize, IoEngine engine) throws Exception {
         File file = FileUtil.createNewFilledFile(context,
                 dirName, fileSize);
 
-        final byte[] data = FileUtil.generateRandomData(bufferSize);
-        Random random = new Random(0);
         final int totalReadCount = (int)(fileSize / bufferSize);
-        final int[] readOffsets = new int[totalReadCount];
-        for (int i = 0; i < totalReadCount; i++) {
-            // align in buffer size
-            readOffsets[i] = (int)(random.nextFloat() * (fileSize - bufferSize)) &
-                    ~(bufferSize - 1);
-        }
+        final long[] readOffsets = getRandomOffsets(fileSize, bufferSize, totalReadCount);
         final int runsInOneGo = 16;
         final int readsInOneMeasure = totalReadCount / runsInOneGo;
 
-        final RandomAccessFile randomFile = new RandomAccessFile(file, "rw"); // do not need O_SYNC
+        // do not need O_SYNC
+        final IoEngine.Session session = engine.open(file, false, createDataPool(bufferSize));
+        final LatencyHistogram latencies = new LatencyHistogram();
         double[] rdAmount = new double[runsInOneGo];
         double[] wrAmount = new double[runsInOneGo];
-        double[] times = FileUtil.measureIO(runsInOneGo, rdAmount, wrAmount, new MeasureRun() {
-
-            @Override
-            public void run(int i) throws IOException {
-                Log.i(TAG, "starting " + i + " -th round");
-                int start = i * readsInOneMeasure;
-                int end = (i + 1) * readsInOneMeasure;
-                for (int j = start; j < end; j++) {
-                    randomFile.seek(readOffsets[j]);
-                    randomFile.read(data);
+        double[] times;
+        try {
+            times = FileUtil.measureIO(runsInOneGo, rdAmount, wrAmount, new MeasureRun() {
+
+                @Override
+                public void run(int i) throws IOException {
+                    Log.i(TAG, "starting " + i + " -th round");
+                    session.run(readOffsets, i * readsInOneMeasure, (i + 1) * readsInOneMeasure,
+                            latencies, null);
                 }
-            }
-        });
-        randomFile.close();
+            });
+        } finally {
+            session.close();
+        }
         double[] mbps = ReportLog.calcRatePerSecArray((double)fileSize / runsInOneGo / 1024 / 1024,
                 times);
         report.printArray("read throughput",
                 mbps, ResultType.HIGHER_BETTER, ResultUnit.MBPS);
         // This is just the amount of IO returned from kernel. So this is performance neutral.
         report.printArray("read amount", rdAmount, ResultType.NEUTRAL, ResultUnit.BYTE);
+        report.printArray("read latency 50/90/99 percentile and max", latencies.getSummaryMs(),
+                ResultType.LOWER_BETTER, ResultUnit.MS);
         Stat.StatResult stat = Stat.getStat(mbps);
 
         report.printSummary("read throughput", stat.mAverage, ResultType.HIGHER_BETTER,
@@ -324,42 +360,54 @@ public class FileUtil {
      */
     public static void doRandomWriteTest(Context context, String dirName, ReportLog report,
             long fileSize, int bufferSize) throws Exception {
+        doRandomWriteTest(context, dirName, report, fileSize, bufferSize, IoEngine.DEFAULT);
+    }
+
+    /**
+     *
+     * @param context
+     * @param dirName
+     * @param report
+     * @param fileSize
+     * @param bufferSize should be power of two
+     * @param engine how the writes are issued
+     * @throws IOException
+     */
+    public static void doRandomWriteTest(Context context, String dirName, ReportLog report,
+            long fileSize, int bufferSize, IoEngine engine) throws Exception {
         File file = FileUtil.createNewFilledFile(context,
                 dirName, fileSize);
-        final byte[] data = FileUtil.generateRandomData(bufferSize);
-        Random random = new Random(0);
         final int totalWriteCount = (int)(fileSize / bufferSize);
-        final int[] writeOffsets = new int[totalWriteCount];
-        for (int i = 0; i < totalWriteCount; i++) {
-            writeOffsets[i] = (int)(random.nextFloat() * (fileSize - bufferSize)) &
-                    ~(bufferSize - 1);
-        }
+        final long[] writeOffsets = getRandomOffsets(fileSize, bufferSize, totalWriteCount);
         final int runsInOneGo = 16;
         final int writesInOneMeasure = totalWriteCount / runsInOneGo;
 
-        final RandomAccessFile randomFile = new RandomAccessFile(file, "rwd"); // force O_SYNC
+        final IoEngine.Session session = engine.open(file, true, createDataPool(bufferSize));
+        final LatencyHistogram latencies = new LatencyHistogram();
         double[] rdAmount = new double[runsInOneGo];
         double[] wrAmount = new double[runsInOneGo];
-        double[] times = FileUtil.measureIO(runsInOneGo, rdAmount, wrAmount, new MeasureRun() {
-
-            @Override
-            public void run(int i) throws IOException {
-                Log.i(TAG, "starting " + i + " -th round");
-                int start = i * writesInOneMeasure;
-                int end = (i + 1) * writesInOneMeasure;
-                for (int j = start; j < end; j++) {
-                    randomFile.seek(writeOffsets[j]);
-                    randomFile.write(data);
+        double[] times;
+        try {
+            times = FileUtil.measureIO(runsInOneGo, rdAmount, wrAmount, new MeasureRun() {
+
+                @Override
+                public void run(int i) throws IOException {
+                    Log.i(TAG, "starting " + i + " -th round");
+                    session.run(writeOffsets, i * writesInOneMeasure,
+                            (i + 1) * writesInOneMeasure, latencies, null);
                 }
-            }
-        });
-        randomFile.close();
+            });
+        } finally {
+            session.close();
+        }
         double[] mbps = ReportLog.calcRatePerSecArray((double)fileSize / runsInOneGo / 1024 / 1024,
                 times);
         report.printArray("write throughput",
                 mbps, ResultType.HIGHER_BETTER, ResultUnit.MBPS);
         report.printArray("write amount", wrAmount, ResultType.NEUTRAL,
                 ResultUnit.BYTE);
+        report.printArray("write latency 50/90/99 percentile and max", latencies.getSummaryMs(),
+                ResultType.LOWER_BETTER, ResultUnit.MS);
         Stat.StatResult stat = Stat.getStat(mbps);
 
         report.printSummary("write throughput", stat.mAverage, ResultType.HIGHER_BETTER,
@@ -378,31 +426,80 @@ public class FileUtil {
      */
     public static void doSequentialUpdateTest(Context context, String dirName, ReportLog report,
             long fileSize, int bufferSize, int numberRepetition) throws Exception {
+        doSequentialUpdateTest(context, dirName, report, fileSize, bufferSize, numberRepetition,
+                IoEngine.DEFAULT);
+    }
+
+    /**
+     *
+     * @param context
+     * @param dirName
+     * @param report
+     * @param fileSize fileSize should be multiple of bufferSize.
+     * @param bufferSize
+     * @param numberRepetition
+     * @param engine how the writes are issued
+     * @throws IOException
+     */
+    public static void doSequentialUpdateTest(Context context, String dirName, ReportLog report,
+            long fileSize, int bufferSize, int numberRepetition, IoEngine engine)
+            throws Exception {
         File file = FileUtil.createNewFilledFile(context,
                 dirName, fileSize);
-        final byte[] data = FileUtil.generateRandomData(bufferSize);
+        final DataPool pool = createDataPool(bufferSize);
         int numberRepeatInOneRun = (int)(fileSize / bufferSize);
+        final long[] offsets = new long[numberRepeatInOneRun];
+        for (int i = 0; i < numberRepeatInOneRun; i++) {
+            offsets[i] = (long)i * bufferSize;
+        }
+        final LatencyHistogram latencies = new LatencyHistogram();
         double[] mbpsAll = new double[numberRepetition * numberRepeatInOneRun];
         for (int i = 0; i < numberRepetition; i++) {
             Log.i(TAG, "starting " + i + " -th round");
-            final RandomAccessFile randomFile = new RandomAccessFile(file, "rwd");  // force O_SYNC
-            randomFile.seek(0L);
-            double[] times = MeasureTime.measure(numberRepeatInOneRun, new MeasureRun() {
-
-                @Override
-                public void run(int i) throws IOException {
-                    randomFile.write(data);
-                }
-            });
-            randomFile.close();
+            final IoEngine.Session session = engine.open(file, true, pool);
+            double[] times = new double[numberRepeatInOneRun];
+            try {
+                session.run(offsets, 0, numberRepeatInOneRun, latencies, times);
+            } finally {
+                session.close();
+            }
             double[] mbps = ReportLog.calcRatePerSecArray((double)bufferSize / 1024 / 1024,
                     times);
             report.printArray(i + "-th round throughput",
                     mbps, ResultType.HIGHER_BETTER, ResultUnit.MBPS);
             ReportLog.copyArray(mbps, mbpsAll, i * numberRepeatInOneRun);
         }
+        report.printArray("update latency 50/90/99 percentile and max", latencies.getSummaryMs(),
+                ResultType.LOWER_BETTER, ResultUnit.MS);
         Stat.StatResult stat = Stat.getStat(mbpsAll);
         report.printSummary("update throughput", stat.mAverage, ResultType.HIGHER_BETTER,
                 ResultUnit.MBPS);
     }
+
+    /**
+     * offsets spread over the file, aligned in buffer size. Always the same for the same
+     * arguments.
+     * @param fileSize
+     * @param bufferSize should be power of two
+     * @param count
+     * @return
+     */
+    static long[] getRandomOffsets(long fileSize, int bufferSize, int count) {
+        Random random = new Random(0);
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            // align in buffer size
+            offsets[i] = (long)(random.nextFloat() * (fileSize - bufferSize)) &
+                    ~(bufferSize - 1);
+        }
+        return offsets;
+    }
+
+    /**
+     * data to write in buffers of the given size, using at most DATA_POOL_SIZE
+     */
+    private static DataPool createDataPool(int bufferSize) {
+        int count = Math.max(2, Math.min(64, DATA_POOL_SIZE / bufferSize));
+        return new DataPool(bufferSize, count, 0);
+    }
 }
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.filesystemperf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The way reads and writes at given offsets of a file are issued: which API is used, and how many
+ * operations are in flight at once. Only depends on java.io and java.nio, so it can be run on a
+ * host as well as on a device.
+ *
+ * Writes reach the storage before they are counted as done in all modes: files are opened with
+ * O_SYNC, except for {@link Mode#MMAP}, where the mapping is forced at the end of each
+ * {@link Session#run}.
+ */
+public class IoEngine {
+    public enum Mode {
+        /** RandomAccessFile seek and read / write, as the tests always did. */
+        SYNC,
+        /** FileChannel positional read / write from heap buffers. */
+        CHANNEL,
+        /** FileChannel positional read / write from direct buffers. */
+        DIRECT,
+        /** copy from / to a memory mapping of the file. */
+        MMAP
+    }
+
+    /** The engine used unless a test asks for another. */
+    public static final IoEngine DEFAULT = new IoEngine(Mode.SYNC, 1);
+
+    /** Size of each mapping of a file, so that big files can be mapped on 32 bit. */
+    private static final long MAP_SIZE = 256L * 1024L * 1024L;
+
+    private final Mode mMode;
+    private final int mQueueDepth;
+
+    /**
+     * @param mode
+     * @param queueDepth number of operations in flight at once, each issued from its own thread
+     */
+    public IoEngine(Mode mode, int queueDepth) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queue depth " + queueDepth);
+        }
+        mMode = mode;
+        mQueueDepth = queueDepth;
+    }
+
+    /**
+     * parse an engine description like "direct" or "channel:4"
+     * @param spec mode name, optionally followed by ':' and the queue depth
+     * @return
+     */
+    public static IoEngine fromString(String spec) {
+        String[] parts = spec.split(":");
+        int queueDepth = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+        return new IoEngine(Mode.valueOf(parts[0].toUpperCase()), queueDepth);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    @Override
+    public String toString() {
+        return mMode.name().toLowerCase() + ":" + mQueueDepth;
+    }
+
+    /**
+     * open an existing file for reading or writing with this engine.
+     * @param file
+     * @param write
+     * @param pool data to write, or only used for its buffer size when reading
+     * @return
+     * @throws IOException
+     */
+    public Session open(File file, boolean write, DataPool pool) throws IOException {
+        return new Session(file, write, pool);
+    }
+
+    /**
+     * A file opened by the engine.
+     */
+    public class Session {
+        private final File mFile;
+        private final boolean mWrite;
+        private final DataPool mPool;
+        private final Worker[] mWorkers;
+        private final ExecutorService mExecutor;
+        private MappedByteBuffer[] mMaps;
+
+        private Session(File file, boolean write, DataPool pool) throws IOException {
+            mFile = file;
+            mWrite = write;
+            mPool = pool;
+            if (mMode == Mode.MMAP) {
+                mapFile();
+            }
+            mWorkers = new Worker[mQueueDepth];
+            try {
+                for (int i = 0; i < mQueueDepth; i++) {
+                    mWorkers[i] = createWorker();
+                }
+            } catch (IOException e) {
+                closeWorkers();
+                throw e;
+            }
+            mExecutor = mQueueDepth > 1 ? Executors.newFixedThreadPool(mQueueDepth) : null;
+        }
+
+        /**
+         * read or write at offsets[from] to offsets[to - 1], one buffer each.
+         * @param offsets
+         * @param from
+         * @param to
+         * @param histogram records the latency of each operation, can be null
+         * @param latenciesMs receives the latency of offsets[i] at index i - from, can be null
+         * @throws IOException
+         */
+        public void run(final long[] offsets, final int from, final int to,
+                final LatencyHistogram histogram, final double[] latenciesMs)
+                throws IOException {
+            if (mExecutor == null) {
+                runWorker(mWorkers[0], offsets, from, from, to, 1, histogram, latenciesMs);
+            } else {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int i = 0; i < mQueueDepth; i++) {
+                    final Worker worker = mWorkers[i];
+                    final int start = from + i;
+                    futures.add(mExecutor.submit(new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws IOException {
+                            runWorker(worker, offsets, from, start, to, mQueueDepth, histogram,
+                                    latenciesMs);
+                            return null;
+                        }
+                    }));
+                }
+                waitFor(futures);
+            }
+            if (mWrite && mMaps != null) {
+                for (MappedByteBuffer map : mMaps) {
+                    map.force();
+                }
+            }
+        }
+
+        private void runWorker(Worker worker, long[] offsets, int from, int start, int to,
+                int step, LatencyHistogram histogram, double[] latenciesMs) throws IOException {
+            for (int i = start; i < to; i += step) {
+                long begin = System.nanoTime();
+                if (mWrite) {
+                    worker.write(offsets[i], i);
+                } else {
+                    worker.read(offsets[i]);
+                }
+                long nanos = System.nanoTime() - begin;
+                if (histogram != null) {
+                    histogram.record(nanos);
+                }
+                if (latenciesMs != null) {
+                    latenciesMs[i - from] = nanos / 1000000.0;
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+            }
+            closeWorkers();
+            mMaps = null;
+        }
+
+        private void closeWorkers() throws IOException {
+            for (Worker worker : mWorkers) {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+        }
+
+        private void mapFile() throws IOException {
+            RandomAccessFile randomFile = new RandomAccessFile(mFile, mWrite ? "rw" : "r");
+            try {
+                FileChannel channel = randomFile.getChannel();
+                long length = channel.size();
+                int count = (int) ((length + MAP_SIZE - 1) / MAP_SIZE);
+                mMaps = new MappedByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    long position = i * MAP_SIZE;
+                    mMaps[i] = channel.map(
+                            mWrite ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                            position, Math.min(MAP_SIZE, length - position));
+                }
+            } finally {
+                // the mappings stay valid after the file is closed
+                randomFile.close();
+            }
+        }
+
+        private Worker createWorker() throws IOException {
+            switch (mMode) {
+                case SYNC:
+                    return new SyncWorker();
+                case CHANNEL:
+                    return new ChannelWorker(false);
+                case DIRECT:
+                    return new ChannelWorker(true);
+                case MMAP:
+                    return new MapWorker();
+                default:
+                    throw new IllegalStateException(mMode.name());
+            }
+        }
+
+        private RandomAccessFile openFile() throws IOException {
+            return new RandomAccessFile(mFile, mWrite ? "rwd" : "r"); // force O_SYNC on write
+        }
+
+        /** Issues the operations of one thread. */
+        private abstract class Worker {
+            abstract void read(long offset) throws IOException;
+            abstract void write(long offset, int index) throws IOException;
+            void close() throws IOException {
+            }
+        }
+
+        private class SyncWorker extends Worker {
+            private final RandomAccessFile mRandomFile;
+            private final byte[] mData = new byte[mPool.getBufferSize()];
+
+            SyncWorker() throws IOException {
+                mRandomFile = openFile();
+            }
+
+            @Override
+            void read(long offset) throws IOException {
+                mRandomFile.seek(offset);
+                mRandomFile.read(mData);
+            }
+
+            @Override
+            void write(long offset, int index) throws IOException {
+                mRandomFile.seek(offset);
+                mRandomFile.write(mPool.get(index));
+            }
+
+            @Override
+            void close() throws IOException {
+                mRandomFile.close();
+            }
+        }
+
+        private class ChannelWorker extends Worker {
+            private final RandomAccessFile mRandomFile;
+            private final FileChannel mChannel;
+            private final boolean mDirect;
+            private final ByteBuffer mData;
+
+            ChannelWorker(boolean direct) throws IOException {
+                mRandomFile = openFile();
+                mChannel = mRandomFile.getChannel();
+                mDirect = direct;
+                mData = direct ? ByteBuffer.allocateDirect(mPool.getBufferSize())
+                        : ByteBuffer.allocate(mPool.getBufferSize());
+            }
+
+            @Override
+            void read(long offset) throws IOException {
+                mData.clear();
+                while (mData.hasRemaining()) {
+                    if (mChannel.read(mData, offset + mData.position()) < 0) {
+                        break;
+                    }
+                }
+            }
+
+            @Override
+            void write(long offset, int index) throws IOException {
+                ByteBuffer data = mDirect ? mPool.getDirect(index)
+                        : ByteBuffer.wrap(mPool.get(index));
+                while (data.hasRemaining()) {
+                    mChannel.write(data, offset + data.position());
+                }
+            }
+
+            @Override
+            void close() throws IOException {
+                mRandomFile.close();
+            }
+        }
+
+        private class MapWorker extends Worker {
+            private final ByteBuffer[] mViews = new ByteBuffer[mMaps.length];
+            private final byte[] mData = new byte[mPool.getBufferSize()];
+
+            MapWorker() {
+                // each thread needs its own position in the mappings
+                for (int i = 0; i < mMaps.length; i++) {
+                    mViews[i] = mMaps[i].duplicate();
+                }
+            }
+
+            @Override
+            void read(long offset) {
+                copy(offset, mData, false);
+            }
+
+            @Override
+            void write(long offset, int index) {
+                copy(offset, mPool.get(index), true);
+            }
+
+            private void copy(long offset, byte[] data, boolean write) {
+                int done = 0;
+                while (done < data.length) {
+                    long position = offset + done;
+                    int map = (int) (position / MAP_SIZE);
+                    if (map >= mViews.length) {
+                        break; // past the end of the file
+                    }
+                    ByteBuffer view = mViews[map];
+                    view.position((int) (position % MAP_SIZE));
+                    int length = Math.min(data.length - done, view.remaining());
+                    if (write) {
+                        view.put(data, done, length);
+                    } else {
+                        view.get(data, done, length);
+                    }
+                    done += length;
+                }
+            }
+        }
+    }
+
+    private static void waitFor(List<Future<Void>> futures) throws IOException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -41,6 +41,17 @@ public class RandomRWTest extends CtsAndroidTestCase {
                 READ_BUFFER_SIZE);
     }
 
+    @TimeoutReq(minutes = 60)
+    public void testRandomReadQueueDepth4() throws Exception {
+        final int READ_BUFFER_SIZE = 4 * 1024;
+        final long fileSize = FileUtil.getFileSizeExceedingMemory(getContext(), READ_BUFFER_SIZE);
+        if (fileSize == 0) { // not enough space, give up
+            return;
+        }
+        FileUtil.doRandomReadTest(getContext(), DIR_RANDOM_RD, getReportLog(), fileSize,
+                READ_BUFFER_SIZE, new IoEngine(IoEngine.Mode.DIRECT, 4));
+    }
+
     // It is taking too long in some device, and thus cannot run multiple times
     @TimeoutReq(minutes = 60)
     public void testRandomUpdate() throws Exception {
@@ -49,4 +60,20 @@ public class RandomRWTest extends CtsAndroidTestCase {
         FileUtil.doRandomWriteTest(getContext(), DIR_RANDOM_WR, getReportLog(), fileSize,
                 WRITE_BUFFER_SIZE);
     }
+
+    @TimeoutReq(minutes = 60)
+    public void testRandomUpdateQueueDepth4() throws Exception {
+        final int WRITE_BUFFER_SIZE = 4 * 1024;
+        final long fileSize = 256 * 1024 * 1024;
+        FileUtil.doRandomWriteTest(getContext(), DIR_RANDOM_WR, getReportLog(), fileSize,
+                WRITE_BUFFER_SIZE, new IoEngine(IoEngine.Mode.DIRECT, 4));
+    }
+
+    @TimeoutReq(minutes = 60)
+    public void testRandomUpdateMmap() throws Exception {
+        final int WRITE_BUFFER_SIZE = 4 * 1024;
+        final long fileSize = 256 * 1024 * 1024;
+        FileUtil.doRandomWriteTest(getContext(), DIR_RANDOM_WR, getReportLog(), fileSize,
+                WRITE_BUFFER_SIZE, new IoEngine(IoEngine.Mode.MMAP, 1));
+    }
 }
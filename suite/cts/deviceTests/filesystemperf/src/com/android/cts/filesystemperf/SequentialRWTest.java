@@ -85,6 +85,17 @@ public class SequentialRWTest extends CtsAndroidTestCase {
                 BUFFER_SIZE, NUMBER_REPETITION);
     }
 
+    @TimeoutReq(minutes = 60)
+    public void testSingleSequentialUpdateChannel() throws Exception {
+        final long fileSize = FileUtil.getFileSizeExceedingMemory(getContext(), BUFFER_SIZE);
+        if (fileSize == 0) { // not enough space, give up
+            return;
+        }
+        final int NUMBER_REPETITION = 6;
+        FileUtil.doSequentialUpdateTest(getContext(), DIR_SEQ_UPDATE, getReportLog(), fileSize,
+                BUFFER_SIZE, NUMBER_REPETITION, new IoEngine(IoEngine.Mode.CHANNEL, 1));
+    }
+
     @TimeoutReq(minutes = 30)
     public void testSingleSequentialRead() throws Exception {
         final long fileSize = FileUtil.getFileSizeExceedingMemory(getContext(), BUFFER_SIZE);
@@ -0,0 +1,29 @@
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+# the I/O engine only depends on java.io and java.nio, so it is tested on the host
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    ../src/com/android/cts/filesystemperf/DataPool.java \
+    ../src/com/android/cts/filesystemperf/IoEngine.java \
+    ../src/com/android/cts/filesystemperf/LatencyHistogram.java
+
+LOCAL_MODULE := CtsDeviceFilePerf-tests
+LOCAL_MODULE_TAGS := optional
+LOCAL_JAVA_LIBRARIES := junit
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.filesystemperf;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link IoEngine}. Writes a file with each mode and queue depth, and checks that
+ * the data reads back the same.
+ */
+public class IoEngineTest extends TestCase {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int BUFFERS = 64;
+
+    private File mFile;
+    private DataPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("ioengine", ".dat");
+        RandomAccessFile randomFile = new RandomAccessFile(mFile, "rw");
+        try {
+            // the mappings of MMAP cover the existing file only
+            randomFile.setLength((long) BUFFER_SIZE * BUFFERS);
+        } finally {
+            randomFile.close();
+        }
+        mPool = new DataPool(BUFFER_SIZE, 7, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testFromString() {
+        IoEngine engine = IoEngine.fromString("channel:4");
+        assertEquals(IoEngine.Mode.CHANNEL, engine.getMode());
+        assertEquals(4, engine.getQueueDepth());
+        assertEquals("channel:4", engine.toString());
+        assertEquals(1, IoEngine.fromString("mmap").getQueueDepth());
+    }
+
+    public void testInvalidQueueDepth() {
+        try {
+            new IoEngine(IoEngine.Mode.SYNC, 0);
+            fail("queue depth 0 accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRoundTrip_sync() throws IOException {
+        checkRoundTrip(new IoEngine(IoEngine.Mode.SYNC, 1));
+        checkRoundTrip(new IoEngine(IoEngine.Mode.SYNC, 4));
+    }
+
+    public void testRoundTrip_channel() throws IOException {
+        checkRoundTrip(new IoEngine(IoEngine.Mode.CHANNEL, 1));
+        checkRoundTrip(new IoEngine(IoEngine.Mode.CHANNEL, 4));
+    }
+
+    public void testRoundTrip_direct() throws IOException {
+        checkRoundTrip(new IoEngine(IoEngine.Mode.DIRECT, 1));
+        checkRoundTrip(new IoEngine(IoEngine.Mode.DIRECT, 4));
+    }
+
+    public void testRoundTrip_mmap() throws IOException {
+        checkRoundTrip(new IoEngine(IoEngine.Mode.MMAP, 1));
+        checkRoundTrip(new IoEngine(IoEngine.Mode.MMAP, 4));
+    }
+
+    /**
+     * Writes the buffers of the pool in a random order of the blocks of the file, with only part
+     * of the offsets in the first run, then reads them all back.
+     */
+    private void checkRoundTrip(IoEngine engine) throws IOException {
+        long[] offsets = new long[BUFFERS];
+        for (int i = 0; i < BUFFERS; i++) {
+            offsets[i] = (long) i * BUFFER_SIZE;
+        }
+        Random random = new Random(engine.getQueueDepth());
+        for (int i = BUFFERS - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long offset = offsets[i];
+            offsets[i] = offsets[j];
+            offsets[j] = offset;
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        double[] latenciesMs = new double[BUFFERS - 5];
+        Arrays.fill(latenciesMs, -1);
+        IoEngine.Session session = engine.open(mFile, true, mPool);
+        try {
+            session.run(offsets, 0, 5, histogram, null);
+            session.run(offsets, 5, BUFFERS, histogram, latenciesMs);
+        } finally {
+            session.close();
+        }
+        assertEquals(BUFFERS, histogram.getCount());
+        for (double latencyMs : latenciesMs) {
+            assertTrue(engine + " latency " + latencyMs, latencyMs >= 0);
+        }
+
+        RandomAccessFile randomFile = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] data = new byte[BUFFER_SIZE];
+            for (int i = 0; i < BUFFERS; i++) {
+                randomFile.seek(offsets[i]);
+                randomFile.readFully(data);
+                assertTrue(engine + " offset " + offsets[i], Arrays.equals(mPool.get(i), data));
+            }
+        } finally {
+            randomFile.close();
+        }
+
+        histogram = new LatencyHistogram();
+        session = engine.open(mFile, false, mPool);
+        try {
+            session.run(offsets, 0, BUFFERS, histogram, null);
+        } finally {
+            session.close();
+        }
+        assertEquals(BUFFERS, histogram.getCount());
+    }
+}
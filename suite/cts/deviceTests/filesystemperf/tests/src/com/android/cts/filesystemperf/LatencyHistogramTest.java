@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.filesystemperf;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+    private static final long NANOS_PER_MS = 1000000L;
+
+    /**
+     * Test that latencies under 8ns have a bucket each, and that the buckets above keep the
+     * three bits after the leading one.
+     */
+    public void testGetBucket() {
+        for (int nanos = 0; nanos < 16; nanos++) {
+            assertEquals(nanos, LatencyHistogram.getBucket(nanos));
+        }
+        assertEquals(16, LatencyHistogram.getBucket(16));
+        assertEquals(16, LatencyHistogram.getBucket(17));
+        assertEquals(17, LatencyHistogram.getBucket(18));
+        assertEquals(23, LatencyHistogram.getBucket(31));
+        assertEquals(24, LatencyHistogram.getBucket(32));
+        // leading one at bit 62, shifted by 59
+        assertEquals(60 * 8 + 7, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    /**
+     * Test that buckets grow with the latency, and that the middle of the bucket of a latency is
+     * within 12.5% of it.
+     */
+    public void testGetBucket_middle() {
+        int last = 0;
+        for (long nanos = 1; nanos > 0 && nanos < Long.MAX_VALUE / 3; nanos = nanos * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.getBucket(nanos);
+            assertTrue(nanos + "ns", bucket >= last);
+            double middle = LatencyHistogram.getBucketMiddle(bucket);
+            assertTrue(nanos + "ns in bucket of " + middle, Math.abs(middle - nanos) <= nanos / 8.0);
+            last = bucket;
+        }
+    }
+
+    /**
+     * Test that an empty histogram reports 0 for all percentiles.
+     */
+    public void testGetPercentileMs_empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.getPercentileMs(50));
+        assertEquals(0.0, histogram.getPercentileMs(100));
+        assertEquals(0, histogram.getCount());
+    }
+
+    /**
+     * Test the percentiles of latencies of 1 to 100 msec.
+     */
+    public void testGetPercentileMs() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // recorded in reverse, as the order doesn't matter
+        for (int ms = 100; ms >= 1; ms--) {
+            histogram.record(ms * NANOS_PER_MS);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1.0, histogram.getPercentileMs(0), 1.0 / 8);
+        assertEquals(50.0, histogram.getPercentileMs(50), 50.0 / 8);
+        assertEquals(90.0, histogram.getPercentileMs(90), 90.0 / 8);
+        assertEquals(99.0, histogram.getPercentileMs(99), 99.0 / 8);
+        assertEquals(100.0, histogram.getPercentileMs(100), 100.0 / 8);
+        // never above the largest latency recorded
+        assertTrue(histogram.getPercentileMs(100) <= histogram.getMaxMs());
+        assertEquals(100.0, histogram.getMaxMs());
+        double[] summary = histogram.getSummaryMs();
+        assertEquals(4, summary.length);
+        assertEquals(histogram.getPercentileMs(50), summary[0]);
+        assertEquals(100.0, summary[3]);
+    }
+
+    /**
+     * Test that negative latencies, from a clock going backwards, are recorded as 0.
+     */
+    public void testRecord_negative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentileMs(100));
+    }
+}
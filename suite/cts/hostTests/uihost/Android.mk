@@ -24,6 +24,9 @@ LOCAL_MODULE := CtsHostUi
 
 LOCAL_JAVA_LIBRARIES := cts-tradefed tradefed-prebuilt
 
+# for the adaptive MeasureTime, which the cts-tradefed classpath doesn't have
+LOCAL_STATIC_JAVA_LIBRARIES := compatibility-common-util-hostsidelib_v2
+
 LOCAL_ADDITIONAL_DEPENDENCIES := $(LOCAL_PATH)/Android.mk
 
 LOCAL_CTS_TEST_PACKAGE := com.android.cts.uihost
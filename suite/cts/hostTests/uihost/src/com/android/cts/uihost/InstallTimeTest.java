@@ -16,15 +16,14 @@
 
 package com.android.cts.uihost;
 
+import com.android.compatibility.common.util.MeasureRun;
+import com.android.compatibility.common.util.MeasureTime;
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.util.HostReportLog;
 import com.android.cts.util.AbiUtils;
-import com.android.cts.util.MeasureRun;
-import com.android.cts.util.MeasureTime;
 import com.android.cts.util.ResultType;
 import com.android.cts.util.ResultUnit;
 import com.android.cts.util.ReportLog;
-import com.android.cts.util.Stat;
 import com.android.ddmlib.Log;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.ITestDevice;
@@ -47,7 +46,10 @@ public class InstallTimeTest extends DeviceTestCase implements IAbiReceiver, IBu
     private static final String TAG = "InstallTimeTest";
     static final String PACKAGE = "com.replica.replicaisland";
     static final String APK = "com.replica.replicaisland.apk";
-    private static final double OUTLIER_THRESHOLD = 0.1;
+    private static final int MIN_REPEAT = 10;
+    private static final int MAX_REPEAT = 50;
+    private static final double TARGET_RELATIVE_WIDTH = 0.05;
+    private static final long TIME_BUDGET_MS = 5 * 60 * 1000;
 
     @Override
     public void setAbi(IAbi abi) {
@@ -75,10 +77,10 @@ public class InstallTimeTest extends DeviceTestCase implements IAbiReceiver, IBu
     public void testInstallTime() throws Exception {
         HostReportLog report = new HostReportLog(mDevice.getSerialNumber(), mAbi.getName(),
                 ReportLog.getClassMethodNames());
-        final int NUMBER_REPEAT = 10;
         final CtsBuildHelper build = mBuild;
         final ITestDevice device = mDevice;
-        double[] result = MeasureTime.measure(NUMBER_REPEAT, new MeasureRun() {
+        // installs until the median is known within 5%, instead of a fixed number of times
+        MeasureTime.Result result = MeasureTime.measureAdaptive(new MeasureRun() {
             @Override
             public void prepare(int i) throws Exception {
                 device.uninstallPackage(PACKAGE);
@@ -89,14 +91,18 @@ public class InstallTimeTest extends DeviceTestCase implements IAbiReceiver, IBu
                 String[] options = {AbiUtils.createAbiFlag(mAbi.getName())};
                 device.installPackage(app, false, options);
             }
-        });
-        report.printArray("install time", result, ResultType.LOWER_BETTER,
+        }, MIN_REPEAT, MAX_REPEAT, TARGET_RELATIVE_WIDTH, TIME_BUDGET_MS);
+        report.printArray("install time", result.getValues(), ResultType.LOWER_BETTER,
                 ResultUnit.MS);
-        Stat.StatResult stat = Stat.getStatWithOutlierRejection(result, OUTLIER_THRESHOLD);
-        if (stat.mDataCount != result.length) {
-            Log.w(TAG, "rejecting " + (result.length - stat.mDataCount) + " outliers");
+        report.printArray("install time median 95% confidence interval",
+                new double[] {result.getMedianLower(), result.getMedianUpper()},
+                ResultType.NEUTRAL, ResultUnit.MS);
+        report.printValue("install time iterations", result.getIterations(), ResultType.NEUTRAL,
+                ResultUnit.COUNT);
+        if (!result.isConverged()) {
+            Log.w(TAG, "install time did not settle after " + result.getIterations() + " runs");
         }
-        report.printSummary("install time", stat.mAverage, ResultType.LOWER_BETTER,
+        report.printSummary("install time", result.getMedian(), ResultType.LOWER_BETTER,
                 ResultUnit.MS);
         report.deliverReportToHost();
     }
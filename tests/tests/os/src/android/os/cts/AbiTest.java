@@ -19,51 +19,28 @@ package android.os.cts;
 import android.cts.util.ReadElf;
 
 import java.io.File;
+import java.io.FileFilter;
 
 import junit.framework.TestCase;
 
 public class AbiTest extends TestCase {
+    private static final FileFilter ELF_CANDIDATES = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.getName().endsWith(".so") || f.canExecute();
+        }
+    };
+
     public void testNo64() throws Exception {
         for (String dir : new File("/").list()) {
             if (!dir.equals("data") && !dir.equals("dev") && !dir.equals("proc") && !dir.equals("sys")) {
-                checkElfFilesInDirectory(new File("/" + dir));
-            }
-        }
-    }
-
-    private void checkElfFilesInDirectory(File dir) throws Exception {
-        if (!dir.isDirectory()) {
-            return;
-        }
-
-        if (isSymbolicLink(dir)) {
-            return;
-        }
-
-        File[] files = dir.listFiles();
-        if (files == null) {
-            return;
-        }
-
-        for (File f : files) {
-            if (f.isDirectory()) {
-                checkElfFilesInDirectory(f);
-            } else if (f.getName().endsWith(".so") || f.canExecute()) {
-                ReadElf elf = null;
-                try { // TODO: switch to try-with-resources.
-                    elf = ReadElf.read(f);
-                } catch (IllegalArgumentException ignored) {
-                    // If it's not actually an ELF file, we don't care.
-                } finally {
-                    if (elf != null) {
-                        elf.close();
+                // ReadElf.read throws for unsupported ELF files, which is all we check.
+                ReadElf.scanDirectory(new File("/" + dir), ELF_CANDIDATES, new ReadElf.Visitor() {
+                    @Override
+                    public void visit(ReadElf elf) {
                     }
-                }
+                });
             }
         }
     }
-
-    private static boolean isSymbolicLink(File f) throws Exception {
-        return !f.getAbsolutePath().equals(f.getCanonicalPath());
-    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit.cts;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the HTTP/1.1 handling of {@link NioHttpServer}, with requests written by hand on
+ * plain sockets.
+ */
+public class NioHttpServerTest extends TestCase {
+    private static final String ASCII = "ISO-8859-1";
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private NioHttpServer mServer;
+    /** The paths of the requests handled, in order. */
+    private final List<String> mPaths = Collections.synchronizedList(new ArrayList<String>());
+    private Socket mSocket;
+
+    /**
+     * Answers /echo with the body of the request, /slow with "slow" after a while,
+     * /nolength with a body of unknown length, and anything else with its path.
+     */
+    private final NioHttpServer.Handler mHandler = new NioHttpServer.Handler() {
+        @Override
+        public HttpResponse handle(HttpRequest request) throws Exception {
+            String path = request.getRequestLine().getUri();
+            mPaths.add(path);
+            HttpResponse response =
+                    new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            byte[] body = path.getBytes(ASCII);
+            if (path.equals("/echo")) {
+                body = EntityUtils.toByteArray(
+                        ((HttpEntityEnclosingRequest) request).getEntity());
+            } else if (path.equals("/slow")) {
+                Thread.sleep(500);
+                body = "slow".getBytes(ASCII);
+            } else if (path.equals("/nolength")) {
+                response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body), -1));
+                return response;
+            }
+            response.setEntity(new ByteArrayEntity(body));
+            return response;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new NioHttpServer("NioHttpServerTest", mHandler, NioHttpServer.MAX_WORKERS,
+                null, false, false);
+        mServer.start();
+        mSocket = new Socket("localhost", mServer.getPort());
+        mSocket.setSoTimeout(TIMEOUT_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSocket.close();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Test that HTTP/1.1 connections are kept alive between requests.
+     */
+    public void testKeepAlive() throws Exception {
+        send("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Response first = readResponse(false);
+        assertEquals("HTTP/1.1 200 OK", first.mStatusLine);
+        assertEquals("6", first.mHeaders.get("content-length"));
+        assertNull(first.mHeaders.get("connection"));
+        assertEquals("/first", first.getBody());
+
+        send("GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals("/second", readResponse(false).getBody());
+        assertEquals(2, mPaths.size());
+    }
+
+    /**
+     * Test that pipelined requests are answered in the order they were sent, even when the
+     * first one takes longer to handle.
+     */
+    public void testPipelining() throws Exception {
+        send("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /b HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        assertEquals("slow", readResponse(false).getBody());
+        assertEquals("/a", readResponse(false).getBody());
+        Response last = readResponse(false);
+        assertEquals("close", last.mHeaders.get("connection"));
+        assertEquals("/b", last.getBody());
+        assertClosed();
+    }
+
+    /**
+     * Test that a chunked request body is decoded, when it arrives in several parts, with chunk
+     * extensions and trailers.
+     */
+    public void testChunkedRequest() throws Exception {
+        send("POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n");
+        Thread.sleep(100);
+        send("1;name=value\r\n \r\n6\r\nwor");
+        Thread.sleep(100);
+        send("ld!\r\n0\r\nTrailer: value\r\n\r\n");
+        assertEquals("hello world!", readResponse(false).getBody());
+    }
+
+    /**
+     * Test that a request body with a Content-Length is read whole.
+     */
+    public void testContentLength() throws Exception {
+        send("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 11\r\n\r\nhello");
+        Thread.sleep(100);
+        send(" world");
+        assertEquals("hello world", readResponse(false).getBody());
+    }
+
+    /**
+     * Test that HTTP/1.0 connections are closed after the response, unless kept alive.
+     */
+    public void testHttp10() throws Exception {
+        send("GET /kept HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+        Response kept = readResponse(false);
+        assertEquals("HTTP/1.0 200 OK", kept.mStatusLine);
+        assertEquals("keep-alive", kept.mHeaders.get("connection"));
+        assertEquals("/kept", kept.getBody());
+
+        send("GET /closed HTTP/1.0\r\n\r\n");
+        Response closed = readResponse(false);
+        assertEquals("HTTP/1.0 200 OK", closed.mStatusLine);
+        assertNull(closed.mHeaders.get("connection"));
+        assertEquals("/closed", closed.getBody());
+        assertClosed();
+    }
+
+    /**
+     * Test that a body of unknown length ends with the connection.
+     */
+    public void testUnknownLength() throws Exception {
+        send("GET /nolength HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Response response = readResponse(false);
+        assertNull(response.mHeaders.get("content-length"));
+        assertEquals("close", response.mHeaders.get("connection"));
+        assertEquals("/nolength", response.getBody());
+    }
+
+    /**
+     * Test that the response to a HEAD request has no body, so the next response on the
+     * connection is read correctly.
+     */
+    public void testHead() throws Exception {
+        send("HEAD /head HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Response head = readResponse(true);
+        assertEquals("HTTP/1.1 200 OK", head.mStatusLine);
+        assertEquals("", head.getBody());
+        assertEquals("/next", readResponse(false).getBody());
+    }
+
+    /**
+     * Test that a request line that can't be parsed is answered with 400 and closes the
+     * connection, without calling the handler.
+     */
+    public void testMalformedRequest() throws Exception {
+        send("GARBAGE\r\n\r\nGET /ignored HTTP/1.1\r\n\r\n");
+        assertEquals(HttpStatus.SC_BAD_REQUEST, readResponse(false).getStatusCode());
+        assertClosed();
+        assertTrue(mPaths.isEmpty());
+    }
+
+    /**
+     * Test that an invalid Content-Length is answered with 400.
+     */
+    public void testMalformedContentLength() throws Exception {
+        send("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: ten\r\n\r\n");
+        assertEquals(HttpStatus.SC_BAD_REQUEST, readResponse(false).getStatusCode());
+        assertClosed();
+    }
+
+    /**
+     * Test that an invalid chunk size is answered with 400.
+     */
+    public void testMalformedChunk() throws Exception {
+        send("POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "xyz\r\nhello\r\n0\r\n\r\n");
+        assertEquals(HttpStatus.SC_BAD_REQUEST, readResponse(false).getStatusCode());
+        assertClosed();
+    }
+
+    /**
+     * Test that an unknown method is answered with 501.
+     */
+    public void testUnknownMethod() throws Exception {
+        send("BREW /pot HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals(HttpStatus.SC_NOT_IMPLEMENTED, readResponse(false).getStatusCode());
+        assertClosed();
+    }
+
+    private void send(String data) throws IOException {
+        OutputStream out = mSocket.getOutputStream();
+        out.write(data.getBytes(ASCII));
+        out.flush();
+    }
+
+    private void assertClosed() throws IOException {
+        assertEquals(-1, mSocket.getInputStream().read());
+    }
+
+    /** A response as read from the socket. */
+    private static class Response {
+        String mStatusLine;
+        /** The headers, by lower case name. */
+        final Map<String, String> mHeaders = new HashMap<String, String>();
+        byte[] mBody;
+
+        int getStatusCode() {
+            return Integer.parseInt(mStatusLine.split(" ")[1]);
+        }
+
+        String getBody() throws IOException {
+            return new String(mBody, ASCII);
+        }
+    }
+
+    /**
+     * Read a response, with a body of the length of its Content-Length header or up to the end
+     * of the stream.
+     * @param head true if the response has no body, as for a HEAD request.
+     */
+    private Response readResponse(boolean head) throws IOException {
+        InputStream in = mSocket.getInputStream();
+        Response response = new Response();
+        response.mStatusLine = readLine(in);
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            response.mHeaders.put(line.substring(0, colon).trim().toLowerCase(),
+                    line.substring(colon + 1).trim());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String length = response.mHeaders.get("content-length");
+        if (head) {
+            // no body
+        } else if (length != null) {
+            for (int i = Integer.parseInt(length); i > 0; i--) {
+                int b = in.read();
+                assertTrue("truncated body", b >= 0);
+                body.write(b);
+            }
+        } else {
+            int b;
+            while ((b = in.read()) >= 0) {
+                body.write(b);
+            }
+        }
+        response.mBody = body.toByteArray();
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("truncated response: " + line, b >= 0);
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
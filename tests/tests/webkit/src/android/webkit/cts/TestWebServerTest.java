@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit.cts;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link TestWebServer} under concurrent clients.
+ */
+public class TestWebServerTest extends TestCase {
+    private static final String TAG = "TestWebServerTest";
+
+    /** The load of {@link #testLoad}, raise them to measure the server. */
+    private static final int LOAD_CLIENTS = 16;
+    private static final int LOAD_REQUESTS_PER_CLIENT = 100;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    private TestWebServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TestWebServer(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Test that the requests of concurrent clients are handled one at a time, so response
+     * actions never run concurrently.
+     */
+    public void testResponseActions_serial() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final String url = mServer.setResponseWithRunnableAction("/serial", "serial", null,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        int now = running.incrementAndGet();
+                        int max;
+                        while (now > (max = maxRunning.get())
+                                && !maxRunning.compareAndSet(max, now)) {
+                        }
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                    }
+                });
+        long millis = load(url, "serial", 8, 1);
+        assertEquals(8, mServer.getRequestCount("/serial"));
+        assertEquals(1, maxRunning.get());
+        // one after the other
+        assertTrue(millis >= 8 * 50);
+    }
+
+    /**
+     * Test that many keep-alive clients all get their responses, and log how long they took.
+     * With LOAD_CLIENTS and LOAD_REQUESTS_PER_CLIENT raised, this measures the server.
+     */
+    public void testLoad() throws Exception {
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            page.append('a');
+        }
+        String url = mServer.setResponse("/load.html", page.toString(), null);
+        // warm up the connections and the code
+        load(url, page.toString(), LOAD_CLIENTS, 10);
+        long millis = load(url, page.toString(), LOAD_CLIENTS, LOAD_REQUESTS_PER_CLIENT);
+        assertEquals(LOAD_CLIENTS * (10 + LOAD_REQUESTS_PER_CLIENT),
+                mServer.getRequestCount("/load.html"));
+        Log.i(TAG, LOAD_CLIENTS + " clients x " + LOAD_REQUESTS_PER_CLIENT + " requests: "
+                + millis + " ms");
+    }
+
+    /**
+     * Fetch a URL from several threads, each fetching it a number of times over a kept alive
+     * connection, and check the body of every response.
+     * @return how long it took in milliseconds.
+     */
+    private static long load(final String url, final String expected, int clients,
+            final int requestsPerClient) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (int j = 0; j < requestsPerClient; j++) {
+                            assertEquals(expected, fetch(url));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, n);
+            }
+            return body.toString("UTF-8");
+        } finally {
+            // closing the stream read to the end keeps the connection for the next request
+            in.close();
+        }
+    }
+}
@@ -22,28 +22,32 @@ import org.w3c.dom.NodeList;
 import vogar.ExpectationStore;
 import vogar.ModeId;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
 /** Class that outputs a test package xml. */
 public class CtsXmlGenerator {
 
-    private static void usage(String[] args) {
-        System.err.println("Arguments: " + Arrays.asList(args));
-        System.err.println("Usage: cts-xml-generator -p PACKAGE_NAME -n NAME [-t TEST_TYPE]"
-                + " [-j JAR_PATH] [-i INSTRUMENTATION] [-m MANIFEST_FILE] [-e EXPECTATION_FILE]"
-                + " [-b UNSUPPORTED_ABI_FILE] [-a ARCHITECTURE] [-o OUTPUT_FILE]"
-                + " [-s APP_NAME_SPACE] [-x ADDITIONAL_ATTRIBUTE_KEY->VALUE]");
-        System.exit(1);
-    }
+    /** Digest of the generator itself, so that a new generator regenerates every package. */
+    private static byte[] sGeneratorDigest;
 
-    public static void main(String[] args) throws Exception {
+    /** The arguments of one test package. */
+    private static class PackageArgs {
         String appPackageName = null;
         String name = null;
         String outputPath = null;
@@ -56,34 +60,55 @@ public class CtsXmlGenerator {
         String jarPath = null;
         String appNameSpace = null;
         String targetNameSpace = null;
-        Map<String, String> additionalAttributes = new HashMap<String, String>();
+        Map<String, String> additionalAttributes = new TreeMap<String, String>();
+        String[] args;
+    }
+
+    private static void usage(String[] args) {
+        System.err.println("Arguments: " + Arrays.asList(args));
+        System.err.println("Usage: cts-xml-generator -p PACKAGE_NAME -n NAME [-t TEST_TYPE]"
+                + " [-j JAR_PATH] [-i INSTRUMENTATION] [-m MANIFEST_FILE] [-e EXPECTATION_FILE]"
+                + " [-b UNSUPPORTED_ABI_FILE] [-a ARCHITECTURE] [-o OUTPUT_FILE]"
+                + " [-s APP_NAME_SPACE] [-x ADDITIONAL_ATTRIBUTE_KEY->VALUE]");
+        System.err.println("The test list is read from standard input. When an output file is"
+                + " given, it is only rewritten if its inputs have changed.");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        generate(parseArgs(args));
+    }
+
+    private static PackageArgs parseArgs(String[] args) {
+        PackageArgs pkg = new PackageArgs();
+        pkg.args = args;
 
         for (int i = 0; i < args.length; i++) {
             if ("-p".equals(args[i])) {
-                appPackageName = getArg(args, ++i, "Missing value for test package");
+                pkg.appPackageName = getArg(args, ++i, "Missing value for test package");
             } else if ("-n".equals(args[i])) {
-                name = getArg(args, ++i, "Missing value for executable name");
+                pkg.name = getArg(args, ++i, "Missing value for executable name");
             } else if ("-t".equals(args[i])) {
-                testType = getArg(args, ++i, "Missing value for test type");
+                pkg.testType = getArg(args, ++i, "Missing value for test type");
             } else if ("-j".equals(args[i])) {
-                jarPath = getArg(args, ++i, "Missing value for jar path");
+                pkg.jarPath = getArg(args, ++i, "Missing value for jar path");
             } else if ("-m".equals(args[i])) {
-                manifestFile = new File(getArg(args, ++i, "Missing value for manifest"));
+                pkg.manifestFile = new File(getArg(args, ++i, "Missing value for manifest"));
             } else if ("-i".equals(args[i])) {
-                instrumentation = getArg(args, ++i, "Missing value for instrumentation");
+                pkg.instrumentation = getArg(args, ++i, "Missing value for instrumentation");
             } else if ("-e".equals(args[i])) {
-                expectationFiles.add(new File(getArg(args, ++i,
+                pkg.expectationFiles.add(new File(getArg(args, ++i,
                         "Missing value for expectation store")));
             } else if ("-b".equals(args[i])) {
-                abiFiles.add(new File(getArg(args, ++i, "Missing value for abi store")));
+                pkg.abiFiles.add(new File(getArg(args, ++i, "Missing value for abi store")));
             } else if ("-a".equals(args[i])) {
-                architecture = getArg(args, ++i, "Missing value for architecture");
+                pkg.architecture = getArg(args, ++i, "Missing value for architecture");
             } else if ("-o".equals(args[i])) {
-                outputPath = getArg(args, ++i, "Missing value for output file");
+                pkg.outputPath = getArg(args, ++i, "Missing value for output file");
             } else if ("-s".equals(args[i])) {
-                appNameSpace =  getArg(args, ++i, "Missing value for app name space");
+                pkg.appNameSpace =  getArg(args, ++i, "Missing value for app name space");
             } else if ("-r".equals(args[i])) {
-                targetNameSpace =  getArg(args, ++i, "Missing value for target name space");
+                pkg.targetNameSpace =  getArg(args, ++i, "Missing value for target name space");
             } else if ("-x".equals(args[i])) {
                 String value = getArg(args, ++i, "Missing value for additional attribute");
                 String[] tokens = value.split("->");
@@ -92,23 +117,53 @@ public class CtsXmlGenerator {
                             "For specifying additional attributes; use the format KEY->VALUE");
                     usage(args);
                 }
-                if (additionalAttributes.containsKey(tokens[0])) {
+                if (pkg.additionalAttributes.containsKey(tokens[0])) {
                     System.err.println(String.format(
                             "Additional attribute %s has already been specified", tokens[0]));
                     usage(args);
                 }
-                additionalAttributes.put(tokens[0], tokens[1]);
+                pkg.additionalAttributes.put(tokens[0], tokens[1]);
             } else {
                 System.err.println("Unsupported flag: " + args[i]);
                 usage(args);
             }
         }
 
+        if (pkg.appPackageName == null) {
+            System.out.println("Package name is required");
+            usage(args);
+        } else if (pkg.name == null) {
+            System.out.println("Executable name is required");
+            usage(args);
+        }
+        return pkg;
+    }
+
+    /**
+     * Generates the XML of a single package, unless it is up to date.
+     */
+    private static void generate(PackageArgs pkg) throws Exception {
+        byte[] testList = readFully(System.in);
+
+        String inputDigest = null;
+        if (pkg.outputPath != null) {
+            File outputFile = new File(pkg.outputPath);
+            inputDigest = computeInputDigest(pkg, testList);
+            if (inputDigest.equals(XmlGenerator.readInputDigest(outputFile))) {
+                // Keep make from considering the output out of date.
+                outputFile.setLastModified(System.currentTimeMillis());
+                System.out.println("Test package XML is up to date: " + pkg.outputPath);
+                return;
+            }
+        }
+
         String runner = null;
+        String appNameSpace = pkg.appNameSpace;
+        String targetNameSpace = pkg.targetNameSpace;
 
-        if (manifestFile != null) {
+        if (pkg.manifestFile != null) {
             Document manifest = DocumentBuilderFactory.newInstance().newDocumentBuilder()
-                    .parse(manifestFile);
+                    .parse(pkg.manifestFile);
             Element documentElement = manifest.getDocumentElement();
             appNameSpace = documentElement.getAttribute("package");
             runner = getElementAttribute(documentElement, "instrumentation",
@@ -117,20 +172,104 @@ public class CtsXmlGenerator {
                     "android:targetPackage");
         }
 
-        if (appPackageName == null) {
-            System.out.println("Package name is required");
-            usage(args);
-        } else if (name == null) {
-            System.out.println("Executable name is required");
-            usage(args);
+        ExpectationStore failuresStore = ExpectationStore.parse(pkg.expectationFiles,
+                ModeId.DEVICE);
+        ExpectationStore abiStore = ExpectationStore.parse(pkg.abiFiles, ModeId.DEVICE);
+        XmlGenerator generator = new XmlGenerator(failuresStore, abiStore, pkg.architecture,
+                appNameSpace, pkg.appPackageName, pkg.name, runner, pkg.instrumentation,
+                targetNameSpace, pkg.jarPath, pkg.testType, pkg.outputPath,
+                pkg.additionalAttributes);
+        generator.setInputDigest(inputDigest);
+        generator.writePackageXml(new ByteArrayInputStream(testList));
+    }
+
+    /**
+     * @return a digest of everything the XML of a package is generated from: its arguments,
+     *     its test list, the contents of its manifest and expectation files, and the generator
+     *     itself
+     */
+    private static String computeInputDigest(PackageArgs pkg, byte[] testList)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(getGeneratorDigest());
+        for (String arg : pkg.args) {
+            digest.update(arg.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        }
+        digest.update(testList);
+        List<File> files = new ArrayList<File>();
+        if (pkg.manifestFile != null) {
+            files.add(pkg.manifestFile);
+        }
+        files.addAll(pkg.expectationFiles);
+        files.addAll(pkg.abiFiles);
+        for (File file : files) {
+            digest.update(digestFile(file));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static synchronized byte[] getGeneratorDigest() throws IOException {
+        if (sGeneratorDigest == null) {
+            File jar = null;
+            try {
+                jar = new File(CtsXmlGenerator.class.getProtectionDomain().getCodeSource()
+                        .getLocation().toURI());
+            } catch (Exception e) {
+                // Fall through; without a jar the digest only covers the package inputs.
+            }
+            sGeneratorDigest = (jar != null && jar.isFile()) ? digestFile(jar) : new byte[0];
+        }
+        return sGeneratorDigest;
+    }
+
+    private static byte[] digestFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(file.getPath().getBytes("UTF-8"));
+        if (file.isFile()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
         }
+        return digest.digest();
+    }
 
-        ExpectationStore failuresStore = ExpectationStore.parse(expectationFiles, ModeId.DEVICE);
-        ExpectationStore abiStore = ExpectationStore.parse(abiFiles, ModeId.DEVICE);
-        XmlGenerator generator = new XmlGenerator(failuresStore, abiStore, architecture,
-                appNameSpace, appPackageName, name, runner, instrumentation, targetNameSpace,
-                jarPath, testType, outputPath, additionalAttributes);
-        generator.writePackageXml();
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
     }
 
     private static String getArg(String[] args, int index, String message) {
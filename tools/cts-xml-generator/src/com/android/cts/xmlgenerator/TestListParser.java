@@ -17,9 +17,9 @@ package com.android.cts.xmlgenerator;
 
 import java.io.InputStream;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
 
 /**
  * Parser of test lists that are in the format of:
@@ -32,7 +32,7 @@ import java.util.Scanner;
 class TestListParser {
 
     public Collection<TestSuite> parse(InputStream input) {
-        Map<String, TestSuite> suiteMap = new HashMap<String, TestSuite>();
+        Map<String, TestSuite> suiteMap = new TreeMap<String, TestSuite>();
         TestSuite currentSuite = null;
         TestCase currentCase = null;
         Scanner scanner = null;
@@ -18,15 +18,16 @@ package com.android.cts.xmlgenerator;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 class TestSuite implements Comparable<TestSuite> {
 
     private final String mName;
 
-    private final Map<String, TestSuite> mSuites = new HashMap<String, TestSuite>();
+    /** Child suites, sorted by name. */
+    private final Map<String, TestSuite> mSuites = new TreeMap<String, TestSuite>();
 
     private final List<TestCase> mCases = new ArrayList<TestCase>();
 
@@ -22,11 +22,16 @@ import vogar.Expectation;
 import vogar.ExpectationStore;
 import vogar.Result;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -34,6 +39,10 @@ import java.util.Map;
 import java.util.List;
 import java.util.Set;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 /**
  * Generator of TestPackage XML files for native tests.
  *
@@ -48,9 +57,19 @@ import java.util.Set;
  * suite: x.y
  * case:TestClass3
  * test:testMethod2
+ *
+ * When written to a file, the XML records a digest of the inputs it was generated from, see
+ * {@link #readInputDigest(File)}.
  */
 class XmlGenerator {
 
+    /** Text of the comment that records the input digest, followed by the digest. */
+    private static final String INPUT_DIGEST_COMMENT = " inputs: ";
+
+    private static final String INPUT_DIGEST_PREFIX = "<!--" + INPUT_DIGEST_COMMENT;
+
+    private static final String INPUT_DIGEST_SUFFIX = " -->";
+
     /** Example: com.android.cts.holo */
     private final String mAppNamespace;
 
@@ -84,6 +103,8 @@ class XmlGenerator {
 
     private final Map<String, String> mAdditionalAttributes;
 
+    private String mInputDigest;
+
     XmlGenerator(ExpectationStore knownFailures, ExpectationStore unsupportedAbis,
             String architecture, String appNameSpace, String appPackageName, String name,
             String runner, String targetBinaryName, String targetNameSpace, String jarPath,
@@ -103,70 +124,121 @@ class XmlGenerator {
         mAdditionalAttributes = additionalAttributes;
     }
 
+    /**
+     * Sets the digest of the inputs to record in the XML, or null to record none.
+     */
+    public void setInputDigest(String inputDigest) {
+        mInputDigest = inputDigest;
+    }
+
+    /**
+     * @return the digest of the inputs recorded in the given XML file, or null if the file
+     *     doesn't exist or records none
+     */
+    public static String readInputDigest(File xmlFile) throws IOException {
+        if (!xmlFile.isFile()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(xmlFile));
+        try {
+            // The digest follows the XML declaration.
+            reader.readLine();
+            String line = reader.readLine();
+            if (line != null && line.startsWith(INPUT_DIGEST_PREFIX)
+                    && line.endsWith(INPUT_DIGEST_SUFFIX)) {
+                return line.substring(INPUT_DIGEST_PREFIX.length(),
+                        line.length() - INPUT_DIGEST_SUFFIX.length());
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
     public void writePackageXml() throws IOException {
+        writePackageXml(System.in);
+    }
+
+    public void writePackageXml(InputStream testList) throws IOException {
         OutputStream output = System.out;
         if (mOutputPath != null) {
             File outputFile = new File(mOutputPath);
             output = new FileOutputStream(outputFile);
         }
 
-        PrintWriter writer = null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
         try {
-            writer = new PrintWriter(output);
-            writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-            writeTestPackage(writer);
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            if (mInputDigest != null) {
+                xml.writeComment(INPUT_DIGEST_COMMENT + mInputDigest + " ");
+                xml.writeCharacters("\n");
+            }
+            writeTestPackage(xml, testList);
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
         } finally {
-            if (writer != null) {
+            if (output == System.out) {
+                writer.flush();
+            } else {
                 writer.close();
             }
         }
     }
 
-    private void writeTestPackage(PrintWriter writer) {
-        writer.append("<TestPackage");
+    private void writeTestPackage(XMLStreamWriter xml, InputStream testList)
+            throws XMLStreamException {
+        xml.writeStartElement("TestPackage");
         if (mAppNamespace != null) {
-            writer.append(" appNameSpace=\"").append(mAppNamespace).append("\"");
+            xml.writeAttribute("appNameSpace", mAppNamespace);
         }
 
-        writer.append(" appPackageName=\"").append(mAppPackageName).append("\"");
-        writer.append(" name=\"").append(mName).append("\"");
+        xml.writeAttribute("appPackageName", mAppPackageName);
+        xml.writeAttribute("name", mName);
 
         if (mRunner != null) {
-            writer.append(" runner=\"").append(mRunner).append("\"");
+            xml.writeAttribute("runner", mRunner);
         }
 
         if (mAppNamespace != null && mTargetNameSpace != null
                 && !mAppNamespace.equals(mTargetNameSpace)) {
-            writer.append(" targetBinaryName=\"").append(mTargetBinaryName).append("\"");
-            writer.append(" targetNameSpace=\"").append(mTargetNameSpace).append("\"");
+            xml.writeAttribute("targetBinaryName", mTargetBinaryName);
+            xml.writeAttribute("targetNameSpace", mTargetNameSpace);
         }
 
         if (mTestType != null && !mTestType.isEmpty()) {
-            writer.append(" testType=\"").append(mTestType).append("\"");
+            xml.writeAttribute("testType", mTestType);
         }
 
         if (mJarPath != null) {
-            writer.append(" jarPath=\"").append(mJarPath).append("\"");
+            xml.writeAttribute("jarPath", mJarPath);
         }
 
         for (Map.Entry<String, String> entry : mAdditionalAttributes.entrySet()) {
-            writer.append(String.format(" %s=\"%s\"", entry.getKey(), entry.getValue()));
+            xml.writeAttribute(entry.getKey(), entry.getValue());
         }
 
-        writer.println(" version=\"1.0\">");
+        xml.writeAttribute("version", "1.0");
+        xml.writeCharacters("\n");
 
         TestListParser parser = new TestListParser();
-        Collection<TestSuite> suites = parser.parse(System.in);
+        Collection<TestSuite> suites = parser.parse(testList);
         StringBuilder nameCollector = new StringBuilder();
-        writeTestSuites(writer, suites, nameCollector);
-        writer.println("</TestPackage>");
+        writeTestSuites(xml, suites, nameCollector);
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
     }
 
-    private void writeTestSuites(PrintWriter writer, Collection<TestSuite> suites,
-            StringBuilder nameCollector) {
-        Collection<TestSuite> sorted = sortCollection(suites);
-        for (TestSuite suite : sorted) {
-            writer.append("<TestSuite name=\"").append(suite.getName()).println("\">");
+    private void writeTestSuites(XMLStreamWriter xml, Collection<TestSuite> suites,
+            StringBuilder nameCollector) throws XMLStreamException {
+        // Suites are kept sorted by name.
+        for (TestSuite suite : suites) {
+            xml.writeStartElement("TestSuite");
+            xml.writeAttribute("name", suite.getName());
+            xml.writeCharacters("\n");
 
             String namePart = suite.getName();
             if (nameCollector.length() > 0) {
@@ -174,48 +246,53 @@ class XmlGenerator {
             }
             nameCollector.append(namePart);
 
-            writeTestSuites(writer, suite.getSuites(), nameCollector);
-            writeTestCases(writer, suite.getCases(), nameCollector);
+            writeTestSuites(xml, suite.getSuites(), nameCollector);
+            writeTestCases(xml, suite.getCases(), nameCollector);
 
             nameCollector.delete(nameCollector.length() - namePart.length(),
                     nameCollector.length());
-            writer.println("</TestSuite>");
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
         }
     }
 
-    private void writeTestCases(PrintWriter writer, Collection<TestCase> cases,
-            StringBuilder nameCollector) {
+    private void writeTestCases(XMLStreamWriter xml, Collection<TestCase> cases,
+            StringBuilder nameCollector) throws XMLStreamException {
         Collection<TestCase> sorted = sortCollection(cases);
         for (TestCase testCase : sorted) {
             String name = testCase.getName();
-            writer.append("<TestCase name=\"").append(name).println("\">");
+            xml.writeStartElement("TestCase");
+            xml.writeAttribute("name", name);
+            xml.writeCharacters("\n");
             nameCollector.append('.').append(name);
 
-            writeTests(writer, testCase.getTests(), nameCollector);
+            writeTests(xml, testCase.getTests(), nameCollector);
 
             nameCollector.delete(nameCollector.length() - name.length() - 1,
                     nameCollector.length());
-            writer.println("</TestCase>");
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
         }
     }
 
-    private void writeTests(PrintWriter writer, Collection<Test> tests,
-            StringBuilder nameCollector) {
+    private void writeTests(XMLStreamWriter xml, Collection<Test> tests,
+            StringBuilder nameCollector) throws XMLStreamException {
         Collection<Test> sorted = sortCollection(tests);
         for (Test test : sorted) {
             String className = nameCollector.toString();
             nameCollector.append('#').append(test.getName());
-            writer.append("<Test name=\"").append(test.getName()).append("\"");
+            xml.writeEmptyElement("Test");
+            xml.writeAttribute("name", test.getName());
             String abis = getSupportedAbis(mUnsupportedAbis, mArchitecture,
                     className, nameCollector.toString()).toString();
-            writer.append(" abis=\"" + abis.substring(1, abis.length() - 1) + "\"");
+            xml.writeAttribute("abis", abis.substring(1, abis.length() - 1));
             if (isKnownFailure(mKnownFailures, nameCollector.toString())) {
-                writer.append(" expectation=\"failure\"");
+                xml.writeAttribute("expectation", "failure");
             }
             if (test.getTimeout() >= 0) {
-                writer.append(" timeout=\"" + test.getTimeout() + "\"");
+                xml.writeAttribute("timeout", Integer.toString(test.getTimeout()));
             }
-            writer.println(" />");
+            xml.writeCharacters("\n");
 
             nameCollector.delete(nameCollector.length() - test.getName().length() - 1,
                     nameCollector.length());
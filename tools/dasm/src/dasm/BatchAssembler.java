@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dasm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assembles many .d files in one process, on a pool of threads. The parser
+ * tables, the opcode and reserved word tables and dx's interned types are
+ * only built once for all of them. Each file still gets its own DAsm, so the
+ * .dex generated for a file is the same as when it is assembled alone.
+ */
+public class BatchAssembler {
+
+    private final String destPath;
+    private final ExecutorService executor;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Constructs an instance.
+     *
+     * @param threads
+     *            number of files assembled at once
+     * @param destPath
+     *            path to place the .dex files, or null for the current
+     *            directory
+     */
+    public BatchAssembler(int threads, String destPath) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads " + threads);
+        }
+        this.destPath = destPath;
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Queues a file for assembly.
+     *
+     * @param fname
+     *            is the name of the file containing the DAsm source code.
+     */
+    public void submit(final String fname) {
+        executor.execute(new Runnable() {
+            public void run() {
+                boolean ok = false;
+                try {
+                    ok = Main.assemble(fname, destPath);
+                } catch (RuntimeException e) {
+                    if (Main.DEBUG) e.printStackTrace();
+                    System.err.println("Exception <" + e.getClass().getName()
+                            + ">" + e.getMessage() + " while assembling "
+                            + fname);
+                } finally {
+                    // an Error still fails the file before it reaches the
+                    // thread's uncaught exception handler
+                    if (!ok) failures.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all the queued files to be assembled. No file can be
+     * submitted afterwards.
+     *
+     * @return the number of files that could not be assembled
+     */
+    public int finish() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        }
+        return failures.get();
+    }
+}
@@ -63,9 +63,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Map;
 
 //TODO: copyright notice
 
@@ -97,7 +96,7 @@ public class DAsm {
     String superclass_name;
     String source_name;
     String filename;
-    Vector<String> interfaces = new Vector<String>();
+    ArrayList<String> interfaces = new ArrayList<String>();
     ClassDefItem classDef;
 
     // method being built
@@ -110,7 +109,7 @@ public class DAsm {
     /**
      * list of exceptions that method can throw.
      */
-    Vector<String> throw_list = new Vector<String>();
+    ArrayList<String> throw_list = new ArrayList<String>();
 
     /**
      * Constructor of CatchTable instances from method data.
@@ -136,7 +135,7 @@ public class DAsm {
     /**
      * Hold a translation table "LabelX" -> CodeAddress, planted.
      */
-    Hashtable<String, LabelTableEntry> labels_table;
+    HashMap<String, LabelTableEntry> labels_table;
 
     /**
      * used by relative forward jumps. When relative forward offset is found,
@@ -146,17 +145,17 @@ public class DAsm {
      * output_finisher.
      */
     int current_insn_number;
-    Hashtable<Integer, CodeAddress> unprocessed_relative_goto_addr =
-            new Hashtable<Integer, CodeAddress>();
+    HashMap<Integer, CodeAddress> unprocessed_relative_goto_addr =
+            new HashMap<Integer, CodeAddress>();
 
     // fill-array-data data
     int fill_data_reg;
     String fill_array_data_type;
-    Vector<Number> fill_array_data_values;
+    ArrayList<Number> fill_array_data_values;
 
     // packed-switch and sparse-switch data
     int switch_reg;
-    Vector<Object> switch_targets;
+    ArrayList<Object> switch_targets;
     IntList switch_keys;
     int packed_switch_first_key;
     int packed_switch_current_key;
@@ -165,7 +164,7 @@ public class DAsm {
      * holds sparse-switch, packed-switch and fill-array-data data blocks to be
      * added at the end of method
      */
-    Vector<DalvInsn> data_blocks = new Vector<DalvInsn>();
+    ArrayList<DalvInsn> data_blocks = new ArrayList<DalvInsn>();
 
     /**
      * Returns the number of warnings/errors encountered while parsing a file. 0
@@ -286,7 +285,7 @@ public class DAsm {
         boolean found = false;
         // search for duplicates
         for (int i = 0; i < sz; i++) {
-            String s = interfaces.elementAt(i);
+            String s = interfaces.get(i);
             if (s.compareTo(name) == 0) {
                 found = true;
                 break;
@@ -397,7 +396,7 @@ public class DAsm {
         output_finisher = null;
         throw_list.clear();
         unprocessed_relative_goto_addr.clear();
-        labels_table = new Hashtable<String, LabelTableEntry>();
+        labels_table = new HashMap<String, LabelTableEntry>();
         catch_builder = new DasmCatchBuilder(labels_table);
         current_insn_number = 0;
         regs_count = 1;
@@ -422,7 +421,7 @@ public class DAsm {
         // end of method
         int sz = data_blocks.size();
         for (int i = 0; i < sz; i++) {
-            addInsn(data_blocks.elementAt(i));
+            addInsn(data_blocks.get(i));
         }
         data_blocks.clear();
 
@@ -430,12 +429,9 @@ public class DAsm {
         if (unprocessed_relative_goto_addr.size() != 0) {
             report_error("Relative forward jump offset too big.");
         }
-        Enumeration<String> e = labels_table.keys();
-        while (e.hasMoreElements()) {
-            String key = e.nextElement();
-            LabelTableEntry lte = labels_table.get(key);
-            if (lte.planted == false) {
-                report_error("Label " + key + " not found.");
+        for (Map.Entry<String, LabelTableEntry> e : labels_table.entrySet()) {
+            if (e.getValue().planted == false) {
+                report_error("Label " + e.getKey() + " not found.");
             }
         }
 
@@ -1278,7 +1274,7 @@ public class DAsm {
         }
 
         fill_array_data_type = type;
-        fill_array_data_values = new Vector<Number>();
+        fill_array_data_values = new ArrayList<Number>();
     }
 
     /**
@@ -1300,7 +1296,7 @@ public class DAsm {
                 + fill_array_data_type));
         for (int i = 0; i < sz; i++) {
             Constant constant;
-            Number num = fill_array_data_values.elementAt(i);
+            Number num = fill_array_data_values.get(i);
             if (arrayType == CstType.LONG_ARRAY) {
                 constant = CstLong.make(num.longValue());
             } else if (arrayType == CstType.FLOAT_ARRAY) {
@@ -1363,7 +1359,7 @@ public class DAsm {
 
         packed_switch_first_key = first_key;
         packed_switch_current_key = 0;
-        switch_targets = new Vector<Object>();
+        switch_targets = new ArrayList<Object>();
         switch_keys = new IntList();
     }
 
@@ -1405,7 +1401,7 @@ public class DAsm {
             throwDasmError("Bad arguments for sparse-switch (" + reg + ")");
         }
 
-        switch_targets = new Vector<Object>();
+        switch_targets = new ArrayList<Object>();
         switch_keys = new IntList();
     }
 
@@ -1440,7 +1436,7 @@ public class DAsm {
 
         CodeAddress targets[] = new CodeAddress[sz];
         for (int i = 0; i < sz; i++) {
-            Object o = switch_targets.elementAt(i);
+            Object o = switch_targets.get(i);
             CodeAddress addr;
             if (o instanceof String) {
                 String t = (String) o;
@@ -1503,7 +1499,7 @@ public class DAsm {
     /**
      * Creates TypeList from list of types
      */
-    protected TypeList createTypeListFromStrings(Vector<String> strings) {
+    protected TypeList createTypeListFromStrings(ArrayList<String> strings) {
         StdTypeList tl;
 
         if (strings.size() == 0)
@@ -1512,7 +1508,7 @@ public class DAsm {
             int sz = strings.size();
             tl = new StdTypeList(sz);
             for (int i = 0; i < sz; i++) {
-                tl.set(i, Type.internClassName(strings.elementAt(i)));
+                tl.set(i, Type.internClassName(strings.get(i)));
             }
         }
         return tl;
@@ -25,10 +25,11 @@ import com.android.dx.rop.type.Type;
 
 import dasm.DAsm.LabelTableEntry;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Vector;
 
 /**
  * Constructor of (@link CatchTable) instances from table of labels and list of
@@ -44,6 +45,9 @@ public class DasmCatchBuilder implements CatchBuilder {
 
         String from;
         String to;
+        // the enumeration order of this table is the order of the handlers
+        // in the generated code, so it must stay a Hashtable for the output
+        // to be the same as before
         Hashtable<CstType, String> type_branch = 
                 new Hashtable<CstType, String>();
 
@@ -96,10 +100,10 @@ public class DasmCatchBuilder implements CatchBuilder {
         }
     }
 
-    private Vector<UnprocessedCatch> unprocessed_catches = 
-            new Vector<UnprocessedCatch>();
+    private ArrayList<UnprocessedCatch> unprocessed_catches = 
+            new ArrayList<UnprocessedCatch>();
     
-    private Hashtable<String, LabelTableEntry> labels_table;
+    private HashMap<String, LabelTableEntry> labels_table;
 
     /**
      * Constructs an instance.
@@ -107,7 +111,7 @@ public class DasmCatchBuilder implements CatchBuilder {
      * @param labels_table
      *            holds list of labels defined in method being processed
      */
-    public DasmCatchBuilder(Hashtable<String, LabelTableEntry> labels_table) {
+    public DasmCatchBuilder(HashMap<String, LabelTableEntry> labels_table) {
         this.labels_table = labels_table;
     }
 
@@ -118,7 +122,7 @@ public class DasmCatchBuilder implements CatchBuilder {
         int sz = unprocessed_catches.size();
         HashSet<Type> result = new HashSet<Type>(sz);
         for (int i = 0; i < sz; i++) {
-            Enumeration<CstType> keys = unprocessed_catches.elementAt(i)
+            Enumeration<CstType> keys = unprocessed_catches.get(i)
                     .type_branch.keys();
             while (keys.hasMoreElements()) {
                 result.add(keys.nextElement().getClassType());
@@ -149,7 +153,7 @@ public class DasmCatchBuilder implements CatchBuilder {
     public void add(String exception, String start, String end, String branch) {
         int sz = unprocessed_catches.size();
         for (int i = 0; i < sz; i++) {
-            UnprocessedCatch uc = unprocessed_catches.elementAt(i);
+            UnprocessedCatch uc = unprocessed_catches.get(i);
             if (uc.from.compareToIgnoreCase(start) == 0) {
                 if (uc.to.compareToIgnoreCase(end) != 0)
                     throw new RuntimeException(
@@ -174,7 +178,7 @@ public class DasmCatchBuilder implements CatchBuilder {
         int sz = unprocessed_catches.size();
         CatchTable result = new CatchTable(sz);
         for (int i = 0; i < sz; i++) {
-            UnprocessedCatch uc = unprocessed_catches.elementAt(i);
+            UnprocessedCatch uc = unprocessed_catches.get(i);
             LabelTableEntry lte = labels_table.get(uc.from);
             // get "from" address
             if (lte == null || lte.planted == false)
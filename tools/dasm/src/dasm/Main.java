@@ -57,6 +57,11 @@ public class Main {
      */
     private static boolean generateLineNumbers = false;
 
+    /**
+     * number of files assembled at once
+     */
+    private static int threads = 1;
+
     private static void incompleteOption(String opt) {
         System.err.println("Command line option " + opt
                 + " required argument missed");
@@ -80,6 +85,21 @@ public class Main {
      *            is the name of the file containing the DAsm source code.
      */
     public static void assemble(String fname) {
+        assemble(fname, destPath);
+    }
+
+    /**
+     * Called to assemble a single file. Can be called from several threads
+     * at once.
+     * 
+     * @param fname
+     *            is the name of the file containing the DAsm source code.
+     * @param destPath
+     *            path to place the .dex file, or null for the current
+     *            directory
+     * @return true if the .dex file was generated
+     */
+    public static boolean assemble(String fname, String destPath) {
         DAsm dAsm = new DAsm();
 
         // read and parse .d file
@@ -95,7 +115,7 @@ public class Main {
             if (DEBUG) e.printStackTrace();
             System.err.println("Exception <" + e.getClass().getName() + ">"
                     + e.getMessage() + " while reading and parsing " + fname);
-            return;
+            return false;
 
         } finally {
             close(inp);
@@ -104,7 +124,7 @@ public class Main {
         if (dAsm.errorCount() > 0) {
             System.err.println("Found " + dAsm.errorCount() + " errors "
                     + " while reading and parsing " + fname);
-            return;
+            return false;
         }
 
         String class_path[] = Utils
@@ -141,7 +161,7 @@ public class Main {
 
             if (!dest.isDirectory()) {
                 System.err.println("Cannot create directory " + dest_dir);
-                return;
+                return false;
             }
         }
 
@@ -164,13 +184,14 @@ public class Main {
             hr_file.delete();
             out_file.delete();
 
-            return;
+            return false;
         } finally {
             close(hr_outp);
             close(outp);
         }
 
         System.out.println("Generated: " + out_file.getPath());
+        return true;
     }
 
     private static void close(Closeable c) {
@@ -217,25 +238,84 @@ public class Main {
                     incompleteOption("-e");
                 else
                     encoding = args[i];
+            } else if (args[i].equals("-j")) {
+                if (++i >= args.length)
+                    incompleteOption("-j");
+                else
+                    threads = parseThreads(args[i]);
             } else {
                 files[num_files++] = args[i];
             }
         }
 
+        boolean batch = threads > 1;
         for (i = 0; i < num_files; i++) {
-            assemble(files[i]);
+            batch |= files[i].equals("-");
+        }
+        if (!batch) {
+            for (i = 0; i < num_files; i++) {
+                assemble(files[i]);
+            }
+            return;
+        }
+
+        BatchAssembler assembler = new BatchAssembler(threads, destPath);
+        try {
+            for (i = 0; i < num_files; i++) {
+                if (files[i].equals("-")) {
+                    submitFromInput(assembler);
+                } else {
+                    assembler.submit(files[i]);
+                }
+            }
+            if (assembler.finish() > 0) System.exit(-1);
+        } catch (Exception e) {
+            if (DEBUG) e.printStackTrace();
+            System.err.println("Exception <" + e.getClass().getName() + ">"
+                    + e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    private static int parseThreads(String value) {
+        int n = 0;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+        }
+        if (n < 1) {
+            System.err.println("Bad number of threads " + value);
+            System.exit(-1);
+        }
+        return n;
+    }
+
+    /**
+     * Queues the files named on standard input, one per line, until the end
+     * of the input. Lets a build keep one dasm process for all its files.
+     */
+    private static void submitFromInput(BatchAssembler assembler)
+            throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() != 0) assembler.submit(line);
         }
     }
 
     static void printUsage() {
         System.err
-                .println("dasm [-d <outpath>] [-g] [-h] [-e <encoding>] <file>"
-                        + "[<file> ...]\n\n"
+                .println("dasm [-d <outpath>] [-g] [-h] [-e <encoding>] "
+                        + "[-j <threads>] <file> [<file> ...]\n\n"
                         + "  -g - autogenerate linenumbers\n"
                         + "  -e - codepage for inputfile encoding\n"
                         + "  -d - path for generated classfiles\n"
                         + "  -h - generate human-readable output\n"
-                        + "  file  - sourcefile\n"
+                        + "  -j - number of files assembled at once\n"
+                        + "  file  - sourcefile, or - to read the names of "
+                        + "sourcefiles from standard input\n"
                         + "or: dasm -version\n"
                         + "or: dasm -help");
     }
@@ -16,15 +16,21 @@
 
 package dasm;
 
-import java.util.Hashtable;
+import java.util.HashMap;
 
 import java_cup.runtime.token;
 
 class ReservedWords {
-    static Hashtable<String, token> reserved_words;
+    static HashMap<String, token> reserved_words;
 
+    /**
+     * Returns a new token for a reserved word, or null. The parser stores its
+     * state in the tokens it shifts, so the tokens of the table are never
+     * handed out: they are shared by all the files assembled in a process.
+     */
     public static token get(String name) {
-        return (token) reserved_words.get(name);
+        token tok = reserved_words.get(name);
+        return tok == null ? null : new token(tok.sym);
     }
 
     public static boolean contains(String name) {
@@ -32,7 +38,7 @@ class ReservedWords {
     }
 
     static {
-        reserved_words = new Hashtable<String, token>();
+        reserved_words = new HashMap<String, token>();
 
         // Dasm directives
         reserved_words.put(".annotation", new token(sym.DANNOTATION));
@@ -22,7 +22,7 @@ import dasm.tokens.relative_number_token;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Hashtable;
+import java.util.HashMap;
 
 import java_cup.runtime.int_token;
 import java_cup.runtime.str_token;
@@ -73,7 +73,12 @@ class Scanner {
     }
 
 
-    protected Reader inputReader;
+    /**
+     * whole source file, read up front
+     */
+    protected char[] input;
+    protected int inputLength;
+    protected int inputPos;
 
     /**
      * next character in input stream
@@ -82,56 +87,63 @@ class Scanner {
 
     protected CharBuffer charBuf = new CharBuffer();
 
-    /**
-     * Whitespace characters
-     */
-    protected static final String WHITESPACE = " \n\t\r";
-
-    /**
-     * Separator characters
-     */
-    protected static final String SEPARATORS = WHITESPACE + ":=" + ",";
-
     /**
      * error reporting
      */
     public int line_num, token_line_num, char_num;
-    public StringBuffer line;
 
     /**
      * Holds new variables defined by .set directive
      */
-    public Hashtable dict = new Hashtable();
+    public HashMap<String, token> dict = new HashMap<String, token>();
 
     public Scanner(Reader i) throws IOException, DasmError {
-        inputReader = i;
+        readInput(i);
         line_num = 1;
         char_num = 0;
-        line = new StringBuffer();
         nextChar = 0;
         skipEmptyLines();
         if (nextChar == -1) throw new DasmError("empty source file");
     }
 
+    /**
+     * Reads the whole source into an array, so that the tokenizer does not
+     * go through the reader for every character
+     */
+    private void readInput(Reader reader) throws IOException {
+        input = new char[8192];
+        int n;
+        while ((n = reader.read(input, inputLength,
+                input.length - inputLength)) != -1) {
+            inputLength += n;
+            if (inputLength == input.length) {
+                char tmp[] = new char[input.length * 2];
+                System.arraycopy(input, 0, tmp, 0, inputLength);
+                input = tmp;
+            }
+        }
+        inputPos = 0;
+    }
+
     /**
      * Checks if a character code is a whitespace character
      */
     protected static boolean isWhitespace(int c) {
-        return (WHITESPACE.indexOf(c) != -1);
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
     }
 
     /**
      * Checks if a character code is a separator character
      */
     protected static boolean isSeparator(int c) {
-        return (c == -1 || SEPARATORS.indexOf(c) != -1);
+        return c == -1 || isWhitespace(c) || c == ':' || c == '=' || c == ',';
     }
 
     /**
      * Gets next char from input
      */
     protected void readNextChar() throws IOException {
-        nextChar = inputReader.read();
+        nextChar = inputPos < inputLength ? input[inputPos++] : -1;
         switch (nextChar) {
         case -1: // EOF
             if (char_num == 0) {
@@ -145,11 +157,9 @@ class Scanner {
             char_num = 0;
             break;
         default:
-            line.append((char) nextChar);
             char_num++;
-            return;
+            break;
         }
-        line.setLength(0);
     }
 
     /**
@@ -291,7 +301,7 @@ class Scanner {
 
                     if (str.charAt(0) == '$') {
                         String s = str.substring(1);
-                        Object v;
+                        token v;
                         int n = 10;
                         boolean neg = false;
                         switch (s.charAt(0)) {
@@ -316,7 +326,7 @@ class Scanner {
                             return new relative_number_token(sym.Relative, n);
                         }
                         // Do variable substitution
-                        if ((v = dict.get(s)) != null) return (token) v;
+                        if ((v = dict.get(s)) != null) return v;
                     } // not begin from '$'
                 } // !only_name
                 // Unrecognized string token (e.g. a classname)
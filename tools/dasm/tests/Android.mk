@@ -0,0 +1,29 @@
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+# Only compile source java files in this lib
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+# the digests of the .dex files generated before the batch assembler
+LOCAL_JAVA_RESOURCE_DIRS := res
+
+LOCAL_MODULE := dasm-tests
+LOCAL_MODULE_TAGS := optional
+LOCAL_JAVA_LIBRARIES := dasm dx junit
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
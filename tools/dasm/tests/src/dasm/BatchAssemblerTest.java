@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dasm;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Unit tests for {@link BatchAssembler}. Assembles the checked-in .d sources one by one and in a
+ * batch, and checks that both ways generate the .dex files the dasm of before batching did, as
+ * recorded in expected-dex-digests.txt.
+ */
+public class BatchAssemblerTest extends TestCase {
+
+    private static final int THREADS = 4;
+    private static final String EXPECTED_DIGESTS = "expected-dex-digests.txt";
+
+    private File mSingleDir;
+    private File mBatchDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSingleDir = createTempDir("single");
+        mBatchDir = createTempDir("batch");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mSingleDir);
+        delete(mBatchDir);
+        super.tearDown();
+    }
+
+    public void testReservedWordsNotShared() {
+        assertNotNull(ReservedWords.get("public"));
+        assertNotSame(ReservedWords.get("public"), ReservedWords.get("public"));
+        assertNull(ReservedWords.get("not_reserved"));
+    }
+
+    public void testFinish_failures() throws Exception {
+        BatchAssembler assembler = new BatchAssembler(THREADS, mBatchDir.getPath());
+        assembler.submit(new File(mSingleDir, "missing.d").getPath());
+        assertEquals(1, assembler.finish());
+    }
+
+    public void testSameOutputAsBefore() throws Exception {
+        List<String> sources = new ArrayList<String>();
+        for (File dir : getSourceDirs()) {
+            findSources(dir, sources);
+        }
+        assertFalse("no .d sources found, set -Ddasm.test.sources", sources.isEmpty());
+        TreeMap<String, String> expected = readExpectedDigests();
+
+        for (String source : sources) {
+            assertTrue(source, Main.assemble(source, mSingleDir.getPath()));
+        }
+        checkDigests(expected, mSingleDir);
+
+        BatchAssembler assembler = new BatchAssembler(THREADS, mBatchDir.getPath());
+        for (String source : sources) {
+            assembler.submit(source);
+        }
+        assertEquals(0, assembler.finish());
+        checkDigests(expected, mBatchDir);
+    }
+
+    private static void checkDigests(TreeMap<String, String> expected, File dir)
+            throws IOException {
+        TreeMap<String, File> actual = listFiles(dir);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String name : expected.keySet()) {
+            assertEquals(name + " differs", expected.get(name), digest(actual.get(name)));
+        }
+    }
+
+    /**
+     * @return the expected digests, by path of the .dex file relative to the output directory
+     */
+    private TreeMap<String, String> readExpectedDigests() throws IOException {
+        InputStream in = getClass().getResourceAsStream(EXPECTED_DIGESTS);
+        assertNotNull("missing " + EXPECTED_DIGESTS, in);
+        TreeMap<String, String> digests = new TreeMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                // sha1sum format: digest, two spaces, path
+                int space = line.indexOf(' ');
+                digests.put(line.substring(space + 2).replace('/', File.separatorChar),
+                        line.substring(0, space));
+            }
+        } finally {
+            reader.close();
+        }
+        return digests;
+    }
+
+    /**
+     * The directories searched for .d files: the dasm test sources and the vm-tests.
+     */
+    private static List<File> getSourceDirs() {
+        List<File> dirs = new ArrayList<File>();
+        String paths = System.getProperty("dasm.test.sources");
+        if (paths != null) {
+            for (String path : paths.split(File.pathSeparator)) {
+                dirs.add(new File(path));
+            }
+        } else {
+            File cts = new File(System.getenv("ANDROID_BUILD_TOP"), "cts");
+            dirs.add(new File(cts, "tools/dasm/test"));
+            dirs.add(new File(cts, "tools/vm-tests-tf/src"));
+        }
+        return dirs;
+    }
+
+    private static void findSources(File dir, List<String> sources) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findSources(file, sources);
+            } else if (file.getName().endsWith(".d")) {
+                sources.add(file.getPath());
+            }
+        }
+    }
+
+    /**
+     * @return the files under dir, by path relative to dir
+     */
+    private static TreeMap<String, File> listFiles(File dir) {
+        TreeMap<String, File> files = new TreeMap<String, File>();
+        listFiles(dir, "", files);
+        return files;
+    }
+
+    private static void listFiles(File dir, String prefix, TreeMap<String, File> files) {
+        for (File file : dir.listFiles()) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                listFiles(file, name + File.separator, files);
+            } else {
+                files.put(name, file);
+            }
+        }
+    }
+
+    private static String digest(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile("dasm-" + prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
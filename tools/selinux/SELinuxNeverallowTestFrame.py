@@ -24,12 +24,7 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.testtype.DeviceTestCase;
 import com.android.tradefed.testtype.IBuildReceiver;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.FileOutputStream;
 import java.lang.String;
 import java.net.URL;
 import java.util.Scanner;
@@ -46,33 +41,16 @@ public class SELinuxNeverallowRulesTest extends DeviceTestCase {
      */
     private ITestDevice mDevice;
 
-    private File copyResourceToTempFile(String resName) throws IOException {
-        InputStream is = this.getClass().getResourceAsStream(resName);
-        File tempFile = File.createTempFile("SELinuxHostTest", ".tmp");
-        FileOutputStream os = new FileOutputStream(tempFile);
-        int rByte = 0;
-        while ((rByte = is.read()) != -1) {
-            os.write(rByte);
-        }
-        os.flush();
-        os.close();
-        tempFile.deleteOnExit();
-        return tempFile;
-    }
-
     @Override
     protected void setUp() throws Exception {
         super.setUp();
         mDevice = getDevice();
 
-        /* retrieve the sepolicy-analyze executable from jar */
-        sepolicyAnalyze = copyResourceToTempFile("/sepolicy-analyze");
-        sepolicyAnalyze.setExecutable(true);
+        /* retrieve the sepolicy-analyze executable from jar, once per run */
+        sepolicyAnalyze = SELinuxTools.getTool("sepolicy-analyze");
 
-        /* obtain sepolicy file from running device */
-        devicePolicyFile = File.createTempFile("sepolicy", ".tmp");
-        devicePolicyFile.deleteOnExit();
-        mDevice.pullFile("/sys/fs/selinux/policy", devicePolicyFile);
+        /* obtain sepolicy file from running device, once per device */
+        devicePolicyFile = SELinuxTools.forDevice(mDevice).getDevicePolicyFile();
     }
 """
 src_body = ""
@@ -84,20 +62,9 @@ src_method = """
         String neverallowRule = "$NEVERALLOW_RULE_HERE$";
 
         /* run sepolicy-analyze neverallow check on policy file using given neverallow rules */
-        ProcessBuilder pb = new ProcessBuilder(sepolicyAnalyze.getAbsolutePath(),
+        String errorString = SELinuxTools.run(sepolicyAnalyze.getAbsolutePath(),
                 devicePolicyFile.getAbsolutePath(), "neverallow", "-n",
                 neverallowRule);
-        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        p.waitFor();
-        BufferedReader result = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        StringBuilder errorString = new StringBuilder();
-        while ((line = result.readLine()) != null) {
-            errorString.append(line);
-            errorString.append("\\n");
-        }
         assertTrue("The following errors were encountered when validating the SELinux"
                    + "neverallow rule:\\n" + neverallowRule + "\\n" + errorString,
                    errorString.length() == 0);
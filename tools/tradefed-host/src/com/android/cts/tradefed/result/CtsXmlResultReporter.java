@@ -19,6 +19,7 @@ package com.android.cts.tradefed.result;
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
 import com.android.cts.tradefed.testtype.CtsTest;
+import com.android.cts.tradefed.util.InvocationTrace;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -64,6 +65,8 @@ public class CtsXmlResultReporter
 
     public static final String CTS_RESULT_DIR = "cts-result-dir";
     static final String TEST_RESULT_FILE_NAME = "testResult.xml";
+    static final String TRACE_FILE_NAME = "invocation_trace.json";
+    static final String TRACE_SUMMARY_FILE_NAME = "invocation_trace_summary.txt";
     static final String CTS_RESULT_FILE_VERSION = "4.4";
     private static final String[] CTS_RESULT_RESOURCES = {"cts_result.xsl", "cts_result.css",
         "logo.gif", "newrule-green.png"};
@@ -101,6 +104,19 @@ public class CtsXmlResultReporter
     @Option(name = "use-log-saver", description = "Also saves generated result XML with log saver")
     private boolean mUseLogSaver = false;
 
+    @Option(name = "invocation-trace", description = "Record where the invocation time goes, " +
+            "and save it in the result directory as a Chrome trace and a summary.")
+    private boolean mInvocationTrace = false;
+
+    @Option(name = "stream-result-archive", description = "Compress the result files into the " +
+            "result zip as they are written, on several threads, instead of zipping the result " +
+            "directory once the invocation ends.")
+    private boolean mStreamResultArchive = false;
+
+    @Option(name = "result-server-resumable", description = "Upload results to the result " +
+            "server in resumable chunks instead of a single form post.")
+    private boolean mResultServerResumable = false;
+
     protected IBuildInfo mBuildInfo;
     private String mStartTime;
     private String mDeviceSerial;
@@ -114,6 +130,10 @@ public class CtsXmlResultReporter
     private String mSuiteName;
     private String mReferenceUrl;
     private ILogSaver mLogSaver;
+    private long mTraceStartNanos = 0;
+    /** Whether the invocation trace records until this invocation ends. */
+    private boolean mTraceRecording = false;
+    private ResultArchive mArchive = null;
 
     public void setReportDir(File reportDir) {
         mReportDir = reportDir;
@@ -129,6 +149,10 @@ public class CtsXmlResultReporter
      */
     @Override
     public void invocationStarted(IBuildInfo buildInfo) {
+        if (mInvocationTrace) {
+            mTraceStartNanos = InvocationTrace.startRecording();
+            mTraceRecording = true;
+        }
         mBuildInfo = buildInfo;
         if (!(buildInfo instanceof IFolderBuildInfo)) {
             throw new IllegalArgumentException("build info is not a IFolderBuildInfo");
@@ -160,6 +184,7 @@ public class CtsXmlResultReporter
         }
         mSuiteName = ctsBuildHelper.getSuiteName();
         mReporter = new ResultReporter(mResultServer, mSuiteName);
+        mReporter.setResumable(mResultServerResumable);
 
         ctsBuild.addBuildAttribute(CTS_RESULT_DIR, mReportDir.getAbsolutePath());
 
@@ -168,6 +193,17 @@ public class CtsXmlResultReporter
         File rootLogDir = getBuildHelper(ctsBuild).getLogsDir();
         mLogDir = new File(rootLogDir, mReportDir.getName());
         mLogDir.mkdirs();
+
+        if (mStreamResultArchive) {
+            try {
+                mArchive = new ResultArchive(getZipFile(mReportDir), mReportDir.getName());
+                // the formatting files don't depend on the results, so compress them right away
+                copyFormattingFiles(mReportDir);
+            } catch (IOException e) {
+                CLog.w("Failed to create result archive, zipping results at the end: %s",
+                        e.toString());
+            }
+        }
     }
 
     /**
@@ -347,6 +383,20 @@ public class CtsXmlResultReporter
      */
     @Override
     public void invocationEnded(long elapsedTime) {
+        try {
+            reportResults(elapsedTime);
+        } finally {
+            if (mTraceRecording) {
+                mTraceRecording = false;
+                InvocationTrace.stopRecording(mDeviceSerial);
+            }
+        }
+    }
+
+    /**
+     * Writes, saves and uploads the results of the invocation, and its trace.
+     */
+    private void reportResults(long elapsedTime) {
         if (mReportDir == null || mStartTime == null) {
             // invocationStarted must have failed, abort
             CLog.w("Unable to create XML report");
@@ -354,7 +404,12 @@ public class CtsXmlResultReporter
         }
 
         File reportFile = getResultFile(mReportDir);
-        createXmlResult(reportFile, mStartTime, elapsedTime);
+        InvocationTrace.Span span = InvocationTrace.begin(mDeviceSerial, "serializeResults");
+        try {
+            createXmlResult(reportFile, mStartTime, elapsedTime);
+        } finally {
+            span.end();
+        }
         if (mUseLogSaver) {
             FileInputStream fis = null;
             try {
@@ -367,13 +422,78 @@ public class CtsXmlResultReporter
                 StreamUtil.close(fis);
             }
         }
-        copyFormattingFiles(mReportDir);
+        try {
+            File gzipResultFile = null;
+            span = InvocationTrace.begin(mDeviceSerial, "zipResults");
+            try {
+                gzipResultFile = finishArchive(reportFile);
+            } finally {
+                span.end();
+            }
+
+            span = InvocationTrace.begin(mDeviceSerial, "uploadResults");
+            try {
+                if (gzipResultFile != null) {
+                    mReporter.reportCompressedResult(gzipResultFile, mReferenceUrl);
+                } else {
+                    mReporter.reportResult(reportFile, mReferenceUrl);
+                }
+            } catch (IOException e) {
+                CLog.e(e);
+            } finally {
+                span.end();
+            }
+        } finally {
+            if (mArchive != null) {
+                mArchive.close();
+                mArchive = null;
+            }
+        }
+
+        if (mInvocationTrace) {
+            writeInvocationTrace(mReportDir);
+        }
+    }
+
+    /**
+     * Writes the zip of the results, from the archive built during the invocation if there is
+     * one, and otherwise by zipping the result directory.
+     *
+     * @return the gzipped result XML taken from the archive, to upload, or null if the result XML
+     *     needs to be compressed for the upload
+     */
+    private File finishArchive(File reportFile) {
+        if (mArchive != null) {
+            try {
+                mArchive.finish(mReportDir);
+                if (!mReporter.isEnabled()) {
+                    return null;
+                }
+                return mArchive.writeGzip(reportFile.getName());
+            } catch (IOException e) {
+                Log.w(LOG_TAG, String.format("Failed to write result archive, zipping %s: %s",
+                        mReportDir.getName(), e));
+            }
+        } else {
+            copyFormattingFiles(mReportDir);
+        }
         zipResults(mReportDir);
+        return null;
+    }
 
+    /**
+     * Saves the spans recorded since the invocation started in the results directory. They are
+     * written last, to include the zip and upload of the results, so they aren't in the zip.
+     */
+    private void writeInvocationTrace(File resultsDir) {
         try {
-            mReporter.reportResult(reportFile, mReferenceUrl);
+            InvocationTrace.writeChromeTrace(new File(resultsDir, TRACE_FILE_NAME),
+                    mDeviceSerial, mTraceStartNanos);
+            InvocationTrace.writeSummary(new File(resultsDir, TRACE_SUMMARY_FILE_NAME),
+                    mDeviceSerial, mTraceStartNanos);
+            logResult("Saved invocation trace to %s", TRACE_FILE_NAME);
         } catch (IOException e) {
-            CLog.e(e);
+            Log.w(LOG_TAG, String.format("Failed to write invocation trace: %s", e));
         }
     }
 
@@ -393,6 +513,10 @@ public class CtsXmlResultReporter
         OutputStream stream = null;
         try {
             stream = createOutputResultStream(reportFile);
+            if (mArchive != null) {
+                // compress the XML as it is written, rather than reading it back to zip it
+                stream = mArchive.createEntryStream(reportFile.getName(), stream);
+            }
             KXmlSerializer serializer = new KXmlSerializer();
             serializer.setOutput(stream, "UTF-8");
             serializer.startDocument("UTF-8", false);
@@ -462,6 +586,9 @@ public class CtsXmlResultReporter
                 File resultFile = new File(resultsDir, resultFileName);
                 try {
                     FileUtil.writeToFile(configStream, resultFile);
+                    if (mArchive != null) {
+                        mArchive.addFile(resultFileName, resultFile);
+                    }
                 } catch (IOException e) {
                     Log.w(LOG_TAG, String.format("Failed to write %s to file", resultFileName));
                 }
@@ -478,15 +605,20 @@ public class CtsXmlResultReporter
      */
     private void zipResults(File resultsDir) {
         try {
-            // create a file in parent directory, with same name as resultsDir
-            File zipResultFile = new File(resultsDir.getParent(), String.format("%s.zip",
-                    resultsDir.getName()));
-            FileUtil.createZip(resultsDir, zipResultFile);
+            FileUtil.createZip(resultsDir, getZipFile(resultsDir));
         } catch (IOException e) {
             Log.w(LOG_TAG, String.format("Failed to create zip for %s", resultsDir.getName()));
         }
     }
 
+    /**
+     * @return the zip of the given results directory, a file in the parent directory with the
+     *     same name as the results directory
+     */
+    private File getZipFile(File resultsDir) {
+        return new File(resultsDir.getParent(), String.format("%s.zip", resultsDir.getName()));
+    }
+
     /**
      * Get a String version of the current time.
      * <p/>
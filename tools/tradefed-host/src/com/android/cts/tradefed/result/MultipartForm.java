@@ -17,6 +17,8 @@
 package com.android.cts.tradefed.result;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,7 +29,12 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
-/** MultipartForm builds a multipart form and submits it. */
+/**
+ * MultipartForm builds a multipart form and submits it.
+ * <p/>
+ * A file added with {@link #addFormFile(String, String, File)} is streamed from disk rather than
+ * held in memory.
+ */
 class MultipartForm {
 
     private static final String FORM_DATA_BOUNDARY = "C75I55u3R3p0r73r";
@@ -39,6 +46,7 @@ class MultipartForm {
     private String mName;
     private String mFileName;
     private byte[] mData;
+    private File mFile;
 
     public MultipartForm(String serverUrl) {
         mServerUrl = serverUrl;
@@ -53,6 +61,15 @@ class MultipartForm {
         mName = name;
         mFileName = fileName;
         mData = data;
+        mFile = null;
+        return this;
+    }
+
+    public MultipartForm addFormFile(String name, String fileName, File file) {
+        mName = name;
+        mFileName = fileName;
+        mData = null;
+        mFile = file;
         return this;
     }
 
@@ -79,12 +96,26 @@ class MultipartForm {
             connection.setRequestProperty("Content-Type",
                     "multipart/form-data; boundary=" + FORM_DATA_BOUNDARY);
 
-            byte[] body = getContentBody();
-            connection.setRequestProperty("Content-Length", Integer.toString(body.length));
+            byte[] head = getContentHead();
+            byte[] tail = getContentTail();
+            long length = head.length + tail.length;
+            if (mData != null) {
+                length += mData.length;
+            } else if (mFile != null) {
+                length += mFile.length();
+            }
+            // sets the Content-Length, and streams the body instead of buffering it
+            connection.setFixedLengthStreamingMode(length);
 
             OutputStream output = connection.getOutputStream();
             try {
-                output.write(body);
+                output.write(head);
+                if (mData != null) {
+                    output.write(mData);
+                } else if (mFile != null) {
+                    writeFile(output);
+                }
+                output.write(tail);
             } finally {
                 output.close();
             }
@@ -105,7 +136,10 @@ class MultipartForm {
         return null;
     }
 
-    private byte[] getContentBody() throws IOException {
+    /**
+     * @return the part of the body before the data of the file
+     */
+    private byte[] getContentHead() {
         ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
         PrintWriter writer = new PrintWriter(new OutputStreamWriter(byteOutput));
         writer.println();
@@ -114,18 +148,40 @@ class MultipartForm {
             writeFormField(writer, formValue.getKey(), formValue.getValue());
         }
 
-        if (mData != null) {
+        if (mData != null || mFile != null) {
             writeFormFileHeader(writer, mName, mFileName);
-            writer.flush(); // Must flush here before writing to the byte stream!
-            byteOutput.write(mData);
+        }
+        writer.close();
+        return byteOutput.toByteArray();
+    }
+
+    /**
+     * @return the part of the body after the data of the file
+     */
+    private byte[] getContentTail() {
+        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(byteOutput));
+        if (mData != null || mFile != null) {
             writer.println();
         }
         writer.append("--").append(FORM_DATA_BOUNDARY).println("--");
-        writer.flush();
         writer.close();
         return byteOutput.toByteArray();
     }
 
+    private void writeFile(OutputStream output) throws IOException {
+        InputStream input = new FileInputStream(mFile);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
     private void writeFormField(PrintWriter writer, String name, String value) {
         writer.append("--").println(FORM_DATA_BOUNDARY);
         writer.append("Content-Disposition: form-data; name=\"").append(name).println("\"");
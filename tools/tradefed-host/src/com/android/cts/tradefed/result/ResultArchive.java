@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Builds the zip of a result directory while the session runs, instead of re-reading the
+ * directory once the session is done.
+ * <p/>
+ * Each entry is deflated on its own, either by a pool of threads for files added with
+ * {@link #addFile}, or while it is written for entries written through
+ * {@link #createEntryStream}. The deflated data is spooled to temporary files, which
+ * {@link #finish} then only has to copy into the zip, in the order the entries were added. The
+ * deflated data of an entry can also be wrapped into a gzip file with {@link #writeGzip},
+ * without compressing it again.
+ * <p/>
+ * The zip has the same layout as {@link FileUtil#createZip(File, File)}: the entries are in a
+ * directory named after the result directory. Zip64 isn't supported, so {@link #finish} fails
+ * for archives over 4GB, and the caller should fall back to zipping the directory.
+ */
+class ResultArchive {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_THREADS = 4;
+    private static final long MAX_ZIP32_VALUE = 0xffffffffL;
+    private static final int MAX_ZIP32_ENTRIES = 0xffff;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    private static final short VERSION = 20;
+    /** The general purpose flag for UTF-8 entry names. */
+    private static final short UTF8_FLAG = 0x800;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+
+    private static int sSerial = 0;
+
+    /** The deflated data of an entry. */
+    private static class Spool {
+        final File mFile;
+        final long mCrc;
+        final long mSize;
+        final long mCompressedSize;
+
+        Spool(File file, long crc, long size) {
+            mFile = file;
+            mCrc = crc;
+            mSize = size;
+            mCompressedSize = file == null ? 0 : file.length();
+        }
+    }
+
+    private static class Entry {
+        final String mName;
+        final long mTime;
+        final Future<Spool> mSpool;
+
+        Entry(String name, long time, Future<Spool> spool) {
+            mName = name;
+            mTime = time;
+            mSpool = spool;
+        }
+    }
+
+    private final File mZipFile;
+    private final String mRootName;
+    private final File mSpoolDir;
+    private final ExecutorService mExecutor;
+    /** The entries in the order they are written to the zip. */
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final Set<String> mNames = new HashSet<>();
+
+    /**
+     * @param zipFile the zip to create
+     * @param rootName the name of the directory holding the entries in the zip
+     */
+    ResultArchive(File zipFile, String rootName) throws IOException {
+        mZipFile = zipFile;
+        mRootName = rootName;
+        mSpoolDir = FileUtil.createTempDir("result-archive");
+        final int serial = nextSerial();
+        mExecutor = Executors.newFixedThreadPool(
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ResultArchive-" + serial);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        addDirectory("");
+    }
+
+    private static synchronized int nextSerial() {
+        return sSerial++;
+    }
+
+    /**
+     * Deflates a file in the background, and adds it to the zip.
+     *
+     * @param name the path of the entry relative to the result directory
+     * @param file the file, which must not change anymore
+     */
+    synchronized void addFile(String name, final File file) {
+        if (!mNames.add(name)) {
+            return;
+        }
+        addParentDirectories(name);
+        final File spoolFile = new File(mSpoolDir, Integer.toString(mEntries.size()));
+        Future<Spool> spool = mExecutor.submit(new Callable<Spool>() {
+            @Override
+            public Spool call() throws IOException {
+                try (InputStream input = new FileInputStream(file)) {
+                    return deflate(input, spoolFile);
+                }
+            }
+        });
+        mEntries.add(new Entry(name, file.lastModified(), spool));
+    }
+
+    /**
+     * Returns a stream that writes to the given stream, and deflates what is written into an
+     * entry of the zip. The entry is complete once the stream is closed, which must happen before
+     * {@link #finish} is called.
+     *
+     * @param name the path of the entry relative to the result directory
+     * @param output the stream to write the data to
+     */
+    synchronized OutputStream createEntryStream(String name, OutputStream output)
+            throws IOException {
+        mNames.add(name);
+        addParentDirectories(name);
+        File spoolFile = new File(mSpoolDir, Integer.toString(mEntries.size()));
+        EntryStream entryStream = new EntryStream(output, spoolFile);
+        mEntries.add(new Entry(name, System.currentTimeMillis(), entryStream.mSpool));
+        return entryStream;
+    }
+
+    /**
+     * Adds the files of the result directory that weren't added yet, waits for all entries to
+     * be deflated, and writes the zip.
+     *
+     * @param resultDir the result directory
+     */
+    void finish(File resultDir) throws IOException {
+        addRemainingFiles(resultDir, "");
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries);
+        }
+        if (entries.size() > MAX_ZIP32_ENTRIES) {
+            throw new IOException("Too many entries for a zip without zip64");
+        }
+        ByteBuffer centralDir = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = 0;
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(mZipFile),
+                BUFFER_SIZE)) {
+            for (Entry entry : entries) {
+                Spool spool = getSpool(entry);
+                byte[] name = (mRootName + "/" + entry.mName).getBytes(StandardCharsets.UTF_8);
+                if (offset > MAX_ZIP32_VALUE || spool.mCompressedSize > MAX_ZIP32_VALUE
+                        || spool.mSize > MAX_ZIP32_VALUE) {
+                    throw new IOException("Result archive too large for a zip without zip64");
+                }
+                short method = spool.mFile == null ? STORED : DEFLATED;
+                int dosTime = toDosTime(entry.mTime);
+
+                ByteBuffer header = ByteBuffer.allocate(30 + name.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(LOCAL_HEADER_SIGNATURE);
+                putEntryInfo(header, method, dosTime, spool, name.length);
+                header.putShort((short) 0); // extra field length
+                header.put(name);
+                output.write(header.array());
+                if (spool.mFile != null) {
+                    copy(spool.mFile, output);
+                }
+
+                centralDir = ensureCapacity(centralDir, 46 + name.length);
+                centralDir.putInt(CENTRAL_HEADER_SIGNATURE);
+                centralDir.putShort(VERSION); // version made by
+                putEntryInfo(centralDir, method, dosTime, spool, name.length);
+                centralDir.putShort((short) 0); // extra field length
+                centralDir.putShort((short) 0); // comment length
+                centralDir.putShort((short) 0); // disk number
+                centralDir.putShort((short) 0); // internal attributes
+                centralDir.putInt(0); // external attributes
+                centralDir.putInt((int) offset);
+                centralDir.put(name);
+
+                offset += header.capacity() + spool.mCompressedSize;
+            }
+            if (offset > MAX_ZIP32_VALUE) {
+                throw new IOException("Result archive too large for a zip without zip64");
+            }
+            output.write(centralDir.array(), 0, centralDir.position());
+
+            ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL_DIR_SIGNATURE);
+            end.putShort((short) 0); // disk number
+            end.putShort((short) 0); // disk of the central directory
+            end.putShort((short) entries.size());
+            end.putShort((short) entries.size());
+            end.putInt(centralDir.position());
+            end.putInt((int) offset);
+            end.putShort((short) 0); // comment length
+            output.write(end.array());
+        }
+    }
+
+    /**
+     * Writes the deflated data of an entry as a gzip file.
+     *
+     * @param name the path of the entry relative to the result directory
+     * @return the gzip file, which is deleted by {@link #close()}
+     */
+    File writeGzip(String name) throws IOException {
+        Entry entry = null;
+        synchronized (this) {
+            for (Entry e : mEntries) {
+                if (e.mName.equals(name)) {
+                    entry = e;
+                }
+            }
+        }
+        if (entry == null) {
+            throw new IOException(String.format("No entry %s in the result archive", name));
+        }
+        Spool spool = getSpool(entry);
+        File gzipFile = new File(mSpoolDir, new File(name).getName() + ".gz");
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(gzipFile),
+                BUFFER_SIZE)) {
+            // magic, deflate, no flags, no modification time, no extra flags, unknown OS
+            output.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            if (spool.mFile != null) {
+                copy(spool.mFile, output);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) spool.mCrc);
+            trailer.putInt((int) spool.mSize);
+            output.write(trailer.array());
+        }
+        return gzipFile;
+    }
+
+    /**
+     * Stops the threads and deletes the deflated data. The archive can't be used afterwards.
+     */
+    void close() {
+        mExecutor.shutdownNow();
+        FileUtil.recursiveDelete(mSpoolDir);
+    }
+
+    private Spool getSpool(Entry entry) throws IOException {
+        try {
+            return entry.mSpool.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + entry.mName, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress " + entry.mName, e.getCause());
+        }
+    }
+
+    private void addRemainingFiles(File dir, String prefix) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                addRemainingFiles(file, name + "/");
+            } else {
+                // files that were already added are skipped
+                addFile(name, file);
+            }
+        }
+    }
+
+    private void addParentDirectories(String name) {
+        int end = name.indexOf('/');
+        while (end >= 0) {
+            addDirectory(name.substring(0, end + 1));
+            end = name.indexOf('/', end + 1);
+        }
+    }
+
+    private void addDirectory(String name) {
+        if (!mNames.add(name)) {
+            return;
+        }
+        FutureTask<Spool> spool = new FutureTask<>(new Callable<Spool>() {
+            @Override
+            public Spool call() {
+                return new Spool(null, 0, 0);
+            }
+        });
+        spool.run();
+        mEntries.add(new Entry(name, System.currentTimeMillis(), spool));
+    }
+
+    private static void putEntryInfo(ByteBuffer buffer, short method, int dosTime, Spool spool,
+            int nameLength) {
+        buffer.putShort(VERSION); // version needed to extract
+        buffer.putShort(UTF8_FLAG);
+        buffer.putShort(method);
+        buffer.putInt(dosTime);
+        buffer.putInt((int) spool.mCrc);
+        buffer.putInt((int) spool.mCompressedSize);
+        buffer.putInt((int) spool.mSize);
+        buffer.putShort((short) nameLength);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                buffer.position() + size)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private static Spool deflate(InputStream input, File spoolFile) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (OutputStream output = new DeflaterOutputStream(new FileOutputStream(spoolFile),
+                deflater, BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Spool(spoolFile, crc.getValue(), size);
+    }
+
+    private static void copy(File file, OutputStream output) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // the earliest time a zip can hold, 1980-01-01 00:00
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Writes through to a stream, and deflates the data into the spool of an entry.
+     */
+    private static class EntryStream extends FilterOutputStream {
+        private final File mSpoolFile;
+        private final CRC32 mCrc = new CRC32();
+        private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final OutputStream mDeflaterOutput;
+        private long mSize = 0;
+        private boolean mClosed = false;
+        final FutureTask<Spool> mSpool = new FutureTask<>(new Callable<Spool>() {
+            @Override
+            public Spool call() {
+                return new Spool(mSpoolFile, mCrc.getValue(), mSize);
+            }
+        });
+
+        EntryStream(OutputStream output, File spoolFile) throws IOException {
+            super(output);
+            mSpoolFile = spoolFile;
+            mDeflaterOutput = new DeflaterOutputStream(new FileOutputStream(spoolFile),
+                    mDeflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCrc.update(b, off, len);
+            mDeflaterOutput.write(b, off, len);
+            mSize += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                super.close();
+            } finally {
+                try {
+                    mDeflaterOutput.close();
+                } finally {
+                    mDeflater.end();
+                    // the entry is complete, even if the data couldn't all be written
+                    mSpool.run();
+                }
+            }
+        }
+    }
+}
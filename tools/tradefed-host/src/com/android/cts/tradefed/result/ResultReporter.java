@@ -16,47 +16,115 @@
 
 package com.android.cts.tradefed.result;
 
+import com.android.tradefed.util.FileUtil;
+
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Nullable;
 
 /**
  * Class that sends a HTTP POST multipart/form-data request containing
  * the test result XML.
+ * <p/>
+ * The gzipped result XML is streamed from disk. Optionally, it is uploaded in resumable chunks
+ * with {@link ResumableUpload} instead, with the form values as query parameters.
  */
 class ResultReporter {
 
-    private static final int RESULT_XML_BYTES = 500 * 1024;
+    private static final String RESULT_FILE_NAME = "testResult.xml.gz";
+    private static final int UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
 
     private final String mServerUrl;
     private final String mSuiteName;
+    private boolean mResumable = false;
 
     ResultReporter(String serverUrl, String suiteName) {
         mServerUrl = serverUrl;
         mSuiteName = suiteName;
     }
 
+    /**
+     * Sets whether to upload the results in resumable chunks.
+     */
+    void setResumable(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    /**
+     * @return true if results are uploaded anywhere
+     */
+    boolean isEnabled() {
+        return !isEmpty(mServerUrl);
+    }
+
     public void reportResult(File reportFile, @Nullable String referenceUrl) throws IOException {
-        if (isEmpty(mServerUrl)) {
+        if (!isEnabled()) {
             return;
         }
 
-        InputStream input = new FileInputStream(reportFile);
+        File gzipFile = FileUtil.createTempFile("testResult", ".xml.gz");
         try {
-            byte[] data = IssueReporter.getBytes(input, RESULT_XML_BYTES);
-            MultipartForm multipartForm = new MultipartForm(mServerUrl)
-                    .addFormValue("suite", mSuiteName)
-                    .addFormFile("resultXml", "testResult.xml.gz", data);
-            if (!isEmpty(referenceUrl)) {
-                multipartForm.addFormValue("referenceUrl", referenceUrl);
+            InputStream input = new FileInputStream(reportFile);
+            try {
+                OutputStream output = new GZIPOutputStream(new FileOutputStream(gzipFile));
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = input.read(buffer)) >= 0) {
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
             }
-            multipartForm.submit();
+            reportCompressedResult(gzipFile, referenceUrl);
         } finally {
-            input.close();
+            gzipFile.delete();
+        }
+    }
+
+    /**
+     * Uploads a gzipped result XML.
+     */
+    public void reportCompressedResult(File gzipFile, @Nullable String referenceUrl)
+            throws IOException {
+        if (!isEnabled()) {
+            return;
         }
+
+        if (mResumable) {
+            StringBuilder url = new StringBuilder(mServerUrl);
+            url.append(mServerUrl.contains("?") ? '&' : '?');
+            url.append("suite=").append(encode(mSuiteName));
+            url.append("&fileName=").append(RESULT_FILE_NAME);
+            if (!isEmpty(referenceUrl)) {
+                url.append("&referenceUrl=").append(encode(referenceUrl));
+            }
+            new ResumableUpload(url.toString(), gzipFile, UPLOAD_CHUNK_SIZE).upload();
+            return;
+        }
+
+        MultipartForm multipartForm = new MultipartForm(mServerUrl)
+                .addFormValue("suite", mSuiteName)
+                .addFormFile("resultXml", RESULT_FILE_NAME, gzipFile);
+        if (!isEmpty(referenceUrl)) {
+            multipartForm.addFormValue("referenceUrl", referenceUrl);
+        }
+        multipartForm.submit();
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value == null ? "" : value, "UTF-8");
     }
 
     private static boolean isEmpty(String value) {
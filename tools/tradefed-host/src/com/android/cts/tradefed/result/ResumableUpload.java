@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads a file in chunks, streamed from disk, resuming after a failed chunk instead of starting
+ * over.
+ * <p/>
+ * Each chunk is sent with a PUT request carrying a {@code Content-Range: bytes first-last/total}
+ * header. The server answers 308 with a {@code Range: bytes=0-last} header naming the data it has
+ * received so far, and 200 or 201 once it has the whole file. After a failure, the upload asks
+ * the server what it has with an empty PUT carrying {@code Content-Range: bytes *}{@code /total},
+ * and continues from there.
+ */
+class ResumableUpload {
+
+    /** The status of an incomplete upload. */
+    static final int RESUME_INCOMPLETE = 308;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=0-(\\d+)");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String mUrl;
+    private final File mFile;
+    private final int mChunkSize;
+    private int mMaxAttempts = 5;
+    private long mRetryDelayMs = 1000;
+
+    /**
+     * @param url the url to upload to
+     * @param file the file to upload
+     * @param chunkSize the number of bytes to send per request
+     */
+    ResumableUpload(String url, File file, int chunkSize) {
+        mUrl = url;
+        mFile = file;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the number of failed requests after which the upload gives up, and the delay before
+     * the first retry, which doubles with every further retry.
+     */
+    void setRetries(int maxAttempts, long retryDelayMs) {
+        mMaxAttempts = maxAttempts;
+        mRetryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * Uploads the file.
+     *
+     * @throws IOException if the upload still fails after the retries
+     */
+    void upload() throws IOException {
+        long total = mFile.length();
+        long offset = 0;
+        int failures = 0;
+        boolean queryOffset = false;
+        while (true) {
+            long next;
+            try {
+                next = queryOffset ? sendChunk(0, 0, total) : sendChunk(offset,
+                        Math.min(mChunkSize, total - offset), total);
+            } catch (IOException e) {
+                failures++;
+                if (failures >= mMaxAttempts) {
+                    throw e;
+                }
+                CLog.w("Upload of %s failed at byte %d, retrying: %s", mFile.getName(), offset,
+                        e.toString());
+                sleep(mRetryDelayMs << (failures - 1));
+                queryOffset = true;
+                continue;
+            }
+            if (next < 0) {
+                return;
+            }
+            if (!queryOffset && next <= offset && total > 0) {
+                // the server didn't accept any of the chunk
+                failures++;
+                if (failures >= mMaxAttempts) {
+                    throw new IOException(String.format("Server is not accepting data of %s at "
+                            + "byte %d", mFile.getName(), offset));
+                }
+            }
+            queryOffset = false;
+            offset = next;
+        }
+    }
+
+    /**
+     * Sends a chunk of the file, or only queries the offset to continue at if the chunk is
+     * empty.
+     *
+     * @return the offset to continue at, or -1 if the upload is complete
+     */
+    private long sendChunk(long offset, long length, long total) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        try {
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            if (length > 0) {
+                connection.setRequestProperty("Content-Range", String.format("bytes %d-%d/%d",
+                        offset, offset + length - 1, total));
+            } else {
+                connection.setRequestProperty("Content-Range", "bytes */" + total);
+            }
+            connection.setFixedLengthStreamingMode(length);
+            try (OutputStream output = connection.getOutputStream()) {
+                if (length > 0) {
+                    writeChunk(output, offset, length);
+                }
+            }
+            int status = connection.getResponseCode();
+            drain(connection);
+            if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_CREATED) {
+                return -1;
+            }
+            if (status != RESUME_INCOMPLETE) {
+                throw new IOException(String.format("Upload of %s failed with status %d",
+                        mFile.getName(), status));
+            }
+            String range = connection.getHeaderField("Range");
+            if (range == null) {
+                // the server has nothing yet
+                return 0;
+            }
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            if (!matcher.matches()) {
+                throw new IOException("Invalid Range header in upload response: " + range);
+            }
+            return Long.parseLong(matcher.group(1)) + 1;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void writeChunk(OutputStream output, long offset, long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException(mFile.getName() + " changed during the upload");
+                }
+                output.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private static void drain(HttpURLConnection connection) throws IOException {
+        InputStream input = connection.getResponseCode() >= 400
+                ? connection.getErrorStream() : connection.getInputStream();
+        if (input != null) {
+            input.close();
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading", e);
+        }
+    }
+}
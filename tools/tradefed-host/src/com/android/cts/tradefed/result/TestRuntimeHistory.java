@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ArrayUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The run times of tests in previous sessions, read from the result XMLs of the results
+ * directory.
+ * <p/>
+ * The result XMLs are streamed rather than parsed into {@link TestResults}, and only the times of
+ * the requested test packages are kept, so that reading the history of a full CTS run stays
+ * cheap. Result times have a resolution of one second, so a run time is recorded as the
+ * difference of the start and end time plus one second.
+ */
+public class TestRuntimeHistory {
+
+    /** The resolution of the times in the result XML. */
+    private static final long TIME_RESOLUTION_MS = 1000;
+
+    private static final String NAME_ATTR = "name";
+    private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
+    private static final String ABI_ATTR = "abi";
+    private static final String STARTTIME_ATTR = "starttime";
+    private static final String ENDTIME_ATTR = "endtime";
+
+    /** The run times in ms of each test, per test package id. */
+    private final Map<String, Map<TestIdentifier, long[]>> mRunTimes = new HashMap<>();
+    private final Set<String> mPackageIds;
+
+    /**
+     * @param packageIds the ids of the test packages to keep the run times of, as created by
+     *     {@link AbiUtils#createId(String, String)}
+     */
+    TestRuntimeHistory(Collection<String> packageIds) {
+        mPackageIds = new HashSet<>(packageIds);
+    }
+
+    /**
+     * Reads the run times of the given test packages from the most recent sessions.
+     *
+     * @param resultsDir the directory holding a directory per session
+     * @param maxSessions the maximum number of sessions to read, most recent first
+     * @param packageIds the ids of the test packages to read the run times of
+     */
+    public static TestRuntimeHistory load(File resultsDir, int maxSessions,
+            Collection<String> packageIds) {
+        TestRuntimeHistory history = new TestRuntimeHistory(packageIds);
+        if (packageIds.isEmpty() || maxSessions <= 0) {
+            return history;
+        }
+        List<File> resultDirs = new ArrayList<>();
+        File[] dirs = resultsDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (new File(dir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME).isFile()) {
+                    resultDirs.add(dir);
+                }
+            }
+        }
+        // session directories are named after their start time, so the last ones are the newest
+        Collections.sort(resultDirs);
+        int first = Math.max(0, resultDirs.size() - maxSessions);
+        for (File dir : resultDirs.subList(first, resultDirs.size())) {
+            File resultFile = new File(dir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+            try (Reader reader = new BufferedReader(new FileReader(resultFile))) {
+                history.parse(reader);
+            } catch (IOException | ParseException e) {
+                CLog.w("Could not read test run times from %s: %s", resultFile, e.toString());
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Adds the run times in a result XML.
+     */
+    void parse(Reader xmlReader) throws ParseException {
+        new RunTimeParser().parse(xmlReader);
+    }
+
+    /**
+     * @return the recorded run times in ms of each test of the package, in session order. Tests
+     *     without history are not in the map.
+     */
+    public Map<TestIdentifier, long[]> getRunTimes(String packageId) {
+        Map<TestIdentifier, long[]> runTimes = mRunTimes.get(packageId);
+        if (runTimes == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(runTimes);
+    }
+
+    private void addRunTime(String packageId, TestIdentifier test, long runTimeMs) {
+        Map<TestIdentifier, long[]> runTimes = mRunTimes.get(packageId);
+        if (runTimes == null) {
+            runTimes = new HashMap<>();
+            mRunTimes.put(packageId, runTimes);
+        }
+        long[] testRunTimes = runTimes.get(test);
+        if (testRunTimes == null) {
+            testRunTimes = new long[] {runTimeMs};
+        } else {
+            testRunTimes = Arrays.copyOf(testRunTimes, testRunTimes.length + 1);
+            testRunTimes[testRunTimes.length - 1] = runTimeMs;
+        }
+        runTimes.put(test, testRunTimes);
+    }
+
+    /**
+     * Streams through a result XML, recording the run time of each test of a requested package.
+     */
+    private class RunTimeParser extends AbstractXmlPullParser {
+
+        @Override
+        void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+            String packageId = null;
+            LinkedList<String> suiteNames = new LinkedList<>();
+            String className = null;
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String tag = parser.getName();
+                    if (TestPackageResult.TAG.equals(tag)) {
+                        String id = AbiUtils.createId(getAttribute(parser, ABI_ATTR),
+                                getAttribute(parser, APP_PACKAGE_NAME_ATTR));
+                        packageId = mPackageIds.contains(id) ? id : null;
+                        suiteNames.clear();
+                    } else if (packageId == null) {
+                        // not a requested package
+                    } else if (TestSuite.TAG.equals(tag)) {
+                        suiteNames.addLast(getAttribute(parser, NAME_ATTR));
+                    } else if (TestCase.TAG.equals(tag)) {
+                        suiteNames.addLast(getAttribute(parser, NAME_ATTR));
+                        className = ArrayUtil.join(".", suiteNames);
+                        suiteNames.removeLast();
+                    } else if (Test.TAG.equals(tag) && className != null) {
+                        long start = TimeUtil.parseTimestamp(
+                                getAttribute(parser, STARTTIME_ATTR));
+                        long end = TimeUtil.parseTimestamp(getAttribute(parser, ENDTIME_ATTR));
+                        if (start >= 0 && end >= start) {
+                            addRunTime(packageId, new TestIdentifier(className,
+                                    getAttribute(parser, NAME_ATTR)),
+                                    end - start + TIME_RESOLUTION_MS);
+                        }
+                    }
+                } else if (eventType == XmlPullParser.END_TAG && packageId != null) {
+                    String tag = parser.getName();
+                    if (TestPackageResult.TAG.equals(tag)) {
+                        packageId = null;
+                    } else if (TestSuite.TAG.equals(tag)) {
+                        suiteNames.pollLast();
+                    } else if (TestCase.TAG.equals(tag)) {
+                        className = null;
+                    }
+                }
+                eventType = parser.next();
+            }
+        }
+    }
+}
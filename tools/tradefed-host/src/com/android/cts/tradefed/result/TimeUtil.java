@@ -15,6 +15,7 @@
  */
 package com.android.cts.tradefed.result;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
@@ -68,6 +69,23 @@ class TimeUtil {
         return dateFormat.format(new Date(time));
     }
 
+    /**
+     * Parse a time formatted by {@link #getTimestamp(long)}.
+     *
+     * @return the epoch time in ms, or -1 if the time could not be parsed
+     */
+    static long parseTimestamp(String timestamp) {
+        if (timestamp == null) {
+            return -1;
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy");
+        try {
+            return dateFormat.parse(timestamp).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
     /**
      * Return the current timestamp in a compressed format, used to uniquely identify results.
      * <p/>
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.util.AbiUtils;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.testtype.IAbi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Overlaps the apk installs and uninstalls of {@link CtsInstrumentationApkTest}s with test
+ * execution.
+ * <p/>
+ * Once the apks of a package are installed, and while it runs, the apks of the next package are
+ * pushed to a staging directory on the device in the background, and, if they can't conflict with
+ * the running package, installed.
+ * When the next package starts, its apks are then installed from the staging directory, or not at
+ * all. Uninstalls are deferred and run in batches of one shell command, before a deferred package
+ * is installed again, and at the end of the run.
+ */
+class ApkInstallPipeline {
+
+    private static final String STAGING_DIR = "/data/local/tmp/cts-staging";
+
+    /** The state of an apk prepared ahead of its package. */
+    private static class StagedApk {
+        final String mApkFileName;
+        final String mPackageName;
+        final String mDevicePath;
+        boolean mInstalled = false;
+
+        StagedApk(String apkFileName, String packageName, String devicePath) {
+            mApkFileName = apkFileName;
+            mPackageName = packageName;
+            mDevicePath = devicePath;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final CtsBuildHelper mCtsBuild;
+    private final boolean mEarlyInstall;
+    private final int mUninstallBatchSize;
+    private final ExecutorService mExecutor;
+
+    /** The packages whose uninstall is deferred, in the order they finished. */
+    private final Set<String> mPendingUninstalls = new LinkedHashSet<>();
+    /** The staged apks by apk file name, once {@link #mPrefetch} is done. */
+    private final Map<String, StagedApk> mStaged = new HashMap<>();
+    private Future<List<StagedApk>> mPrefetch = null;
+    /** The package to prefetch once the apks of {@link #mDeferredCurrent} are installed. */
+    private CtsInstrumentationApkTest mDeferredNext = null;
+    private CtsInstrumentationApkTest mDeferredCurrent = null;
+
+    /**
+     * @param device the device to install on
+     * @param ctsBuild the build to get the apks from
+     * @param earlyInstall whether the apks of the next package may be installed while the current
+     *     package runs, rather than just pushed to the device
+     * @param uninstallBatchSize the number of deferred uninstalls that triggers a batch
+     */
+    ApkInstallPipeline(ITestDevice device, CtsBuildHelper ctsBuild, boolean earlyInstall,
+            int uninstallBatchSize) {
+        mDevice = device;
+        mCtsBuild = ctsBuild;
+        mEarlyInstall = earlyInstall;
+        mUninstallBatchSize = Math.max(1, uninstallBatchSize);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ApkInstallPipeline-" + mDevice.getSerialNumber());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Prepares the apks of the next package in the background. If the package about to run
+     * installs apks, this starts when {@link #startPrefetch()} is called after they are installed,
+     * so the prefetch never delays them.
+     *
+     * @param next the test of the package to run next
+     * @param current the test of the package about to run, or null if it installs nothing
+     */
+    void prefetch(CtsInstrumentationApkTest next, CtsInstrumentationApkTest current)
+            throws DeviceNotAvailableException {
+        if (current != null) {
+            mDeferredNext = next;
+            mDeferredCurrent = current;
+            return;
+        }
+        mDeferredNext = null;
+        mDeferredCurrent = null;
+        start(next, null);
+    }
+
+    /**
+     * Starts the prefetch deferred by {@link #prefetch}, if any. Called once the apks of the
+     * package about to run are installed.
+     */
+    void startPrefetch() throws DeviceNotAvailableException {
+        CtsInstrumentationApkTest next = mDeferredNext;
+        CtsInstrumentationApkTest current = mDeferredCurrent;
+        mDeferredNext = null;
+        mDeferredCurrent = null;
+        if (next != null) {
+            start(next, current);
+        }
+    }
+
+    private void start(final CtsInstrumentationApkTest next, CtsInstrumentationApkTest current)
+            throws DeviceNotAvailableException {
+        await();
+        final List<String> apkFileNames = new ArrayList<>(next.getInstallFileNames());
+        final List<String> packageNames = new ArrayList<>(next.getUninstallPackages());
+        final Set<String> pendingUninstalls = new LinkedHashSet<>();
+        boolean conflict = false;
+        for (String packageName : packageNames) {
+            if (current != null && current.getUninstallPackages().contains(packageName)) {
+                // the package in use now is installed again; leave it alone until it's done
+                conflict = true;
+            }
+            if (mPendingUninstalls.remove(packageName)) {
+                pendingUninstalls.add(packageName);
+            }
+        }
+        final boolean install = mEarlyInstall && !conflict;
+        final IAbi abi = next.getAbi();
+        mPrefetch = mExecutor.submit(new Callable<List<StagedApk>>() {
+            @Override
+            public List<StagedApk> call() throws Exception {
+                // the deferred uninstall of a package must happen before it's installed again
+                uninstall(pendingUninstalls);
+                List<StagedApk> staged = new ArrayList<>();
+                for (int i = 0; i < apkFileNames.size(); i++) {
+                    StagedApk apk = stage(apkFileNames.get(i), packageNames.get(i));
+                    if (apk == null) {
+                        continue;
+                    }
+                    if (install) {
+                        apk.mInstalled = installStaged(apk, abi) == null;
+                    }
+                    staged.add(apk);
+                }
+                return staged;
+            }
+        });
+    }
+
+    /**
+     * Installs an apk of the package about to run, from the staging directory if it was
+     * prefetched. Only waits for the prefetch of this package, which ran while the previous one
+     * did.
+     *
+     * @return null if the apk is installed, or the reason it couldn't be
+     */
+    String install(String apkFileName, String packageName, IAbi abi)
+            throws DeviceNotAvailableException, FileNotFoundException {
+        await();
+        if (mPendingUninstalls.remove(packageName)) {
+            uninstall(Collections.singleton(packageName));
+        }
+        StagedApk apk = mStaged.remove(apkFileName);
+        if (apk != null && packageName.equals(apk.mPackageName)) {
+            if (apk.mInstalled) {
+                CLog.d("%s was installed ahead of its package", apkFileName);
+                return null;
+            }
+            String errorCode = installStaged(apk, abi);
+            if (errorCode == null) {
+                return null;
+            }
+            CLog.w("Failed to install staged %s, installing from host: %s", apkFileName,
+                    errorCode);
+        }
+        File apkFile = mCtsBuild.getTestApp(apkFileName);
+        String[] options = {AbiUtils.createAbiFlag(abi.getName())};
+        return mDevice.installPackage(apkFile, true, options);
+    }
+
+    /**
+     * Defers the uninstall of a package, uninstalling the pending packages in a batch once there
+     * are enough of them.
+     */
+    void uninstall(String packageName) throws DeviceNotAvailableException {
+        mPendingUninstalls.add(packageName);
+        if (mPendingUninstalls.size() >= mUninstallBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Runs the deferred uninstalls.
+     * <p/>
+     * The packages of a prefetch in progress are never pending, so this doesn't need to wait for
+     * it.
+     */
+    void flush() throws DeviceNotAvailableException {
+        uninstall(mPendingUninstalls);
+        mPendingUninstalls.clear();
+    }
+
+    /**
+     * Drops the apks prepared for a package that won't run, such as one whose results are
+     * reused. Apks installed ahead of it are uninstalled with the next batch, and a deferred
+     * prefetch is not started.
+     */
+    void discardPrefetch() throws DeviceNotAvailableException {
+        mDeferredNext = null;
+        mDeferredCurrent = null;
+        await();
+        for (StagedApk apk : mStaged.values()) {
+            if (apk.mInstalled) {
+                mPendingUninstalls.add(apk.mPackageName);
+            }
+        }
+        mStaged.clear();
+    }
+
+    /**
+     * Waits for the background work, runs the deferred uninstalls, removes the staging directory
+     * and stops the background thread.
+     */
+    void shutdown() throws DeviceNotAvailableException {
+        try {
+            // apks installed ahead of a package that never ran must not be left behind
+            discardPrefetch();
+            flush();
+            mDevice.executeShellCommand(String.format("rm -rf %s", STAGING_DIR));
+        } finally {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the prefetch in progress, if any.
+     */
+    void await() throws DeviceNotAvailableException {
+        if (mPrefetch == null) {
+            return;
+        }
+        Future<List<StagedApk>> prefetch = mPrefetch;
+        mPrefetch = null;
+        try {
+            for (StagedApk apk : prefetch.get()) {
+                mStaged.put(apk.mApkFileName, apk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CLog.w("Interrupted while staging apks");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            }
+            // the apks will be installed from the host instead
+            CLog.w("Failed to stage apks: %s", e.getCause());
+        }
+    }
+
+    private StagedApk stage(String apkFileName, String packageName)
+            throws DeviceNotAvailableException {
+        File apkFile;
+        try {
+            apkFile = mCtsBuild.getTestApp(apkFileName);
+        } catch (FileNotFoundException e) {
+            // reported when the package runs
+            return null;
+        }
+        String devicePath = String.format("%s/%s", STAGING_DIR, apkFileName);
+        mDevice.executeShellCommand(String.format("mkdir -p %s", STAGING_DIR));
+        if (!mDevice.pushFile(apkFile, devicePath)) {
+            CLog.w("Failed to stage %s", apkFileName);
+            return null;
+        }
+        return new StagedApk(apkFileName, packageName, devicePath);
+    }
+
+    private String installStaged(StagedApk apk, IAbi abi) throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format("pm install -r %s%s",
+                AbiUtils.createAbiFlag(abi.getName()), apk.mDevicePath));
+        mDevice.executeShellCommand(String.format("rm %s", apk.mDevicePath));
+        if (output != null && output.contains("Success")) {
+            return null;
+        }
+        return output == null ? "no output" : output.trim();
+    }
+
+    private void uninstall(Collection<String> packageNames) throws DeviceNotAvailableException {
+        if (packageNames.isEmpty()) {
+            return;
+        }
+        StringBuilder command = new StringBuilder();
+        for (String packageName : packageNames) {
+            if (command.length() > 0) {
+                command.append("; ");
+            }
+            command.append("pm uninstall ").append(packageName);
+        }
+        CLog.d("Uninstalling %s on %s", packageNames, mDevice.getSerialNumber());
+        mDevice.executeShellCommand(command.toString());
+    }
+}
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 
 /**
  * An {@link InstrumentationTest} that will install CTS apks
@@ -44,6 +45,9 @@ public class CtsInstrumentationApkTest extends InstrumentationTest implements IB
     private Collection<String> mUninstallPackages = new ArrayList<String>();
     protected CtsBuildHelper mCtsBuild = null;
     protected IAbi mAbi = null;
+    private ApkInstallPipeline mInstallPipeline = null;
+    /** the timeout set with {@link #setTestTimeout(int)}, which defaults to ten minutes */
+    private int mStaticTestTimeoutMs = 10 * 60 * 1000;
 
     /**
      * @param abi the ABI to run the test on
@@ -52,6 +56,45 @@ public class CtsInstrumentationApkTest extends InstrumentationTest implements IB
         mAbi = abi;
     }
 
+    /**
+     * @return the ABI to run the test on
+     */
+    IAbi getAbi() {
+        return mAbi;
+    }
+
+    /**
+     * Sets the {@link ApkInstallPipeline} to install and uninstall the apks with, instead of
+     * installing and uninstalling them directly.
+     */
+    void setInstallPipeline(ApkInstallPipeline installPipeline) {
+        mInstallPipeline = installPipeline;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTestTimeout(int timeout) {
+        mStaticTestTimeoutMs = timeout;
+        super.setTestTimeout(timeout);
+    }
+
+    /**
+     * @return the timeout of each test set with {@link #setTestTimeout(int)}
+     */
+    int getStaticTestTimeout() {
+        return mStaticTestTimeoutMs;
+    }
+
+    /**
+     * Sets a timeout of each test derived from previous runs, which replaces the timeout set with
+     * {@link #setTestTimeout(int)} when it is shorter.
+     */
+    void setAdaptiveTestTimeout(long timeoutMs) {
+        super.setTestTimeout((int) Math.min(timeoutMs, mStaticTestTimeoutMs));
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -71,6 +114,21 @@ public class CtsInstrumentationApkTest extends InstrumentationTest implements IB
         mUninstallPackages.add(packageName);
     }
 
+    /**
+     * @return the file names of the apks to install, in install order
+     */
+    Collection<String> getInstallFileNames() {
+        return mInstallFileNames;
+    }
+
+    /**
+     * @return the Android package names of the apks to install, in the same order as
+     *     {@link #getInstallFileNames()}
+     */
+    Collection<String> getUninstallPackages() {
+        return mUninstallPackages;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -88,14 +146,20 @@ public class CtsInstrumentationApkTest extends InstrumentationTest implements IB
             return;
         }
         boolean success = true;
+        Iterator<String> packageNames = mUninstallPackages.iterator();
         for (String apkFileName : mInstallFileNames) {
+            String packageName = packageNames.next();
             Log.d(LOG_TAG, String.format("Installing %s on %s", apkFileName,
                     testDevice.getSerialNumber()));
             try {
-                File apkFile = mCtsBuild.getTestApp(apkFileName);
                 String errorCode = null;
-                String[] options = {AbiUtils.createAbiFlag(mAbi.getName())};
-                errorCode = testDevice.installPackage(apkFile, true, options);
+                if (mInstallPipeline != null) {
+                    errorCode = mInstallPipeline.install(apkFileName, packageName, mAbi);
+                } else {
+                    File apkFile = mCtsBuild.getTestApp(apkFileName);
+                    String[] options = {AbiUtils.createAbiFlag(mAbi.getName())};
+                    errorCode = testDevice.installPackage(apkFile, true, options);
+                }
                 if (errorCode != null) {
                     Log.e(LOG_TAG, String.format("Failed to install %s on %s. Reason: %s",
                           apkFileName, testDevice.getSerialNumber(), errorCode));
@@ -106,10 +170,18 @@ public class CtsInstrumentationApkTest extends InstrumentationTest implements IB
                 success = false;
             }
         }
+        if (mInstallPipeline != null) {
+            // the next package's apks are only prepared once these are installed
+            mInstallPipeline.startPrefetch();
+        }
         if (success) {
             super.run(listener);
         }
         for (String packageName : mUninstallPackages) {
+            if (mInstallPipeline != null) {
+                mInstallPipeline.uninstall(packageName);
+                continue;
+            }
             Log.d(LOG_TAG, String.format("Uninstalling %s on %s", packageName,
                     testDevice.getSerialNumber()));
             testDevice.uninstallPackage(packageName);
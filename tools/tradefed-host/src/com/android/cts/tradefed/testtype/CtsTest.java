@@ -20,6 +20,10 @@ import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
 import com.android.cts.tradefed.result.CtsTestStatus;
 import com.android.cts.tradefed.result.PlanCreator;
+import com.android.cts.tradefed.result.TestRuntimeHistory;
+import com.android.cts.tradefed.util.BugreportQueue;
+import com.android.cts.tradefed.util.InvocationTrace;
+import com.android.cts.tradefed.util.LogcatRingBuffer;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
@@ -50,7 +54,6 @@ import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.InstrumentationTest;
 import com.android.tradefed.util.AbiFormatter;
-import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import junit.framework.Test;
@@ -97,6 +100,11 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     public static final String PACKAGE_ABI_METRIC = "packageAbi";
     public static final String PACKAGE_DIGEST_METRIC = "packageDigest";
 
+    private static final String BUILD_FINGERPRINT_PROPERTY = "ro.build.fingerprint";
+
+    /** parsed plans by file, size and modification time, shared by all the shards */
+    private static final Map<String, ITestPlan> sPlans = new HashMap<>();
+
     @Option(name = PLAN_OPTION, description = "the test plan to run.",
             importance = Importance.IF_UNSET)
     private String mPlanName = null;
@@ -150,6 +158,11 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         "Warning: can potentially use a lot of disk space.")
     private boolean mBugreport = false;
 
+    @Option(name = "bugreport-min-interval", description =
+            "The minimum time in ms between two bugreports taken by --bugreport. Failures in " +
+            "between are covered by the previous bugreport.")
+    private long mBugreportMinIntervalMs = 60 * 1000;
+
     @Option(name = RUN_KNOWN_FAILURES_OPTION, shortName = 'k', description =
         "run tests including known failures")
     private boolean mIncludeKnownFailures;
@@ -183,13 +196,17 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
 
     @Option(name = "logcat-on-failure-size", description =
             "The max number of logcat data in bytes to capture when --logcat-on-failure is on. " +
-            "Should be an amount that can comfortably fit in memory.")
+            "This much memory is held per device, to buffer the logcat of the running test.")
     private int mMaxLogcatBytes = 500 * 1024; // 500K
 
     @Option(name = "collect-deqp-logs", description =
             "Collect dEQP logs from the device.")
     private boolean mCollectDeqpLogs = false;
 
+    @Option(name = "deqp-pipeline-case-lists", description =
+            "Push the case list of the next dEQP batch while a batch runs.")
+    private boolean mDeqpPipelineCaseLists = false;
+
     @Option(name = INCLUDE_FILTERS_OPTION, description = "Positive filters to pass to tests.")
     private List<String> mPositiveFilters = new ArrayList<> ();
 
@@ -199,6 +216,54 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     @Option(name = "min-pre-reboot-package-count", description =
             "The minimum number of packages to require a pre test reboot")
     private int mMinPreRebootPackageCount = 2;
+
+    @Option(name = "reuse-results", description =
+            "replay the cached results of packages that previously passed on a device with the " +
+            "same build fingerprint and ABI, with the same CTS build, package files, tests and " +
+            "filters, instead of running them again.")
+    private boolean mReuseResults = false;
+
+    @Option(name = "result-cache-dir", description =
+            "the directory holding the results cached for --reuse-results. Defaults to " +
+            "result-cache next to the results directory.")
+    private File mResultCacheDir = null;
+
+    @Option(name = "pipeline-installs", description =
+            "push the apks of the next test package to the device while the current package " +
+            "runs, and defer and batch the uninstalls of test packages.")
+    private boolean mPipelineInstalls = false;
+
+    @Option(name = "pipeline-early-install", description =
+            "with --pipeline-installs, also install the apks of the next test package while " +
+            "the current package runs, unless the current package uses the same apks.")
+    private boolean mPipelineEarlyInstall = false;
+
+    @Option(name = "uninstall-batch-size", description =
+            "with --pipeline-installs, the number of deferred uninstalls to run at once.")
+    private int mUninstallBatchSize = 10;
+
+    @Option(name = "gtest-shards", description =
+            "the number of concurrent processes to split the tests of a native test binary " +
+            "across, using gtest sharding.")
+    private int mGTestShards = 1;
+
+    @Option(name = "adaptive-timeouts", description =
+            "derive the timeouts of host-side, instrumentation and dEQP tests from their run " +
+            "times in previous sessions, within their static timeouts.")
+    private boolean mAdaptiveTimeouts = false;
+
+    @Option(name = "adaptive-timeout-sessions", description =
+            "with --adaptive-timeouts, the number of most recent sessions to read run times from.")
+    private int mAdaptiveTimeoutSessions = 10;
+
+    @Option(name = "adaptive-timeout-factor", description =
+            "with --adaptive-timeouts, the factor to multiply the 95th percentile of the run " +
+            "times of a test by.")
+    private double mAdaptiveTimeoutFactor = 3.0;
+
+    @Option(name = "adaptive-timeout-min", description =
+            "with --adaptive-timeouts, the minimum timeout of a test in ms.")
+    private long mAdaptiveTimeoutMinMs = 60 * 1000;
     private final int mShardAssignment;
     private final int mTotalShards;
     private ITestDevice mDevice = null;
@@ -267,49 +332,84 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     }
 
     /**
-     * A {@link ResultForwarder} that will forward a bugreport on each failed test.
+     * A {@link ResultForwarder} that will forward a bugreport on failed tests.
+     * <p/>
+     * Bugreports are taken in the background by a {@link BugreportQueue}, which drops the
+     * requests of failures too close to the last one, and are forwarded between tests.
      */
     private static class FailedTestBugreportGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
+        private static final long BUGREPORT_TIMEOUT_MS = 5 * 60 * 1000;
+        private BugreportQueue mQueue;
 
-        public FailedTestBugreportGenerator(ITestInvocationListener listener, ITestDevice device) {
+        public FailedTestBugreportGenerator(ITestInvocationListener listener,
+                BugreportQueue queue) {
             super(listener);
-            mDevice = device;
+            mQueue = queue;
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mQueue.forwardCompleted(this);
+            super.testStarted(test);
         }
 
         @Override
         public void testFailed(TestIdentifier test, String trace) {
             super.testFailed(test, trace);
-            InputStreamSource bugSource = mDevice.getBugreport();
-            super.testLog(String.format("bug-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, bugSource);
-            bugSource.cancel();
+            mQueue.request(String.format("bug-%s_%s", test.getClassName(), test.getTestName()));
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mQueue.drain(this, BUGREPORT_TIMEOUT_MS);
+            super.testRunEnded(elapsedTime, runMetrics);
         }
     }
 
     /**
      * A {@link ResultForwarder} that will forward a logcat snapshot on each failed test.
+     * <p/>
+     * The snapshot holds the logs from the start to the end of the test, read from a
+     * {@link LogcatRingBuffer} rather than from the device.
      */
     private static class FailedTestLogcatGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-        private int mNumLogcatBytes;
-
-        public FailedTestLogcatGenerator(ITestInvocationListener listener, ITestDevice device,
-                int maxLogcatBytes) {
+        /** The time without logs after which a failure's stack trace is assumed logged. */
+        private static final long LOGCAT_QUIET_MS = 200;
+        private static final long LOGCAT_MAX_WAIT_MS = 2 * 1000;
+        private LogcatRingBuffer mLogcat;
+        private long mTestStartMark = 0;
+        private boolean mTestFailed = false;
+
+        public FailedTestLogcatGenerator(ITestInvocationListener listener,
+                LogcatRingBuffer logcat) {
             super(listener);
-            mDevice = device;
-            mNumLogcatBytes = maxLogcatBytes;
+            mLogcat = logcat;
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mTestStartMark = mLogcat.mark();
+            mTestFailed = false;
+            super.testStarted(test);
         }
 
         @Override
         public void testFailed(TestIdentifier test, String trace) {
             super.testFailed(test, trace);
-            // sleep 2s to ensure test failure stack trace makes it into logcat capture
-            RunUtil.getDefault().sleep(2 * 1000);
-            InputStreamSource logSource = mDevice.getLogcat(mNumLogcatBytes);
-            super.testLog(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, logSource);
-            logSource.cancel();
+            mTestFailed = true;
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            if (mTestFailed) {
+                mLogcat.awaitQuiet(LOGCAT_QUIET_MS, LOGCAT_MAX_WAIT_MS);
+                InputStreamSource logSource = mLogcat.getSnapshot(mTestStartMark);
+                super.testLog(String.format("logcat-%s_%s", test.getClassName(),
+                        test.getTestName()), LogDataType.TEXT, logSource);
+                logSource.cancel();
+                mTestFailed = false;
+            }
+            super.testEnded(test, testMetrics);
         }
     }
 
@@ -399,6 +499,16 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         mSkipDeviceInfo = skipDeviceInfo;
     }
 
+    /**
+     * Reuse the results cached in the given directory.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setReuseResults(File resultCacheDir) {
+        mReuseResults = true;
+        mResultCacheDir = resultCacheDir;
+    }
+
     /**
      * Adds a package name to the list of test packages to run.
      * <p/>
@@ -496,14 +606,19 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
 
         checkFields();
         setupTestPackageList(abiSet);
+        BugreportQueue bugreportQueue = null;
         if (mBugreport) {
-            listener = new FailedTestBugreportGenerator(listener, getDevice());
+            bugreportQueue = new BugreportQueue(getDevice(), mBugreportMinIntervalMs);
+            listener = new FailedTestBugreportGenerator(listener, bugreportQueue);
         }
         if (mScreenshotOnFailures) {
             listener = new FailedTestScreenshotGenerator(listener, getDevice());
         }
+        LogcatRingBuffer logcat = null;
         if (mLogcatOnFailures) {
-            listener = new FailedTestLogcatGenerator(listener, getDevice(), mMaxLogcatBytes);
+            logcat = new LogcatRingBuffer(getDevice(), mMaxLogcatBytes);
+            logcat.start();
+            listener = new FailedTestLogcatGenerator(listener, logcat);
         }
 
         // Setup the a map of Test id to ResultFilter
@@ -515,15 +630,38 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             filterMap.put(testPackage.getPackageDef().getId(), resultFilter);
         }
 
+        ResultCache resultCache = null;
+        String fingerprint = null;
+        if (mReuseResults) {
+            fingerprint = getDevice().getProperty(BUILD_FINGERPRINT_PROPERTY);
+            if (fingerprint == null || fingerprint.isEmpty()) {
+                CLog.w("Could not get the build fingerprint of %s, not reusing results",
+                        getDevice().getSerialNumber());
+            } else {
+                resultCache = createResultCache();
+            }
+        }
+
         // collect and install the prerequisiteApks first, to save time when multiple test
         // packages are using the same prerequisite apk
         Map<String, Set<String>> prerequisiteApks = getPrerequisiteApks(mTestPackageList, abiSet);
         Collection<String> uninstallPackages = getPrerequisitePackageNames(mTestPackageList);
+        String track = InvocationTrace.isEnabled() ? getDevice().getSerialNumber() : null;
+        TestTimeoutModel timeoutModel = null;
+        if (mAdaptiveTimeouts) {
+            timeoutModel = createTimeoutModel(mTestPackageList);
+        }
+        ApkInstallPipeline installPipeline = null;
 
         try {
             // always collect the device info, even for resumed runs, since test will likely be
             // running on a different device
-            collectDeviceInfo(getDevice(), mCtsBuild, listener);
+            InvocationTrace.Span span = InvocationTrace.begin(track, "collectDeviceInfo");
+            try {
+                collectDeviceInfo(getDevice(), mCtsBuild, listener);
+            } finally {
+                span.end();
+            }
             preRebootIfNecessary(mTestPackageList);
 
             mPrevRebootTime = System.currentTimeMillis();
@@ -532,61 +670,159 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                 String.format("Start test run of %,d packages, containing %,d tests",
                     remainingPackageCount, totalTestCount));
             IAbi currentAbi = null;
+            if (mPipelineInstalls) {
+                installPipeline = createInstallPipeline();
+            }
 
             for (int i = mLastTestPackageIndex; i < mTestPackageList.size(); i++) {
                 TestPackage testPackage = mTestPackageList.get(i);
+                InvocationTrace.Span packageSpan = InvocationTrace.begin(track, "package",
+                        testPackage.getPackageDef().getId());
+                try {
+                    ITestPackageDef packageDef = testPackage.getPackageDef();
+                    ITestInvocationListener packageListener = filterMap.get(packageDef.getId());
+
+                    ResultCache.Recorder recorder = null;
+                    String cacheKey = null;
+                    if (resultCache != null) {
+                        cacheKey = getResultCacheKey(fingerprint, testPackage);
+                        if (cacheKey == null) {
+                            CLog.i("Not reusing results of %s: its files could not be hashed",
+                                    packageDef.getId());
+                        }
+                    }
+                    if (cacheKey != null) {
+                        ResultCache.Entry cached = resultCache.load(cacheKey);
+                        if (cached != null) {
+                            Log.logAndDisplay(LogLevel.INFO, LOG_TAG, String.format(
+                                    "Reusing cached results of %,d tests for %s",
+                                    cached.getTestCount(), packageDef.getId()));
+                            if (installPipeline != null) {
+                                // in case its apks were prepared while the previous package ran
+                                installPipeline.discardPrefetch();
+                            }
+                            forwardPackageDetails(packageDef, listener);
+                            span = InvocationTrace.begin(track, "replayCachedResults",
+                                    packageDef.getId());
+                            try {
+                                cached.replay(testPackage.getTestRunName(), packageListener);
+                            } finally {
+                                span.end();
+                            }
+                            mLastTestPackageIndex = i;
+                            continue;
+                        }
+                        recorder = resultCache.createRecorder(cacheKey, packageListener,
+                                testPackage.getKnownTests());
+                        packageListener = recorder;
+                    }
 
-                if (currentAbi == null ||
-                    !currentAbi.getName().equals(testPackage.getAbi().getName())) {
-                    currentAbi = testPackage.getAbi();
-                    installPrerequisiteApks(
-                        prerequisiteApks.get(currentAbi.getName()), currentAbi);
-                }
+                    if (currentAbi == null ||
+                        !currentAbi.getName().equals(testPackage.getAbi().getName())) {
+                        currentAbi = testPackage.getAbi();
+                        span = InvocationTrace.begin(track, "installPrerequisites",
+                                currentAbi.getName());
+                        try {
+                            installPrerequisiteApks(
+                                prerequisiteApks.get(currentAbi.getName()), currentAbi);
+                        } finally {
+                            span.end();
+                        }
+                    }
 
-                IRemoteTest test = testPackage.getTestForPackage();
-                if (test instanceof IBuildReceiver) {
-                    ((IBuildReceiver) test).setBuild(mBuildInfo);
-                }
-                if (test instanceof IDeviceTest) {
-                    ((IDeviceTest) test).setDevice(getDevice());
-                }
-                if (test instanceof DeqpTestRunner) {
-                    ((DeqpTestRunner)test).setCollectLogs(mCollectDeqpLogs);
-                }
-                if (test instanceof GeeTest) {
-                    if (!mPositiveFilters.isEmpty()) {
-                        String positivePatterns = join(mPositiveFilters, ":");
-                        ((GeeTest)test).setPositiveFilters(positivePatterns);
+                    IRemoteTest test = testPackage.getTestForPackage();
+                    if (test instanceof IBuildReceiver) {
+                        ((IBuildReceiver) test).setBuild(mBuildInfo);
                     }
-                    if (!mNegativeFilters.isEmpty()) {
-                        String negativePatterns = join(mNegativeFilters, ":");
-                        ((GeeTest)test).setPositiveFilters(negativePatterns);
+                    if (test instanceof IDeviceTest) {
+                        ((IDeviceTest) test).setDevice(getDevice());
                     }
-                }
-                if (test instanceof InstrumentationTest) {
-                    if (!mPositiveFilters.isEmpty()) {
-                        String annotation = join(mPositiveFilters, ",");
-                        ((InstrumentationTest)test).addInstrumentationArg(
-                                "annotation", annotation);
+                    if (test instanceof DeqpTestRunner) {
+                        ((DeqpTestRunner)test).setCollectLogs(mCollectDeqpLogs);
+                        ((DeqpTestRunner)test).setPipelineCaseLists(mDeqpPipelineCaseLists);
                     }
-                    if (!mNegativeFilters.isEmpty()) {
-                        String notAnnotation = join(mNegativeFilters, ",");
-                        ((InstrumentationTest)test).addInstrumentationArg(
-                                "notAnnotation", notAnnotation);
+                    if (test instanceof GeeTest) {
+                        ((GeeTest)test).setShardCount(mGTestShards);
+                        if (!mPositiveFilters.isEmpty()) {
+                            String positivePatterns = join(mPositiveFilters, ":");
+                            ((GeeTest)test).setPositiveFilters(positivePatterns);
+                        }
+                        if (!mNegativeFilters.isEmpty()) {
+                            String negativePatterns = join(mNegativeFilters, ":");
+                            ((GeeTest)test).setPositiveFilters(negativePatterns);
+                        }
+                    }
+                    if (test instanceof InstrumentationTest) {
+                        if (!mPositiveFilters.isEmpty()) {
+                            String annotation = join(mPositiveFilters, ",");
+                            ((InstrumentationTest)test).addInstrumentationArg(
+                                    "annotation", annotation);
+                        }
+                        if (!mNegativeFilters.isEmpty()) {
+                            String notAnnotation = join(mNegativeFilters, ",");
+                            ((InstrumentationTest)test).addInstrumentationArg(
+                                    "notAnnotation", notAnnotation);
+                        }
                     }
-                }
 
-                forwardPackageDetails(testPackage.getPackageDef(), listener);
-                performPackagePrepareSetup(testPackage.getPackageDef());
-                test.run(filterMap.get(testPackage.getPackageDef().getId()));
-                performPackagePreparerTearDown(testPackage.getPackageDef());
-                if (i < mTestPackageList.size() - 1) {
-                    TestPackage nextPackage = mTestPackageList.get(i + 1);
-                    rebootIfNecessary(testPackage, nextPackage);
-                    changeToHomeScreen();
+                    if (timeoutModel != null) {
+                        setAdaptiveTimeouts(timeoutModel, testPackage, test);
+                    }
+
+                    if (installPipeline != null && test instanceof CtsInstrumentationApkTest) {
+                        ((CtsInstrumentationApkTest) test).setInstallPipeline(installPipeline);
+                    }
+
+                    forwardPackageDetails(testPackage.getPackageDef(), listener);
+                    span = InvocationTrace.begin(track, "packageSetup", packageDef.getId());
+                    try {
+                        performPackagePrepareSetup(testPackage.getPackageDef());
+                    } finally {
+                        span.end();
+                    }
+                    if (installPipeline != null) {
+                        prefetchNextPackage(installPipeline, i, test, resultCache,
+                                fingerprint);
+                    }
+                    span = InvocationTrace.begin(track, "testRun", packageDef.getId());
+                    try {
+                        test.run(packageListener);
+                    } finally {
+                        span.end();
+                    }
+                    if (recorder != null) {
+                        recorder.commit();
+                    }
+                    span = InvocationTrace.begin(track, "packageTearDown", packageDef.getId());
+                    try {
+                        performPackagePreparerTearDown(testPackage.getPackageDef());
+                    } finally {
+                        span.end();
+                    }
+                    if (i < mTestPackageList.size() - 1) {
+                        TestPackage nextPackage = mTestPackageList.get(i + 1);
+                        if (installPipeline != null) {
+                            // don't reboot under a push or install
+                            installPipeline.await();
+                        }
+                        span = InvocationTrace.begin(track, "rebootIfNecessary");
+                        try {
+                            rebootIfNecessary(testPackage, nextPackage);
+                        } finally {
+                            span.end();
+                        }
+                        span = InvocationTrace.begin(track, "changeToHomeScreen");
+                        try {
+                            changeToHomeScreen();
+                        } finally {
+                            span.end();
+                        }
+                    }
+                    // Track of the last complete test package index for resume
+                    mLastTestPackageIndex = i;
+                } finally {
+                    packageSpan.end();
                 }
-                // Track of the last complete test package index for resume
-                mLastTestPackageIndex = i;
             }
 
             if (mScreenshot) {
@@ -598,7 +834,17 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                 }
             }
 
-            uninstallPrequisiteApks(uninstallPackages);
+            span = InvocationTrace.begin(track, "uninstallPrerequisites");
+            try {
+                if (installPipeline != null) {
+                    ApkInstallPipeline pipeline = installPipeline;
+                    installPipeline = null;
+                    pipeline.shutdown();
+                }
+                uninstallPrequisiteApks(uninstallPackages);
+            } finally {
+                span.end();
+            }
 
         } catch (RuntimeException e) {
             CLog.e(e);
@@ -610,6 +856,20 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             for (ResultFilter filter : filterMap.values()) {
                 filter.reportUnexecutedTests();
             }
+            if (logcat != null) {
+                logcat.stop();
+            }
+            if (bugreportQueue != null) {
+                bugreportQueue.shutdown();
+            }
+            if (installPipeline != null) {
+                // the run was aborted; don't leave the staged and early installed apks behind
+                try {
+                    installPipeline.shutdown();
+                } catch (DeviceNotAvailableException e) {
+                    CLog.w("Failed to clean up the install pipeline: %s", e.getMessage());
+                }
+            }
         }
     }
 
@@ -859,8 +1119,7 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         if (mPlanName != null) {
             Log.i(LOG_TAG, String.format("Executing CTS test plan %s", mPlanName));
             File ctsPlanFile = mCtsBuild.getTestPlanFile(mPlanName);
-            ITestPlan plan = createPlan(mPlanName);
-            plan.parse(createXmlStream(ctsPlanFile));
+            ITestPlan plan = getSharedPlan(ctsPlanFile);
 
             for (String testId : plan.getTestIds()) {
                 if (mExcludedPackageNames.contains(AbiUtils.parseTestName(testId))) {
@@ -1081,13 +1340,166 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
     }
 
+    /**
+     * Factory method for creating the {@link ApkInstallPipeline} used by --pipeline-installs.
+     * <p/>
+     * Exposed for unit testing
+     */
+    ApkInstallPipeline createInstallPipeline() {
+        return new ApkInstallPipeline(getDevice(), mCtsBuild, mPipelineEarlyInstall,
+                mUninstallBatchSize);
+    }
+
+    /**
+     * @return the key of the cached results of a package on this device, or null if the files of
+     *     the package could not be hashed
+     */
+    private String getResultCacheKey(String fingerprint, TestPackage testPackage) {
+        ITestPackageDef packageDef = testPackage.getPackageDef();
+        String artifactsDigest = packageDef.getArtifactsDigest();
+        if (artifactsDigest == null) {
+            return null;
+        }
+        return ResultCache.createKey(getCtsBuildId(), fingerprint, packageDef.getAbi().getName(),
+                packageDef.getId(), artifactsDigest, testPackage.getKnownTests(),
+                getFilterArgs());
+    }
+
+    /**
+     * Starts preparing the apks of the package after the given one, if it installs any and its
+     * results won't be reused.
+     *
+     * @param index the index of the package about to run
+     * @param test the test of the package about to run
+     * @param resultCache the cache of reused results, or null if results aren't reused
+     */
+    private void prefetchNextPackage(ApkInstallPipeline installPipeline, int index,
+            IRemoteTest test, ResultCache resultCache, String fingerprint)
+            throws DeviceNotAvailableException {
+        if (index + 1 >= mTestPackageList.size()) {
+            return;
+        }
+        TestPackage nextPackage = mTestPackageList.get(index + 1);
+        if (resultCache != null) {
+            String cacheKey = getResultCacheKey(fingerprint, nextPackage);
+            if (cacheKey != null && resultCache.contains(cacheKey)) {
+                return;
+            }
+        }
+        IRemoteTest nextTest = nextPackage.getTestForPackage();
+        if (!(nextTest instanceof CtsInstrumentationApkTest)) {
+            return;
+        }
+        CtsInstrumentationApkTest current = null;
+        if (test instanceof CtsInstrumentationApkTest) {
+            current = (CtsInstrumentationApkTest) test;
+        }
+        installPipeline.prefetch((CtsInstrumentationApkTest) nextTest, current);
+    }
+
+    /**
+     * Creates the {@link TestTimeoutModel} of the test packages, from the run times in the most
+     * recent sessions.
+     * <p/>
+     * Exposed for unit testing
+     */
+    TestTimeoutModel createTimeoutModel(List<TestPackage> testPackages) {
+        List<String> packageIds = new ArrayList<>(testPackages.size());
+        for (TestPackage testPackage : testPackages) {
+            packageIds.add(testPackage.getPackageDef().getId());
+        }
+        TestRuntimeHistory history = TestRuntimeHistory.load(mCtsBuild.getResultsDir(),
+                mAdaptiveTimeoutSessions, packageIds);
+        return new TestTimeoutModel(history, mAdaptiveTimeoutFactor, mAdaptiveTimeoutMinMs);
+    }
+
+    /**
+     * Sets the timeouts derived from previous runs on the test of a package. Tests without
+     * history keep their static timeouts.
+     */
+    private void setAdaptiveTimeouts(TestTimeoutModel timeoutModel, TestPackage testPackage,
+            IRemoteTest test) {
+        String packageId = testPackage.getPackageDef().getId();
+        Collection<TestIdentifier> tests = testPackage.getKnownTests();
+        if (test instanceof JarHostTest) {
+            JarHostTest hostTest = (JarHostTest) test;
+            hostTest.setTestTimeouts(
+                    timeoutModel.getTimeouts(packageId, tests, hostTest.getTimeout()));
+        } else if (test instanceof CtsInstrumentationApkTest) {
+            // instrumentation tests have one timeout for all tests
+            CtsInstrumentationApkTest instrTest = (CtsInstrumentationApkTest) test;
+            instrTest.setAdaptiveTestTimeout(timeoutModel.getMaxTimeout(packageId, tests,
+                    instrTest.getStaticTestTimeout()));
+        } else if (test instanceof DeqpTestRunner) {
+            ((DeqpTestRunner) test).setTestTimeouts(timeoutModel.getTimeouts(packageId, tests,
+                    DeqpTestRunner.UNRESPOSIVE_CMD_TIMEOUT_MS));
+        }
+    }
+
+    /**
+     * @return the build id of the CTS build under test, or null if it isn't known
+     */
+    private String getCtsBuildId() {
+        return mBuildInfo == null ? null : mBuildInfo.getBuildId();
+    }
+
+    /**
+     * Factory method for creating the {@link ResultCache} used by --reuse-results.
+     * <p/>
+     * Exposed for unit testing
+     */
+    ResultCache createResultCache() {
+        File cacheDir = mResultCacheDir;
+        if (cacheDir == null) {
+            cacheDir = new File(mCtsBuild.getResultsDir().getParentFile(), "result-cache");
+        }
+        return new ResultCache(cacheDir);
+    }
+
+    /**
+     * @return the include and exclude filters passed to tests, which are part of the inputs of
+     *     a cached result
+     */
+    private List<String> getFilterArgs() {
+        List<String> filters = new ArrayList<>();
+        for (String filter : mPositiveFilters) {
+            filters.add(INCLUDE_FILTERS_OPTION + ":" + filter);
+        }
+        for (String filter : mNegativeFilters) {
+            filters.add(EXCLUDE_FILTERS_OPTION + ":" + filter);
+        }
+        return filters;
+    }
+
     /**
      * Factory method for creating a {@link ITestPackageRepo}.
      * <p/>
      * Exposed for unit testing
      */
     ITestPackageRepo createTestCaseRepo() {
-        return new TestPackageRepo(mCtsBuild.getTestCasesDir(), mIncludeKnownFailures);
+        return TestPackageRepo.getShared(mCtsBuild.getTestCasesDir(), mIncludeKnownFailures);
+    }
+
+    /**
+     * Gets the parsed plan of {@link #mPlanName}, parsing the plan file only once per process.
+     * <p/>
+     * The plan and its filters are never modified after parsing, so they can be shared by all
+     * the shards of an invocation.
+     */
+    private ITestPlan getSharedPlan(File planFile) throws ParseException, FileNotFoundException {
+        String key = String.format("%s:%d:%d", planFile.getAbsolutePath(), planFile.length(),
+                planFile.lastModified());
+        synchronized (sPlans) {
+            ITestPlan plan = planFile.isFile() ? sPlans.get(key) : null;
+            if (plan == null) {
+                plan = createPlan(mPlanName);
+                plan.parse(createXmlStream(planFile));
+                if (planFile.isFile()) {
+                    sPlans.put(key, plan);
+                }
+            }
+            return plan;
+        }
     }
 
     /**
@@ -1,6 +1,7 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.InvocationTrace;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.IShellOutputReceiver;
@@ -36,10 +37,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -49,12 +55,14 @@ import java.util.concurrent.TimeUnit;
  */
 public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest {
 
-    private static final String DEQP_ONDEVICE_APK = "com.drawelements.deqp.apk";
+    static final String DEQP_ONDEVICE_APK = "com.drawelements.deqp.apk";
     private static final String DEQP_ONDEVICE_PKG = "com.drawelements.deqp";
     private static final String INCOMPLETE_LOG_MESSAGE = "Crash: Incomplete test log";
     private static final String SKIPPED_INSTANCE_LOG_MESSAGE = "Configuration skipped";
     private static final String NOT_EXECUTABLE_LOG_MESSAGE = "Abort: Test cannot be executed";
     private static final String CASE_LIST_FILE_NAME = "/sdcard/dEQP-TestCaseList.txt";
+    private static final String[] STAGED_CASE_LIST_FILE_NAMES = {
+            "/sdcard/dEQP-TestCaseList-0.txt", "/sdcard/dEQP-TestCaseList-1.txt"};
     private static final String LOG_FILE_NAME = "/sdcard/TestLog.qpa";
     public static final String FEATURE_LANDSCAPE = "android.hardware.screen.landscape";
     public static final String FEATURE_PORTRAIT = "android.hardware.screen.portrait";
@@ -63,7 +71,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     private static final BatchRunConfiguration DEFAULT_CONFIG =
         new BatchRunConfiguration("rgba8888d24s8", "unspecified", "window");
 
-    private static final int UNRESPOSIVE_CMD_TIMEOUT_MS = 10*60*1000; // ten minutes
+    static final int UNRESPOSIVE_CMD_TIMEOUT_MS = 10*60*1000; // ten minutes
 
     private final String mPackageName;
     private final String mName;
@@ -74,6 +82,9 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     private IAbi mAbi;
     private CtsBuildHelper mCtsBuild;
     private boolean mLogData = false;
+    private boolean mPipelineCaseLists = false;
+    private CaseListStager mCaseListStager = null;
+    private Map<TestIdentifier, Long> mTestTimeoutsMs = Collections.emptyMap();
     private ITestDevice mDevice;
     private Set<String> mDeviceFeatures;
     private Map<String, Boolean> mConfigQuerySupportCache = new HashMap<>();
@@ -88,7 +99,8 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             Map<TestIdentifier, List<Map<String,String>>> testInstances) {
         mPackageName = packageName;
         mName = name;
-        mRemainingTests = new LinkedList<>(tests); // avoid modifying arguments
+        // avoid modifying arguments. Keep the order for batching, with fast lookups.
+        mRemainingTests = new LinkedHashSet<>(tests);
         mTestInstances = parseTestInstances(tests, testInstances);
         mTestInstabilityRatings = new HashMap<>();
     }
@@ -126,6 +138,22 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         mLogData = logData;
     }
 
+    /**
+     * Enable or disable pushing the case list of the next batch while a batch runs.
+     */
+    public void setPipelineCaseLists(boolean pipelineCaseLists) {
+        mPipelineCaseLists = pipelineCaseLists;
+    }
+
+    /**
+     * Set the maximum time in ms individual tests may run without output. A batch waits for
+     * output for the largest timeout of its tests, and for the default unresponsive command
+     * timeout if any of its tests has no timeout set or the timeout is longer.
+     */
+    public void setTestTimeouts(Map<TestIdentifier, Long> testTimeoutsMs) {
+        mTestTimeoutsMs = testTimeoutsMs;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1143,10 +1171,146 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         public List<TestIdentifier> tests;
     }
 
+    /**
+     * Pushes the case list of the batch predicted to run next while the current batch runs.
+     * <p/>
+     * The case lists alternate between two files, so that the list of the running batch is never
+     * overwritten. If the batch that runs next is not the predicted one, for example because the
+     * current batch crashed and is split, its case list is pushed when it starts as before, and
+     * the staged case list is kept for the batch it was predicted for. A batch with the same case
+     * list as the previous one, such as the same tests in another run configuration, reuses its
+     * file.
+     */
+    private static class CaseListStager {
+        private final ITestDevice mDevice;
+        private final ExecutorService mExecutor;
+        /** index of the file holding the case list of the last run batch */
+        private int mCurrentFile = 0;
+        private String mCurrentCaseList = null;
+        private String mNextCaseList = null;
+        private String mStagedCaseList = null;
+        private Future<Boolean> mStagedPush = null;
+
+        CaseListStager(final ITestDevice device) {
+            mDevice = device;
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DeqpCaseListStager-" + device.getSerialNumber());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        /**
+         * Sets the case list of the batch predicted to run after the next acquired one. It is
+         * pushed in the background once that batch has its file.
+         */
+        void setNext(String caseList) {
+            mNextCaseList = caseList;
+        }
+
+        /**
+         * Gets the case list file to run a batch with, pushing the case list unless it is already
+         * on the device, and starts staging the next case list.
+         *
+         * @return the name of the file on the device
+         */
+        String acquire(String caseList) throws DeviceNotAvailableException {
+            if (!caseList.equals(mCurrentCaseList)) {
+                if (caseList.equals(mStagedCaseList) && awaitStagedPush()) {
+                    mCurrentFile = 1 - mCurrentFile;
+                    mStagedCaseList = null;
+                    mStagedPush = null;
+                } else {
+                    // wait for the push in progress, as it may be to the same file when it failed
+                    awaitStagedPush();
+                    // the staged case list, if any, is kept for the batch it was predicted for,
+                    // such as the batch after the retries of a crashed one
+                    final String fileName = STAGED_CASE_LIST_FILE_NAMES[mCurrentFile];
+                    mCurrentCaseList = null;
+                    mDevice.executeShellCommand("rm " + fileName);
+                    if (!mDevice.pushString(caseList, fileName)) {
+                        CLog.w("Failed to push case list %s", fileName);
+                        return fileName;
+                    }
+                }
+                mCurrentCaseList = caseList;
+            }
+            final String nextCaseList = mNextCaseList;
+            mNextCaseList = null;
+            if (nextCaseList != null && !nextCaseList.equals(mCurrentCaseList)
+                    && !nextCaseList.equals(mStagedCaseList)) {
+                stage(nextCaseList);
+            }
+            return STAGED_CASE_LIST_FILE_NAMES[mCurrentFile];
+        }
+
+        /**
+         * Waits for the push in progress, and removes the case list files.
+         */
+        void removeCaseLists() throws DeviceNotAvailableException {
+            awaitStagedPush();
+            mDevice.executeShellCommand(String.format("rm %s %s",
+                    STAGED_CASE_LIST_FILE_NAMES[0], STAGED_CASE_LIST_FILE_NAMES[1]));
+        }
+
+        /**
+         * Stops the background thread.
+         */
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+
+        private void stage(final String caseList) throws DeviceNotAvailableException {
+            // a failed push of the previous prediction may still be writing the file
+            awaitStagedPush();
+            final String fileName = STAGED_CASE_LIST_FILE_NAMES[1 - mCurrentFile];
+            mStagedCaseList = caseList;
+            mStagedPush = mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws DeviceNotAvailableException {
+                    mDevice.executeShellCommand("rm " + fileName);
+                    return mDevice.pushString(caseList, fileName);
+                }
+            });
+        }
+
+        private boolean awaitStagedPush() throws DeviceNotAvailableException {
+            if (mStagedPush == null) {
+                return false;
+            }
+            try {
+                if (mStagedPush.get()) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DeviceNotAvailableException) {
+                    throw (DeviceNotAvailableException) e.getCause();
+                }
+                CLog.w("Failed to stage case list: %s", e.getCause());
+            }
+            // the file may be partially written, never use it
+            mStagedCaseList = null;
+            mStagedPush = null;
+            return false;
+        }
+    }
+
     private TestBatch selectRunBatch() {
         return selectRunBatch(mRemainingTests, null);
     }
 
+    /**
+     * Predicts the batch selected after the given batch, assuming that all of its tests complete.
+     */
+    private TestBatch predictNextRunBatch(TestBatch batch) {
+        return selectRunBatch(mRemainingTests, null, batch.config, new HashSet<>(batch.tests));
+    }
+
     /**
      * Creates a TestBatch from the given tests or null if not tests remaining.
      *
@@ -1156,17 +1320,50 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
      */
     private TestBatch selectRunBatch(Collection<TestIdentifier> pool,
             BatchRunConfiguration requiredConfig) {
+        return selectRunBatch(pool, requiredConfig, null, Collections.<TestIdentifier>emptySet());
+    }
+
+    /**
+     * Creates a TestBatch from the given tests or null if not tests remaining.
+     *
+     *  @param pool List of tests to select from
+     *  @param requiredConfig Select only instances with pending requiredConfig, or null to select
+     *         any run configuration.
+     *  @param doneConfig Run configuration of instances to consider executed, or null
+     *  @param doneTests Tests whose doneConfig instances to consider executed
+     */
+    private TestBatch selectRunBatch(Collection<TestIdentifier> pool,
+            BatchRunConfiguration requiredConfig, BatchRunConfiguration doneConfig,
+            Set<TestIdentifier> doneTests) {
         // select one test (leading test) that is going to be executed and then pack along as many
         // other compatible instances as possible.
 
         TestIdentifier leadingTest = null;
+        BatchRunConfiguration leadingTestConfig = null;
         for (TestIdentifier test : pool) {
             if (!mRemainingTests.contains(test)) {
                 continue;
             }
-            if (requiredConfig != null &&
-                    !mInstanceListerner.isPendingTestInstance(test, requiredConfig)) {
-                continue;
+            if (requiredConfig != null) {
+                if (!isPendingTestInstance(test, requiredConfig, doneConfig, doneTests)) {
+                    continue;
+                }
+                leadingTestConfig = requiredConfig;
+            } else {
+                for (BatchRunConfiguration runConfig : getTestRunConfigs(test)) {
+                    if (isPendingTestInstance(test, runConfig, doneConfig, doneTests)) {
+                        leadingTestConfig = runConfig;
+                        break;
+                    }
+                }
+                // test pending <=> test has a pending config
+                if (leadingTestConfig == null) {
+                    if (doneConfig == null) {
+                        throw new AssertionError("search postcondition failed");
+                    }
+                    // all pending instances of the test are considered executed
+                    continue;
+                }
             }
             leadingTest = test;
             break;
@@ -1177,23 +1374,6 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             return null;
         }
 
-        BatchRunConfiguration leadingTestConfig = null;
-        if (requiredConfig != null) {
-            leadingTestConfig = requiredConfig;
-        } else {
-            for (BatchRunConfiguration runConfig : getTestRunConfigs(leadingTest)) {
-                if (mInstanceListerner.isPendingTestInstance(leadingTest, runConfig)) {
-                    leadingTestConfig = runConfig;
-                    break;
-                }
-            }
-        }
-
-        // test pending <=> test has a pending config
-        if (leadingTestConfig == null) {
-            throw new AssertionError("search postcondition failed");
-        }
-
         final int leadingInstability = getTestInstabilityRating(leadingTest);
 
         final TestBatch runBatch = new TestBatch();
@@ -1206,7 +1386,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
                 // do not re-select the leading tests
                 continue;
             }
-            if (!mInstanceListerner.isPendingTestInstance(test, leadingTestConfig)) {
+            if (!isPendingTestInstance(test, leadingTestConfig, doneConfig, doneTests)) {
                 // select only compatible
                 continue;
             }
@@ -1226,6 +1406,14 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         return runBatch;
     }
 
+    private boolean isPendingTestInstance(TestIdentifier test, BatchRunConfiguration config,
+            BatchRunConfiguration doneConfig, Set<TestIdentifier> doneTests) {
+        if (config.equals(doneConfig) && doneTests.contains(test)) {
+            return false;
+        }
+        return mInstanceListerner.isPendingTestInstance(test, config);
+    }
+
     private int getBatchNumPendingCases(TestBatch batch) {
         int numPending = 0;
         for (TestIdentifier test : batch.tests) {
@@ -1261,14 +1449,27 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
      * Executes all tests on the device.
      */
     private void runTests() throws DeviceNotAvailableException, CapabilityQueryFailureException {
-        for (;;) {
-            TestBatch batch = selectRunBatch();
+        if (mPipelineCaseLists) {
+            mCaseListStager = new CaseListStager(mDevice);
+        }
+        try {
+            for (;;) {
+                TestBatch batch = selectRunBatch();
 
-            if (batch == null) {
-                break;
-            }
+                if (batch == null) {
+                    break;
+                }
 
-            runTestRunBatch(batch);
+                runTestRunBatch(batch);
+            }
+            if (mCaseListStager != null) {
+                mCaseListStager.removeCaseLists();
+            }
+        } finally {
+            if (mCaseListStager != null) {
+                mCaseListStager.shutdown();
+                mCaseListStager = null;
+            }
         }
     }
 
@@ -1285,6 +1486,13 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
 
         // execute only if config is executable, else fake results
         if (isSupportedRunConfiguration(batch.config)) {
+            if (mCaseListStager != null) {
+                // the batch after this one, if all of this one completes
+                final TestBatch nextBatch = predictNextRunBatch(batch);
+                if (nextBatch != null) {
+                    mCaseListStager.setNext(generateTestCaseTrie(nextBatch.tests) + "\n");
+                }
+            }
             executeTestRunBatch(batch);
         } else {
             fakePassTestRunBatch(batch);
@@ -1333,11 +1541,11 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
      * @throws AdbComLinkKilledError if established connection is killed prematurely.
      */
     private void executeShellCommandAndReadOutput(final String command,
-            final IShellOutputReceiver receiver)
+            final IShellOutputReceiver receiver, final long timeoutMs)
             throws AdbComLinkOpenError, AdbComLinkKilledError {
         try {
             mDevice.getIDevice().executeShellCommand(command, receiver,
-                    UNRESPOSIVE_CMD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    timeoutMs, TimeUnit.MILLISECONDS);
         } catch (TimeoutException ex) {
             // Opening connection timed out
             CLog.e("Opening connection timed out for command: '%s'", command);
@@ -1352,17 +1560,45 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             throw new AdbComLinkKilledError("command link killed", ex);
         } catch (ShellCommandUnresponsiveException ex) {
             // shell command halted
-            CLog.e("No output from command in %d ms: '%s'", UNRESPOSIVE_CMD_TIMEOUT_MS, command);
+            CLog.e("No output from command in %d ms: '%s'", timeoutMs, command);
             throw new AdbComLinkKilledError("command link hung", ex);
         }
     }
 
+    /**
+     * @return the maximum time in ms the batch may run without output
+     */
+    private long getBatchTimeoutMs(TestBatch batch) {
+        long timeoutMs = 0;
+        for (TestIdentifier test : batch.tests) {
+            Long testTimeoutMs = mTestTimeoutsMs.get(test);
+            if (testTimeoutMs == null || testTimeoutMs >= UNRESPOSIVE_CMD_TIMEOUT_MS) {
+                return UNRESPOSIVE_CMD_TIMEOUT_MS;
+            }
+            timeoutMs = Math.max(timeoutMs, testTimeoutMs);
+        }
+        return timeoutMs;
+    }
+
     /**
      * Executes given test batch on a device
      */
     private void executeTestRunBatch(TestBatch batch) throws DeviceNotAvailableException {
         // attempt full run once
-        executeTestRunBatchRun(batch);
+        String traceTrack = null;
+        String traceDetail = null;
+        if (InvocationTrace.isEnabled()) {
+            traceTrack = mDevice.getSerialNumber();
+            traceDetail = String.format("%s: %d tests, %s", getId(), batch.tests.size(),
+                    batch.config.getId());
+        }
+        final InvocationTrace.Span span = InvocationTrace.begin(traceTrack, "deqpBatchRun",
+                traceDetail);
+        try {
+            executeTestRunBatchRun(batch);
+        } finally {
+            span.end();
+        }
 
         // split remaining tests to two sub batches and execute both. This will terminate
         // since executeTestRunBatchRun will always progress for a batch of size 1.
@@ -1420,16 +1656,23 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
 
         final String testCases = generateTestCaseTrie(batch.tests);
 
-        mDevice.executeShellCommand("rm " + CASE_LIST_FILE_NAME);
-        mDevice.executeShellCommand("rm " + LOG_FILE_NAME);
-        mDevice.pushString(testCases + "\n", CASE_LIST_FILE_NAME);
+        final String caseListFileName;
+        if (mCaseListStager != null) {
+            mDevice.executeShellCommand("rm " + LOG_FILE_NAME);
+            caseListFileName = mCaseListStager.acquire(testCases + "\n");
+        } else {
+            caseListFileName = CASE_LIST_FILE_NAME;
+            mDevice.executeShellCommand("rm " + CASE_LIST_FILE_NAME);
+            mDevice.executeShellCommand("rm " + LOG_FILE_NAME);
+            mDevice.pushString(testCases + "\n", CASE_LIST_FILE_NAME);
+        }
 
         final String instrumentationName =
                 "com.drawelements.deqp/com.drawelements.deqp.testercore.DeqpInstrumentation";
 
         final StringBuilder deqpCmdLine = new StringBuilder();
         deqpCmdLine.append("--deqp-caselist-file=");
-        deqpCmdLine.append(CASE_LIST_FILE_NAME);
+        deqpCmdLine.append(caseListFileName);
         deqpCmdLine.append(" ");
         deqpCmdLine.append(getRunConfigDisplayCmdLine(batch.config));
 
@@ -1451,7 +1694,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         Throwable interruptingError = null;
 
         try {
-            executeShellCommandAndReadOutput(command, parser);
+            executeShellCommandAndReadOutput(command, parser, getBatchTimeoutMs(batch));
         } catch (Throwable ex) {
             interruptingError = ex;
         } finally {
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the results of the shards of a gtest binary, which run concurrently, into one test run.
+ * <p/>
+ * Each shard reports to its own listener from {@link #getShardListener(int)}, which records the
+ * results of the shard. Once every shard is done, {@link #report(ITestRunListener)} reports them
+ * as a single run, the tests of each shard in order. A shard that fails or stops early fails the
+ * merged run, and its unfinished test, but not the results of the other shards.
+ */
+class GTestShardMerger {
+
+    /** The results of one test of a shard. */
+    private static class TestRecord {
+        final TestIdentifier mTest;
+        String mTrace = null;
+        boolean mAssumptionFailure = false;
+        boolean mIgnored = false;
+        Map<String, String> mMetrics = null;
+
+        TestRecord(TestIdentifier test) {
+            mTest = test;
+        }
+    }
+
+    /** Records the results of one shard. */
+    private static class ShardListener implements ITestRunListener {
+        final List<TestRecord> mTests = new ArrayList<>();
+        final Map<TestIdentifier, TestRecord> mRunningTests = new HashMap<>();
+        int mExpectedTests = 0;
+        boolean mStarted = false;
+        boolean mEnded = false;
+        String mRunFailure = null;
+        long mElapsedTime = 0;
+        Map<String, String> mRunMetrics = Collections.emptyMap();
+
+        @Override
+        public synchronized void testRunStarted(String runName, int testCount) {
+            mStarted = true;
+            mExpectedTests += testCount;
+        }
+
+        @Override
+        public synchronized void testStarted(TestIdentifier test) {
+            TestRecord record = new TestRecord(test);
+            mTests.add(record);
+            mRunningTests.put(test, record);
+        }
+
+        @Override
+        public synchronized void testFailed(TestIdentifier test, String trace) {
+            TestRecord record = mRunningTests.get(test);
+            if (record != null) {
+                record.mTrace = trace;
+            }
+        }
+
+        @Override
+        public synchronized void testAssumptionFailure(TestIdentifier test, String trace) {
+            TestRecord record = mRunningTests.get(test);
+            if (record != null) {
+                record.mTrace = trace;
+                record.mAssumptionFailure = true;
+            }
+        }
+
+        @Override
+        public synchronized void testIgnored(TestIdentifier test) {
+            TestRecord record = mRunningTests.get(test);
+            if (record != null) {
+                record.mIgnored = true;
+            }
+        }
+
+        @Override
+        public synchronized void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            TestRecord record = mRunningTests.remove(test);
+            if (record != null) {
+                record.mMetrics = testMetrics;
+            }
+        }
+
+        @Override
+        public synchronized void testRunFailed(String errorMessage) {
+            mRunFailure = errorMessage;
+        }
+
+        @Override
+        public synchronized void testRunStopped(long elapsedTime) {
+            mElapsedTime = elapsedTime;
+            mEnded = true;
+        }
+
+        @Override
+        public synchronized void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mElapsedTime = elapsedTime;
+            mRunMetrics = runMetrics;
+            mEnded = true;
+        }
+    }
+
+    private final String mRunName;
+    private final List<ShardListener> mShards = new ArrayList<>();
+
+    /**
+     * @param runName the name of the merged test run
+     * @param shardCount the number of shards
+     */
+    GTestShardMerger(String runName, int shardCount) {
+        mRunName = runName;
+        for (int i = 0; i < shardCount; i++) {
+            mShards.add(new ShardListener());
+        }
+    }
+
+    /**
+     * @return the listener for the results of the given shard
+     */
+    ITestRunListener getShardListener(int shardIndex) {
+        return mShards.get(shardIndex);
+    }
+
+    /**
+     * Records that a shard couldn't complete, for example because its command timed out.
+     */
+    void shardFailed(int shardIndex, String errorMessage) {
+        ShardListener shard = mShards.get(shardIndex);
+        synchronized (shard) {
+            if (shard.mRunFailure == null) {
+                shard.mRunFailure = errorMessage;
+            }
+        }
+    }
+
+    /**
+     * Reports the results of all shards to the listener as one test run.
+     */
+    void report(ITestRunListener listener) {
+        int expectedTests = 0;
+        for (ShardListener shard : mShards) {
+            synchronized (shard) {
+                expectedTests += Math.max(shard.mExpectedTests, shard.mTests.size());
+            }
+        }
+        listener.testRunStarted(mRunName, expectedTests);
+        List<String> failures = new ArrayList<>();
+        long elapsedTime = 0;
+        Map<String, String> runMetrics = new LinkedHashMap<>();
+        for (int i = 0; i < mShards.size(); i++) {
+            ShardListener shard = mShards.get(i);
+            synchronized (shard) {
+                String failure = shard.mRunFailure;
+                if (failure == null && !shard.mEnded && shard.mStarted) {
+                    failure = "Shard did not complete";
+                }
+                for (TestRecord record : shard.mTests) {
+                    listener.testStarted(record.mTest);
+                    if (record.mMetrics == null && record.mTrace == null) {
+                        // the test was running when the shard stopped
+                        record.mTrace = failure == null ? "Test did not complete" : failure;
+                    }
+                    if (record.mIgnored) {
+                        listener.testIgnored(record.mTest);
+                    } else if (record.mAssumptionFailure) {
+                        listener.testAssumptionFailure(record.mTest, record.mTrace);
+                    } else if (record.mTrace != null) {
+                        listener.testFailed(record.mTest, record.mTrace);
+                    }
+                    Map<String, String> metrics = record.mMetrics;
+                    listener.testEnded(record.mTest, metrics == null
+                            ? Collections.<String, String>emptyMap() : metrics);
+                }
+                if (failure != null) {
+                    failures.add(String.format("shard %d of %d: %s", i, mShards.size(),
+                            failure));
+                }
+                // the shards run concurrently, so the run took as long as the slowest one
+                elapsedTime = Math.max(elapsedTime, shard.mElapsedTime);
+                runMetrics.putAll(shard.mRunMetrics);
+            }
+        }
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            for (String failure : failures) {
+                if (message.length() > 0) {
+                    message.append("; ");
+                }
+                message.append(failure);
+            }
+            listener.testRunFailed(message.toString());
+        }
+        listener.testRunEnded(elapsedTime, runMetrics);
+    }
+}
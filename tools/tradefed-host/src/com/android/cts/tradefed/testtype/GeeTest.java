@@ -31,6 +31,11 @@ import com.android.tradefed.testtype.IRemoteTest;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Test runner for native gTests.
@@ -46,8 +51,10 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
     private static final String NATIVE_TESTS_DIRECTORY_TMP = "/data/local/tmp";
     private static final String ANDROID_PATH_SEPARATOR = "/";
     private static final String GTEST_FLAG_FILTER = "--gtest_filter=";
+    private static final String GTEST_SHARD_ENV = "GTEST_TOTAL_SHARDS=%d GTEST_SHARD_INDEX=%d";
 
     private int mMaxTestTimeMs = 1 * 60 * 1000;
+    private int mShardCount = 1;
 
     private CtsBuildHelper mCtsBuild;
     private ITestDevice mDevice;
@@ -72,6 +79,14 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         mNegativeFilters = negativeFilters;
     }
 
+    /**
+     * Sets the number of processes to split the tests of the binary across, using gtest's
+     * sharding. The processes run concurrently, and their results are reported as one test run.
+     */
+    public void setShardCount(int shardCount) {
+        mShardCount = Math.max(1, shardCount);
+    }
+
     protected String getGTestFilters() {
         // If both filters are empty or null return empty string.
         if (mPositiveFilters == null && mNegativeFilters == null) {
@@ -149,15 +164,17 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
     }
 
     void runTest(ITestRunListener listener) throws DeviceNotAvailableException {
-        GeeTestResultParser resultParser = new GeeTestResultParser(mPackageName, listener);
-        resultParser.setFakePackagePrefix(mPackageName + ".");
-
         String fullPath = NATIVE_TESTS_DIRECTORY + ANDROID_PATH_SEPARATOR + mExeName;
         String flags = getGTestFilters();
         CLog.v("Running gtest %s %s on %s", fullPath, flags, mDevice.getSerialNumber());
         // force file to be executable
         CLog.v("%s", mDevice.executeShellCommand(String.format("chmod 755 %s", fullPath)));
 
+        if (mShardCount > 1) {
+            runShardedTest(listener, fullPath, flags);
+            return;
+        }
+        GeeTestResultParser resultParser = createResultParser(listener);
         try {
             mDevice.executeShellCommand(String.format("%s %s", fullPath, flags), resultParser,
                     mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
@@ -171,6 +188,72 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Runs the shards of the binary concurrently, each with its own result parser, and reports
+     * their results as one test run once all of them are done.
+     */
+    private void runShardedTest(ITestRunListener listener, String fullPath, String flags)
+            throws DeviceNotAvailableException {
+        final GTestShardMerger merger = new GTestShardMerger(mPackageName, mShardCount);
+        ExecutorService executor = Executors.newFixedThreadPool(mShardCount);
+        List<Future<Void>> shards = new ArrayList<>();
+        for (int i = 0; i < mShardCount; i++) {
+            final int shardIndex = i;
+            final String command = String.format("%s %s %s",
+                    String.format(GTEST_SHARD_ENV, mShardCount, shardIndex), fullPath, flags);
+            shards.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws DeviceNotAvailableException {
+                    GeeTestResultParser resultParser = createResultParser(
+                            merger.getShardListener(shardIndex));
+                    try {
+                        mDevice.executeShellCommand(command, resultParser,
+                                mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
+                                0 /* retryAttempts */);
+                    } catch (DeviceNotAvailableException e) {
+                        resultParser.flush();
+                        throw e;
+                    } catch (RuntimeException e) {
+                        resultParser.flush();
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        DeviceNotAvailableException deviceException = null;
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                try {
+                    shards.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    CLog.w("Shard %d of %s failed on %s: %s", i, mExeName,
+                            mDevice.getSerialNumber(), cause);
+                    merger.shardFailed(i, cause.toString());
+                    if (cause instanceof DeviceNotAvailableException && deviceException == null) {
+                        deviceException = (DeviceNotAvailableException) cause;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        merger.report(listener);
+        if (deviceException != null) {
+            throw deviceException;
+        }
+    }
+
+    private GeeTestResultParser createResultParser(ITestRunListener listener) {
+        GeeTestResultParser resultParser = new GeeTestResultParser(mPackageName, listener);
+        resultParser.setFakePackagePrefix(mPackageName + ".");
+        return resultParser;
+    }
+
 
     @Override
     public void setBuild(IBuildInfo buildInfo) {
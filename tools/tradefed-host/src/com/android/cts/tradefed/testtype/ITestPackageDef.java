@@ -61,6 +61,18 @@ public interface ITestPackageDef extends Comparable<ITestPackageDef> {
      */
     public String getDigest();
 
+    /**
+     * Return a digest of every file the test package runs or installs: the test binaries, the
+     * apk they instrument and, for host tests and packages with a module test config, every apk
+     * of the build.
+     * <p/>
+     * Will only return a valid value after {@link #createTest(File)} has been called.
+     *
+     * @return the digest in {@link String} form, or <code>null</code> if the files aren't known
+     *         or one of them couldn't be read
+     */
+    public String getArtifactsDigest();
+
     /**
      * @return the name of this test package.
      */
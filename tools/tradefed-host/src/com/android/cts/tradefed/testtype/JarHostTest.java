@@ -16,6 +16,7 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.DeviceReleaseRegistry;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
@@ -45,9 +46,14 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * A {@link IRemoteTest} that can run a set of JUnit tests from a CTS jar.
+ * <p/>
+ * Once the tests are done, the device is released with the {@link DeviceReleaseRegistry}, so the
+ * state the tests registered as shared on the device is removed.
  */
 public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Test {
 
@@ -57,6 +63,7 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
     private String mJarFileName;
     private Collection<TestIdentifier> mTests;
     private long mTimeoutMs = 10 * 60 * 1000;
+    private Map<TestIdentifier, Long> mTestTimeoutsMs = Collections.emptyMap();
     private String mRunName;
     private CtsBuildHelper mCtsBuild = null;
     private IBuildInfo mBuildInfo = null;
@@ -147,6 +154,21 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
         mTimeoutMs = testTimeoutMs;
     }
 
+    /**
+     * @return the maximum time in ms each test should run
+     */
+    long getTimeout() {
+        return mTimeoutMs;
+    }
+
+    /**
+     * Set the maximum time in ms of individual tests, which override the timeout set with
+     * {@link #setTimeout(long)} when they are shorter.
+     */
+    void setTestTimeouts(Map<TestIdentifier, Long> testTimeoutsMs) {
+        mTestTimeoutsMs = testTimeoutsMs;
+    }
+
     /**
      * Set the run name to report to {@link ITestInvocationListener#testRunStarted(String, int)}
      *
@@ -181,7 +203,12 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
         checkFields();
         Log.i(LOG_TAG, String.format("Running %s test package from jar, contains %d tests.",
                 mRunName, mTests.size()));
-        JUnitRunUtil.runTest(listener, this, mRunName);
+        try {
+            JUnitRunUtil.runTest(listener, this, mRunName);
+        } finally {
+            // the tests may have left state, such as packages, for the next test to reuse
+            DeviceReleaseRegistry.releaseDevice(getDevice());
+        }
     }
 
     /**
@@ -218,7 +245,12 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
         }
         TestRunnable testRunnable = new TestRunnable(junitTest, junitResult);
 
-        CommandStatus status = RunUtil.getDefault().runTimed(mTimeoutMs, testRunnable, true);
+        long timeoutMs = mTimeoutMs;
+        Long testTimeoutMs = mTestTimeoutsMs.get(testId);
+        if (testTimeoutMs != null) {
+            timeoutMs = Math.min(timeoutMs, testTimeoutMs);
+        }
+        CommandStatus status = RunUtil.getDefault().runTimed(timeoutMs, testRunnable, true);
         if (status.equals(CommandStatus.TIMED_OUT)) {
             junitResult.addError(junitTest, new TestTimeoutException());
             junitResult.endTest(junitTest);
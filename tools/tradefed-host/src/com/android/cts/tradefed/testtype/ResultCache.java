@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ResultForwarder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local cache of the results of test packages that passed, used to skip packages that would be
+ * run again with identical inputs.
+ * <p/>
+ * An entry is keyed by everything that determines the outcome of a package: the CTS build, the
+ * build fingerprint of the device, the ABI, the package id, the digest of the files the package
+ * runs or installs, the tests to run and the include/exclude filters, see {@link #createKey}.
+ * Packages whose files can't be hashed are never cached. Entries are only written when every test
+ * of the package passed, so failed and incomplete packages are always run again. Replaying an
+ * entry reports the recorded tests, with their metrics, as passed.
+ */
+class ResultCache {
+
+    private static final String ENTRY_SUFFIX = ".results";
+    private static final String HEADER = "cts-result-cache 1";
+    private static final String TEST_PREFIX = "test\t";
+    private static final String METRIC_PREFIX = "metric\t";
+
+    private final File mCacheDir;
+
+    /**
+     * A cached result, read into memory.
+     */
+    static class Entry {
+        private final Map<TestIdentifier, Map<String, String>> mTests;
+
+        private Entry(Map<TestIdentifier, Map<String, String>> tests) {
+            mTests = tests;
+        }
+
+        /**
+         * @return the number of tests in the entry
+         */
+        int getTestCount() {
+            return mTests.size();
+        }
+
+        /**
+         * Reports the cached results to the listener as a single test run.
+         */
+        void replay(String runName, ITestInvocationListener listener) {
+            listener.testRunStarted(runName, mTests.size());
+            for (Map.Entry<TestIdentifier, Map<String, String>> test : mTests.entrySet()) {
+                listener.testStarted(test.getKey());
+                listener.testEnded(test.getKey(), new HashMap<>(test.getValue()));
+            }
+            listener.testRunEnded(0, new HashMap<String, String>());
+        }
+    }
+
+    /**
+     * A {@link ResultForwarder} that records the results of a package run, and caches them if
+     * every known test passed.
+     */
+    class Recorder extends ResultForwarder {
+        private final String mKey;
+        private final Set<TestIdentifier> mKnownTests;
+        private final Map<TestIdentifier, Map<String, String>> mPassed = new LinkedHashMap<>();
+        /** Tests that failed, or that ended without passing, such as ignored tests. */
+        private final Set<TestIdentifier> mFailed = new HashSet<>();
+        private boolean mRunFailed = false;
+
+        private Recorder(String key, ITestInvocationListener listener,
+                Collection<TestIdentifier> knownTests) {
+            super(listener);
+            mKey = key;
+            mKnownTests = new HashSet<>(knownTests);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mFailed.add(test);
+            super.testFailed(test, trace);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            mFailed.add(test);
+            super.testAssumptionFailure(test, trace);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            mFailed.add(test);
+            super.testIgnored(test);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            if (mKnownTests.contains(test) && !mFailed.contains(test)) {
+                mPassed.put(test, new HashMap<>(testMetrics));
+            }
+            super.testEnded(test, testMetrics);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mRunFailed = true;
+            super.testRunFailed(errorMessage);
+        }
+
+        /**
+         * Caches the results if the run completed and every known test passed.
+         *
+         * @return true if the results were cached
+         */
+        boolean commit() {
+            if (mRunFailed || !mFailed.isEmpty() || !mPassed.keySet().equals(mKnownTests)) {
+                return false;
+            }
+            try {
+                write(mKey, mPassed);
+                return true;
+            } catch (IOException e) {
+                CLog.w("Failed to cache results in %s: %s", mCacheDir, e.toString());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param cacheDir the directory holding the cache entries, created if needed
+     */
+    ResultCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * @return the key of the results of a package run with the given inputs
+     */
+    static String createKey(String ctsBuildId, String fingerprint, String abi, String packageId,
+            String digest, Collection<TestIdentifier> tests, Collection<String> filters) {
+        List<String> testNames = new ArrayList<>(tests.size());
+        for (TestIdentifier test : tests) {
+            testNames.add(test.toString());
+        }
+        Collections.sort(testNames);
+        List<String> sortedFilters = new ArrayList<>(filters);
+        Collections.sort(sortedFilters);
+
+        MessageDigest md = newDigest();
+        update(md, ctsBuildId);
+        update(md, fingerprint);
+        update(md, abi);
+        update(md, packageId);
+        update(md, digest);
+        for (String testName : testNames) {
+            update(md, testName);
+        }
+        update(md, "filters");
+        for (String filter : sortedFilters) {
+            update(md, filter);
+        }
+        byte[] bytes = md.digest();
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return true if there are cached results for the given key. They may still fail to
+     *     {@link #load}.
+     */
+    boolean contains(String key) {
+        return getEntryFile(key).isFile();
+    }
+
+    /**
+     * @return the cached results for the given key, or null if there are none
+     */
+    Entry load(String key) {
+        File file = getEntryFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Map<TestIdentifier, Map<String, String>> tests = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("unknown format");
+            }
+            Map<String, String> metrics = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (line.startsWith(TEST_PREFIX) && fields.length == 3) {
+                    metrics = new HashMap<>();
+                    tests.put(new TestIdentifier(unescape(fields[1]), unescape(fields[2])),
+                            metrics);
+                } else if (line.startsWith(METRIC_PREFIX) && fields.length == 3
+                        && metrics != null) {
+                    metrics.put(unescape(fields[1]), unescape(fields[2]));
+                } else {
+                    throw new IOException("malformed line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Ignoring cached results %s: %s", file, e.toString());
+            file.delete();
+            return null;
+        }
+        return new Entry(tests);
+    }
+
+    /**
+     * @return a listener that forwards to the given listener, and caches the results under the
+     *     given key on {@link Recorder#commit()} if every one of the known tests passed
+     */
+    Recorder createRecorder(String key, ITestInvocationListener listener,
+            Collection<TestIdentifier> knownTests) {
+        return new Recorder(key, listener, knownTests);
+    }
+
+    private void write(String key, Map<TestIdentifier, Map<String, String>> tests)
+            throws IOException {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            throw new IOException("could not create " + mCacheDir);
+        }
+        // Write to a temporary file first, so an interrupted write can't leave a partial entry.
+        File tmp = File.createTempFile(key, ".tmp", mCacheDir);
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<TestIdentifier, Map<String, String>> test : tests.entrySet()) {
+                    writer.write(TEST_PREFIX);
+                    writer.write(escape(test.getKey().getClassName()));
+                    writer.write('\t');
+                    writer.write(escape(test.getKey().getTestName()));
+                    writer.write('\n');
+                    for (Map.Entry<String, String> metric : test.getValue().entrySet()) {
+                        writer.write(METRIC_PREFIX);
+                        writer.write(escape(metric.getKey()));
+                        writer.write('\t');
+                        writer.write(escape(metric.getValue()));
+                        writer.write('\n');
+                    }
+                }
+            }
+            File file = getEntryFile(key);
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to " + file);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mCacheDir, key + ENTRY_SUFFIX);
+    }
+
+    private static void update(MessageDigest md, String value) {
+        md.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    default: sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -19,6 +19,8 @@ package com.android.cts.tradefed.testtype;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.ConfigurationFactory;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.testtype.IAbi;
@@ -35,7 +37,11 @@ import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -66,10 +72,17 @@ class TestPackageDef implements ITestPackageDef {
     private String mRunTimeArgs = null;
     private String mTestPackageName = null;
     private String mDigest = null;
+    private File mDigestFile = null;
+    private List<File> mArtifacts = null;
+    private String mArtifactsDigest = null;
     private long mRuntimeHint = 0;
     private IAbi mAbi = null;
+    private File mPreparerConfig = null;
     private List<ITargetPreparer> mPreparers = null;
 
+    /** digests of the test binaries by path, size and modification time, shared by all shards */
+    private static final Map<String, String> sDigestCache = new HashMap<>();
+
     // use a LinkedHashSet for predictable iteration insertion-order, and fast
     // lookups
     private Collection<TestIdentifier> mTests = new LinkedHashSet<TestIdentifier>();
@@ -231,20 +244,83 @@ class TestPackageDef implements ITestPackageDef {
         mPreparers = preparers;
     }
 
+    /**
+     * Sets the module test config to create the {@link ITargetPreparer}s from. The config is
+     * parsed again when the preparers are first requested, so that every copy of this package
+     * gets its own preparers. Callers should check that it parses with
+     * {@link #createPackagePreparers(File)} first.
+     *
+     * @param preparerConfig the module test config file
+     */
+    void setPackagePreparerConfig(File preparerConfig) {
+        mPreparerConfig = preparerConfig;
+    }
+
+    /**
+     * Creates the {@link ITargetPreparer}s defined in a module test config.
+     *
+     * @param preparerConfig the module test config file
+     * @throws ConfigurationException if the config could not be parsed
+     */
+    static List<ITargetPreparer> createPackagePreparers(File preparerConfig)
+            throws ConfigurationException {
+        // invokes parser to process the test module config file
+        return ConfigurationFactory.getInstance().createConfigurationFromArgs(
+                new String[]{preparerConfig.getAbsolutePath()}).getTargetPreparers();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public List<ITargetPreparer> getPackagePreparers() {
+    public synchronized List<ITargetPreparer> getPackagePreparers() {
+        if (mPreparers == null && mPreparerConfig != null) {
+            try {
+                mPreparers = createPackagePreparers(mPreparerConfig);
+            } catch (ConfigurationException e) {
+                throw new RuntimeException(String.format("error parsing config file: %s",
+                        mPreparerConfig.getName()), e);
+            }
+        }
         return mPreparers;
     }
 
+    /**
+     * Creates a copy of this package for one test run.
+     * <p/>
+     * The copy shares the tests parsed from the package xml, which are never modified after
+     * parsing, but not the dynamic options, the filtered tests or the package preparers.
+     */
+    TestPackageDef copy() {
+        TestPackageDef copy = new TestPackageDef();
+        copy.mAppPackageName = mAppPackageName;
+        copy.mAppNameSpace = mAppNameSpace;
+        copy.mName = mName;
+        copy.mRunner = mRunner;
+        copy.mTestType = mTestType;
+        copy.mJarPath = mJarPath;
+        copy.mRunTimeArgs = mRunTimeArgs;
+        copy.mTestPackageName = mTestPackageName;
+        copy.mRuntimeHint = mRuntimeHint;
+        copy.mAbi = mAbi;
+        copy.mPreparerConfig = mPreparerConfig;
+        if (mPreparerConfig == null) {
+            copy.mPreparers = mPreparers;
+        }
+        copy.mTests = mTests;
+        copy.mTestClasses = mTestClasses;
+        copy.mTestInstanceArguments = mTestInstanceArguments;
+        copy.mTargetBinaryName = mTargetBinaryName;
+        copy.mTargetNameSpace = mTargetNameSpace;
+        copy.mTimeoutInMins = mTimeoutInMins;
+        return copy;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public IRemoteTest createTest(File testCaseDir) {
-        mTestFilter.setTestInclusion(mClassName, mMethodName);
         mTests = filterTests();
 
         if (HOST_SIDE_ONLY_TEST.equals(mTestType)) {
@@ -258,7 +334,10 @@ class TestPackageDef implements ITestPackageDef {
             hostTest.setJarFileName(mJarPath);
             hostTest.setTests(mTests);
             hostTest.setAbi(mAbi);
-            mDigest = generateDigest(testCaseDir, mJarPath);
+            mDigestFile = new File(testCaseDir, mJarPath);
+            // the apks a host test installs are only named in its code
+            setArtifacts(testCaseDir, mJarPath);
+            addTestCaseApks(testCaseDir);
             return hostTest;
         } else if (VM_HOST_TEST.equals(mTestType)) {
             CLog.d("Creating vm host test for %s", mName);
@@ -267,24 +346,29 @@ class TestPackageDef implements ITestPackageDef {
             vmHostTest.setJarFileName(mJarPath);
             vmHostTest.setTests(mTests);
             vmHostTest.setAbi(mAbi);
-            mDigest = generateDigest(testCaseDir, mJarPath);
+            mDigestFile = new File(testCaseDir, mJarPath);
+            setArtifacts(testCaseDir, mJarPath);
             return vmHostTest;
         } else if (DEQP_TEST.equals(mTestType)) {
             DeqpTestRunner deqpTest =
                     new DeqpTestRunner(mAppPackageName, mName, mTests, mTestInstanceArguments);
             deqpTest.setAbi(mAbi);
+            setArtifacts(testCaseDir, DeqpTestRunner.DEQP_ONDEVICE_APK);
             return deqpTest;
         } else if (NATIVE_TEST.equals(mTestType)) {
             GeeTest geeTest = new GeeTest(mAppPackageName, mName);
             geeTest.setAbi(mAbi);
+            setArtifacts(testCaseDir, mName + mAbi.getBitness());
             return geeTest;
         } else if (WRAPPED_NATIVE_TEST.equals(mTestType)) {
             CLog.d("Creating new wrapped native test for %s", mName);
             WrappedGTest wrappedGeeTest = new WrappedGTest(mAppNameSpace, mAppPackageName, mName, mRunner);
             wrappedGeeTest.setAbi(mAbi);
+            setArtifacts(testCaseDir, String.format("%s.apk", mName));
             return wrappedGeeTest;
         } else if (UIAUTOMATOR_TEST.equals(mTestType)) {
             UiAutomatorJarTest uiautomatorTest = new UiAutomatorJarTest();
+            setArtifacts(testCaseDir, getJarPath());
             return setUiAutomatorTest(uiautomatorTest);
         } else if (JUNIT_DEVICE_TEST.equals(mTestType)){
             CLog.d("Creating JUnit device test %s", mName);
@@ -294,7 +378,8 @@ class TestPackageDef implements ITestPackageDef {
             jUnitDeviceTest.addRunTimeArgs(mRunTimeArgs);
             jUnitDeviceTest.setTests(mTests);
             jUnitDeviceTest.setAbi(mAbi);
-            mDigest = generateDigest(testCaseDir, mJarPath);
+            mDigestFile = new File(testCaseDir, mJarPath);
+            setArtifacts(testCaseDir, mJarPath);
             return jUnitDeviceTest;
         } else {
             CLog.d("Creating instrumentation test for %s", mName);
@@ -309,6 +394,47 @@ class TestPackageDef implements ITestPackageDef {
         }
     }
 
+    /**
+     * Records the files the test created for this package runs or installs, along with the apk
+     * it instruments and the module test config, for {@link #getArtifactsDigest()}.
+     */
+    private void setArtifacts(File testCaseDir, String fileName) {
+        mArtifactsDigest = null;
+        if (fileName == null) {
+            mArtifacts = null;
+            return;
+        }
+        mArtifacts = new ArrayList<>();
+        mArtifacts.add(new File(testCaseDir, fileName));
+        String targetApkName = getTargetApkName();
+        if (targetApkName != null) {
+            mArtifacts.add(new File(testCaseDir, targetApkName));
+        }
+        if (mPreparerConfig != null) {
+            // the preparers may install any apk of the build
+            mArtifacts.add(mPreparerConfig);
+            addTestCaseApks(testCaseDir);
+        }
+    }
+
+    /**
+     * Adds every apk of the test case directory to the artifacts of this package.
+     */
+    private void addTestCaseApks(File testCaseDir) {
+        File[] apks = testCaseDir.listFiles();
+        if (apks == null) {
+            // can't tell which apks are installed, so the package has no artifacts digest
+            mArtifacts.add(testCaseDir);
+            return;
+        }
+        Arrays.sort(apks);
+        for (File apk : apks) {
+            if (apk.getName().endsWith(".apk") && !mArtifacts.contains(apk)) {
+                mArtifacts.add(apk);
+            }
+        }
+    }
+
     /**
      * Populates given {@link CtsInstrumentationApkTest} with data from the package xml.
      *
@@ -327,7 +453,8 @@ class TestPackageDef implements ITestPackageDef {
         instrTest.setReRunUsingTestFile(true);
         // mName means 'apk file name' for instrumentation tests
         instrTest.addInstallApk(String.format("%s.apk", mName), mAppNameSpace);
-        mDigest = generateDigest(testCaseDir, String.format("%s.apk", mName));
+        mDigestFile = new File(testCaseDir, String.format("%s.apk", mName));
+        setArtifacts(testCaseDir, String.format("%s.apk", mName));
         if (mTests.size() > 1000) {
             // TODO: hack, large test suites can take longer to collect tests, increase timeout
             instrTest.setCollectsTestsShellTimeout(10 * 60 * 1000);
@@ -364,7 +491,11 @@ class TestPackageDef implements ITestPackageDef {
      * @return the filtered collection of tests
      */
     private Collection<TestIdentifier> filterTests() {
-        mTestFilter.setTestInclusion(mClassName, mMethodName);
+        if (mClassName != null) {
+            // the filter of a plan is shared by all packages of the plan, and is only set when
+            // no class is
+            mTestFilter.setTestInclusion(mClassName, mMethodName);
+        }
         return mTestFilter.filter(mTests);
     }
 
@@ -419,10 +550,69 @@ class TestPackageDef implements ITestPackageDef {
      * {@inheritDoc}
      */
     @Override
-    public String getDigest() {
+    public synchronized String getDigest() {
+        if (mDigest == null && mDigestFile != null) {
+            mDigest = getFileDigest(mDigestFile);
+            if (mDigest == null) {
+                mDigest = "failed to generate digest";
+            }
+        }
         return mDigest;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String getArtifactsDigest() {
+        if (mArtifactsDigest == null && mArtifacts != null) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+            for (File artifact : mArtifacts) {
+                String digest = artifact.isFile() ? getFileDigest(artifact) : null;
+                if (digest == null) {
+                    CLog.d("Could not hash %s of %s", artifact, mName);
+                    return null;
+                }
+                md.update(artifact.getName().getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                md.update(digest.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+            }
+            mArtifactsDigest = toHexString(md.digest());
+        }
+        return mArtifactsDigest;
+    }
+
+    /**
+     * @return the digest of a file, or null if it couldn't be read
+     */
+    private String getFileDigest(File file) {
+        // the test binaries don't change during a run, so each is hashed once per process
+        String key = String.format("%s:%d:%d", file.getAbsolutePath(), file.length(),
+                file.lastModified());
+        String digest;
+        synchronized (sDigestCache) {
+            digest = sDigestCache.get(key);
+        }
+        if (digest == null) {
+            try {
+                digest = computeDigest(file.getParentFile(), file.getName());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                CLog.e(e);
+                return null;
+            }
+            synchronized (sDigestCache) {
+                sDigestCache.put(key, digest);
+            }
+        }
+        return digest;
+    }
+
     /**
      * Generate a sha1sum digest for a file.
      * <p/>
@@ -433,26 +623,32 @@ class TestPackageDef implements ITestPackageDef {
      * @return a hex {@link String} of the digest
      */
     String generateDigest(File fileDir, String fileName) {
-        final String algorithm = "SHA-1";
+        try {
+            return computeDigest(fileDir, fileName);
+        } catch (NoSuchAlgorithmException e) {
+            return "SHA-1 not found";
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+        return "failed to generate digest";
+    }
+
+    private String computeDigest(File fileDir, String fileName)
+            throws IOException, NoSuchAlgorithmException {
         InputStream fileStream = null;
         DigestInputStream d = null;
         try {
             fileStream = getFileStream(fileDir, fileName);
-            MessageDigest md = MessageDigest.getInstance(algorithm);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
             d = new DigestInputStream(fileStream, md);
             byte[] buffer = new byte[8196];
             while (d.read(buffer) != -1) {
             }
             return toHexString(md.digest());
-        } catch (NoSuchAlgorithmException e) {
-            return algorithm + " not found";
-        } catch (IOException e) {
-            CLog.e(e);
         } finally {
             StreamUtil.close(d);
             StreamUtil.close(fileStream);
         }
-        return "failed to generate digest";
     }
 
     /**
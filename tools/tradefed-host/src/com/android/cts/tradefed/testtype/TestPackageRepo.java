@@ -18,8 +18,6 @@ package com.android.cts.tradefed.testtype;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.Log;
 import com.android.tradefed.config.ConfigurationException;
-import com.android.tradefed.config.ConfigurationFactory;
-import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedInputStream;
@@ -29,6 +27,7 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,6 +46,20 @@ public class TestPackageRepo implements ITestPackageRepo {
     private final Map<String, Map<String, TestPackageDef>> mTestMap;
     private final boolean mIncludeKnownFailures;
 
+    /** parsed repos by test case dir, shared by all the shards of the process */
+    private static final Map<String, Snapshot> sSnapshots = new HashMap<>();
+
+    /** A parsed repo, and the state of the test case dir it was parsed from. */
+    private static class Snapshot {
+        final long mSignature;
+        final TestPackageRepo mRepo;
+
+        Snapshot(long signature, TestPackageRepo repo) {
+            mSignature = signature;
+            mRepo = repo;
+        }
+    }
+
     /**
      * Creates a {@link TestPackageRepo}, initialized from provided repo files
      *
@@ -60,6 +73,79 @@ public class TestPackageRepo implements ITestPackageRepo {
         parse(testCaseDir);
     }
 
+    private TestPackageRepo(Map<String, Map<String, TestPackageDef>> testMap,
+            boolean includeKnownFailures) {
+        mTestMap = testMap;
+        mIncludeKnownFailures = includeKnownFailures;
+    }
+
+    /**
+     * Gets a {@link TestPackageRepo} of the provided repo files, which are only parsed once per
+     * process, unless they change.
+     * <p/>
+     * The returned repo holds its own copies of the {@link TestPackageDef}s, which share the
+     * parsed tests with the copies of every other caller, so that the shards of an invocation can
+     * set their own filters.
+     *
+     * @param testCaseDir directory containing all test case definition xml and build files
+     * @param includeKnownFailures Whether to run tests which are known to fail.
+     */
+    public static TestPackageRepo getShared(File testCaseDir, boolean includeKnownFailures) {
+        String key = String.format("%s:%b", testCaseDir.getAbsolutePath(), includeKnownFailures);
+        long signature = getSignature(testCaseDir);
+        Snapshot snapshot;
+        // parse while holding the lock, so that shards starting together wait for the first
+        // one instead of all parsing the same files
+        synchronized (sSnapshots) {
+            snapshot = sSnapshots.get(key);
+            if (snapshot == null || snapshot.mSignature != signature) {
+                snapshot = new Snapshot(signature,
+                        new TestPackageRepo(testCaseDir, includeKnownFailures));
+                sSnapshots.put(key, snapshot);
+            }
+        }
+        return snapshot.mRepo.copy();
+    }
+
+    /**
+     * @return a hash of the names, sizes and modification times of the package definition files
+     *     in the directory
+     */
+    private static long getSignature(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".xml") || name.endsWith(".config");
+            }
+        });
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        long signature = 1;
+        for (File file : files) {
+            signature = 31 * signature + file.getName().hashCode();
+            signature = 31 * signature + file.length();
+            signature = 31 * signature + file.lastModified();
+        }
+        return signature;
+    }
+
+    /**
+     * @return a repo with a copy of each {@link TestPackageDef}
+     */
+    private TestPackageRepo copy() {
+        Map<String, Map<String, TestPackageDef>> testMap = new HashMap<>();
+        for (Map.Entry<String, Map<String, TestPackageDef>> abiEntry : mTestMap.entrySet()) {
+            Map<String, TestPackageDef> defs = new HashMap<>();
+            for (Map.Entry<String, TestPackageDef> entry : abiEntry.getValue().entrySet()) {
+                defs.put(entry.getKey(), entry.getValue().copy());
+            }
+            testMap.put(abiEntry.getKey(), defs);
+        }
+        return new TestPackageRepo(testMap, mIncludeKnownFailures);
+    }
+
     /**
      * Builds mTestMap based on directory contents
      */
@@ -94,8 +180,9 @@ public class TestPackageRepo implements ITestPackageRepo {
      * variable. Parsed config objects will be associated with each applicable ABI type so multiple
      * {@link TestPackageDef}s will be generated accordingly. In addition, based on
      * &lt;module name&gt;.config file naming convention, this method also looks for the optional
-     * module test config, and attaches defined configuration objects to the {@link TestPackageDef}
-     * representing the module accordingly.
+     * module test config, checks that it parses, and attaches it to the {@link TestPackageDef}
+     * representing the module accordingly, which creates the defined configuration objects when
+     * they are needed.
      * @param xmlFile the module definition XML
      */
     private void parseModuleTestConfigs(File xmlFile)  {
@@ -103,14 +190,14 @@ public class TestPackageRepo implements ITestPackageRepo {
         try {
             parser.parse(createStreamFromFile(xmlFile));
             // based on test module XML file path, and the <module name>.config naming convention,
-            // infers the module test config file, and parses it
+            // infers the module test config file
             File preparer = getPreparerDefForPackage(xmlFile);
-            IConfiguration config = null;
             if (preparer != null) {
                 try {
-                    // invokes parser to process the test module config file
-                    config = ConfigurationFactory.getInstance().createConfigurationFromArgs(
-                            new String[]{preparer.getAbsolutePath()});
+                    // parse the config now, so that an error in it is reported when the repo is
+                    // loaded rather than when the package runs. Each copy of the package parses
+                    // it again for preparers of its own.
+                    TestPackageDef.createPackagePreparers(preparer);
                 } catch (ConfigurationException e) {
                     throw new RuntimeException(
                             String.format("error parsing config file: %s", xmlFile.getName()), e);
@@ -125,8 +212,8 @@ public class TestPackageRepo implements ITestPackageRepo {
             for (TestPackageDef def : defs) {
                 String name = def.getAppPackageName();
                 String abi = def.getAbi().getName();
-                if (config != null) {
-                    def.setPackagePreparers(config.getTargetPreparers());
+                if (preparer != null) {
+                    def.setPackagePreparerConfig(preparer);
                 }
                 if (!mTestMap.containsKey(abi)) {
                     mTestMap.put(abi, new HashMap<String, TestPackageDef>());
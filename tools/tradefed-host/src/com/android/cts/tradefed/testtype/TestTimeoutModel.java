@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.result.TestRuntimeHistory;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Derives test timeouts from the run times of the tests in previous sessions.
+ * <p/>
+ * The timeout of a test is a high percentile of its recorded run times times a safety factor,
+ * but never less than a floor, so that a test that usually takes a second isn't failed by a
+ * slow device, and never more than the static timeout the test would otherwise run with. A test
+ * without history keeps its static timeout.
+ */
+class TestTimeoutModel {
+
+    /** The percentile of the recorded run times the timeout is based on. */
+    static final double PERCENTILE = 0.95;
+
+    private final TestRuntimeHistory mHistory;
+    private final double mFactor;
+    private final long mMinTimeoutMs;
+
+    /**
+     * @param history the run times of previous sessions
+     * @param factor the factor to multiply the percentile of the run times by
+     * @param minTimeoutMs the minimum timeout of a test
+     */
+    TestTimeoutModel(TestRuntimeHistory history, double factor, long minTimeoutMs) {
+        mHistory = history;
+        mFactor = factor;
+        mMinTimeoutMs = minTimeoutMs;
+    }
+
+    /**
+     * @param packageId the id of the test package
+     * @param test the test
+     * @param staticTimeoutMs the timeout the test runs with without history
+     * @return the timeout of the test
+     */
+    long getTimeout(String packageId, TestIdentifier test, long staticTimeoutMs) {
+        long[] runTimes = mHistory.getRunTimes(packageId).get(test);
+        if (runTimes == null) {
+            return staticTimeoutMs;
+        }
+        return computeTimeout(runTimes, staticTimeoutMs);
+    }
+
+    /**
+     * @return the timeouts of the tests that have history and would get a timeout below their
+     *     static timeout
+     */
+    Map<TestIdentifier, Long> getTimeouts(String packageId, Collection<TestIdentifier> tests,
+            long staticTimeoutMs) {
+        Map<TestIdentifier, Long> timeouts = new HashMap<>();
+        for (TestIdentifier test : tests) {
+            long timeout = getTimeout(packageId, test, staticTimeoutMs);
+            if (timeout < staticTimeoutMs) {
+                timeouts.put(test, timeout);
+            }
+        }
+        return timeouts;
+    }
+
+    /**
+     * @return the largest timeout of the tests, which is the static timeout if any of them has
+     *     no history
+     */
+    long getMaxTimeout(String packageId, Collection<TestIdentifier> tests, long staticTimeoutMs) {
+        long maxTimeout = tests.isEmpty() ? staticTimeoutMs : 0;
+        for (TestIdentifier test : tests) {
+            maxTimeout = Math.max(maxTimeout, getTimeout(packageId, test, staticTimeoutMs));
+            if (maxTimeout >= staticTimeoutMs) {
+                break;
+            }
+        }
+        return maxTimeout;
+    }
+
+    private long computeTimeout(long[] runTimes, long staticTimeoutMs) {
+        long timeout = Math.max(mMinTimeoutMs,
+                (long) Math.ceil(getPercentile(runTimes, PERCENTILE) * mFactor));
+        return Math.min(timeout, staticTimeoutMs);
+    }
+
+    /**
+     * @return the nearest-rank percentile of the values
+     */
+    static long getPercentile(long[] values, double percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
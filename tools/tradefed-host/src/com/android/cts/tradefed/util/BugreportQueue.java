@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Takes bugreports of a device in the background, at most one at a time and no more often than a
+ * minimum interval.
+ * <p/>
+ * A request made while a bugreport is being taken, or before the interval has passed, is
+ * dropped, since the next bugreport covers the same device state. Finished bugreports are kept
+ * until the caller forwards them to a listener with {@link #forwardCompleted}, so that listeners
+ * are only ever called from the caller's thread. The dropped requests are listed in a log of
+ * their own by {@link #drain}, next to the bugreports that cover them.
+ * <p/>
+ * The background thread takes bugreports with the {@link IDevice} directly, like
+ * {@link LogcatRingBuffer} streams logcat, since {@link ITestDevice} is not safe to use from
+ * two threads and its recovery must only run on the invocation thread. A bugreport that fails
+ * because the device went away is logged and skipped; the invocation thread finds out about the
+ * device itself.
+ */
+public class BugreportQueue {
+
+    /** The name of the log listing the dropped requests. */
+    static final String DROPPED_DATA_NAME = "bugreports-dropped";
+    private static final String BUGREPORT_COMMAND = "bugreport";
+    /** The maximum time bugreport may go without output. */
+    private static final long BUGREPORT_OUTPUT_TIMEOUT_MS = 2 * 60 * 1000;
+
+    private final ITestDevice mDevice;
+    private final long mMinIntervalMs;
+    private final ExecutorService mExecutor;
+    private volatile boolean mShutdown = false;
+
+    /** The bugreports being taken and the taken ones not yet forwarded, in request order. */
+    private final List<Request> mRequests = new ArrayList<>();
+    private long mLastRequestMs = 0;
+    /** The name of the last bugreport requested, which covers the requests dropped after it. */
+    private String mLastDataName = null;
+    /** The dropped requests not yet reported, each followed by the bugreport that covers it. */
+    private final List<String> mDropped = new ArrayList<>();
+
+    private static class Request {
+        final String mDataName;
+        final Future<InputStreamSource> mBugreport;
+
+        Request(String dataName, Future<InputStreamSource> bugreport) {
+            mDataName = dataName;
+            mBugreport = bugreport;
+        }
+    }
+
+    /**
+     * @param device the device to take bugreports of
+     * @param minIntervalMs the minimum time between the start of two bugreports
+     */
+    public BugreportQueue(ITestDevice device, long minIntervalMs) {
+        mDevice = device;
+        mMinIntervalMs = minIntervalMs;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BugreportQueue-" + mDevice.getSerialNumber());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Requests a bugreport, unless one is being taken or the last one was requested less than the
+     * minimum interval ago.
+     *
+     * @param dataName the name to forward the bugreport under
+     * @return true if a bugreport will be taken
+     */
+    public boolean request(String dataName) {
+        long now = System.currentTimeMillis();
+        boolean busy = !mRequests.isEmpty() && !mRequests.get(mRequests.size() - 1)
+                .mBugreport.isDone();
+        if (busy || now - mLastRequestMs < mMinIntervalMs) {
+            mDropped.add(String.format("%s: see %s", dataName, mLastDataName));
+            CLog.d("Skipping bugreport %s of %s, one was requested %d ms ago", dataName,
+                    mDevice.getSerialNumber(), now - mLastRequestMs);
+            return false;
+        }
+        mLastRequestMs = now;
+        mLastDataName = dataName;
+        // get the IDevice now, it changes when the device reconnects
+        final IDevice device = mDevice.getIDevice();
+        Future<InputStreamSource> bugreport = mExecutor.submit(new Callable<InputStreamSource>() {
+            @Override
+            public InputStreamSource call() throws Exception {
+                return takeBugreport(device);
+            }
+        });
+        mRequests.add(new Request(dataName, bugreport));
+        return true;
+    }
+
+    /**
+     * Forwards the bugreports taken so far to the listener, in request order.
+     */
+    public void forwardCompleted(ITestInvocationListener listener) {
+        while (!mRequests.isEmpty() && mRequests.get(0).mBugreport.isDone()) {
+            forward(mRequests.remove(0), listener, 0);
+        }
+    }
+
+    /**
+     * Waits for the bugreports being taken, and forwards every bugreport to the listener,
+     * followed by the list of the requests dropped since the last call, if any.
+     *
+     * @param timeoutMs the maximum time to wait for each bugreport
+     */
+    public void drain(ITestInvocationListener listener, long timeoutMs) {
+        while (!mRequests.isEmpty()) {
+            forward(mRequests.remove(0), listener, timeoutMs);
+        }
+        if (mDropped.isEmpty()) {
+            return;
+        }
+        StringBuilder dropped = new StringBuilder();
+        for (String request : mDropped) {
+            dropped.append(request).append('\n');
+        }
+        mDropped.clear();
+        InputStreamSource source = new ByteArrayInputStreamSource(
+                dropped.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            listener.testLog(DROPPED_DATA_NAME, LogDataType.TEXT, source);
+        } finally {
+            source.cancel();
+        }
+    }
+
+    /**
+     * Stops the background thread, dropping the bugreports not yet forwarded.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Request request : mRequests) {
+            request.mBugreport.cancel(true);
+        }
+        mRequests.clear();
+        mExecutor.shutdownNow();
+    }
+
+    private InputStreamSource takeBugreport(IDevice device) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        device.executeShellCommand(BUGREPORT_COMMAND, new IShellOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                output.write(data, offset, length);
+            }
+
+            @Override
+            public void flush() {
+                // ignore
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return mShutdown || Thread.currentThread().isInterrupted();
+            }
+        }, BUGREPORT_OUTPUT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (output.size() == 0) {
+            return null;
+        }
+        return new ByteArrayInputStreamSource(output.toByteArray());
+    }
+
+    private void forward(Request request, ITestInvocationListener listener, long timeoutMs) {
+        InputStreamSource bugreport;
+        try {
+            bugreport = request.mBugreport.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            request.mBugreport.cancel(true);
+            CLog.w("Timed out taking bugreport %s of %s", request.mDataName,
+                    mDevice.getSerialNumber());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            CLog.w("Failed to take bugreport %s of %s: %s", request.mDataName,
+                    mDevice.getSerialNumber(), e.toString());
+            return;
+        }
+        if (bugreport == null) {
+            return;
+        }
+        try {
+            listener.testLog(request.mDataName, LogDataType.TEXT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.util;
+
+import com.android.ddmlib.IShellOutputReceiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates a dumpsys checkin dump against a {@link CheckinSchema} as the dump is received.
+ * <p/>
+ * The parser is an {@link IShellOutputReceiver}, so it can be handed straight to
+ * {@code ITestDevice#executeShellCommand(String, IShellOutputReceiver)}; the output is split into
+ * lines and fields in a reused buffer, and only section names that the schema doesn't know and
+ * invalid values are ever turned into {@link String}s. Problems are collected rather than thrown,
+ * see {@link #getErrors()}.
+ * <p/>
+ * Tests that want values out of the dump, rather than just a format check, can register a
+ * {@link RecordListener}, which sees every well formed line.
+ */
+public class CheckinParser implements IShellOutputReceiver {
+
+    /** The maximum number of errors kept, so a badly broken dump doesn't exhaust memory. */
+    private static final int MAX_ERRORS = 100;
+
+    /**
+     * Receives the well formed lines of a dump.
+     */
+    public interface RecordListener {
+        /**
+         * Called for each line that matches the schema, or whose section the schema doesn't
+         * describe. The record is only valid for the duration of the call.
+         */
+        void onRecord(Record record);
+    }
+
+    /**
+     * A view over the line currently being parsed.
+     */
+    public final class Record {
+        private String mSection;
+        private int mFirstField;
+        private int mFieldCount;
+
+        private Record() {}
+
+        /** @return the section name of the line */
+        public String getSection() {
+            return mSection;
+        }
+
+        /** @return the dump version in effect for this line, or -1 if unknown */
+        public int getVersion() {
+            return mVersion;
+        }
+
+        /** @return the number of fields after the section name */
+        public int getFieldCount() {
+            return mFieldCount;
+        }
+
+        /** @return the given field after the section name, as a string */
+        public String getString(int index) {
+            int field = checkField(index);
+            return decode(mLine, mStarts[field], mEnds[field]);
+        }
+
+        /** @return the given field after the section name, as a long */
+        public long getLong(int index) {
+            int field = checkField(index);
+            return parseLong(mLine, mStarts[field], mEnds[field]);
+        }
+
+        /** @return the given field after the section name, as a double */
+        public double getDouble(int index) {
+            return Double.parseDouble(getString(index));
+        }
+
+        /** @return the given column of the common prefix, as a string */
+        public String getPrefixString(int index) {
+            if (index < 0 || index >= mSchema.getPrefix().length) {
+                throw new IndexOutOfBoundsException("prefix column " + index);
+            }
+            return decode(mLine, mStarts[index], mEnds[index]);
+        }
+
+        private int checkField(int index) {
+            if (index < 0 || index >= mFieldCount) {
+                throw new IndexOutOfBoundsException(
+                        "field " + index + " of " + mFieldCount + " in " + mSection);
+            }
+            return mFirstField + index;
+        }
+    }
+
+    private final CheckinSchema mSchema;
+    private final CheckinSchema.Section[] mSections;
+    private final Record mRecord = new Record();
+    private RecordListener mListener = null;
+
+    private byte[] mLine = new byte[1024];
+    private int mLineLength = 0;
+    private int[] mStarts = new int[64];
+    private int[] mEnds = new int[64];
+    private int mLineNumber = 0;
+    private int mNonEmptyLineCount = 0;
+    private int mVersion = -1;
+    private boolean mFinished = false;
+
+    // Line counts by section, keyed by section name; sections known to the schema are counted
+    // by index to avoid building their names from the dump.
+    private final int[] mKnownCounts;
+    private final Map<String, Integer> mUnknownCounts = new HashMap<>();
+    private final List<String> mErrors = new ArrayList<>();
+    private int mErrorCount = 0;
+
+    public CheckinParser(CheckinSchema schema) {
+        mSchema = schema;
+        mSections = schema.getSections().toArray(new CheckinSchema.Section[0]);
+        mKnownCounts = new int[mSections.length];
+    }
+
+    /**
+     * Sets the listener to be notified of each well formed line.
+     */
+    public void setRecordListener(RecordListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Feeds a whole dump from a stream, for example a bugreport read from disk. The stream is not
+     * closed.
+     */
+    public void parse(InputStream input) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            addOutput(buffer, 0, read);
+        }
+        flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n') {
+                appendToLine(data, start, i - start);
+                processLine();
+                start = i + 1;
+            }
+        }
+        appendToLine(data, start, end - start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        if (mLineLength > 0) {
+            processLine();
+        }
+        mFinished = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * @return true once the whole dump has been received
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return the number of non-empty lines seen so far
+     */
+    public int getLineCount() {
+        return mNonEmptyLineCount;
+    }
+
+    /**
+     * @return the problems found so far, one per line, at most {@link #MAX_ERRORS} of them
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(mErrors);
+    }
+
+    /**
+     * @return the total number of invalid lines found so far
+     */
+    public int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * @return the number of lines seen so far for the given section, valid or not
+     */
+    public int getSectionCount(String section) {
+        for (int i = 0; i < mSections.length; i++) {
+            if (mSections[i].getName().equals(section)) {
+                // layouts for different versions share a name
+                int count = 0;
+                for (int j = i; j < mSections.length; j++) {
+                    if (mSections[j].getName().equals(section)) {
+                        count += mKnownCounts[j];
+                    }
+                }
+                return count;
+            }
+        }
+        Integer count = mUnknownCounts.get(section);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return true if at least one line of the given section has been seen
+     */
+    public boolean hasSeenSection(String section) {
+        return getSectionCount(section) > 0;
+    }
+
+    /**
+     * @return the dump version read so far, or -1 if none
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    private void appendToLine(byte[] data, int offset, int count) {
+        if (mLineLength + count > mLine.length) {
+            mLine = Arrays.copyOf(mLine, Math.max(mLineLength + count, mLine.length * 2));
+        }
+        System.arraycopy(data, offset, mLine, mLineLength, count);
+        mLineLength += count;
+    }
+
+    private void processLine() {
+        mLineNumber++;
+        int length = mLineLength;
+        mLineLength = 0;
+        if (length > 0 && mLine[length - 1] == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+        mNonEmptyLineCount++;
+
+        int fieldCount = splitFields(length);
+        CheckinSchema.FieldType[] prefix = mSchema.getPrefix();
+        if (fieldCount <= prefix.length) {
+            addError("expected a section name in column " + prefix.length);
+            return;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].matches(mLine, mStarts[i], mEnds[i])) {
+                addError(String.format("column %d: expected %s but found \"%s\"", i, prefix[i],
+                        decode(mLine, mStarts[i], mEnds[i])));
+                return;
+            }
+        }
+
+        int nameStart = mStarts[prefix.length];
+        int nameEnd = mEnds[prefix.length];
+        int first = prefix.length + 1;
+        int count = fieldCount - first;
+
+        CheckinSchema.Section section = null;
+        boolean known = false;
+        for (int i = 0; i < mSections.length; i++) {
+            if (mSections[i].hasName(mLine, nameStart, nameEnd)) {
+                known = true;
+                if (mSections[i].appliesTo(mVersion)) {
+                    section = mSections[i];
+                    mKnownCounts[i]++;
+                    break;
+                }
+            }
+        }
+        String name;
+        if (section != null) {
+            name = section.getName();
+        } else {
+            name = decode(mLine, nameStart, nameEnd);
+            if (known) {
+                addError(name + ": no layout for version " + mVersion);
+                return;
+            }
+            Integer seen = mUnknownCounts.get(name);
+            mUnknownCounts.put(name, seen == null ? 1 : seen + 1);
+        }
+
+        if (section != null) {
+            String error = section.validate(mLine, mStarts, mEnds, first, count);
+            if (error != null) {
+                addError(name + ": " + error);
+                return;
+            }
+        }
+
+        if (name.equals(mSchema.getVersionSection())) {
+            int field = first + mSchema.getVersionField();
+            if (field < fieldCount && CheckinSchema.isInteger(mLine, mStarts[field], mEnds[field])) {
+                mVersion = (int) parseLong(mLine, mStarts[field], mEnds[field]);
+            } else {
+                addError(name + ": missing version in field " + mSchema.getVersionField());
+                return;
+            }
+        }
+
+        if (mListener != null) {
+            mRecord.mSection = name;
+            mRecord.mFirstField = first;
+            mRecord.mFieldCount = count;
+            mListener.onRecord(mRecord);
+        }
+    }
+
+    /**
+     * Splits the current line on commas, keeping empty fields, including a trailing one.
+     *
+     * @return the number of fields
+     */
+    private int splitFields(int length) {
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || mLine[i] == ',') {
+                if (count == mStarts.length) {
+                    mStarts = Arrays.copyOf(mStarts, count * 2);
+                    mEnds = Arrays.copyOf(mEnds, count * 2);
+                }
+                mStarts[count] = start;
+                mEnds[count] = i;
+                count++;
+                start = i + 1;
+            }
+        }
+        return count;
+    }
+
+    private void addError(String message) {
+        mErrorCount++;
+        if (mErrors.size() < MAX_ERRORS) {
+            mErrors.add("line " + mLineNumber + ": " + message);
+        }
+    }
+
+    private static long parseLong(byte[] line, int start, int end) {
+        if (!CheckinSchema.isInteger(line, start, end)) {
+            throw new NumberFormatException(
+                    "Expected an integer but found \"" + decode(line, start, end) + "\"");
+        }
+        boolean negative = (line[start] == '-');
+        if (negative || line[start] == '+') {
+            start++;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    static String decode(byte[] line, int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    static byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes the layout of a dumpsys "checkin" format dump, such as the output of
+ * "dumpsys batterystats --checkin" or "dumpsys procstats -c".
+ * <p/>
+ * A checkin dump is a sequence of comma separated lines. Each line starts with an optional common
+ * prefix of columns, followed by a section name which determines the layout of the remaining
+ * columns. A {@link Section} lists the types of those columns: leading fields at fixed positions,
+ * an optional run of repeated fields, and trailing fields anchored at the end of the line. Fields
+ * may themselves be colon separated composites.
+ * <p/>
+ * Sections may be declared for a range of dump versions, in which case the version is read from
+ * a designated field of a designated section as the dump is parsed. See {@link CheckinParser}.
+ */
+public class CheckinSchema {
+
+    /** Digits of the largest long, and of the smallest one without its sign. */
+    private static final byte[] LONG_MAX_DIGITS =
+            Long.toString(Long.MAX_VALUE).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_MIN_DIGITS =
+            Long.toString(Long.MIN_VALUE).substring(1).getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The type of a single column. Values are checked in place, as bytes of the dump.
+     */
+    public static abstract class FieldType {
+        private final String mDescription;
+
+        protected FieldType(String description) {
+            mDescription = description;
+        }
+
+        /**
+         * @return true if the bytes in [start, end) of line are a valid value of this type
+         */
+        public abstract boolean matches(byte[] line, int start, int end);
+
+        @Override
+        public String toString() {
+            return mDescription;
+        }
+    }
+
+    /** Any value, including the empty string. */
+    public static final FieldType STRING = new FieldType("a string") {
+        @Override
+        public boolean matches(byte[] line, int start, int end) {
+            return true;
+        }
+    };
+
+    /** A value accepted by {@link Long#parseLong(String)}. */
+    public static final FieldType INTEGER = new FieldType("an integer") {
+        @Override
+        public boolean matches(byte[] line, int start, int end) {
+            return isInteger(line, start, end);
+        }
+    };
+
+    /** A value accepted by {@link Double#parseDouble(String)}. */
+    public static final FieldType DOUBLE = new FieldType("a double") {
+        @Override
+        public boolean matches(byte[] line, int start, int end) {
+            if (isInteger(line, start, end)) {
+                return true;
+            }
+            try {
+                Double.parseDouble(CheckinParser.decode(line, start, end));
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    };
+
+    /**
+     * @return a type matching exactly one of the given values
+     */
+    public static FieldType oneOf(final String... values) {
+        final byte[][] encoded = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = CheckinParser.encode(values[i]);
+        }
+        return new FieldType("one of " + Arrays.toString(values)) {
+            @Override
+            public boolean matches(byte[] line, int start, int end) {
+                for (byte[] value : encoded) {
+                    if (bytesEqual(value, line, start, end)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a type matching an integer, or the given placeholder value such as "N/A"
+     */
+    public static FieldType integerOr(String placeholder) {
+        final byte[] encoded = CheckinParser.encode(placeholder);
+        return new FieldType("an integer or \"" + placeholder + "\"") {
+            @Override
+            public boolean matches(byte[] line, int start, int end) {
+                return isInteger(line, start, end) || bytesEqual(encoded, line, start, end);
+            }
+        };
+    }
+
+    /**
+     * @return a type made of exactly the given number of colon separated subfields
+     */
+    public static FieldType composite(final FieldType... subfields) {
+        StringBuilder description = new StringBuilder();
+        for (FieldType subfield : subfields) {
+            description.append(description.length() == 0 ? "<" : ":<");
+            description.append(subfield).append('>');
+        }
+        return new FieldType(description.toString()) {
+            @Override
+            public boolean matches(byte[] line, int start, int end) {
+                int subStart = start;
+                for (int i = 0; i < subfields.length; i++) {
+                    int subEnd = subStart;
+                    while (subEnd < end && line[subEnd] != ':') {
+                        subEnd++;
+                    }
+                    boolean last = (i == subfields.length - 1);
+                    if ((subEnd == end) != last) {
+                        // too few or too many subfields
+                        return false;
+                    }
+                    if (!subfields[i].matches(line, subStart, subEnd)) {
+                        return false;
+                    }
+                    subStart = subEnd + 1;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The layout of the columns that follow a section name.
+     */
+    public static class Section {
+        private final String mName;
+        private final byte[] mEncodedName;
+        private FieldType[] mLeading = new FieldType[0];
+        private FieldType mRepeated = null;
+        private byte[] mRepeatedStopMarker = null;
+        private FieldType[] mTrailing = new FieldType[0];
+        private boolean mAllowExtra = false;
+        private int mMinVersion = Integer.MIN_VALUE;
+        private int mMaxVersion = Integer.MAX_VALUE;
+
+        public Section(String name) {
+            mName = name;
+            mEncodedName = CheckinParser.encode(name);
+        }
+
+        /** Sets the types of the fields directly after the section name. */
+        public Section fields(FieldType... types) {
+            mLeading = types;
+            return this;
+        }
+
+        /** Sets the type of any number of fields between the leading and trailing fields. */
+        public Section repeated(FieldType type) {
+            mRepeated = type;
+            return this;
+        }
+
+        /**
+         * Stops checking repeated fields at the first one that contains the given marker. Used
+         * for sections whose tail holds data in an unspecified format.
+         */
+        public Section repeatedUntil(String marker) {
+            mRepeatedStopMarker = CheckinParser.encode(marker);
+            return this;
+        }
+
+        /** Sets the types of the fields at the end of the line. */
+        public Section trailing(FieldType... types) {
+            mTrailing = types;
+            return this;
+        }
+
+        /** Accepts unchecked fields after the leading fields, for forward compatibility. */
+        public Section allowExtraFields() {
+            mAllowExtra = true;
+            return this;
+        }
+
+        /** Restricts this layout to dumps with a version in [minVersion, maxVersion]. */
+        public Section versions(int minVersion, int maxVersion) {
+            mMinVersion = minVersion;
+            mMaxVersion = maxVersion;
+            return this;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        boolean appliesTo(int version) {
+            return version >= mMinVersion && version <= mMaxVersion;
+        }
+
+        boolean hasName(byte[] line, int start, int end) {
+            return bytesEqual(mEncodedName, line, start, end);
+        }
+
+        /**
+         * Checks the given fields, which follow the section name.
+         *
+         * @return a description of the first problem found, or null if the fields are valid
+         */
+        String validate(byte[] line, int[] starts, int[] ends, int first, int count) {
+            int fixed = mLeading.length + mTrailing.length;
+            boolean exact = (mRepeated == null && !mAllowExtra);
+            if (exact ? count != fixed : count < fixed) {
+                return String.format("expected %s%d fields but found %d",
+                        exact ? "" : "at least ", fixed, count);
+            }
+            for (int i = 0; i < mLeading.length; i++) {
+                String error = check(mLeading[i], line, starts[first + i], ends[first + i], i);
+                if (error != null) {
+                    return error;
+                }
+            }
+            int trailingStart = count - mTrailing.length;
+            for (int i = 0; i < mTrailing.length; i++) {
+                int field = trailingStart + i;
+                String error = check(mTrailing[i], line, starts[first + field],
+                        ends[first + field], field);
+                if (error != null) {
+                    return error;
+                }
+            }
+            if (mRepeated != null) {
+                for (int i = mLeading.length; i < trailingStart; i++) {
+                    int start = starts[first + i];
+                    int end = ends[first + i];
+                    if (mRepeatedStopMarker != null
+                            && contains(line, start, end, mRepeatedStopMarker)) {
+                        break;
+                    }
+                    String error = check(mRepeated, line, start, end, i);
+                    if (error != null) {
+                        return error;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static String check(FieldType type, byte[] line, int start, int end, int index) {
+            if (type.matches(line, start, end)) {
+                return null;
+            }
+            return String.format("field %d: expected %s but found \"%s\"", index, type,
+                    CheckinParser.decode(line, start, end));
+        }
+    }
+
+    private final FieldType[] mPrefix;
+    private final List<Section> mSections = new ArrayList<>();
+    private String mVersionSection = null;
+    private int mVersionField = -1;
+
+    /**
+     * @param prefix the types of the columns that precede the section name on every line
+     */
+    public CheckinSchema(FieldType... prefix) {
+        mPrefix = prefix;
+    }
+
+    /**
+     * Adds a section layout. Several layouts may share a name if their versions don't overlap.
+     */
+    public CheckinSchema addSection(Section section) {
+        mSections.add(section);
+        return this;
+    }
+
+    /**
+     * Reads the dump version from the given integer field of the given section. Until that
+     * section is seen the version is -1.
+     */
+    public CheckinSchema setVersionField(String sectionName, int fieldIndex) {
+        mVersionSection = sectionName;
+        mVersionField = fieldIndex;
+        return this;
+    }
+
+    FieldType[] getPrefix() {
+        return mPrefix;
+    }
+
+    List<Section> getSections() {
+        return mSections;
+    }
+
+    String getVersionSection() {
+        return mVersionSection;
+    }
+
+    int getVersionField() {
+        return mVersionField;
+    }
+
+    static boolean isInteger(byte[] line, int start, int end) {
+        boolean negative = start < end && line[start] == '-';
+        if (start < end && (negative || line[start] == '+')) {
+            start++;
+        }
+        if (start == end || end - start > LONG_MAX_DIGITS.length) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return false;
+            }
+        }
+        if (end - start < LONG_MAX_DIGITS.length) {
+            return true;
+        }
+        // as many digits as the limit, so it fits in a long unless it is above the limit
+        byte[] limit = negative ? LONG_MIN_DIGITS : LONG_MAX_DIGITS;
+        for (int i = 0; i < limit.length; i++) {
+            if (line[start + i] != limit[i]) {
+                return line[start + i] < limit[i];
+            }
+        }
+        return true;
+    }
+
+    static boolean bytesEqual(byte[] value, byte[] line, int start, int end) {
+        if (value.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (value[i] != line[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(byte[] line, int start, int end, byte[] value) {
+        for (int i = start; i + value.length <= end; i++) {
+            if (bytesEqual(value, line, i, i + value.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link IDeviceReleaser}s of the state tests left on each device.
+ * <p/>
+ * Tests register a releaser when they first leave state on a device for the tests that follow.
+ * The runner of the tests, such as JarHostTest, releases the device once the tests are done, which
+ * calls the releasers in the order they were registered and forgets them.
+ */
+public class DeviceReleaseRegistry {
+
+    /** The releasers of each device, by serial number. */
+    private static final Map<String, Set<IDeviceReleaser>> sReleasers = new HashMap<>();
+
+    private DeviceReleaseRegistry() {
+    }
+
+    /**
+     * Registers a releaser of a device until the device is released. Registering the same
+     * releaser again does nothing.
+     */
+    public static void register(ITestDevice device, IDeviceReleaser releaser) {
+        synchronized (sReleasers) {
+            Set<IDeviceReleaser> releasers = sReleasers.get(device.getSerialNumber());
+            if (releasers == null) {
+                releasers = new LinkedHashSet<>();
+                sReleasers.put(device.getSerialNumber(), releasers);
+            }
+            releasers.add(releaser);
+        }
+    }
+
+    /**
+     * Calls the releasers registered for a device, and forgets them. A releaser that fails does
+     * not keep the others from being called.
+     *
+     * @throws DeviceNotAvailableException if the device was lost while released
+     */
+    public static void releaseDevice(ITestDevice device) throws DeviceNotAvailableException {
+        Set<IDeviceReleaser> releasers;
+        synchronized (sReleasers) {
+            releasers = sReleasers.remove(device.getSerialNumber());
+        }
+        if (releasers == null) {
+            return;
+        }
+        DeviceNotAvailableException notAvailable = null;
+        for (IDeviceReleaser releaser : releasers) {
+            try {
+                releaser.releaseDevice(device);
+            } catch (DeviceNotAvailableException e) {
+                if (notAvailable == null) {
+                    notAvailable = e;
+                }
+            } catch (RuntimeException e) {
+                CLog.e("Failed to release %s with %s", device.getSerialNumber(), releaser);
+                CLog.e(e);
+            }
+        }
+        if (notAvailable != null) {
+            throw notAvailable;
+        }
+    }
+}
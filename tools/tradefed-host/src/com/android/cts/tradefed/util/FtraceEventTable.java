@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.util;
+
+import java.util.Arrays;
+
+/**
+ * A {@link FtraceParser.Callback} that stores records in primitive columns.
+ * <p/>
+ * Each record is a row; thread names and payloads are appended to a shared character pool and
+ * addressed by offset, so a table of millions of records costs a handful of arrays rather than
+ * millions of objects. Event ids are those of the {@link FtraceParser} that filled the table.
+ */
+public class FtraceEventTable implements FtraceParser.Callback {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final boolean mKeepThreadNames;
+    private int mSize = 0;
+    private long[] mTimestampsNs = new long[INITIAL_CAPACITY];
+    private int[] mTids = new int[INITIAL_CAPACITY];
+    private int[] mPids = new int[INITIAL_CAPACITY];
+    private int[] mCpus = new int[INITIAL_CAPACITY];
+    private int[] mEventIds = new int[INITIAL_CAPACITY];
+    // Row r occupies [mThreadNameOffsets[r], mThreadNameOffsets[r + 1]) of mChars.
+    private int[] mThreadNameOffsets = new int[INITIAL_CAPACITY + 1];
+    private int[] mPayloadOffsets = new int[INITIAL_CAPACITY];
+
+    private char[] mChars = new char[INITIAL_CAPACITY * 32];
+    private int mCharsLength = 0;
+
+    /**
+     * Creates a table that keeps thread names and payloads.
+     */
+    public FtraceEventTable() {
+        this(true);
+    }
+
+    /**
+     * @param keepThreadNames false to only keep the payload of each record
+     */
+    public FtraceEventTable(boolean keepThreadNames) {
+        mKeepThreadNames = keepThreadNames;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTraceEntry(FtraceParser.Entry entry) {
+        if (mSize == mTids.length) {
+            grow();
+        }
+        int row = mSize++;
+        mTimestampsNs[row] = entry.getTimestampNs();
+        mTids[row] = entry.getTid();
+        mPids[row] = entry.getPid();
+        mCpus[row] = entry.getCpu();
+        mEventIds[row] = entry.getEventId();
+        mThreadNameOffsets[row] = mCharsLength;
+        if (mKeepThreadNames) {
+            ensureChars(entry.getThreadNameLength());
+            System.arraycopy(entry.getLine(), entry.getThreadNameOffset(), mChars, mCharsLength,
+                    entry.getThreadNameLength());
+            mCharsLength += entry.getThreadNameLength();
+        }
+        mPayloadOffsets[row] = mCharsLength;
+        ensureChars(entry.getPayloadLength());
+        System.arraycopy(entry.getLine(), entry.getPayloadOffset(), mChars, mCharsLength,
+                entry.getPayloadLength());
+        mCharsLength += entry.getPayloadLength();
+        mThreadNameOffsets[row + 1] = mCharsLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onFinished() {
+        // nothing to do
+    }
+
+    /** @return the number of records in the table */
+    public int size() {
+        return mSize;
+    }
+
+    public long getTimestampNs(int row) {
+        checkRow(row);
+        return mTimestampsNs[row];
+    }
+
+    public int getTid(int row) {
+        checkRow(row);
+        return mTids[row];
+    }
+
+    public int getPid(int row) {
+        checkRow(row);
+        return mPids[row];
+    }
+
+    public int getCpu(int row) {
+        checkRow(row);
+        return mCpus[row];
+    }
+
+    public int getEventId(int row) {
+        checkRow(row);
+        return mEventIds[row];
+    }
+
+    /**
+     * @return the thread name of the given record, or null if thread names are not kept
+     */
+    public String getThreadName(int row) {
+        checkRow(row);
+        if (!mKeepThreadNames) {
+            return null;
+        }
+        int start = mThreadNameOffsets[row];
+        return new String(mChars, start, mPayloadOffsets[row] - start);
+    }
+
+    public String getPayload(int row) {
+        checkRow(row);
+        int start = mPayloadOffsets[row];
+        return new String(mChars, start, mThreadNameOffsets[row + 1] - start);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + mSize);
+        }
+    }
+
+    private void grow() {
+        int capacity = mTids.length * 2;
+        mTimestampsNs = Arrays.copyOf(mTimestampsNs, capacity);
+        mTids = Arrays.copyOf(mTids, capacity);
+        mPids = Arrays.copyOf(mPids, capacity);
+        mCpus = Arrays.copyOf(mCpus, capacity);
+        mEventIds = Arrays.copyOf(mEventIds, capacity);
+        mThreadNameOffsets = Arrays.copyOf(mThreadNameOffsets, capacity + 1);
+        mPayloadOffsets = Arrays.copyOf(mPayloadOffsets, capacity);
+    }
+
+    private void ensureChars(int count) {
+        if (mCharsLength + count > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(mCharsLength + count, mChars.length * 2));
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for textual ftrace data, as printed by atrace and systrace.
+ * <p/>
+ * Lines are tokenized by hand rather than with regular expressions, and the fields of each record
+ * are exposed as primitives through a reused {@link Entry}, so parsing a trace allocates nothing
+ * per line unless a callback asks for a {@link String}. The accepted formats are the same as the
+ * ftrace importer in catapult:
+ * <pre>
+ *   &lt;idle&gt;-0     (    0) [001] d...  1.23: sched_switch: ...   (3.2+, print-tgid)
+ *   &lt;idle&gt;-0     [001] d...  1.23: sched_switch: ...           (3.2+, irq-info)
+ *   &lt;idle&gt;-0     [001]  1.23: sched_switch: ...                (pre-3.2)
+ * </pre>
+ * Lines that are comments or that don't match any of these formats are ignored.
+ * <p/>
+ * Event names are interned into small integer ids, so callbacks can compare events with
+ * {@link #getEventId(String)} instead of string equality. An optional event filter rejects
+ * records by event name before anything past the event name is looked at.
+ * <p/>
+ * A parser instance is not thread safe, but can be used for several traces in sequence; event ids
+ * stay stable for the lifetime of the instance.
+ */
+public class FtraceParser {
+
+    /** Value reported by {@link Entry#getPid()} when the trace doesn't include the tgid. */
+    public static final int UNKNOWN_PID = -1;
+
+    /** Id returned by {@link #getEventId(String)} for events that have not been seen. */
+    public static final int UNKNOWN_EVENT = -1;
+
+    private static final int INITIAL_LINE_SIZE = 512;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int NANOS_DIGITS = 9;
+
+    /**
+     * Receives the records of a trace.
+     */
+    public interface Callback {
+        /**
+         * Called once for every record that passes the event filter. The entry, and any
+         * offsets it reports, are only valid for the duration of the call.
+         */
+        void onTraceEntry(Entry entry);
+
+        /**
+         * Called once at the end of the trace, even if reading it failed.
+         */
+        void onFinished();
+    }
+
+    /**
+     * A view over the record currently being parsed.
+     */
+    public final class Entry {
+        private char[] mLine;
+        private int mLineLength;
+        private int mThreadNameStart;
+        private int mThreadNameEnd;
+        private int mTid;
+        private int mPid;
+        private int mCpu;
+        private long mTimestampNs;
+        private int mEventId;
+        private int mPayloadOffset;
+
+        private Entry() {}
+
+        /** @return the thread id of the record */
+        public int getTid() {
+            return mTid;
+        }
+
+        /** @return the process id of the record, or {@link #UNKNOWN_PID} */
+        public int getPid() {
+            return mPid;
+        }
+
+        /** @return the cpu the record was logged on */
+        public int getCpu() {
+            return mCpu;
+        }
+
+        /** @return the timestamp of the record, in nanoseconds */
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        /** @return the interned id of the event name */
+        public int getEventId() {
+            return mEventId;
+        }
+
+        /** @return the event name, e.g. "sched_switch" */
+        public String getEventName() {
+            return FtraceParser.this.getEventName(mEventId);
+        }
+
+        /** @return the (possibly truncated) name of the thread that logged the record */
+        public String getThreadName() {
+            return new String(mLine, mThreadNameStart, mThreadNameEnd - mThreadNameStart);
+        }
+
+        /** @return the offset of the thread name in {@link #getLine()} */
+        public int getThreadNameOffset() {
+            return mThreadNameStart;
+        }
+
+        /** @return the length of the thread name */
+        public int getThreadNameLength() {
+            return mThreadNameEnd - mThreadNameStart;
+        }
+
+        /** @return the characters of the current line; valid only during the callback */
+        public char[] getLine() {
+            return mLine;
+        }
+
+        /** @return the offset of the event payload in {@link #getLine()} */
+        public int getPayloadOffset() {
+            return mPayloadOffset;
+        }
+
+        /** @return the length of the event payload */
+        public int getPayloadLength() {
+            return mLineLength - mPayloadOffset;
+        }
+
+        /** @return the event payload, e.g. "B|1234|inflate" for a tracing_mark_write record */
+        public String getPayload() {
+            return new String(mLine, mPayloadOffset, mLineLength - mPayloadOffset);
+        }
+
+        /** @return true if the payload starts with the given prefix, without allocating */
+        public boolean payloadStartsWith(String prefix) {
+            return regionMatches(mPayloadOffset, prefix);
+        }
+
+        /** @return true if the payload ends with the given suffix, without allocating */
+        public boolean payloadEndsWith(String suffix) {
+            int start = mLineLength - suffix.length();
+            return start >= mPayloadOffset && regionMatches(start, suffix);
+        }
+
+        private boolean regionMatches(int start, String s) {
+            int len = s.length();
+            if (start + len > mLineLength) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (mLine[start + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Entry mEntry = new Entry();
+    private char[] mLine = new char[INITIAL_LINE_SIZE];
+
+    // Open addressed intern table of event names, indexed by hash; values are id + 1.
+    private int[] mEventTable = new int[64];
+    private String[] mEventNames = new String[16];
+    private int mEventCount = 0;
+
+    // Indexed by event id; null when all events are accepted.
+    private boolean[] mAcceptedEvents = null;
+
+    private int mIgnoredLines = 0;
+
+    /**
+     * Restricts the records reported to callbacks to those with one of the given event names.
+     * Rejected records are skipped as soon as their event name has been tokenized.
+     *
+     * @param eventNames the event names to accept, or null to accept every event
+     */
+    public void setEventFilter(String... eventNames) {
+        if (eventNames == null) {
+            mAcceptedEvents = null;
+            return;
+        }
+        mAcceptedEvents = new boolean[mEventNames.length];
+        for (String name : eventNames) {
+            int id = internEvent(name.toCharArray(), 0, name.length());
+            mAcceptedEvents[id] = true;
+        }
+    }
+
+    /**
+     * @return the id of the given event name, or {@link #UNKNOWN_EVENT} if it hasn't been seen
+     */
+    public int getEventId(String eventName) {
+        return lookupEvent(eventName.toCharArray(), 0, eventName.length());
+    }
+
+    /**
+     * Interns the given event name, so that it has an id before parsing starts.
+     *
+     * @return the id of the event name
+     */
+    public int registerEvent(String eventName) {
+        return internEvent(eventName.toCharArray(), 0, eventName.length());
+    }
+
+    /**
+     * @return the event name for the given id
+     */
+    public String getEventName(int eventId) {
+        if (eventId < 0 || eventId >= mEventCount) {
+            throw new IllegalArgumentException("Unknown event id " + eventId);
+        }
+        return mEventNames[eventId];
+    }
+
+    /**
+     * @return the number of distinct event names seen so far
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return the number of non-comment lines that couldn't be parsed so far
+     */
+    public int getIgnoredLineCount() {
+        return mIgnoredLines;
+    }
+
+    /**
+     * Parses ftrace text held in memory.
+     */
+    public void parse(String traceData, Callback callback) throws IOException {
+        parse(new StringReader(traceData), callback);
+    }
+
+    /**
+     * Parses ftrace text from a stream, calling back for each record as it is read. The reader is
+     * read in large blocks, so it doesn't need to be buffered; it is not closed.
+     */
+    public void parse(Reader reader, Callback callback) throws IOException {
+        try {
+            char[] buffer = new char[READ_BUFFER_SIZE];
+            int lineLength = 0;
+            boolean skipNewline = false;
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (c != '\n' && c != '\r') {
+                        continue;
+                    }
+                    if (skipNewline && c == '\n' && i == start) {
+                        // second half of a "\r\n" pair split across lines
+                        start = i + 1;
+                        skipNewline = false;
+                        continue;
+                    }
+                    lineLength = appendToLine(lineLength, buffer, start, i - start);
+                    parseLine(lineLength, callback);
+                    lineLength = 0;
+                    skipNewline = (c == '\r');
+                    start = i + 1;
+                }
+                if (start < read) {
+                    lineLength = appendToLine(lineLength, buffer, start, read - start);
+                    skipNewline = false;
+                }
+            }
+            if (lineLength > 0) {
+                parseLine(lineLength, callback);
+            }
+        } finally {
+            callback.onFinished();
+        }
+    }
+
+    private int appendToLine(int lineLength, char[] src, int offset, int count) {
+        int needed = lineLength + count;
+        if (needed > mLine.length) {
+            mLine = Arrays.copyOf(mLine, Math.max(needed, mLine.length * 2));
+        }
+        System.arraycopy(src, offset, mLine, lineLength, count);
+        return needed;
+    }
+
+    /**
+     * Tokenizes the line in {@link #mLine} and reports it if it is an accepted record.
+     */
+    private void parseLine(int length, Callback callback) {
+        char[] line = mLine;
+        int pos = skipSpaces(line, 0, length);
+        if (pos == length || line[pos] == '#') {
+            return;
+        }
+        // Thread names may themselves contain '-', so try each "-<tid>" in turn until the rest of
+        // the line tokenizes as a record.
+        for (int dash = pos + 1; dash < length; dash++) {
+            if (line[dash] == '-' && parseRecord(line, length, pos, dash, callback)) {
+                return;
+            }
+        }
+        mIgnoredLines++;
+    }
+
+    /**
+     * Tokenizes the part of a line following the thread name.
+     *
+     * @return true if the line was a well formed record, whether or not it was accepted.
+     */
+    private boolean parseRecord(char[] line, int length, int threadNameStart, int dash,
+            Callback callback) {
+        Entry entry = mEntry;
+        int pos = dash + 1;
+        int end = skipDigits(line, pos, length);
+        if (end == pos) {
+            return false;
+        }
+        entry.mTid = parseInt(line, pos, end);
+        pos = skipSpaces(line, end, length);
+        if (pos == end || pos == length) {
+            return false;
+        }
+
+        entry.mPid = UNKNOWN_PID;
+        boolean hasTgid = false;
+        if (line[pos] == '(') {
+            // "(  123)" or "(-----)"
+            hasTgid = true;
+            pos = skipSpaces(line, pos + 1, length);
+            end = skipDigits(line, pos, length);
+            if (end > pos) {
+                entry.mPid = parseInt(line, pos, end);
+            } else {
+                while (end < length && line[end] == '-') {
+                    end++;
+                }
+                if (end == pos) {
+                    return false;
+                }
+            }
+            if (end + 2 >= length || line[end] != ')' || line[end + 1] != ' ') {
+                return false;
+            }
+            pos = end + 2;
+        }
+
+        // "[001]"
+        if (pos >= length || line[pos] != '[') {
+            return false;
+        }
+        pos++;
+        end = skipDigits(line, pos, length);
+        if (end == pos || end >= length || line[end] != ']') {
+            return false;
+        }
+        entry.mCpu = parseInt(line, pos, end);
+        pos = end + 1;
+
+        // Optional irq-info flags, e.g. "d..." - mandatory when the tgid is printed.
+        int afterSpaces = skipSpaces(line, pos, length);
+        if (afterSpaces > pos && isIrqInfo(line, afterSpaces, length)) {
+            pos = skipSpaces(line, afterSpaces + 4, length);
+            if (pos == afterSpaces + 4) {
+                return false;
+            }
+        } else if (hasTgid) {
+            return false;
+        } else {
+            pos = afterSpaces;
+        }
+
+        // "1.234567:"
+        end = parseTimestamp(line, pos, length);
+        if (end < 0 || end >= length || line[end] != ':') {
+            return false;
+        }
+        pos = skipSpaces(line, end + 1, length);
+        if (pos == end + 1) {
+            return false;
+        }
+
+        // "event_name: "
+        int nameStart = pos;
+        while (pos < length && line[pos] != ' ' && line[pos] != '\t') {
+            pos++;
+        }
+        int nameEnd = pos - 1;
+        if (nameEnd <= nameStart || line[nameEnd] != ':' || pos >= length) {
+            return false;
+        }
+
+        int eventId;
+        if (mAcceptedEvents != null) {
+            eventId = lookupEvent(line, nameStart, nameEnd - nameStart);
+            if (eventId == UNKNOWN_EVENT || !mAcceptedEvents[eventId]) {
+                return true;
+            }
+        } else {
+            eventId = internEvent(line, nameStart, nameEnd - nameStart);
+        }
+
+        entry.mLine = line;
+        entry.mLineLength = length;
+        entry.mThreadNameStart = threadNameStart;
+        entry.mThreadNameEnd = dash;
+        entry.mEventId = eventId;
+        entry.mPayloadOffset = pos + 1;
+        callback.onTraceEntry(entry);
+        return true;
+    }
+
+    private static boolean isIrqInfo(char[] line, int pos, int length) {
+        if (pos + 4 > length) {
+            return false;
+        }
+        char c0 = line[pos];
+        char c1 = line[pos + 1];
+        char c2 = line[pos + 2];
+        char c3 = line[pos + 3];
+        return (c0 == 'd' || c0 == 'X' || c0 == '.')
+                && (c1 == 'N' || c1 == '.')
+                && (c2 == 'H' || c2 == 'h' || c2 == 's' || c2 == '.')
+                && ((c3 >= '0' && c3 <= '9') || (c3 >= 'a' && c3 <= 'f') || c3 == '.');
+    }
+
+    /**
+     * Parses "seconds.fraction" into {@link Entry#mTimestampNs}.
+     *
+     * @return the index following the timestamp, or -1 if there is no timestamp at pos.
+     */
+    private int parseTimestamp(char[] line, int pos, int length) {
+        int end = skipDigits(line, pos, length);
+        if (end == pos || end >= length || line[end] != '.') {
+            return -1;
+        }
+        long seconds = parseLong(line, pos, end);
+        int fracStart = end + 1;
+        int fracEnd = skipDigits(line, fracStart, length);
+        if (fracEnd == fracStart) {
+            return -1;
+        }
+        long nanos = 0;
+        for (int i = 0; i < NANOS_DIGITS; i++) {
+            int idx = fracStart + i;
+            nanos = nanos * 10 + (idx < fracEnd ? line[idx] - '0' : 0);
+        }
+        mEntry.mTimestampNs = seconds * 1000000000L + nanos;
+        return fracEnd;
+    }
+
+    private static int skipSpaces(char[] line, int pos, int length) {
+        while (pos < length && (line[pos] == ' ' || line[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipDigits(char[] line, int pos, int length) {
+        while (pos < length && line[pos] >= '0' && line[pos] <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int parseInt(char[] line, int start, int end) {
+        return (int) parseLong(line, start, end);
+    }
+
+    private static long parseLong(char[] line, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    private static int hash(char[] chars, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int lookupEvent(char[] chars, int offset, int length) {
+        int mask = mEventTable.length - 1;
+        for (int slot = hash(chars, offset, length) & mask; ; slot = (slot + 1) & mask) {
+            int value = mEventTable[slot];
+            if (value == 0) {
+                return UNKNOWN_EVENT;
+            }
+            if (nameEquals(mEventNames[value - 1], chars, offset, length)) {
+                return value - 1;
+            }
+        }
+    }
+
+    private int internEvent(char[] chars, int offset, int length) {
+        int id = lookupEvent(chars, offset, length);
+        if (id != UNKNOWN_EVENT) {
+            return id;
+        }
+        id = mEventCount++;
+        if (id == mEventNames.length) {
+            mEventNames = Arrays.copyOf(mEventNames, id * 2);
+            if (mAcceptedEvents != null) {
+                mAcceptedEvents = Arrays.copyOf(mAcceptedEvents, id * 2);
+            }
+        }
+        mEventNames[id] = new String(chars, offset, length);
+        if (mEventCount * 2 > mEventTable.length) {
+            mEventTable = new int[mEventTable.length * 2];
+            for (int i = 0; i < mEventCount; i++) {
+                insertEvent(i);
+            }
+        } else {
+            insertEvent(id);
+        }
+        return id;
+    }
+
+    private void insertEvent(int id) {
+        String name = mEventNames[id];
+        int mask = mEventTable.length - 1;
+        int slot = hash(name.toCharArray(), 0, name.length()) & mask;
+        while (mEventTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mEventTable[slot] = id + 1;
+    }
+
+    private static boolean nameEquals(String name, char[] chars, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
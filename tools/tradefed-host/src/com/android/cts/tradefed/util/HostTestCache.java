@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.util;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Values that host tests compute once and share with the runs of the same tests on other
+ * devices, such as decoded reference images.
+ * <p/>
+ * JarHostTest loads each host test jar in a class loader of its own, so the static fields of host
+ * test classes are not shared between devices or runs. This class is loaded with cts-tradefed,
+ * which outlives those loaders. For the same reason, the classes of a test jar differ from one
+ * loader to the next, so only values of classes that aren't loaded from the jar, such as arrays,
+ * strings and collections of them, can be shared.
+ * <p/>
+ * A value is computed by the first caller that asks for its key, while the other callers wait.
+ * Keys should identify the input of the computation, for example by its digest, so that a value
+ * is never reused for a different input. Computed values are held by soft references, so they are
+ * dropped rather than filling the heap of a long running JVM.
+ */
+public class HostTestCache {
+
+    /** The values by key: a FutureTask while computed, a SoftReference once done. */
+    private static final Map<String, Object> sValues = new HashMap<>();
+
+    private HostTestCache() {}
+
+    /**
+     * Returns the value of a key, computing it if it isn't held.
+     *
+     * @param key identifies the value, and the input it is computed from
+     * @param computation computes the value, in the calling thread
+     * @throws ExecutionException if the computation failed. A failure is not cached, so the next
+     *         caller computes the value again.
+     */
+    public static Object get(String key, final Callable<?> computation)
+            throws ExecutionException, InterruptedException {
+        FutureTask<Object> task = null;
+        boolean compute = false;
+        synchronized (sValues) {
+            Object held = sValues.get(key);
+            if (held instanceof SoftReference) {
+                Object value = ((SoftReference<?>) held).get();
+                if (value != null) {
+                    return value;
+                }
+            } else if (held != null) {
+                @SuppressWarnings("unchecked")
+                FutureTask<Object> pending = (FutureTask<Object>) held;
+                task = pending;
+            }
+            if (task == null) {
+                task = new FutureTask<>(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return computation.call();
+                    }
+                });
+                sValues.put(key, task);
+                compute = true;
+            }
+        }
+        if (compute) {
+            task.run();
+        }
+        try {
+            Object value = task.get();
+            synchronized (sValues) {
+                if (sValues.get(key) == task) {
+                    sValues.put(key, new SoftReference<>(value));
+                }
+            }
+            return value;
+        } catch (ExecutionException e) {
+            synchronized (sValues) {
+                if (sValues.get(key) == task) {
+                    sValues.remove(key);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets all the values. Exposed for unit testing.
+     */
+    static void clear() {
+        synchronized (sValues) {
+            sValues.clear();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+/**
+ * Removes the state that host side tests share on a device, such as installed packages, once the
+ * tests of a jar are done.
+ *
+ * @see DeviceReleaseRegistry
+ */
+public interface IDeviceReleaser {
+
+    /**
+     * Removes the state left on a device. Called once the tests of a jar are done, whether or not
+     * the state was already removed by the tests.
+     */
+    public void releaseDevice(ITestDevice device) throws DeviceNotAvailableException;
+}
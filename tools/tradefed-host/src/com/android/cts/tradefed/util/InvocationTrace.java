@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records where the time of an invocation goes, as spans of named phases on per-device tracks.
+ * <p/>
+ * Spans are recorded with
+ * <pre>
+ * InvocationTrace.Span span = InvocationTrace.begin(serial, "phase", detail);
+ * try {
+ *     ...
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ * and are written as a Chrome trace, which can be loaded in chrome://tracing or Perfetto, and as
+ * a summary table of the time spent per phase. Recording is off unless an invocation called
+ * {@link #startRecording}, and {@link #begin} then returns a span that does nothing. Invocations
+ * that record at the same time keep their spans on their own tracks.
+ */
+public class InvocationTrace {
+
+    /** The maximum number of spans kept, to bound the memory of long sessions. */
+    private static final int MAX_SPANS = 200000;
+    private static final int SLOWEST_SPAN_COUNT = 20;
+
+    private static volatile boolean sEnabled = false;
+    private static final List<Span> sSpans = new ArrayList<>();
+    private static int sDroppedSpans = 0;
+    /** The number of invocations recording, guarded by {@link #sSpans}. */
+    private static int sRecordings = 0;
+    /** The origin of the timestamps of the trace. */
+    private static final long sOriginNanos = System.nanoTime();
+
+    private static final Span NO_OP_SPAN = new Span(null, null, null, 0) {
+        @Override
+        public void end() {
+            // ignore
+        }
+    };
+
+    /**
+     * A phase of the invocation.
+     */
+    public static class Span {
+        final String mTrack;
+        final String mName;
+        final String mDetail;
+        final long mStartNanos;
+        long mEndNanos = -1;
+
+        Span(String track, String name, String detail, long startNanos) {
+            mTrack = track;
+            mName = name;
+            mDetail = detail;
+            mStartNanos = startNanos;
+        }
+
+        /**
+         * Ends the span, and records it if it wasn't ended yet.
+         */
+        public void end() {
+            synchronized (sSpans) {
+                if (mEndNanos >= 0) {
+                    return;
+                }
+                mEndNanos = System.nanoTime();
+                if (sSpans.size() < MAX_SPANS) {
+                    sSpans.add(this);
+                } else {
+                    sDroppedSpans++;
+                }
+            }
+        }
+
+        long getDurationNanos() {
+            return mEndNanos - mStartNanos;
+        }
+    }
+
+    private InvocationTrace() {}
+
+    /**
+     * Turns recording on for an invocation, until {@link #stopRecording} is called for it.
+     *
+     * @return the time the recording starts, as returned by {@link #now()}
+     */
+    public static long startRecording() {
+        synchronized (sSpans) {
+            sRecordings++;
+            sEnabled = true;
+        }
+        return now();
+    }
+
+    /**
+     * Ends the recording of an invocation and forgets its spans. Recording is turned off, and
+     * all the spans are forgotten, once no invocation is recording.
+     *
+     * @param track the track of the invocation
+     */
+    public static void stopRecording(String track) {
+        synchronized (sSpans) {
+            if (sRecordings > 0) {
+                sRecordings--;
+            }
+            if (sRecordings == 0) {
+                sEnabled = false;
+                sSpans.clear();
+                sDroppedSpans = 0;
+                return;
+            }
+            Iterator<Span> it = sSpans.iterator();
+            while (it.hasNext()) {
+                if (it.next().mTrack.equals(track)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if spans are recorded
+     */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @return the current time on the clock of the trace, in nanoseconds
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Starts a span.
+     *
+     * @param track the track to show the span on, usually a device serial number
+     * @param name the name of the phase
+     */
+    public static Span begin(String track, String name) {
+        return begin(track, name, null);
+    }
+
+    /**
+     * Starts a span.
+     *
+     * @param track the track to show the span on, usually a device serial number
+     * @param name the name of the phase, which spans are summarized by
+     * @param detail what the phase works on, such as a package id, or null
+     */
+    public static Span begin(String track, String name, String detail) {
+        if (!sEnabled) {
+            return NO_OP_SPAN;
+        }
+        return new Span(track == null ? "unknown" : track, name, detail, System.nanoTime());
+    }
+
+    /**
+     * Writes the spans of a track that started at or after the given time as a Chrome trace.
+     *
+     * @param track the track of the invocation
+     * @param nanos a time returned by {@link #now()}
+     */
+    public static void writeChromeTrace(File file, String track, long nanos) throws IOException {
+        List<Span> spans = getSpansSince(track, nanos);
+        Map<String, Integer> trackIds = new LinkedHashMap<>();
+        for (Span span : spans) {
+            if (!trackIds.containsKey(span.mTrack)) {
+                trackIds.put(span.mTrack, trackIds.size() + 1);
+            }
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            boolean first = true;
+            for (Map.Entry<String, Integer> trackId : trackIds.entrySet()) {
+                first = writeSeparator(writer, first);
+                writer.write(String.format(
+                        "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d," +
+                        "\"args\":{\"name\":%s}}", trackId.getValue(),
+                        quote(trackId.getKey())));
+            }
+            for (Span span : spans) {
+                first = writeSeparator(writer, first);
+                writer.write(String.format(
+                        "{\"name\":%s,\"cat\":\"cts\",\"ph\":\"X\",\"pid\":1,\"tid\":%d," +
+                        "\"ts\":%d,\"dur\":%d", quote(span.mName), trackIds.get(span.mTrack),
+                        (span.mStartNanos - sOriginNanos) / 1000,
+                        span.getDurationNanos() / 1000));
+                if (span.mDetail != null) {
+                    writer.write(",\"args\":{\"detail\":" + quote(span.mDetail) + "}");
+                }
+                writer.write("}");
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    /**
+     * Writes a summary of the spans of a track that started at or after the given time: the
+     * total, average and maximum time of each phase, and the slowest spans.
+     *
+     * @param track the track of the invocation
+     * @param nanos a time returned by {@link #now()}
+     */
+    public static void writeSummary(File file, String track, long nanos) throws IOException {
+        List<Span> spans = getSpansSince(track, nanos);
+        Map<String, long[]> phases = new HashMap<>();
+        for (Span span : spans) {
+            long[] stats = phases.get(span.mName);
+            if (stats == null) {
+                // count, total, max
+                stats = new long[3];
+                phases.put(span.mName, stats);
+            }
+            long duration = span.getDurationNanos();
+            stats[0]++;
+            stats[1] += duration;
+            stats[2] = Math.max(stats[2], duration);
+        }
+        List<Map.Entry<String, long[]>> sortedPhases = new ArrayList<>(phases.entrySet());
+        Collections.sort(sortedPhases, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> left, Map.Entry<String, long[]> right) {
+                return Long.compare(right.getValue()[1], left.getValue()[1]);
+            }
+        });
+        List<Span> slowest = new ArrayList<>(spans);
+        Collections.sort(slowest, new Comparator<Span>() {
+            @Override
+            public int compare(Span left, Span right) {
+                return Long.compare(right.getDurationNanos(), left.getDurationNanos());
+            }
+        });
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.write(String.format("%-32s %8s %12s %12s %12s%n", "phase", "count",
+                    "total (s)", "mean (ms)", "max (ms)"));
+            for (Map.Entry<String, long[]> phase : sortedPhases) {
+                long[] stats = phase.getValue();
+                writer.write(String.format("%-32s %8d %12.3f %12.3f %12.3f%n", phase.getKey(),
+                        stats[0], stats[1] / 1e9, stats[1] / 1e6 / stats[0], stats[2] / 1e6));
+            }
+            writer.write(String.format("%nslowest spans%n"));
+            for (Span span : slowest.subList(0, Math.min(SLOWEST_SPAN_COUNT, slowest.size()))) {
+                writer.write(String.format("%12.3f ms  %-24s %s %s%n",
+                        span.getDurationNanos() / 1e6, span.mTrack, span.mName,
+                        span.mDetail == null ? "" : span.mDetail));
+            }
+            synchronized (sSpans) {
+                if (sDroppedSpans > 0) {
+                    writer.write(String.format("%n%d spans were dropped%n", sDroppedSpans));
+                }
+            }
+        }
+    }
+
+    private static List<Span> getSpansSince(String track, long nanos) {
+        List<Span> spans = new ArrayList<>();
+        synchronized (sSpans) {
+            for (Span span : sSpans) {
+                if (span.mTrack.equals(track) && span.mStartNanos >= nanos) {
+                    spans.add(span);
+                }
+            }
+        }
+        Collections.sort(spans, new Comparator<Span>() {
+            @Override
+            public int compare(Span left, Span right) {
+                return Long.compare(left.mStartNanos, right.mStartNanos);
+            }
+        });
+        return spans;
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean first) throws IOException {
+        if (!first) {
+            writer.write(",\n");
+        }
+        return false;
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.RunUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the logcat of a device into a fixed size ring buffer, so that the logs of a time window
+ * can be read back without a device round trip.
+ * <p/>
+ * The buffer is allocated off the Java heap, and holds the most recent bytes of the stream.
+ * Callers take a {@link #mark()} at the start of the window of interest, and later read back
+ * everything logged since then with {@link #getSnapshot(long)}. The stream is restarted if it
+ * ends, for example when the device reboots.
+ */
+public class LogcatRingBuffer implements IShellOutputReceiver {
+
+    private static final String LOGCAT_COMMAND = "logcat -v threadtime -T 1";
+    private static final long RESTART_DELAY_MS = 5 * 1000;
+
+    private final ITestDevice mDevice;
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    /** The total number of bytes written since the start, guarded by this. */
+    private long mWritten = 0;
+    /** The time of the last write, guarded by this. */
+    private long mLastWriteMs = 0;
+    private volatile boolean mStopped = false;
+    private Thread mThread = null;
+
+    /**
+     * @param device the device to stream the logcat of
+     * @param capacity the size of the buffer in bytes
+     */
+    public LogcatRingBuffer(ITestDevice device, int capacity) {
+        mDevice = device;
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Starts streaming in a background thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stream();
+            }
+        }, "LogcatRingBuffer-" + mDevice.getSerialNumber());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops streaming. The buffered logs can still be read.
+     */
+    public void stop() {
+        mStopped = true;
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return the current position in the stream, to pass to {@link #getSnapshot(long)}
+     */
+    public synchronized long mark() {
+        return mWritten;
+    }
+
+    /**
+     * Waits until nothing was logged for the given time, so that logs emitted right before a
+     * call, such as the stack trace of a test failure, have made it into the buffer.
+     *
+     * @param quietMs the time without logs to wait for
+     * @param maxMs the maximum time to wait
+     */
+    public void awaitQuiet(long quietMs, long maxMs) {
+        long deadline = System.currentTimeMillis() + maxMs;
+        while (!mStopped) {
+            long now = System.currentTimeMillis();
+            long lastWrite;
+            synchronized (this) {
+                lastWrite = mLastWriteMs;
+            }
+            long wait = Math.min(lastWrite + quietMs, deadline) - now;
+            if (wait <= 0) {
+                return;
+            }
+            RunUtil.getDefault().sleep(wait);
+        }
+    }
+
+    /**
+     * @param mark a position returned by {@link #mark()}
+     * @return the logs written since the mark. If more than the capacity of the buffer was
+     *     written, only the most recent complete lines are returned.
+     */
+    public byte[] snapshot(long mark) {
+        synchronized (this) {
+            long available = mWritten - mark;
+            boolean truncated = available > mCapacity;
+            int length = (int) Math.max(0, Math.min(available, mCapacity));
+            byte[] data = new byte[length];
+            int start = (int) ((mWritten - length) % mCapacity);
+            int first = Math.min(length, mCapacity - start);
+            ByteBuffer view = mBuffer.duplicate();
+            view.position(start);
+            view.get(data, 0, first);
+            if (first < length) {
+                view.position(0);
+                view.get(data, first, length - first);
+            }
+            if (!truncated) {
+                return data;
+            }
+            // drop the partial line at the start
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    byte[] lines = new byte[data.length - i - 1];
+                    System.arraycopy(data, i + 1, lines, 0, lines.length);
+                    return lines;
+                }
+            }
+            return data;
+        }
+    }
+
+    /**
+     * @return the logs written since the mark, see {@link #snapshot(long)}
+     */
+    public InputStreamSource getSnapshot(long mark) {
+        return new ByteArrayInputStreamSource(snapshot(mark));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (length > mCapacity) {
+            // only the tail fits
+            offset += length - mCapacity;
+            mWritten += length - mCapacity;
+            length = mCapacity;
+        }
+        int position = (int) (mWritten % mCapacity);
+        int first = Math.min(length, mCapacity - position);
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(position);
+        view.put(data, offset, first);
+        if (first < length) {
+            view.position(0);
+            view.put(data, offset + first, length - first);
+        }
+        mWritten += length;
+        mLastWriteMs = System.currentTimeMillis();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+        return mStopped;
+    }
+
+    private void stream() {
+        while (!mStopped) {
+            // Use the IDevice directly, as the background stream must not trigger device
+            // recovery; the IDevice changes when the device reconnects.
+            IDevice device = mDevice.getIDevice();
+            try {
+                device.executeShellCommand(LOGCAT_COMMAND, this, 0, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                if (!mStopped) {
+                    CLog.d("Logcat stream of %s ended: %s", mDevice.getSerialNumber(),
+                            e.toString());
+                }
+            }
+            if (!mStopped) {
+                try {
+                    Thread.sleep(RESTART_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
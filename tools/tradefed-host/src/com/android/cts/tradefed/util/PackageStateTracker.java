@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the test packages host side tests install on a device, so a package already
+ * installed from the same apk with the same options is not installed again by the next test.
+ * <p/>
+ * A package is reused only if the device still has the install recorded: the code path, version
+ * code, update time and signatures the package manager reports must not have changed since. Tests
+ * declare the state they need instead of uninstalling and installing in each setUp and tearDown:
+ * <ul>
+ * <li>{@link #ensureInstalled} installs a package unless it is already installed from the apk,</li>
+ * <li>{@link #clearData} resets the data of a reused package,</li>
+ * <li>{@link #ensureUninstalled} removes a package if it is installed,</li>
+ * <li>{@link #forceInstall} always installs the package afresh, for tests of the install itself.
+ * </li>
+ * </ul>
+ * The packages still installed are removed by {@link #releaseDevice} once the tests of a jar are
+ * done, as the tracker of a device registers it with the {@link DeviceReleaseRegistry}.
+ */
+public class PackageStateTracker {
+
+    /** The trackers of the devices, by serial number. */
+    private static final Map<String, PackageStateTracker> sTrackers =
+            new HashMap<String, PackageStateTracker>();
+
+    /** The digests of the apks, by path, along with the size and time they were computed for. */
+    private static final Map<String, String[]> sDigests = new HashMap<String, String[]>();
+
+    private static final IDeviceReleaser RELEASER = new IDeviceReleaser() {
+        @Override
+        public void releaseDevice(ITestDevice device) throws DeviceNotAvailableException {
+            PackageStateTracker.releaseDevice(device);
+        }
+    };
+
+    private static final String PACKAGE_PREFIX = "  Package [";
+
+    private ITestDevice mDevice;
+    private final Map<String, InstalledPackage> mPackages =
+            new LinkedHashMap<String, InstalledPackage>();
+    /** The packages installed by the tracker that won't be reused, but are still installed. */
+    private final Set<String> mUntracked = new LinkedHashSet<String>();
+
+    /** A package installed by the tracker. */
+    private static class InstalledPackage {
+        final String mApkDigest;
+        final String mOptions;
+        final String mDeviceState;
+        /** Whether the data of the package has not been used since it was installed or cleared. */
+        boolean mDataClean = true;
+
+        InstalledPackage(String apkDigest, String options, String deviceState) {
+            mApkDigest = apkDigest;
+            mOptions = options;
+            mDeviceState = deviceState;
+        }
+    }
+
+    private PackageStateTracker(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Returns the tracker of a device.
+     */
+    public static PackageStateTracker getInstance(ITestDevice device) {
+        synchronized (sTrackers) {
+            String serial = device.getSerialNumber();
+            PackageStateTracker tracker = sTrackers.get(serial);
+            if (tracker == null) {
+                tracker = new PackageStateTracker(device);
+                sTrackers.put(serial, tracker);
+                DeviceReleaseRegistry.register(device, RELEASER);
+            } else {
+                // the device may have been reconnected since the tracker was last used
+                tracker.mDevice = device;
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * Uninstalls the packages the tracker of a device has installed, and forgets the tracker.
+     * Does nothing if no tracker was used.
+     */
+    public static void releaseDevice(ITestDevice device) throws DeviceNotAvailableException {
+        PackageStateTracker tracker;
+        synchronized (sTrackers) {
+            if (sTrackers.isEmpty()) {
+                return;
+            }
+            tracker = sTrackers.remove(device.getSerialNumber());
+        }
+        if (tracker != null) {
+            tracker.uninstallAll();
+        }
+    }
+
+    /**
+     * Installs a package from an apk, unless it is already installed from the same apk with the
+     * same arguments.
+     *
+     * @return the install error, or <code>null</code> on success
+     */
+    public String ensureInstalled(String pkgName, File apk, String... extraArgs)
+            throws DeviceNotAvailableException {
+        return install(pkgName, apk, null, extraArgs, false);
+    }
+
+    /**
+     * Installs a package from an apk, unless it is already installed from the same apk with the
+     * same arguments.
+     *
+     * @param grantPermissions whether to grant the runtime permissions of the package on install
+     * @return the install error, or <code>null</code> on success
+     */
+    public String ensureInstalled(String pkgName, File apk, boolean grantPermissions,
+            String... extraArgs) throws DeviceNotAvailableException {
+        return install(pkgName, apk, grantPermissions, extraArgs, false);
+    }
+
+    /**
+     * Uninstalls a package and installs it again from an apk.
+     *
+     * @return the install error, or <code>null</code> on success
+     */
+    public String forceInstall(String pkgName, File apk, String... extraArgs)
+            throws DeviceNotAvailableException {
+        return install(pkgName, apk, null, extraArgs, true);
+    }
+
+    /**
+     * Uninstalls a package and installs it again from an apk.
+     *
+     * @param grantPermissions whether to grant the runtime permissions of the package on install
+     * @return the install error, or <code>null</code> on success
+     */
+    public String forceInstall(String pkgName, File apk, boolean grantPermissions,
+            String... extraArgs) throws DeviceNotAvailableException {
+        return install(pkgName, apk, grantPermissions, extraArgs, true);
+    }
+
+    /**
+     * Clears the data of a package, unless it was just installed and its data not used yet. On
+     * API 23 and later, this also resets the runtime permissions granted to the package.
+     */
+    public void clearData(String pkgName) throws DeviceNotAvailableException {
+        InstalledPackage installed = mPackages.get(pkgName);
+        if (installed == null || !installed.mDataClean) {
+            String output = mDevice.executeShellCommand("pm clear " + pkgName);
+            if (!output.trim().equals("Success")) {
+                // the package can't be reset, so install it afresh next time
+                CLog.w("Could not clear data of %s: %s", pkgName, output);
+                untrack(pkgName);
+                return;
+            }
+        }
+        if (installed != null) {
+            // the caller is about to use the data
+            installed.mDataClean = false;
+        }
+    }
+
+    /**
+     * Uninstalls a package if it is installed.
+     */
+    public void ensureUninstalled(String pkgName) throws DeviceNotAvailableException {
+        mPackages.remove(pkgName);
+        mUntracked.remove(pkgName);
+        if (queryDeviceState(pkgName) != null) {
+            mDevice.uninstallPackage(pkgName);
+        }
+    }
+
+    /**
+     * Has a package installed afresh the next time it is needed. Used after changing state of the
+     * package that clearing its data doesn't reset, such as app ops. The package is still
+     * uninstalled by {@link #uninstallAll}.
+     */
+    public void invalidate(String pkgName) {
+        untrack(pkgName);
+    }
+
+    /**
+     * Uninstalls all the packages installed by the tracker, including those it no longer reuses.
+     */
+    public void uninstallAll() throws DeviceNotAvailableException {
+        Set<String> pkgNames = new LinkedHashSet<String>(mPackages.keySet());
+        pkgNames.addAll(mUntracked);
+        mPackages.clear();
+        mUntracked.clear();
+        for (String pkgName : pkgNames) {
+            mDevice.uninstallPackage(pkgName);
+        }
+    }
+
+    private String install(String pkgName, File apk, Boolean grantPermissions, String[] extraArgs,
+            boolean force) throws DeviceNotAvailableException {
+        String digest;
+        try {
+            digest = getDigest(apk);
+        } catch (IOException e) {
+            return "Could not read " + apk + ": " + e.getMessage();
+        }
+        String options = grantPermissions + " " + Arrays.toString(extraArgs);
+
+        InstalledPackage installed = mPackages.remove(pkgName);
+        if (!force && installed != null && installed.mApkDigest.equals(digest)
+                && installed.mOptions.equals(options)
+                && installed.mDeviceState.equals(queryDeviceState(pkgName))) {
+            CLog.d("%s is already installed from %s", pkgName, apk.getName());
+            mPackages.put(pkgName, installed);
+            return null;
+        }
+
+        mDevice.uninstallPackage(pkgName);
+        String error = grantPermissions == null
+                ? mDevice.installPackage(apk, false, extraArgs)
+                : mDevice.installPackage(apk, false, grantPermissions, extraArgs);
+        if (error != null) {
+            return error;
+        }
+        String deviceState = queryDeviceState(pkgName);
+        if (deviceState != null) {
+            mPackages.put(pkgName, new InstalledPackage(digest, options, deviceState));
+            mUntracked.remove(pkgName);
+        } else {
+            // installed under another name, so it can't be reused
+            CLog.w("%s was not found after installing %s", pkgName, apk.getName());
+            mUntracked.add(pkgName);
+        }
+        return null;
+    }
+
+    /**
+     * Stops reusing a package installed by the tracker, which is left installed until
+     * {@link #uninstallAll}.
+     */
+    private void untrack(String pkgName) {
+        if (mPackages.remove(pkgName) != null) {
+            mUntracked.add(pkgName);
+        }
+    }
+
+    private String queryDeviceState(String pkgName) throws DeviceNotAvailableException {
+        return parsePackageState(pkgName,
+                mDevice.executeShellCommand("dumpsys package " + pkgName));
+    }
+
+    /**
+     * Returns what identifies the install of a package in the output of
+     * <code>dumpsys package</code>: its code path, version code, update time and signatures.
+     *
+     * @return the state, or <code>null</code> if the package is not installed
+     */
+    static String parsePackageState(String pkgName, String dumpsysOutput) {
+        if (dumpsysOutput == null) {
+            return null;
+        }
+        String header = PACKAGE_PREFIX + pkgName + "]";
+        StringBuilder state = null;
+        for (String line : dumpsysOutput.split("\r?\n")) {
+            if (state == null) {
+                if (line.startsWith(header)) {
+                    state = new StringBuilder();
+                }
+                continue;
+            }
+            if (!line.startsWith("    ")) {
+                // the end of the block of the package
+                break;
+            }
+            String field = line.trim();
+            if (field.startsWith("codePath=") || field.startsWith("lastUpdateTime=")
+                    || field.startsWith("signatures=")) {
+                state.append(field).append('\n');
+            } else if (field.startsWith("versionCode=")) {
+                // the same line holds the target sdk, which only changes with the version
+                state.append(field.split(" ")[0]).append('\n');
+            }
+        }
+        return state == null ? null : state.toString();
+    }
+
+    private static String getDigest(File apk) throws IOException {
+        String path = apk.getAbsolutePath();
+        String stamp = apk.length() + ":" + apk.lastModified();
+        synchronized (sDigests) {
+            String[] cached = sDigests.get(path);
+            if (cached != null && cached[0].equals(stamp)) {
+                return cached[1];
+            }
+        }
+        String digest = computeDigest(apk);
+        synchronized (sDigests) {
+            sDigests.put(path, new String[] {stamp, digest});
+        }
+        return digest;
+    }
+
+    private static String computeDigest(File apk) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        InputStream in = new FileInputStream(apk);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -17,21 +17,37 @@ package com.android.cts.tradefed;
 
 import com.android.cts.tradefed.result.CtsXmlResultReporterTest;
 import com.android.cts.tradefed.result.DeviceInfoResultTest;
+import com.android.cts.tradefed.result.ResultArchiveTest;
+import com.android.cts.tradefed.result.ResumableUploadTest;
 import com.android.cts.tradefed.result.TestPackageResultTest;
 import com.android.cts.tradefed.result.TestResultsTest;
+import com.android.cts.tradefed.result.TestRuntimeHistoryTest;
 import com.android.cts.tradefed.result.TestSummaryXmlTest;
 import com.android.cts.tradefed.result.TestTest;
 import com.android.cts.tradefed.result.TestLogTest;
 import com.android.cts.tradefed.testtype.Abi;
+import com.android.cts.tradefed.testtype.ApkInstallPipelineTest;
 import com.android.cts.tradefed.testtype.CtsTestTest;
 import com.android.cts.tradefed.testtype.DeqpTestRunnerTest;
+import com.android.cts.tradefed.testtype.GTestShardMergerTest;
 import com.android.cts.tradefed.testtype.GeeTestTest;
 import com.android.cts.tradefed.testtype.JarHostTestTest;
+import com.android.cts.tradefed.testtype.ResultCacheTest;
 import com.android.cts.tradefed.testtype.TestFilterTest;
 import com.android.cts.tradefed.testtype.TestPackageDefTest;
+import com.android.cts.tradefed.testtype.TestPackageRepoTest;
 import com.android.cts.tradefed.testtype.TestPackageXmlParserTest;
 import com.android.cts.tradefed.testtype.TestPlanTest;
+import com.android.cts.tradefed.testtype.TestTimeoutModelTest;
 import com.android.cts.tradefed.testtype.WrappedGTestResultParserTest;
+import com.android.cts.tradefed.util.BugreportQueueTest;
+import com.android.cts.tradefed.util.CheckinParserTest;
+import com.android.cts.tradefed.util.DeviceReleaseRegistryTest;
+import com.android.cts.tradefed.util.FtraceParserTest;
+import com.android.cts.tradefed.util.HostTestCacheTest;
+import com.android.cts.tradefed.util.InvocationTraceTest;
+import com.android.cts.tradefed.util.LogcatRingBufferTest;
+import com.android.cts.tradefed.util.PackageStateTrackerTest;
 import com.android.tradefed.testtype.IAbi;
 
 import junit.framework.Test;
@@ -53,22 +69,40 @@ public class UnitTests extends TestSuite {
         // result package
         addTestSuite(CtsXmlResultReporterTest.class);
         addTestSuite(DeviceInfoResultTest.class);
+        addTestSuite(ResultArchiveTest.class);
+        addTestSuite(ResumableUploadTest.class);
         addTestSuite(TestPackageResultTest.class);
         addTestSuite(TestResultsTest.class);
+        addTestSuite(TestRuntimeHistoryTest.class);
         addTestSuite(TestSummaryXmlTest.class);
         addTestSuite(TestTest.class);
         addTestSuite(TestLogTest.class);
 
         // testtype package
+        addTestSuite(ApkInstallPipelineTest.class);
         addTestSuite(CtsTestTest.class);
         addTestSuite(DeqpTestRunnerTest.class);
+        addTestSuite(GTestShardMergerTest.class);
         addTestSuite(GeeTestTest.class);
         addTestSuite(JarHostTestTest.class);
+        addTestSuite(ResultCacheTest.class);
         addTestSuite(TestFilterTest.class);
         addTestSuite(TestPackageDefTest.class);
+        addTestSuite(TestPackageRepoTest.class);
         addTestSuite(TestPackageXmlParserTest.class);
         addTestSuite(TestPlanTest.class);
+        addTestSuite(TestTimeoutModelTest.class);
         addTestSuite(WrappedGTestResultParserTest.class);
+
+        // util package
+        addTestSuite(BugreportQueueTest.class);
+        addTestSuite(CheckinParserTest.class);
+        addTestSuite(DeviceReleaseRegistryTest.class);
+        addTestSuite(FtraceParserTest.class);
+        addTestSuite(HostTestCacheTest.class);
+        addTestSuite(InvocationTraceTest.class);
+        addTestSuite(LogcatRingBufferTest.class);
+        addTestSuite(PackageStateTrackerTest.class);
     }
 
     public static Test suite() {
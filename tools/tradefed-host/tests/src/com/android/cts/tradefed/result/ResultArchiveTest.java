@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Unit tests for {@link ResultArchive}.
+ */
+public class ResultArchiveTest extends TestCase {
+
+    private File mParentDir;
+    private File mResultDir;
+    private File mZipFile;
+    private ResultArchive mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParentDir = FileUtil.createTempDir("results");
+        mResultDir = new File(mParentDir, "2016.01.01_10.00.00");
+        assertTrue(new File(mResultDir, "sub").mkdirs());
+        mZipFile = new File(mParentDir, "2016.01.01_10.00.00.zip");
+        mArchive = new ResultArchive(mZipFile, mResultDir.getName());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mArchive.close();
+        FileUtil.recursiveDelete(mParentDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that added files, streamed entries and files only found in the result directory all
+     * end up in a zip that {@link ZipFile} can read.
+     */
+    public void testFinish() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("line ").append(i).append('\n');
+        }
+        mArchive.addFile("cts_result.css", writeFile("cts_result.css", large.toString()));
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        OutputStream entryStream = mArchive.createEntryStream("testResult.xml", xml);
+        entryStream.write("<TestResult/>".getBytes());
+        entryStream.close();
+        writeFile("sub/extra.txt", "extra");
+
+        mArchive.finish(mResultDir);
+
+        assertEquals("<TestResult/>", xml.toString());
+        Map<String, String> entries = readZip(mZipFile);
+        assertEquals(5, entries.size());
+        assertEquals("", entries.get("2016.01.01_10.00.00/"));
+        assertEquals(large.toString(), entries.get("2016.01.01_10.00.00/cts_result.css"));
+        assertEquals("<TestResult/>", entries.get("2016.01.01_10.00.00/testResult.xml"));
+        assertEquals("", entries.get("2016.01.01_10.00.00/sub/"));
+        assertEquals("extra", entries.get("2016.01.01_10.00.00/sub/extra.txt"));
+    }
+
+    /**
+     * Test that the gzip of an entry can be read by {@link GZIPInputStream}.
+     */
+    public void testWriteGzip() throws IOException {
+        OutputStream entryStream = mArchive.createEntryStream("testResult.xml",
+                new ByteArrayOutputStream());
+        entryStream.write("<TestResult/>".getBytes());
+        entryStream.close();
+
+        File gzipFile = mArchive.writeGzip("testResult.xml");
+        try (InputStream input = new GZIPInputStream(new FileInputStream(gzipFile))) {
+            assertEquals("<TestResult/>", readStream(input));
+        }
+        mArchive.close();
+        assertFalse(gzipFile.exists());
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        File file = new File(mResultDir, name);
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(content.getBytes());
+        }
+        return file;
+    }
+
+    private static Map<String, String> readZip(File file) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                try (InputStream input = zip.getInputStream(entry)) {
+                    entries.put(entry.getName(), readStream(input));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static String readStream(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Unit tests for {@link ResumableUpload}, against a local stand-in of an upload server.
+ */
+public class ResumableUploadTest extends TestCase {
+
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    /**
+     * Stores the chunks it receives, failing the requests it is told to fail.
+     */
+    private static class UploadHandler implements HttpHandler {
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        final List<String> mRanges = new ArrayList<>();
+        int mFailRequest = -1;
+        int mRequests = 0;
+
+        @Override
+        public synchronized void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Content-Range");
+            mRanges.add(range);
+            byte[] body = readStream(exchange.getRequestBody());
+            if (mRequests++ == mFailRequest) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            Matcher matcher = CONTENT_RANGE_PATTERN.matcher(range);
+            long total;
+            if (matcher.matches()) {
+                if (Long.parseLong(matcher.group(1)) == mReceived.size()) {
+                    mReceived.write(body);
+                }
+                total = Long.parseLong(matcher.group(3));
+            } else {
+                total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+            }
+            if (mReceived.size() == total) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                if (mReceived.size() > 0) {
+                    exchange.getResponseHeaders().add("Range",
+                            "bytes=0-" + (mReceived.size() - 1));
+                }
+                exchange.sendResponseHeaders(ResumableUpload.RESUME_INCOMPLETE, -1);
+            }
+            exchange.close();
+        }
+    }
+
+    private HttpServer mServer;
+    private UploadHandler mHandler;
+    private File mFile;
+    private byte[] mData;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new UploadHandler();
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.createContext("/upload", mHandler);
+        mServer.start();
+        mData = new byte[2500];
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) i;
+        }
+        mFile = FileUtil.createTempFile("upload", ".bin");
+        try (OutputStream output = new FileOutputStream(mFile)) {
+            output.write(mData);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that the file is sent in chunks.
+     */
+    public void testUpload() throws IOException {
+        createUpload().upload();
+        assertTrue(Arrays.equals(mData, mHandler.mReceived.toByteArray()));
+        assertEquals(Arrays.asList("bytes 0-999/2500", "bytes 1000-1999/2500",
+                "bytes 2000-2499/2500"), mHandler.mRanges);
+    }
+
+    /**
+     * Test that the upload asks the server where to continue after a failed chunk, and resumes
+     * from there.
+     */
+    public void testUpload_resume() throws IOException {
+        mHandler.mFailRequest = 1;
+        createUpload().upload();
+        assertTrue(Arrays.equals(mData, mHandler.mReceived.toByteArray()));
+        assertEquals(Arrays.asList("bytes 0-999/2500", "bytes 1000-1999/2500", "bytes */2500",
+                "bytes 1000-1999/2500", "bytes 2000-2499/2500"), mHandler.mRanges);
+    }
+
+    private ResumableUpload createUpload() {
+        ResumableUpload upload = new ResumableUpload(String.format("http://localhost:%d/upload",
+                mServer.getAddress().getPort()), mFile, 1000);
+        upload.setRetries(3, 0);
+        return upload;
+    }
+
+    private static byte[] readStream(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestRuntimeHistory}.
+ */
+public class TestRuntimeHistoryTest extends TestCase {
+
+    private static final String ABI = "armeabi-v7a";
+    private static final String PACKAGE_ID = AbiUtils.createId(ABI, "android.foo");
+    private static final long START = 1000000000000L;
+
+    /**
+     * Test that the run times of the tests of a requested package are read, with their full
+     * class names.
+     */
+    public void testParse() throws ParseException {
+        TestRuntimeHistory history = new TestRuntimeHistory(Arrays.asList(PACKAGE_ID));
+        history.parse(new StringReader(getResultXml("android.foo", 2)));
+        history.parse(new StringReader(getResultXml("android.foo", 4)));
+        Map<TestIdentifier, long[]> runTimes = history.getRunTimes(PACKAGE_ID);
+        assertEquals(1, runTimes.size());
+        long[] fooRunTimes = runTimes.get(new TestIdentifier("com.example.FooTest", "testFoo"));
+        // one second is added for the resolution of the result times
+        assertTrue(Arrays.equals(new long[] {3000, 5000}, fooRunTimes));
+    }
+
+    /**
+     * Test that the run times of other packages are skipped.
+     */
+    public void testParse_otherPackage() throws ParseException {
+        TestRuntimeHistory history = new TestRuntimeHistory(Arrays.asList(PACKAGE_ID));
+        history.parse(new StringReader(getResultXml("android.bar", 2)));
+        assertTrue(history.getRunTimes(PACKAGE_ID).isEmpty());
+        assertTrue(history.getRunTimes(AbiUtils.createId(ABI, "android.bar")).isEmpty());
+    }
+
+    private String getResultXml(String appPackageName, int runTimeSeconds) {
+        return "<TestResult>" +
+                "<TestPackage appPackageName=\"" + appPackageName + "\" abi=\"" + ABI + "\">" +
+                "<TestSuite name=\"com\">" +
+                "<TestSuite name=\"example\">" +
+                "<TestCase name=\"FooTest\">" +
+                "<Test name=\"testFoo\" result=\"pass\"" +
+                " starttime=\"" + TimeUtil.getTimestamp(START) + "\"" +
+                " endtime=\"" + TimeUtil.getTimestamp(START + runTimeSeconds * 1000) + "\"/>" +
+                "</TestCase>" +
+                "</TestSuite>" +
+                "</TestSuite>" +
+                "</TestPackage>" +
+                "</TestResult>";
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.UnitTests;
+import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ApkInstallPipeline}.
+ */
+public class ApkInstallPipelineTest extends TestCase {
+
+    private static final String STAGED_PATH = "/data/local/tmp/cts-staging/%s";
+    private static final String ABI_FLAG = "--abi armeabi-v7a ";
+
+    private File mTestCasesDir;
+    private CtsBuildHelper mCtsBuild;
+    private ITestDevice mMockDevice;
+    /** The shell commands run on the device, and the apks installed from the host. */
+    private final List<String> mCommands = Collections.synchronizedList(new ArrayList<String>());
+    private boolean mPushSucceeds = true;
+    private String mStagedInstallOutput = "Success";
+    private RuntimeException mShellFailure = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCasesDir = FileUtil.createTempDir("testcases");
+        new File(mTestCasesDir, "A.apk").createNewFile();
+        new File(mTestCasesDir, "B.apk").createNewFile();
+        mCtsBuild = new CtsBuildHelper(mTestCasesDir) {
+            @Override
+            public File getTestApp(String appFileName) throws FileNotFoundException {
+                File apkFile = new File(mTestCasesDir, appFileName);
+                if (!apkFile.exists()) {
+                    throw new FileNotFoundException(appFileName);
+                }
+                return apkFile;
+            }
+        };
+        mMockDevice = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.<String>anyObject()))
+                .andStubAnswer(new IAnswer<String>() {
+                    @Override
+                    public String answer() {
+                        String command = (String) EasyMock.getCurrentArguments()[0];
+                        if (mShellFailure != null) {
+                            throw mShellFailure;
+                        }
+                        mCommands.add(command);
+                        return command.startsWith("pm install") ? mStagedInstallOutput : "";
+                    }
+                });
+        EasyMock.expect(mMockDevice.pushFile(EasyMock.<File>anyObject(),
+                EasyMock.<String>anyObject())).andStubAnswer(new IAnswer<Boolean>() {
+                    @Override
+                    public Boolean answer() {
+                        mCommands.add("push " + EasyMock.getCurrentArguments()[1]);
+                        return mPushSucceeds;
+                    }
+                });
+        EasyMock.expect(mMockDevice.installPackage(EasyMock.<File>anyObject(), EasyMock.eq(true),
+                EasyMock.eq(ABI_FLAG))).andStubAnswer(new IAnswer<String>() {
+                    @Override
+                    public String answer() {
+                        File apkFile = (File) EasyMock.getCurrentArguments()[0];
+                        mCommands.add("host install " + apkFile.getName());
+                        return null;
+                    }
+                });
+        EasyMock.replay(mMockDevice);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCasesDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the apks of the next package are pushed and installed in the background, and not
+     * installed again when it runs.
+     */
+    public void testPrefetch() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        pipeline.await();
+        assertTrue(mCommands.contains("push " + staged("A.apk")));
+        assertTrue(mCommands.contains("pm install -r " + ABI_FLAG + staged("A.apk")));
+
+        mCommands.clear();
+        assertNull(pipeline.install("A.apk", "com.a", UnitTests.ABI));
+        assertTrue(mCommands.isEmpty());
+    }
+
+    /**
+     * Test that the prefetch is deferred until the apks of the package about to run are
+     * installed.
+     */
+    public void testPrefetch_deferred() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("B.apk", "com.b"), createTest("A.apk", "com.a"));
+        pipeline.await();
+        assertTrue(mCommands.isEmpty());
+
+        pipeline.startPrefetch();
+        pipeline.await();
+        assertTrue(mCommands.contains("push " + staged("B.apk")));
+    }
+
+    /**
+     * Test that an apk of the package in use is pushed, but only installed once its package is
+     * done.
+     */
+    public void testPrefetch_conflict() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("B.apk", "com.a"), createTest("A.apk", "com.a"));
+        pipeline.startPrefetch();
+        pipeline.await();
+        assertTrue(mCommands.contains("push " + staged("B.apk")));
+        assertFalse(mCommands.contains("pm install -r " + ABI_FLAG + staged("B.apk")));
+
+        assertNull(pipeline.install("B.apk", "com.a", UnitTests.ABI));
+        assertTrue(mCommands.contains("pm install -r " + ABI_FLAG + staged("B.apk")));
+        assertFalse(mCommands.contains("host install B.apk"));
+    }
+
+    /**
+     * Test that a staged apk is installed from the host when it's asked for under another
+     * package name.
+     */
+    public void testInstall_mismatch() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(false);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        assertNull(pipeline.install("A.apk", "com.other", UnitTests.ABI));
+        assertTrue(mCommands.contains("host install A.apk"));
+        assertFalse(mCommands.contains("pm install -r " + ABI_FLAG + staged("A.apk")));
+    }
+
+    /**
+     * Test that an apk that could not be pushed is installed from the host.
+     */
+    public void testInstall_pushFailed() throws Exception {
+        mPushSucceeds = false;
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        assertNull(pipeline.install("A.apk", "com.a", UnitTests.ABI));
+        assertTrue(mCommands.contains("host install A.apk"));
+    }
+
+    /**
+     * Test that an apk whose install from the staging directory fails is installed from the host.
+     */
+    public void testInstall_stagedInstallFailed() throws Exception {
+        mStagedInstallOutput = "Failure [INSTALL_FAILED_INSUFFICIENT_STORAGE]";
+        ApkInstallPipeline pipeline = createPipeline(false);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        assertNull(pipeline.install("A.apk", "com.a", UnitTests.ABI));
+        assertTrue(mCommands.contains("pm install -r " + ABI_FLAG + staged("A.apk")));
+        assertTrue(mCommands.contains("host install A.apk"));
+    }
+
+    /**
+     * Test that a failed prefetch falls back to installing from the host, and that the pipeline
+     * still cleans up.
+     */
+    public void testPrefetch_failed() throws Exception {
+        mShellFailure = new RuntimeException("broken");
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        pipeline.await();
+        mShellFailure = null;
+
+        assertNull(pipeline.install("A.apk", "com.a", UnitTests.ABI));
+        assertTrue(mCommands.contains("host install A.apk"));
+        pipeline.uninstall("com.a");
+        pipeline.shutdown();
+        assertTrue(mCommands.contains("pm uninstall com.a"));
+        assertTrue(mCommands.contains("rm -rf /data/local/tmp/cts-staging"));
+    }
+
+    /**
+     * Test that a device that goes away during the prefetch is reported to the caller.
+     */
+    public void testPrefetch_deviceNotAvailable() throws Exception {
+        ITestDevice device = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(device.executeShellCommand(EasyMock.<String>anyObject()))
+                .andStubThrow(new DeviceNotAvailableException("gone"));
+        EasyMock.replay(device);
+        ApkInstallPipeline pipeline = new ApkInstallPipeline(device, mCtsBuild, true, 1);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        try {
+            pipeline.await();
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that apks installed ahead of a package that won't run are uninstalled.
+     */
+    public void testDiscardPrefetch() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        pipeline.discardPrefetch();
+        assertTrue(mCommands.contains("pm install -r " + ABI_FLAG + staged("A.apk")));
+
+        pipeline.flush();
+        assertTrue(mCommands.contains("pm uninstall com.a"));
+        mCommands.clear();
+        // the apk is installed again from the host when it's asked for after all
+        assertNull(pipeline.install("A.apk", "com.a", UnitTests.ABI));
+        assertTrue(mCommands.contains("host install A.apk"));
+    }
+
+    /**
+     * Test that a deferred prefetch is not started once discarded.
+     */
+    public void testDiscardPrefetch_deferred() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("B.apk", "com.b"), createTest("A.apk", "com.a"));
+        pipeline.discardPrefetch();
+        pipeline.startPrefetch();
+        pipeline.await();
+        assertTrue(mCommands.isEmpty());
+    }
+
+    /**
+     * Test that apks installed ahead of a package that never ran are uninstalled on shutdown.
+     */
+    public void testShutdown() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(true);
+        pipeline.prefetch(createTest("A.apk", "com.a"), null);
+        pipeline.shutdown();
+        assertTrue(mCommands.contains("pm uninstall com.a"));
+        assertTrue(mCommands.contains("rm -rf /data/local/tmp/cts-staging"));
+    }
+
+    /**
+     * Test that deferred uninstalls run in a single command once the batch is full.
+     */
+    public void testUninstall_batch() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(false, 2);
+        pipeline.uninstall("com.a");
+        assertTrue(mCommands.isEmpty());
+        pipeline.uninstall("com.b");
+        assertEquals(Collections.singletonList("pm uninstall com.a; pm uninstall com.b"),
+                mCommands);
+    }
+
+    /**
+     * Test that the deferred uninstall of a package runs before it is installed again.
+     */
+    public void testUninstall_beforeInstall() throws Exception {
+        ApkInstallPipeline pipeline = createPipeline(false, 10);
+        pipeline.uninstall("com.a");
+        assertNull(pipeline.install("A.apk", "com.a", UnitTests.ABI));
+        assertEquals(2, mCommands.size());
+        assertEquals("pm uninstall com.a", mCommands.get(0));
+        assertEquals("host install A.apk", mCommands.get(1));
+    }
+
+    private ApkInstallPipeline createPipeline(boolean earlyInstall) {
+        return createPipeline(earlyInstall, 1);
+    }
+
+    private ApkInstallPipeline createPipeline(boolean earlyInstall, int uninstallBatchSize) {
+        return new ApkInstallPipeline(mMockDevice, mCtsBuild, earlyInstall, uninstallBatchSize);
+    }
+
+    private static CtsInstrumentationApkTest createTest(String apkFileName, String packageName) {
+        CtsInstrumentationApkTest test = new CtsInstrumentationApkTest();
+        test.addInstallApk(apkFileName, packageName);
+        test.setAbi(UnitTests.ABI);
+        return test;
+    }
+
+    private static String staged(String apkFileName) {
+        return String.format(STAGED_PATH, apkFileName);
+    }
+}
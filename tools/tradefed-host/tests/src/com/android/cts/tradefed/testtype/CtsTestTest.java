@@ -18,6 +18,7 @@ package com.android.cts.tradefed.testtype;
 import com.android.cts.tradefed.UnitTests;
 import com.android.cts.tradefed.build.StubCtsBuildHelper;
 import com.android.cts.tradefed.result.PlanCreator;
+import com.android.cts.tradefed.util.InvocationTrace;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -25,18 +26,22 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -262,6 +267,125 @@ public class CtsTestTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that with --reuse-results, a package that passed is replayed from the cache by the
+     * next run instead of being run again.
+     */
+    public void testRun_reuseResults() throws DeviceNotAvailableException, IOException {
+        File cacheDir = FileUtil.createTempDir("result-cache");
+        try {
+            setReuseResultsExpectations(cacheDir, "digest");
+            // the second run replays the results of the first
+            mMockTest.run((ITestInvocationListener) EasyMock.anyObject());
+            EasyMock.expectLastCall().andAnswer(new PassingRun()).once();
+
+            replayMocks();
+            mCtsTest.run(mMockListener);
+            assertEquals(1, cacheDir.list().length);
+            mCtsTest.run(mMockListener);
+            verifyMocks();
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Test that with --reuse-results, a package whose files couldn't be hashed is neither cached
+     * nor replayed.
+     */
+    public void testRun_reuseResults_noDigest() throws DeviceNotAvailableException, IOException {
+        File cacheDir = FileUtil.createTempDir("result-cache");
+        try {
+            setReuseResultsExpectations(cacheDir, null);
+            mMockTest.run((ITestInvocationListener) EasyMock.anyObject());
+            EasyMock.expectLastCall().andAnswer(new PassingRun()).times(2);
+
+            replayMocks();
+            mCtsTest.run(mMockListener);
+            assertEquals(0, cacheDir.list().length);
+            mCtsTest.run(mMockListener);
+            verifyMocks();
+            assertEquals(0, cacheDir.list().length);
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Set EasyMock expectations for running {@link #PACKAGE_NAME} with --reuse-results and the
+     * given artifacts digest.
+     */
+    private void setReuseResultsExpectations(File cacheDir, String artifactsDigest)
+            throws DeviceNotAvailableException {
+        mCtsTest.setReuseResults(cacheDir);
+        mCtsTest.addPackageName(PACKAGE_NAME);
+        Map<String, List<ITestPackageDef>> nameMap = new HashMap<>();
+        nameMap.put(PACKAGE_NAME, Collections.singletonList(mMockPackageDef));
+        EasyMock.expect(mMockRepo.getTestPackageDefsByName()).andReturn(nameMap);
+        EasyMock.expect(mMockRepo.getPackageNames()).andReturn(NAMES).anyTimes();
+        EasyMock.expect(mMockDevice.getProperty("ro.build.fingerprint"))
+                .andReturn("android/build/device:6.0/MRA58K/1:user/release-keys").anyTimes();
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockPackageDef.createTest((File) EasyMock.anyObject()))
+                .andReturn(mMockTest);
+        EasyMock.expect(mMockPackageDef.getTests()).andReturn(TEST_IDENTIFIER_LIST).anyTimes();
+        EasyMock.expect(mMockPackageDef.getName()).andReturn(PACKAGE_NAME).anyTimes();
+        EasyMock.expect(mMockPackageDef.getAbi()).andReturn(UnitTests.ABI).anyTimes();
+        EasyMock.expect(mMockPackageDef.getId()).andReturn(ID).anyTimes();
+        EasyMock.expect(mMockPackageDef.getDigest()).andReturn("digest").anyTimes();
+        EasyMock.expect(mMockPackageDef.getArtifactsDigest()).andReturn(artifactsDigest)
+                .atLeastOnce();
+        EasyMock.expect(mMockPackageDef.getPackagePreparers()).andReturn(
+                new ArrayList<ITargetPreparer>()).anyTimes();
+    }
+
+    /**
+     * Test that the spans of a package are recorded when its run fails.
+     */
+    public void testRun_traceFailedRun() throws Exception {
+        mCtsTest.addPackageName(PACKAGE_NAME);
+        Map<String, List<ITestPackageDef>> nameMap = new HashMap<>();
+        nameMap.put(PACKAGE_NAME, Collections.singletonList(mMockPackageDef));
+        EasyMock.expect(mMockRepo.getTestPackageDefsByName()).andReturn(nameMap);
+        setCreateAndRunTestExpectations();
+        EasyMock.expectLastCall().andThrow(new DeviceNotAvailableException("gone"));
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+
+        File summary = FileUtil.createTempFile("trace", ".txt");
+        long start = InvocationTrace.startRecording();
+        try {
+            replayMocks();
+            try {
+                mCtsTest.run(mMockListener);
+                fail("DeviceNotAvailableException not thrown");
+            } catch (DeviceNotAvailableException e) {
+                // expected
+            }
+            InvocationTrace.writeSummary(summary, "serial", start);
+            String spans = FileUtil.readStringFromFile(summary);
+            assertTrue(spans, spans.contains("testRun"));
+        } finally {
+            InvocationTrace.stopRecording("serial");
+            summary.delete();
+        }
+    }
+
+    /**
+     * Reports {@link #TEST_IDENTIFIER} as passed to the listener of the run.
+     */
+    private static class PassingRun implements IAnswer<Object> {
+        @Override
+        public Object answer() {
+            ITestInvocationListener listener =
+                    (ITestInvocationListener) EasyMock.getCurrentArguments()[0];
+            listener.testRunStarted(PACKAGE_NAME, 1);
+            listener.testStarted(TEST_IDENTIFIER);
+            listener.testEnded(TEST_IDENTIFIER, new HashMap<String, String>());
+            listener.testRunEnded(0, new HashMap<String, String>());
+            return null;
+        }
+    }
+
     /**
      * Set EasyMock expectations for parsing {@link #PLAN_NAME}
      */
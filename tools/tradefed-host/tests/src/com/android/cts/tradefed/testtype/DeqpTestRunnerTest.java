@@ -43,6 +43,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -52,6 +53,8 @@ public class DeqpTestRunnerTest extends TestCase {
     private static final String NAME = "dEQP-GLES3";
     private static final String ID = AbiUtils.createId(UnitTests.ABI.getName(), NAME);
     private static final String CASE_LIST_FILE_NAME = "/sdcard/dEQP-TestCaseList.txt";
+    private static final String[] STAGED_CASE_LIST_FILE_NAMES = {
+            "/sdcard/dEQP-TestCaseList-0.txt", "/sdcard/dEQP-TestCaseList-1.txt"};
     private static final String LOG_FILE_NAME = "/sdcard/TestLog.qpa";
     private static final String INSTRUMENTATION_NAME =
             "com.drawelements.deqp/com.drawelements.deqp.testercore.DeqpInstrumentation";
@@ -2312,6 +2315,303 @@ public class DeqpTestRunnerTest extends TestCase {
         EasyMock.verify(mockDevice, mockIDevice);
     }
 
+    /**
+     * Test that with pipelined case lists, the case list of the next batch is pushed while the
+     * current batch runs, and that the case list files are removed at the end.
+     */
+    public void testRun_pipelineCaseLists() throws Exception {
+        final TestIdentifier first = new TestIdentifier("dEQP-GLES3.pipeline", "first");
+        final TestIdentifier second = new TestIdentifier("dEQP-GLES3.pipeline", "second");
+        final String listA = "{dEQP-GLES3{pipeline{first,second}}}\n";
+        final String listB = "{dEQP-GLES3{pipeline{first}}}\n";
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(first);
+        tests.add(second);
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        instances.put(first, new ArrayList<Map<String, String>>());
+        instances.get(first).add(DEFAULT_INSTANCE_ARGS.get(0));
+        instances.get(first).add(createRotatedConfig());
+        instances.put(second, DEFAULT_INSTANCE_ARGS);
+
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch listBPushed = new CountDownLatch(1);
+
+        expectPipelineRunSetup(mockDevice, mockIDevice, 2);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[0], listA, true, events, null);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[1], listB, true, events,
+                listBPushed);
+        // the first batch only completes once the case list of the second one is on the device
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[0],
+                "unspecified", buildPassingOutput("dEQP-GLES3.pipeline.first",
+                "dEQP-GLES3.pipeline.second"), events, listBPushed);
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[1],
+                "90", buildPassingOutput("dEQP-GLES3.pipeline.first"), events, null);
+
+        runPipelined(tests, instances, mockDevice, mockIDevice);
+
+        // the second case list may be pushed before the first batch starts, or while it runs
+        int stagedPush = events.indexOf("push " + STAGED_CASE_LIST_FILE_NAMES[1]);
+        assertEquals(events.toString(), 0,
+                events.indexOf("push " + STAGED_CASE_LIST_FILE_NAMES[0]));
+        assertTrue(events.toString(), stagedPush > 0);
+        assertTrue(events.toString(),
+                stagedPush < events.indexOf("ran " + STAGED_CASE_LIST_FILE_NAMES[0]));
+        assertEquals(6, events.size());
+    }
+
+    /**
+     * Test that when a batch crashes and its remaining tests are retried, the retried case list
+     * is pushed when the retry starts, and the staged case list of the batch that was predicted
+     * is kept for that batch.
+     */
+    public void testRun_pipelineCaseListsRetry() throws Exception {
+        final TestIdentifier first = new TestIdentifier("dEQP-GLES3.pipeline", "first");
+        final TestIdentifier second = new TestIdentifier("dEQP-GLES3.pipeline", "second");
+        final String listA = "{dEQP-GLES3{pipeline{first,second}}}\n";
+        final String listRetry = "{dEQP-GLES3{pipeline{second}}}\n";
+        final String listB = "{dEQP-GLES3{pipeline{first}}}\n";
+        final String crashOutput = buildSessionOutput(false, "dEQP-GLES3.pipeline.first")
+                + "INSTRUMENTATION_STATUS: dEQP-EventType=BeginTestCase\r\n"
+                + "INSTRUMENTATION_STATUS: dEQP-BeginTestCase-TestCasePath="
+                + "dEQP-GLES3.pipeline.second\r\n"
+                + "INSTRUMENTATION_STATUS_CODE: 0\r\n"; // early eof
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(first);
+        tests.add(second);
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        instances.put(first, new ArrayList<Map<String, String>>());
+        instances.get(first).add(DEFAULT_INSTANCE_ARGS.get(0));
+        instances.get(first).add(createRotatedConfig());
+        instances.put(second, DEFAULT_INSTANCE_ARGS);
+
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        expectPipelineRunSetup(mockDevice, mockIDevice, 3);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[0], listA, true, events, null);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[1], listB, true, events, null);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[0], listRetry, true, events,
+                null);
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[0],
+                "unspecified", crashOutput, events, null);
+        // the retry of the crashed test passes
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[0],
+                "unspecified", buildPassingOutput("dEQP-GLES3.pipeline.second"), events, null);
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[1],
+                "90", buildPassingOutput("dEQP-GLES3.pipeline.first"), events, null);
+
+        runPipelined(tests, instances, mockDevice, mockIDevice);
+
+        // the retry overwrites the case list of the crashed batch, never the staged one
+        int retryPush = events.lastIndexOf("push " + STAGED_CASE_LIST_FILE_NAMES[0]);
+        assertTrue(events.toString(),
+                events.indexOf("ran " + STAGED_CASE_LIST_FILE_NAMES[0]) < retryPush);
+        assertTrue(events.toString(),
+                retryPush < events.lastIndexOf("run " + STAGED_CASE_LIST_FILE_NAMES[0]));
+        // the staged case list is only pushed once, before the retry starts
+        assertTrue(events.toString(),
+                events.indexOf("push " + STAGED_CASE_LIST_FILE_NAMES[1]) < retryPush);
+    }
+
+    /**
+     * Test that when the staged case list can't be pushed, it is pushed again when its batch
+     * starts, and the batch still runs.
+     */
+    public void testRun_pipelineCaseListsFailedPush() throws Exception {
+        final TestIdentifier first = new TestIdentifier("dEQP-GLES3.pipeline", "first");
+        final TestIdentifier second = new TestIdentifier("dEQP-GLES3.pipeline", "second");
+        final String listA = "{dEQP-GLES3{pipeline{first,second}}}\n";
+        final String listB = "{dEQP-GLES3{pipeline{first}}}\n";
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(first);
+        tests.add(second);
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        instances.put(first, new ArrayList<Map<String, String>>());
+        instances.get(first).add(DEFAULT_INSTANCE_ARGS.get(0));
+        instances.get(first).add(createRotatedConfig());
+        instances.put(second, DEFAULT_INSTANCE_ARGS);
+
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        expectPipelineRunSetup(mockDevice, mockIDevice, 2);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[0], listA, true, events, null);
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[1], listB, false, events,
+                null);
+        // the partially written file is never used
+        expectCaseListPush(mockDevice, STAGED_CASE_LIST_FILE_NAMES[0], listB, true, events, null);
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[0],
+                "unspecified", buildPassingOutput("dEQP-GLES3.pipeline.first",
+                "dEQP-GLES3.pipeline.second"), events, null);
+        expectPipelinedInstrumentation(mockDevice, mockIDevice, STAGED_CASE_LIST_FILE_NAMES[0],
+                "90", buildPassingOutput("dEQP-GLES3.pipeline.first"), events, null);
+
+        runPipelined(tests, instances, mockDevice, mockIDevice);
+
+        assertEquals("push " + STAGED_CASE_LIST_FILE_NAMES[0], events.get(events.size() - 3));
+    }
+
+    private static Map<String, String> createRotatedConfig() {
+        Map<String, String> config = new HashMap<>();
+        config.put("glconfig", "rgba8888d24s8");
+        config.put("rotation", "90");
+        config.put("surfacetype", "window");
+        return config;
+    }
+
+    /**
+     * Expects the calls of a pipelined run of the given number of batches, in the unspecified
+     * and 90 degree rotations, other than the case list pushes and the instrumentation.
+     */
+    private void expectPipelineRunSetup(ITestDevice mockDevice, IDevice mockIDevice, int batches)
+            throws Exception {
+        EasyMock.expect(mockDevice.getSerialNumber()).andReturn("serial").anyTimes();
+        EasyMock.expect(mockDevice.getIDevice()).andReturn(mockIDevice).times(batches);
+        EasyMock.expect(mockDevice.getProperty("ro.opengles.version"))
+                .andReturn(Integer.toString(3 << 16)).atLeastOnce();
+        EasyMock.expect(mockDevice.uninstallPackage(EasyMock.eq(DEQP_ONDEVICE_PKG)))
+                .andReturn("").times(2);
+        EasyMock.expect(mockDevice.installPackage(EasyMock.<File>anyObject(),
+                EasyMock.eq(true),
+                EasyMock.eq(AbiUtils.createAbiFlag(UnitTests.ABI.getName())))).andReturn(null)
+                .once();
+        expectRenderConfigQuery(mockDevice, 3, 0);
+        EasyMock.expect(mockDevice.executeShellCommand("pm list features")).andReturn(ALL_FEATURES)
+                .once();
+        expectRenderConfigQuery(mockDevice,
+                "--deqp-gl-config-name=rgba8888d24s8 --deqp-screen-rotation=90 "
+                + "--deqp-surface-type=window --deqp-gl-major-version=3 "
+                + "--deqp-gl-minor-version=0");
+        EasyMock.expect(mockDevice.executeShellCommand(EasyMock.eq("rm " + LOG_FILE_NAME)))
+                .andReturn("").times(batches);
+        // a case list file is cleared before each push to it
+        for (String fileName : STAGED_CASE_LIST_FILE_NAMES) {
+            EasyMock.expect(mockDevice.executeShellCommand(EasyMock.eq("rm " + fileName)))
+                    .andReturn("").anyTimes();
+        }
+        // the case list files are removed at the end
+        EasyMock.expect(mockDevice.executeShellCommand(EasyMock.eq(String.format("rm %s %s",
+                STAGED_CASE_LIST_FILE_NAMES[0], STAGED_CASE_LIST_FILE_NAMES[1]))))
+                .andReturn("").once();
+    }
+
+    /**
+     * Expects a case list to be pushed to a file, recording it in events once it is pushed.
+     */
+    private void expectCaseListPush(ITestDevice mockDevice, final String fileName,
+            String caseList, final boolean success, final List<String> events,
+            final CountDownLatch pushed) throws Exception {
+        EasyMock.expect(mockDevice.pushString(caseList, fileName)).andAnswer(
+                new IAnswer<Boolean>() {
+                    @Override
+                    public Boolean answer() {
+                        events.add("push " + fileName);
+                        if (pushed != null) {
+                            pushed.countDown();
+                        }
+                        return success;
+                    }
+                });
+    }
+
+    /**
+     * Expects the instrumentation to run with the given case list file, recording when it starts
+     * and ends in events. If awaited isn't null, the instrumentation only ends once it is counted
+     * down.
+     */
+    private void expectPipelinedInstrumentation(ITestDevice mockDevice, IDevice mockIDevice,
+            final String caseListFileName, String rotation, final String output,
+            final List<String> events, final CountDownLatch awaited) throws Exception {
+        String command = String.format(
+                "am instrument %s -w -e deqpLogFileName \"%s\" -e deqpCmdLine \""
+                    + "--deqp-caselist-file=%s --deqp-gl-config-name=rgba8888d24s8 "
+                    + "--deqp-screen-rotation=%s --deqp-surface-type=window "
+                    + "--deqp-log-images=disable --deqp-watchdog=enable\" "
+                    + "-e deqpLogData \"%s\" %s",
+                AbiUtils.createAbiFlag(UnitTests.ABI.getName()), LOG_FILE_NAME,
+                caseListFileName, rotation, false, INSTRUMENTATION_NAME);
+
+        mockIDevice.executeShellCommand(EasyMock.eq(command),
+                EasyMock.<IShellOutputReceiver>notNull(), EasyMock.anyLong(),
+                EasyMock.isA(TimeUnit.class));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Exception {
+                events.add("run " + caseListFileName);
+                IShellOutputReceiver receiver
+                        = (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                receiver.addOutput(output.getBytes(), 0, output.length());
+                receiver.flush();
+                if (awaited != null) {
+                    assertTrue("timed out waiting for the next case list",
+                            awaited.await(10, TimeUnit.SECONDS));
+                }
+                events.add("ran " + caseListFileName);
+                return null;
+            }
+        });
+    }
+
+    private void runPipelined(Collection<TestIdentifier> tests,
+            Map<TestIdentifier, List<Map<String, String>>> instances, ITestDevice mockDevice,
+            IDevice mockIDevice) throws Exception {
+        ITestInvocationListener mockListener
+                = EasyMock.createNiceMock(ITestInvocationListener.class);
+
+        DeqpTestRunner deqpTest = new DeqpTestRunner(NAME, NAME, tests, instances);
+        deqpTest.setAbi(UnitTests.ABI);
+        deqpTest.setDevice(mockDevice);
+        deqpTest.setBuildHelper(new StubCtsBuildHelper());
+        deqpTest.setRecovery(new StubRecovery());
+        deqpTest.setPipelineCaseLists(true);
+
+        EasyMock.replay(mockDevice, mockIDevice, mockListener);
+        deqpTest.run(mockListener);
+        EasyMock.verify(mockDevice, mockIDevice);
+    }
+
+    /**
+     * @return the output of a session in which the given test cases pass
+     */
+    private static String buildPassingOutput(String... testPaths) {
+        return buildSessionOutput(true, testPaths);
+    }
+
+    /**
+     * @return the output of a session in which the given test cases pass, which ends the session
+     *     if complete is set
+     */
+    private static String buildSessionOutput(boolean complete, String... testPaths) {
+        StringBuilder output = new StringBuilder();
+        output.append("INSTRUMENTATION_STATUS: dEQP-EventType=BeginSession\r\n")
+                .append("INSTRUMENTATION_STATUS_CODE: 0\r\n");
+        for (String testPath : testPaths) {
+            output.append("INSTRUMENTATION_STATUS: dEQP-EventType=BeginTestCase\r\n")
+                    .append("INSTRUMENTATION_STATUS: dEQP-BeginTestCase-TestCasePath=")
+                    .append(testPath).append("\r\n")
+                    .append("INSTRUMENTATION_STATUS_CODE: 0\r\n")
+                    .append("INSTRUMENTATION_STATUS: dEQP-TestCaseResult-Code=Pass\r\n")
+                    .append("INSTRUMENTATION_STATUS: dEQP-TestCaseResult-Details=Pass\r\n")
+                    .append("INSTRUMENTATION_STATUS: dEQP-EventType=TestCaseResult\r\n")
+                    .append("INSTRUMENTATION_STATUS_CODE: 0\r\n")
+                    .append("INSTRUMENTATION_STATUS: dEQP-EventType=EndTestCase\r\n")
+                    .append("INSTRUMENTATION_STATUS_CODE: 0\r\n");
+        }
+        if (complete) {
+            output.append("INSTRUMENTATION_STATUS: dEQP-EventType=EndSession\r\n")
+                    .append("INSTRUMENTATION_STATUS_CODE: 0\r\n")
+                    .append("INSTRUMENTATION_CODE: 0\r\n");
+        }
+        return output.toString();
+    }
+
     private void runInstrumentationLineAndAnswer(ITestDevice mockDevice, IDevice mockIDevice,
             final String testTrie, final String cmd, final String output) throws Exception {
         EasyMock.expect(mockDevice.executeShellCommand(EasyMock.eq("rm " + CASE_LIST_FILE_NAME)))
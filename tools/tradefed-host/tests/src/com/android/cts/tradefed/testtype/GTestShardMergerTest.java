@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link GTestShardMerger}.
+ */
+public class GTestShardMergerTest extends TestCase {
+
+    private static final String RUN_NAME = "android.foo";
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "testFoo");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "testFoo2");
+    private static final TestIdentifier TEST3 = new TestIdentifier("BarTest", "testBar");
+    private static final Map<String, String> EMPTY = Collections.emptyMap();
+
+    /** Records the events it receives as strings. */
+    private static class RecordingListener implements ITestRunListener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add(String.format("runStarted %s %d", runName, testCount));
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add("started " + test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mEvents.add(String.format("failed %s %s", test, trace));
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            mEvents.add(String.format("assumptionFailure %s %s", test, trace));
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            mEvents.add("ignored " + test);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add("ended " + test);
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mEvents.add("runFailed " + errorMessage);
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            mEvents.add("runStopped " + elapsedTime);
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mEvents.add("runEnded " + elapsedTime);
+        }
+    }
+
+    private RecordingListener mListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mListener = new RecordingListener();
+    }
+
+    /**
+     * Test that the results of complete shards are reported as one run, in shard order.
+     */
+    public void testReport() {
+        GTestShardMerger merger = new GTestShardMerger(RUN_NAME, 2);
+        ITestRunListener shard1 = merger.getShardListener(1);
+        shard1.testRunStarted(RUN_NAME, 1);
+        shard1.testStarted(TEST3);
+        shard1.testFailed(TEST3, "trace");
+        shard1.testEnded(TEST3, EMPTY);
+        shard1.testRunEnded(30, EMPTY);
+        ITestRunListener shard0 = merger.getShardListener(0);
+        shard0.testRunStarted(RUN_NAME, 2);
+        shard0.testStarted(TEST1);
+        shard0.testEnded(TEST1, EMPTY);
+        shard0.testStarted(TEST2);
+        shard0.testEnded(TEST2, EMPTY);
+        shard0.testRunEnded(20, EMPTY);
+
+        merger.report(mListener);
+        assertEquals(Arrays.asList(
+                "runStarted android.foo 3",
+                "started " + TEST1,
+                "ended " + TEST1,
+                "started " + TEST2,
+                "ended " + TEST2,
+                "started " + TEST3,
+                "failed " + TEST3 + " trace",
+                "ended " + TEST3,
+                "runEnded 30"), mListener.mEvents);
+    }
+
+    /**
+     * Test that a shard that stops in a test fails that test and the run, but keeps the results
+     * of the other shards.
+     */
+    public void testReport_shardFailed() {
+        GTestShardMerger merger = new GTestShardMerger(RUN_NAME, 2);
+        ITestRunListener shard0 = merger.getShardListener(0);
+        shard0.testRunStarted(RUN_NAME, 1);
+        shard0.testStarted(TEST1);
+        shard0.testEnded(TEST1, EMPTY);
+        shard0.testRunEnded(20, EMPTY);
+        ITestRunListener shard1 = merger.getShardListener(1);
+        shard1.testRunStarted(RUN_NAME, 2);
+        shard1.testStarted(TEST2);
+        merger.shardFailed(1, "timed out");
+
+        merger.report(mListener);
+        assertEquals(Arrays.asList(
+                "runStarted android.foo 3",
+                "started " + TEST1,
+                "ended " + TEST1,
+                "started " + TEST2,
+                "failed " + TEST2 + " timed out",
+                "ended " + TEST2,
+                "runFailed shard 1 of 2: timed out",
+                "runEnded 20"), mListener.mEvents);
+    }
+}
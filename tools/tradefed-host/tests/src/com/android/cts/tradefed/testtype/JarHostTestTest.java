@@ -16,10 +16,13 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.StubCtsBuildHelper;
+import com.android.cts.tradefed.util.DeviceReleaseRegistry;
+import com.android.cts.tradefed.util.IDeviceReleaser;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.testtype.IDeviceTest;
 
 import org.easymock.EasyMock;
 
@@ -67,6 +70,38 @@ public class JarHostTestTest extends TestCase {
         }
     }
 
+    /** A test that keeps state on the device for the tests of its class that follow. */
+    public static class MockFixtureTest extends TestCase implements IDeviceTest {
+        static int sReleaseCount = 0;
+
+        private static final IDeviceReleaser RELEASER = new IDeviceReleaser() {
+            @Override
+            public void releaseDevice(ITestDevice device) {
+                sReleaseCount++;
+            }
+        };
+
+        private ITestDevice mDevice;
+
+        @Override
+        public void setDevice(ITestDevice device) {
+            mDevice = device;
+        }
+
+        @Override
+        public ITestDevice getDevice() {
+            return mDevice;
+        }
+
+        public void testFoo() {
+            DeviceReleaseRegistry.register(mDevice, RELEASER);
+        }
+
+        public void testBar() {
+            DeviceReleaseRegistry.register(mDevice, RELEASER);
+        }
+    }
+
     /**
      * Test normal case for
      * {@link JarHostTest#run(com.android.tradefed.result.ITestInvocationListener)}.
@@ -91,4 +126,28 @@ public class JarHostTestTest extends TestCase {
         mJarTest.run(listener);
         EasyMock.verify(listener);
     }
+
+    /**
+     * Test that {@link JarHostTest#run(ITestInvocationListener)} releases the device once for the
+     * state the tests registered, even if not all of their tests were run.
+     */
+    public void testRun_releaseDevice() throws DeviceNotAvailableException {
+        ITestInvocationListener listener = EasyMock.createNiceMock(ITestInvocationListener.class);
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>(3);
+        tests.add(new TestIdentifier(MockFixtureTest.class.getName(), "testFoo"));
+        tests.add(new TestIdentifier(MockFixtureTest.class.getName(), "testBar"));
+        tests.add(new TestIdentifier(MockTest.class.getName(), "testFoo"));
+        mJarTest.setTests(tests);
+        ITestDevice device = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.replay(device);
+        mJarTest.setDevice(device);
+        mJarTest.setJarFileName("fakefile");
+        mJarTest.setRunName(RUN_NAME);
+        MockFixtureTest.sReleaseCount = 0;
+
+        EasyMock.replay(listener);
+        mJarTest.run(listener);
+        assertEquals(1, MockFixtureTest.sReleaseCount);
+    }
 }
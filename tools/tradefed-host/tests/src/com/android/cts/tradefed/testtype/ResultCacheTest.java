@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultCache}.
+ */
+public class ResultCacheTest extends TestCase {
+
+    private static final String CTS_BUILD_ID = "2998331";
+    private static final String FINGERPRINT = "android/build/device:6.0/MRA58K/1:user/release-keys";
+    private static final String ABI = "armeabi-v7a";
+    private static final String PACKAGE_ID = "armeabi-v7a android.foo";
+    private static final String DIGEST = "digest";
+    private static final String RUN_NAME = "android.foo";
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "testFoo");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "testFoo2");
+
+    private File mCacheDir;
+    private ResultCache mCache;
+    private List<TestIdentifier> mTests;
+    private String mKey;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("result-cache");
+        mCache = new ResultCache(mCacheDir);
+        mTests = Arrays.asList(TEST1, TEST2);
+        mKey = ResultCache.createKey(CTS_BUILD_ID, FINGERPRINT, ABI, PACKAGE_ID, DIGEST,
+                mTests, Collections.<String>emptyList());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the results of a passing run are replayed, including metrics that need escaping.
+     */
+    public void testCommitAndReplay() {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key\twith tab", "value\nwith\\newline");
+        ResultCache.Recorder recorder = mCache.createRecorder(mKey, new CollectingTestListener(),
+                mTests);
+        runTests(recorder, null, metrics);
+        assertFalse(mCache.contains(mKey));
+        assertTrue(recorder.commit());
+        assertTrue(mCache.contains(mKey));
+
+        ResultCache.Entry entry = mCache.load(mKey);
+        assertNotNull(entry);
+        assertEquals(2, entry.getTestCount());
+        CollectingTestListener listener = new CollectingTestListener();
+        entry.replay(RUN_NAME, listener);
+        TestRunResult result = listener.getCurrentRunResults();
+        assertEquals(RUN_NAME, result.getName());
+        assertTrue(result.isRunComplete());
+        assertEquals(2, result.getNumPassedTests());
+        assertEquals(metrics, result.getTestResults().get(TEST1).getMetrics());
+    }
+
+    /**
+     * Test that results are forwarded to the wrapped listener while being recorded.
+     */
+    public void testRecorder_forwards() {
+        CollectingTestListener listener = new CollectingTestListener();
+        ResultCache.Recorder recorder = mCache.createRecorder(mKey, listener, mTests);
+        runTests(recorder, TEST2, new HashMap<String, String>());
+        TestRunResult result = listener.getCurrentRunResults();
+        assertEquals(2, result.getNumTests());
+        assertEquals(1, result.getNumPassedTests());
+    }
+
+    /**
+     * Test that a run with a failed test is not cached.
+     */
+    public void testCommit_failedTest() {
+        ResultCache.Recorder recorder = mCache.createRecorder(mKey, new CollectingTestListener(),
+                mTests);
+        runTests(recorder, TEST2, new HashMap<String, String>());
+        assertFalse(recorder.commit());
+        assertNull(mCache.load(mKey));
+    }
+
+    /**
+     * Test that a run with an assumption failure is not cached, since it is not a pass.
+     */
+    public void testCommit_assumptionFailure() {
+        ResultCache.Recorder recorder = mCache.createRecorder(mKey, new CollectingTestListener(),
+                mTests);
+        recorder.testRunStarted(RUN_NAME, 2);
+        recorder.testStarted(TEST1);
+        recorder.testEnded(TEST1, new HashMap<String, String>());
+        recorder.testStarted(TEST2);
+        recorder.testAssumptionFailure(TEST2, "trace");
+        recorder.testEnded(TEST2, new HashMap<String, String>());
+        recorder.testRunEnded(0, new HashMap<String, String>());
+        assertFalse(recorder.commit());
+        assertNull(mCache.load(mKey));
+    }
+
+    /**
+     * Test that a run with an ignored test is not cached.
+     */
+    public void testCommit_ignoredTest() {
+        ResultCache.Recorder recorder = mCache.createRecorder(mKey, new CollectingTestListener(),
+                mTests);
+        recorder.testRunStarted(RUN_NAME, 2);
+        recorder.testStarted(TEST1);
+        recorder.testIgnored(TEST1);
+        recorder.testEnded(TEST1, new HashMap<String, String>());
+        recorder.testStarted(TEST2);
+        recorder.testEnded(TEST2, new HashMap<String, String>());
+        recorder.testRunEnded(0, new HashMap<String, String>());
+        assertFalse(recorder.commit());
+        assertNull(mCache.load(mKey));
+    }
+
+    /**
+     * Test that a run that did not complete every known test is not cached.
+     */
+    public void testCommit_incompleteRun() {
+        ResultCache.Recorder recorder = mCache.createRecorder(mKey, new CollectingTestListener(),
+                mTests);
+        recorder.testRunStarted(RUN_NAME, 2);
+        recorder.testStarted(TEST1);
+        recorder.testEnded(TEST1, new HashMap<String, String>());
+        recorder.testRunFailed("device went offline");
+        recorder.testRunEnded(0, new HashMap<String, String>());
+        assertFalse(recorder.commit());
+        assertNull(mCache.load(mKey));
+    }
+
+    /**
+     * Test that a corrupt cache entry is ignored and removed.
+     */
+    public void testLoad_corrupt() throws IOException {
+        File entry = new File(mCacheDir, mKey + ".results");
+        try (FileWriter writer = new FileWriter(entry)) {
+            writer.write("not a cache entry\n");
+        }
+        assertNull(mCache.load(mKey));
+        assertFalse(entry.exists());
+    }
+
+    /**
+     * Test that the key depends on the inputs of the run, but not on the order of tests and
+     * filters.
+     */
+    public void testCreateKey() {
+        List<String> filters = new ArrayList<>(Arrays.asList("include:Large", "exclude:Flaky"));
+        String key = ResultCache.createKey(CTS_BUILD_ID, FINGERPRINT, ABI, PACKAGE_ID, DIGEST,
+                mTests, filters);
+        Collections.reverse(filters);
+        assertEquals(key, ResultCache.createKey(CTS_BUILD_ID, FINGERPRINT, ABI, PACKAGE_ID,
+                DIGEST, Arrays.asList(TEST2, TEST1), filters));
+        assertFalse(key.equals(mKey));
+        assertFalse(mKey.equals(ResultCache.createKey(CTS_BUILD_ID, FINGERPRINT, ABI, PACKAGE_ID,
+                "digest2", mTests, Collections.<String>emptyList())));
+        assertFalse(mKey.equals(ResultCache.createKey(CTS_BUILD_ID, FINGERPRINT + "2", ABI,
+                PACKAGE_ID, DIGEST, mTests, Collections.<String>emptyList())));
+        assertFalse(mKey.equals(ResultCache.createKey(CTS_BUILD_ID, FINGERPRINT, ABI, PACKAGE_ID,
+                DIGEST, Arrays.asList(TEST1), Collections.<String>emptyList())));
+        assertFalse(mKey.equals(ResultCache.createKey(CTS_BUILD_ID + "2", FINGERPRINT, ABI,
+                PACKAGE_ID, DIGEST, mTests, Collections.<String>emptyList())));
+    }
+
+    private void runTests(ResultCache.Recorder recorder, TestIdentifier failedTest,
+            Map<String, String> metrics) {
+        recorder.testRunStarted(RUN_NAME, mTests.size());
+        for (TestIdentifier test : mTests) {
+            recorder.testStarted(test);
+            if (test.equals(failedTest)) {
+                recorder.testFailed(test, "trace");
+            }
+            recorder.testEnded(test, metrics);
+        }
+        recorder.testRunEnded(0, new HashMap<String, String>());
+    }
+}
@@ -15,8 +15,12 @@
  */
 package com.android.cts.tradefed.testtype;
 
+import com.android.cts.tradefed.UnitTests;
+import com.android.tradefed.util.FileUtil;
+
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 
 import junit.framework.TestCase;
@@ -26,6 +30,20 @@ import junit.framework.TestCase;
  */
 public class TestPackageDefTest extends TestCase {
 
+    private File mTestCaseDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCaseDir = FileUtil.createTempDir("testcases");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCaseDir);
+        super.tearDown();
+    }
+
     /**
      * Regression test for {@link TestPackageDef#generateDigest(File, String)} that ensures expected
      * digest is generated for fixed data.
@@ -43,4 +61,77 @@ public class TestPackageDefTest extends TestCase {
 
     }
 
+    /**
+     * Test that the artifacts digest of an instrumentation package changes with its apk and the
+     * apk it instruments.
+     */
+    public void testGetArtifactsDigest_instrumentation() throws IOException {
+        writeFile("CtsFooTestCases.apk", "foo");
+        writeFile("CtsFooApp.apk", "app");
+        String digest = getInstrumentationDigest();
+        assertNotNull(digest);
+        assertEquals(digest, getInstrumentationDigest());
+
+        writeFile("CtsFooApp.apk", "changed app");
+        String appChanged = getInstrumentationDigest();
+        assertFalse(digest.equals(appChanged));
+        writeFile("CtsFooTestCases.apk", "changed foo");
+        assertFalse(appChanged.equals(getInstrumentationDigest()));
+    }
+
+    /**
+     * Test that a package without a digest of its artifacts, because one is missing or the test
+     * wasn't created, has no artifacts digest.
+     */
+    public void testGetArtifactsDigest_missing() throws IOException {
+        writeFile("CtsFooTestCases.apk", "foo");
+        TestPackageDef def = createInstrumentationPackage();
+        assertNull(def.getArtifactsDigest());
+        def.createTest(mTestCaseDir);
+        // the instrumented apk is missing
+        assertNull(def.getArtifactsDigest());
+    }
+
+    /**
+     * Test that the artifacts digest of a host test covers the apks it may install.
+     */
+    public void testGetArtifactsDigest_hostTest() throws IOException {
+        writeFile("CtsFooHostTestCases.jar", "jar");
+        writeFile("CtsFooDeviceApp.apk", "app");
+        String digest = createHostPackage().getArtifactsDigest();
+        assertNotNull(digest);
+        writeFile("CtsFooDeviceApp.apk", "changed app");
+        assertFalse(digest.equals(createHostPackage().getArtifactsDigest()));
+    }
+
+    private String getInstrumentationDigest() {
+        TestPackageDef def = createInstrumentationPackage();
+        def.createTest(mTestCaseDir);
+        return def.getArtifactsDigest();
+    }
+
+    private TestPackageDef createInstrumentationPackage() {
+        TestPackageDef def = new TestPackageDef();
+        def.setAppPackageName("android.foo");
+        def.setAppNameSpace("android.foo.cts");
+        def.setName("CtsFooTestCases");
+        def.setTargetBinaryName("CtsFooApp");
+        def.setAbi(UnitTests.ABI);
+        return def;
+    }
+
+    private TestPackageDef createHostPackage() {
+        TestPackageDef def = new TestPackageDef();
+        def.setAppPackageName("android.foo.host");
+        def.setName("CtsFooHostTestCases");
+        def.setTestType(TestPackageDef.HOST_SIDE_ONLY_TEST);
+        def.setJarPath("CtsFooHostTestCases.jar");
+        def.setAbi(UnitTests.ABI);
+        def.createTest(mTestCaseDir);
+        return def;
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        FileUtil.writeToFile(content, new File(mTestCaseDir, name));
+    }
 }
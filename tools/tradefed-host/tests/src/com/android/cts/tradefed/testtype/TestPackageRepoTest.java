@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.UnitTests;
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link TestPackageRepo}.
+ */
+public class TestPackageRepoTest extends TestCase {
+
+    private static final String APP_PACKAGE_NAME = "android.example";
+    private static final String PACKAGE_XML =
+        "<TestPackage appNameSpace=\"com.example\" appPackageName=\"" + APP_PACKAGE_NAME + "\" " +
+        "name=\"CtsExampleTestCases\" runner=\"android.test.InstrumentationTestRunner\">\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestCase name=\"ExampleTest\" >\n" +
+        "            <Test name=\"testFoo\" />\n" +
+        "            <Test name=\"testBar\" />\n" +
+        "        </TestCase>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+    private static final String PREPARER_CONFIG =
+        "<configuration description=\"Example preparers\">\n" +
+        "</configuration>";
+    private static final TestIdentifier TEST_FOO = new TestIdentifier("com.ExampleTest", "testFoo");
+
+    private File mTestCaseDir;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCaseDir = FileUtil.createTempDir("testcases");
+        write("CtsExampleTestCases.xml", PACKAGE_XML);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCaseDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a module test config that doesn't parse is reported when the repo is loaded.
+     */
+    public void testLoad_invalidPreparerConfig() throws IOException {
+        write("CtsExampleTestCases.config", "<configuration>");
+        try {
+            new TestPackageRepo(mTestCaseDir, true);
+            fail("RuntimeException not thrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("CtsExampleTestCases.xml"));
+        }
+        try {
+            TestPackageRepo.getShared(mTestCaseDir, true);
+            fail("RuntimeException not thrown");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that the repos of the same files share the parsed tests, but not the packages.
+     */
+    public void testGetShared() {
+        TestPackageRepo repo1 = TestPackageRepo.getShared(mTestCaseDir, true);
+        TestPackageRepo repo2 = TestPackageRepo.getShared(mTestCaseDir, true);
+        assertNotSame(repo1, repo2);
+        TestPackageDef def1 = getPackage(repo1);
+        TestPackageDef def2 = getPackage(repo2);
+        assertNotSame(def1, def2);
+        assertEquals(2, def1.getTests().size());
+        assertSame(def1.getTests(), def2.getTests());
+    }
+
+    /**
+     * Test that a repo is parsed again once its files change.
+     */
+    public void testGetShared_changed() throws IOException {
+        TestPackageDef def1 = getPackage(TestPackageRepo.getShared(mTestCaseDir, true));
+        write("CtsExampleTestCases.xml", PACKAGE_XML.replace(
+                "            <Test name=\"testBar\" />\n", ""));
+        TestPackageDef def2 = getPackage(TestPackageRepo.getShared(mTestCaseDir, true));
+        assertEquals(2, def1.getTests().size());
+        assertEquals(1, def2.getTests().size());
+    }
+
+    /**
+     * Test that filtering the tests of a copy leaves the other copies, and the shared repo,
+     * alone.
+     */
+    public void testCopy_filters() {
+        TestPackageDef def = getPackage(TestPackageRepo.getShared(mTestCaseDir, true));
+        TestPackageDef classCopy = def.copy();
+        classCopy.setClassName(TEST_FOO.getClassName(), TEST_FOO.getTestName());
+        classCopy.createTest(mTestCaseDir);
+        TestPackageDef filterCopy = def.copy();
+        TestFilter filter = new TestFilter();
+        filter.addExcludedTest(TEST_FOO);
+        filterCopy.setTestFilter(filter);
+        filterCopy.createTest(mTestCaseDir);
+
+        assertEquals(def.getId(), classCopy.getId());
+        assertEquals(1, classCopy.getTests().size());
+        assertTrue(classCopy.getTests().contains(TEST_FOO));
+        assertEquals(1, filterCopy.getTests().size());
+        assertFalse(filterCopy.getTests().contains(TEST_FOO));
+        assertEquals(2, def.getTests().size());
+        assertEquals(2, getPackage(TestPackageRepo.getShared(mTestCaseDir, true))
+                .getTests().size());
+    }
+
+    /**
+     * Test that each copy of a package with a module test config gets its own preparers.
+     */
+    public void testCopy_preparers() throws IOException {
+        write("CtsExampleTestCases.config", PREPARER_CONFIG);
+        TestPackageDef def = getPackage(new TestPackageRepo(mTestCaseDir, true));
+        TestPackageDef copy = def.copy();
+        assertNotNull(def.getPackagePreparers());
+        assertNotNull(copy.getPackagePreparers());
+        assertSame(def.getPackagePreparers(), def.getPackagePreparers());
+        assertNotSame(def.getPackagePreparers(), copy.getPackagePreparers());
+    }
+
+    private TestPackageDef getPackage(TestPackageRepo repo) {
+        String id = AbiUtils.createId(UnitTests.ABI.getName(), APP_PACKAGE_NAME);
+        TestPackageDef def = (TestPackageDef) repo.getTestPackage(id);
+        assertNotNull(def);
+        return def;
+    }
+
+    private void write(String fileName, String content) throws IOException {
+        File file = new File(mTestCaseDir, fileName);
+        // the shared repos are keyed by the sizes and modification times of the files
+        long lastModified = file.exists() ? file.lastModified() : 0;
+        FileUtil.writeToFile(content, file);
+        if (file.lastModified() == lastModified) {
+            file.setLastModified(lastModified + 1000);
+        }
+    }
+}
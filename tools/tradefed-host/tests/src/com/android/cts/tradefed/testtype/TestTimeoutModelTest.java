@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.result.TestRuntimeHistory;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestTimeoutModel}.
+ */
+public class TestTimeoutModelTest extends TestCase {
+
+    private static final String ABI = "armeabi-v7a";
+    private static final String PACKAGE_ID = "armeabi-v7a android.foo";
+    private static final TestIdentifier TEST1 = new TestIdentifier("com.FooTest", "testFoo");
+    private static final TestIdentifier TEST2 = new TestIdentifier("com.FooTest", "testFoo2");
+    private static final long START = 1000000000000L;
+    private static final long STATIC_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private File mResultsDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResultsDir = FileUtil.createTempDir("results");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mResultsDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test the nearest-rank percentile.
+     */
+    public void testGetPercentile() {
+        assertEquals(5, TestTimeoutModel.getPercentile(new long[] {5}, 0.95));
+        assertEquals(9, TestTimeoutModel.getPercentile(new long[] {9, 1, 5, 3}, 0.95));
+        assertEquals(3, TestTimeoutModel.getPercentile(new long[] {9, 1, 5, 3}, 0.5));
+    }
+
+    /**
+     * Test that the timeout is a multiple of the run time, within the floor and static timeout,
+     * and that tests without history keep their static timeout.
+     */
+    public void testGetTimeouts() throws IOException {
+        // the run times are 21s and 31s, including one second for the resolution of the times
+        writeSession("2016.01.01_10.00.00", 20);
+        writeSession("2016.01.02_10.00.00", 30);
+        TestTimeoutModel model = createModel(10, 2.0, 1000);
+        assertEquals(62 * 1000, model.getTimeout(PACKAGE_ID, TEST1, STATIC_TIMEOUT_MS));
+        assertEquals(STATIC_TIMEOUT_MS, model.getTimeout(PACKAGE_ID, TEST2, STATIC_TIMEOUT_MS));
+        assertEquals(40 * 1000, model.getTimeout(PACKAGE_ID, TEST1, 40 * 1000));
+        assertEquals(90 * 1000, createModel(10, 2.0, 90 * 1000).getTimeout(PACKAGE_ID, TEST1,
+                STATIC_TIMEOUT_MS));
+
+        List<TestIdentifier> tests = Arrays.asList(TEST1, TEST2);
+        Map<TestIdentifier, Long> timeouts = model.getTimeouts(PACKAGE_ID, tests,
+                STATIC_TIMEOUT_MS);
+        assertEquals(Collections.singletonMap(TEST1, 62L * 1000), timeouts);
+        assertEquals(STATIC_TIMEOUT_MS, model.getMaxTimeout(PACKAGE_ID, tests,
+                STATIC_TIMEOUT_MS));
+        assertEquals(62 * 1000, model.getMaxTimeout(PACKAGE_ID, Arrays.asList(TEST1),
+                STATIC_TIMEOUT_MS));
+    }
+
+    /**
+     * Test that only the most recent sessions are read.
+     */
+    public void testGetTimeouts_recentSessions() throws IOException {
+        writeSession("2016.01.01_10.00.00", 100);
+        writeSession("2016.01.02_10.00.00", 9);
+        TestTimeoutModel model = createModel(1, 2.0, 1000);
+        assertEquals(20 * 1000, model.getTimeout(PACKAGE_ID, TEST1, STATIC_TIMEOUT_MS));
+    }
+
+    private TestTimeoutModel createModel(int sessions, double factor, long minTimeoutMs) {
+        TestRuntimeHistory history = TestRuntimeHistory.load(mResultsDir, sessions,
+                Arrays.asList(PACKAGE_ID));
+        return new TestTimeoutModel(history, factor, minTimeoutMs);
+    }
+
+    private void writeSession(String name, int runTimeSeconds) throws IOException {
+        File sessionDir = new File(mResultsDir, name);
+        sessionDir.mkdirs();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy");
+        try (Writer writer = new FileWriter(new File(sessionDir, "testResult.xml"))) {
+            writer.write("<TestResult>" +
+                    "<TestPackage appPackageName=\"android.foo\" abi=\"" + ABI + "\">" +
+                    "<TestSuite name=\"com\">" +
+                    "<TestCase name=\"FooTest\">" +
+                    "<Test name=\"testFoo\" result=\"pass\"" +
+                    " starttime=\"" + dateFormat.format(new Date(START)) + "\"" +
+                    " endtime=\"" + dateFormat.format(new Date(START + runTimeSeconds * 1000))
+                    + "\"/>" +
+                    "</TestCase>" +
+                    "</TestSuite>" +
+                    "</TestPackage>" +
+                    "</TestResult>");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link BugreportQueue}.
+ */
+public class BugreportQueueTest extends TestCase {
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private ITestDevice mMockDevice;
+    private IDevice mMockIDevice;
+    /** Released to let the bugreport being taken finish. */
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final List<String> mThreads = new ArrayList<>();
+    /** The logs forwarded to the listener, by data name. */
+    private final Map<String, String> mLogs = new LinkedHashMap<>();
+    private ITestInvocationListener mListener;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockIDevice = EasyMock.createMock(IDevice.class);
+        mMockIDevice.executeShellCommand(EasyMock.eq("bugreport"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Exception {
+                synchronized (mThreads) {
+                    mThreads.add(Thread.currentThread().getName());
+                }
+                assertTrue(mRelease.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] output = "== dumpstate ==".getBytes();
+                receiver.addOutput(output, 0, output.length);
+                receiver.flush();
+                return null;
+            }
+        });
+        // only the serial number and the IDevice may be used, getBugreport() must not
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockDevice.getIDevice()).andStubReturn(mMockIDevice);
+        EasyMock.replay(mMockDevice, mMockIDevice);
+
+        mListener = EasyMock.createMock(ITestInvocationListener.class);
+        mListener.testLog(EasyMock.<String>anyObject(), EasyMock.eq(LogDataType.TEXT),
+                EasyMock.<InputStreamSource>anyObject());
+        EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Exception {
+                InputStreamSource source = (InputStreamSource) EasyMock.getCurrentArguments()[2];
+                mLogs.put((String) EasyMock.getCurrentArguments()[0], read(source));
+                return null;
+            }
+        });
+        EasyMock.replay(mListener);
+    }
+
+    /**
+     * Test that a bugreport is taken with the IDevice in the background, and forwarded once
+     * done.
+     */
+    public void testRequest() throws Exception {
+        BugreportQueue queue = new BugreportQueue(mMockDevice, 0);
+        try {
+            assertTrue(queue.request("bug-1"));
+            queue.forwardCompleted(mListener);
+            assertTrue(mLogs.isEmpty());
+
+            mRelease.countDown();
+            queue.drain(mListener, TIMEOUT_MS);
+            assertEquals(1, mLogs.size());
+            assertEquals("== dumpstate ==", mLogs.get("bug-1"));
+            assertEquals(1, mThreads.size());
+            assertFalse(Thread.currentThread().getName().equals(mThreads.get(0)));
+        } finally {
+            queue.shutdown();
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that requests made while a bugreport is taken are dropped, and listed next to the
+     * bugreport that covers them.
+     */
+    public void testRequest_dropped() throws Exception {
+        BugreportQueue queue = new BugreportQueue(mMockDevice, 0);
+        try {
+            assertTrue(queue.request("bug-1"));
+            assertFalse(queue.request("bug-2"));
+            assertFalse(queue.request("bug-3"));
+            mRelease.countDown();
+            queue.drain(mListener, TIMEOUT_MS);
+        } finally {
+            queue.shutdown();
+        }
+        assertEquals(2, mLogs.size());
+        assertEquals("bug-2: see bug-1\nbug-3: see bug-1\n",
+                mLogs.get(BugreportQueue.DROPPED_DATA_NAME));
+    }
+
+    /**
+     * Test that requests within the minimum interval of the last one are dropped, even once it's
+     * done.
+     */
+    public void testRequest_minInterval() throws Exception {
+        mRelease.countDown();
+        BugreportQueue queue = new BugreportQueue(mMockDevice, 60 * 1000);
+        try {
+            assertTrue(queue.request("bug-1"));
+            queue.drain(mListener, TIMEOUT_MS);
+            assertFalse(queue.request("bug-2"));
+            queue.drain(mListener, TIMEOUT_MS);
+            // the dropped requests are only reported once
+            mLogs.clear();
+            queue.drain(mListener, TIMEOUT_MS);
+            assertTrue(mLogs.isEmpty());
+        } finally {
+            queue.shutdown();
+        }
+        assertEquals(1, mThreads.size());
+    }
+
+    /**
+     * Test that a bugreport that fails is skipped.
+     */
+    public void testRequest_failed() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        device.executeShellCommand(EasyMock.eq("bugreport"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andThrow(new IOException("device offline"));
+        ITestDevice testDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(testDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(testDevice.getIDevice()).andStubReturn(device);
+        EasyMock.replay(testDevice, device);
+        BugreportQueue queue = new BugreportQueue(testDevice, 0);
+        try {
+            assertTrue(queue.request("bug-1"));
+            queue.drain(mListener, TIMEOUT_MS);
+        } finally {
+            queue.shutdown();
+        }
+        assertTrue(mLogs.isEmpty());
+    }
+
+    /**
+     * Test that a bugreport that takes too long is skipped.
+     */
+    public void testDrain_timeout() throws Exception {
+        BugreportQueue queue = new BugreportQueue(mMockDevice, 0);
+        try {
+            assertTrue(queue.request("bug-1"));
+            queue.drain(mListener, 10);
+            assertTrue(mLogs.isEmpty());
+        } finally {
+            mRelease.countDown();
+            queue.shutdown();
+        }
+    }
+
+    private static String read(InputStreamSource source) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = source.createInputStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import static com.android.cts.tradefed.util.CheckinSchema.DOUBLE;
+import static com.android.cts.tradefed.util.CheckinSchema.INTEGER;
+import static com.android.cts.tradefed.util.CheckinSchema.STRING;
+import static com.android.cts.tradefed.util.CheckinSchema.composite;
+import static com.android.cts.tradefed.util.CheckinSchema.integerOr;
+import static com.android.cts.tradefed.util.CheckinSchema.oneOf;
+
+import com.android.cts.tradefed.util.CheckinSchema.Section;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CheckinParser} and {@link CheckinSchema}.
+ */
+public class CheckinParserTest extends TestCase {
+
+    private static final CheckinSchema BATTERY_SCHEMA =
+            new CheckinSchema(INTEGER, INTEGER, oneOf("i", "l", "c", "u"))
+            .addSection(new Section("vers").fields(INTEGER, INTEGER, STRING, STRING))
+            .addSection(new Section("bt").fields(integerOr("N/A"), INTEGER))
+            .addSection(new Section("kwl").fields(STRING).repeated(STRING)
+                    .trailing(INTEGER, INTEGER))
+            .addSection(new Section("pwi").fields(STRING, DOUBLE))
+            .addSection(new Section("m").fields(INTEGER).allowExtraFields());
+
+    private static final CheckinSchema VERSIONED_SCHEMA = new CheckinSchema()
+            .setVersionField("vers", 0)
+            .addSection(new Section("vers").fields(INTEGER))
+            .addSection(new Section("pkg").versions(Integer.MIN_VALUE, 3)
+                    .fields(STRING).repeated(composite(STRING, INTEGER)))
+            .addSection(new Section("pkg").versions(4, Integer.MAX_VALUE)
+                    .fields(STRING, INTEGER).repeated(composite(STRING, INTEGER)))
+            .addSection(new Section("total").repeated(composite(STRING, INTEGER))
+                    .repeatedUntil("sysmemusage"));
+
+    /**
+     * Test a valid dump delivered in small chunks, including a line split across chunks.
+     */
+    public void testValidDump() throws Exception {
+        CheckinParser parser = new CheckinParser(BATTERY_SCHEMA);
+        feed(parser, "9,0,i,vers,14,150,MMB29,MMB29\r\n"
+                + "9,0,l,bt,N/A,1234\n"
+                + "9,0,l,bt,3,-5\n"
+                + "9,0,l,kwl,name,with,commas,100,2\n"
+                + "9,1000,l,pwi,scrn,12.5\n"
+                + "9,0,l,m,1,2,3,4\n"
+                + "9,0,l,unknown,x\n"
+                + "\n", 5);
+
+        assertEquals(parser.getErrors().toString(), 0, parser.getErrorCount());
+        assertEquals(7, parser.getLineCount());
+        assertEquals(2, parser.getSectionCount("bt"));
+        assertEquals(1, parser.getSectionCount("unknown"));
+        assertTrue(parser.hasSeenSection("kwl"));
+        assertFalse(parser.hasSeenSection("dc"));
+        assertTrue(parser.isFinished());
+    }
+
+    /**
+     * Test that each kind of malformed line is reported with its line number.
+     */
+    public void testInvalidDump() throws Exception {
+        CheckinParser parser = new CheckinParser(BATTERY_SCHEMA);
+        feed(parser, "9,0,x,vers,14,150,a,b\n"     // bad aggregation type
+                + "9,0,l,bt,?,1234\n"               // bad placeholder
+                + "9,0,l,bt,1,2,3\n"                // too many fields
+                + "9,0,l,kwl,100,2\n"               // too few fields
+                + "9,0,l,pwi,scrn,lots\n"           // not a double
+                + "9,0,l\n", 1024);                 // no section
+        assertEquals(6, parser.getErrorCount());
+        List<String> errors = parser.getErrors();
+        assertTrue(errors.get(0), errors.get(0).startsWith("line 1: column 2"));
+        assertTrue(errors.get(1), errors.get(1).startsWith("line 2: bt: field 0"));
+        assertTrue(errors.get(2), errors.get(2).contains("expected 2 fields but found 3"));
+        assertTrue(errors.get(3), errors.get(3).contains("expected at least 3 fields"));
+        assertTrue(errors.get(4), errors.get(4).contains("expected a double"));
+        assertTrue(errors.get(5), errors.get(5).startsWith("line 6:"));
+    }
+
+    /**
+     * Test that the layout of a section follows the version read from the dump.
+     */
+    public void testVersionedSections() throws Exception {
+        CheckinParser parser = new CheckinParser(VERSIONED_SCHEMA);
+        feed(parser, "pkg,foo,a:1,b:2\n"
+                + "vers,5\n"
+                + "pkg,foo,7,a:1\n"
+                + "pkg,foo,a:1\n"
+                + "total,a:1,b:sysmemusage,garbage\n", 1024);
+        assertEquals(5, parser.getVersion());
+        assertEquals(1, parser.getErrorCount());
+        assertTrue(parser.getErrors().get(0),
+                parser.getErrors().get(0).startsWith("line 4: pkg: field 1"));
+    }
+
+    /**
+     * Test reading values through a {@link CheckinParser.RecordListener}.
+     */
+    public void testRecordListener() throws Exception {
+        final List<String> values = new ArrayList<>();
+        CheckinParser parser = new CheckinParser(BATTERY_SCHEMA);
+        parser.setRecordListener(new CheckinParser.RecordListener() {
+            @Override
+            public void onRecord(CheckinParser.Record record) {
+                if ("pwi".equals(record.getSection())) {
+                    values.add(record.getPrefixString(1) + "=" + record.getString(0) + ":"
+                            + record.getDouble(1));
+                } else if ("bt".equals(record.getSection())) {
+                    values.add("bt=" + record.getLong(1));
+                }
+            }
+        });
+        parser.parse(new ByteArrayInputStream(("9,0,l,bt,N/A,-42\n"
+                + "9,0,l,bt,N/A,bad\n"
+                + "9,1000,l,pwi,scrn,1.5").getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, values.size());
+        assertEquals("bt=-42", values.get(0));
+        assertEquals("1000=scrn:1.5", values.get(1));
+    }
+
+    /**
+     * Test that integers are accepted exactly when {@link Long#parseLong} accepts them.
+     */
+    public void testIntegerRange() throws Exception {
+        String[] values = { "0", "+7", "-7", "", "-", "1x",
+                "9223372036854775807", "9223372036854775808", "+9223372036854775807",
+                "-9223372036854775808", "-9223372036854775809", "9999999999999999999",
+                "1000000000000000000", "10000000000000000000", "0000000000000000001" };
+        for (String value : values) {
+            boolean parses = true;
+            try {
+                Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                parses = false;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            assertEquals(value, parses, CheckinSchema.isInteger(bytes, 0, bytes.length));
+        }
+    }
+
+    private static void feed(CheckinParser parser, String dump, int chunkSize) {
+        byte[] bytes = dump.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            parser.addOutput(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+        }
+        parser.flush();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DeviceReleaseRegistry}.
+ */
+public class DeviceReleaseRegistryTest extends TestCase {
+
+    private ITestDevice mMockDevice;
+    private ITestDevice mOtherDevice;
+    /** The releasers called, in order. */
+    private final List<String> mReleased = new ArrayList<>();
+
+    /** A releaser that records its calls, and then throws its failure if it has one. */
+    private class RecordingReleaser implements IDeviceReleaser {
+        private final String mName;
+        private final Exception mFailure;
+
+        RecordingReleaser(String name, Exception failure) {
+            mName = name;
+            mFailure = failure;
+        }
+
+        @Override
+        public void releaseDevice(ITestDevice device) throws DeviceNotAvailableException {
+            mReleased.add(mName + ":" + device.getSerialNumber());
+            if (mFailure instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) mFailure;
+            } else if (mFailure != null) {
+                throw (RuntimeException) mFailure;
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = createDevice("serial");
+        mOtherDevice = createDevice("other");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DeviceReleaseRegistry.releaseDevice(mMockDevice);
+        DeviceReleaseRegistry.releaseDevice(mOtherDevice);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the releasers of a device are called once, in the order they were registered,
+     * and then forgotten.
+     */
+    public void testReleaseDevice() throws Exception {
+        IDeviceReleaser first = new RecordingReleaser("first", null);
+        DeviceReleaseRegistry.register(mMockDevice, first);
+        DeviceReleaseRegistry.register(mMockDevice, new RecordingReleaser("second", null));
+        DeviceReleaseRegistry.register(mMockDevice, first);
+        DeviceReleaseRegistry.register(mOtherDevice, new RecordingReleaser("other", null));
+
+        DeviceReleaseRegistry.releaseDevice(mMockDevice);
+        assertEquals(Arrays.asList("first:serial", "second:serial"), mReleased);
+
+        mReleased.clear();
+        DeviceReleaseRegistry.releaseDevice(mMockDevice);
+        assertTrue(mReleased.isEmpty());
+        DeviceReleaseRegistry.releaseDevice(mOtherDevice);
+        assertEquals(Arrays.asList("other:other"), mReleased);
+    }
+
+    /**
+     * Test that a releaser that fails doesn't keep the others from being called, and that a lost
+     * device is reported once they all were.
+     */
+    public void testReleaseDevice_failure() throws Exception {
+        DeviceNotAvailableException notAvailable = new DeviceNotAvailableException("lost");
+        DeviceReleaseRegistry.register(mMockDevice,
+                new RecordingReleaser("failed", new IllegalStateException()));
+        DeviceReleaseRegistry.register(mMockDevice,
+                new RecordingReleaser("lost", notAvailable));
+        DeviceReleaseRegistry.register(mMockDevice, new RecordingReleaser("last", null));
+        try {
+            DeviceReleaseRegistry.releaseDevice(mMockDevice);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            assertSame(notAvailable, e);
+        }
+        assertEquals(Arrays.asList("failed:serial", "lost:serial", "last:serial"), mReleased);
+    }
+
+    /**
+     * Test that the packages a {@link PackageStateTracker} installed are released with the device.
+     */
+    public void testReleaseDevice_packageStateTracker() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("tracked");
+        EasyMock.replay(device);
+        PackageStateTracker tracker = PackageStateTracker.getInstance(device);
+        DeviceReleaseRegistry.releaseDevice(device);
+        assertNotSame(tracker, PackageStateTracker.getInstance(device));
+        DeviceReleaseRegistry.releaseDevice(device);
+        EasyMock.verify(device);
+    }
+
+    private static ITestDevice createDevice(String serial) {
+        ITestDevice device = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(serial);
+        EasyMock.replay(device);
+        return device;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the throughput of {@link FtraceParser} with the regex parser AtraceHostTest used
+ * before, on a generated trace. Not a unit test: run it with
+ * <pre>
+ * java -cp cts-tradefed-tests.jar:cts-tradefed.jar \
+ *     com.android.cts.tradefed.util.FtraceParserBenchmark [lines] [rounds]
+ * </pre>
+ * Each parser reads the whole trace once per round, and the fastest round is reported.
+ */
+public class FtraceParserBenchmark {
+
+    private static final String[] THREADS = {
+        "<idle>", "RenderThread", "surfaceflinger", "kworker/0:1", "Binder:1234_2", "HwBinder-x"
+    };
+    private static final String[] EVENTS = {
+        "sched_switch", "sched_wakeup", "tracing_mark_write", "cpu_frequency", "cpu_idle"
+    };
+
+    /**
+     * The parser AtraceHostTest used before {@link FtraceParser}, for reference: it tries up to
+     * three regexes on each line read by a BufferedReader.
+     */
+    static class RegexParser {
+        private static final Pattern sLineWithTgid = Pattern.compile(
+                "^\\s*(.+)-(\\d+)\\s+\\(\\s*(\\d+|-+)\\)\\s\\[(\\d+)\\]"
+                + "\\s+[dX.][N.][Hhs.][0-9a-f.]"
+                + "\\s+(\\d+\\.\\d+):\\s+(\\S+):\\s(.*)");
+        private static final Pattern sLineWithIrqInfo = Pattern.compile(
+                "^\\s*(.+)-(\\d+)\\s+\\[(\\d+)\\]"
+                + "\\s+[dX.][N.][Hhs.][0-9a-f.]"
+                + "\\s+(\\d+\\.\\d+):\\s+(\\S+):\\s(.*)$");
+        private static final Pattern sLineLegacy = Pattern.compile(
+                "^\\s*(.+)-(\\d+)\\s+\\[(\\d+)\\]\\s*(\\d+\\.\\d+):\\s+(\\S+):\\s(.*)");
+
+        int mRecords;
+        long mChecksum;
+
+        void parse(Reader reader, String eventFilter) throws IOException {
+            BufferedReader bufferedReader = new BufferedReader(reader);
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                parseLine(line, eventFilter);
+            }
+        }
+
+        private void parseLine(String line, String eventFilter) {
+            Matcher m = sLineWithTgid.matcher(line);
+            if (m.matches()) {
+                onEntry(Integer.parseInt(m.group(2)), m.group(6), m.group(7), eventFilter);
+                return;
+            }
+            m = sLineWithIrqInfo.matcher(line);
+            if (m.matches()) {
+                onEntry(Integer.parseInt(m.group(2)), m.group(5), m.group(6), eventFilter);
+                return;
+            }
+            m = sLineLegacy.matcher(line);
+            if (m.matches()) {
+                onEntry(Integer.parseInt(m.group(2)), m.group(5), m.group(6), eventFilter);
+            }
+        }
+
+        private void onEntry(int tid, String event, String payload, String eventFilter) {
+            if (eventFilter == null || eventFilter.equals(event)) {
+                mRecords++;
+                mChecksum += tid + payload.length();
+            }
+        }
+    }
+
+    /** Counts the records {@link FtraceParser} reports, reading the same fields. */
+    static class CountingCallback implements FtraceParser.Callback {
+        int mRecords;
+        long mChecksum;
+
+        @Override
+        public void onTraceEntry(FtraceParser.Entry entry) {
+            mRecords++;
+            mChecksum += entry.getTid() + entry.getPayloadLength();
+        }
+
+        @Override
+        public void onFinished() {
+        }
+    }
+
+    /**
+     * @return a trace of the given number of records, in the three formats the parsers support
+     */
+    static String generateTrace(int lines) {
+        Random random = new Random(0);
+        StringBuilder trace = new StringBuilder(lines * 100);
+        trace.append("# tracer: nop\n#\n");
+        long timestampUs = 1000000;
+        for (int i = 0; i < lines; i++) {
+            String thread = THREADS[random.nextInt(THREADS.length)];
+            int tid = random.nextInt(32768);
+            int cpu = random.nextInt(8);
+            String event = EVENTS[random.nextInt(EVENTS.length)];
+            timestampUs += random.nextInt(100);
+            String timestamp = String.format("%d.%06d", timestampUs / 1000000,
+                    timestampUs % 1000000);
+            switch (i % 3) {
+                case 0:
+                    trace.append(String.format("%16s-%-5d (%5d) [%03d] d..3 %s: %s: ",
+                            thread, tid, tid / 2, cpu, timestamp, event));
+                    break;
+                case 1:
+                    trace.append(String.format("%16s-%-5d [%03d] ...1 %s: %s: ",
+                            thread, tid, cpu, timestamp, event));
+                    break;
+                default:
+                    trace.append(String.format("%16s-%-5d [%03d] %s: %s: ",
+                            thread, tid, cpu, timestamp, event));
+                    break;
+            }
+            trace.append("prev_comm=").append(thread).append(" prev_pid=").append(tid)
+                    .append(" prev_prio=120 prev_state=S ==> next_comm=swapper next_pid=0\n");
+        }
+        return trace.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String trace = generateTrace(lines);
+        System.out.printf("%d records, %.1f MB%n", lines, trace.length() / 1e6);
+        for (String filter : new String[] {null, "tracing_mark_write"}) {
+            long regexNs = Long.MAX_VALUE;
+            long tokenizerNs = Long.MAX_VALUE;
+            RegexParser regex = null;
+            CountingCallback callback = null;
+            for (int round = 0; round < rounds; round++) {
+                regex = new RegexParser();
+                long start = System.nanoTime();
+                regex.parse(new StringReader(trace), filter);
+                regexNs = Math.min(regexNs, System.nanoTime() - start);
+
+                FtraceParser parser = new FtraceParser();
+                if (filter != null) {
+                    parser.setEventFilter(filter);
+                }
+                callback = new CountingCallback();
+                start = System.nanoTime();
+                parser.parse(new StringReader(trace), callback);
+                tokenizerNs = Math.min(tokenizerNs, System.nanoTime() - start);
+            }
+            if (regex.mRecords != callback.mRecords || regex.mChecksum != callback.mChecksum) {
+                throw new IllegalStateException(String.format(
+                        "parsers disagree: %d records (%d) vs %d records (%d)", regex.mRecords,
+                        regex.mChecksum, callback.mRecords, callback.mChecksum));
+            }
+            System.out.printf("%s: regex %d ms, tokenizer %d ms, %.1fx (%d records)%n",
+                    filter == null ? "all events" : "filtered on " + filter,
+                    regexNs / 1000000, tokenizerNs / 1000000, (double) regexNs / tokenizerNs,
+                    callback.mRecords);
+        }
+    }
+}
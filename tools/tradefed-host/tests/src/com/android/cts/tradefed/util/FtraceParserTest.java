@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Unit tests for {@link FtraceParser} and {@link FtraceEventTable}.
+ */
+public class FtraceParserTest extends TestCase {
+
+    private static final String TGID_LINE =
+            "  RenderThread-2917  ( 2893) [002] ...1   176.253386: tracing_mark_write: B|2893|draw";
+    private static final String IRQ_INFO_LINE =
+            "          <idle>-0     [001] d..3  1.230000: sched_switch: prev_comm=swapper/1";
+    private static final String LEGACY_LINE =
+            "   surfaceflinger-123   [000]  45.000001: tracing_mark_write: E";
+    private static final String NO_TGID_LINE =
+            "     kworker/0:1-42    (-----) [000] .... 2.5: workqueue_execute_start: work";
+
+    /**
+     * Test parsing a record in each of the supported formats.
+     */
+    public void testParseFormats() throws Exception {
+        FtraceParser parser = new FtraceParser();
+        FtraceEventTable table = new FtraceEventTable();
+        parser.parse("# tracer: nop\n#\n" + TGID_LINE + "\n" + IRQ_INFO_LINE + "\r\n"
+                + LEGACY_LINE + "\n" + NO_TGID_LINE, table);
+
+        assertEquals(4, table.size());
+        assertEquals(0, parser.getIgnoredLineCount());
+
+        assertEquals("RenderThread", table.getThreadName(0));
+        assertEquals(2917, table.getTid(0));
+        assertEquals(2893, table.getPid(0));
+        assertEquals(2, table.getCpu(0));
+        assertEquals(176253386000L, table.getTimestampNs(0));
+        assertEquals("tracing_mark_write", parser.getEventName(table.getEventId(0)));
+        assertEquals("B|2893|draw", table.getPayload(0));
+
+        assertEquals("<idle>", table.getThreadName(1));
+        assertEquals(0, table.getTid(1));
+        assertEquals(FtraceParser.UNKNOWN_PID, table.getPid(1));
+        assertEquals(1, table.getCpu(1));
+        assertEquals(1230000000L, table.getTimestampNs(1));
+        assertEquals("sched_switch", parser.getEventName(table.getEventId(1)));
+        assertEquals("prev_comm=swapper/1", table.getPayload(1));
+
+        assertEquals("surfaceflinger", table.getThreadName(2));
+        assertEquals(123, table.getTid(2));
+        assertEquals(45000001000L, table.getTimestampNs(2));
+        assertEquals(table.getEventId(0), table.getEventId(2));
+        assertEquals("E", table.getPayload(2));
+
+        assertEquals("kworker/0:1", table.getThreadName(3));
+        assertEquals(42, table.getTid(3));
+        assertEquals(FtraceParser.UNKNOWN_PID, table.getPid(3));
+        assertEquals(2500000000L, table.getTimestampNs(3));
+    }
+
+    /**
+     * Test that thread names containing '-' are kept whole.
+     */
+    public void testParseThreadNameWithDash() throws Exception {
+        FtraceParser parser = new FtraceParser();
+        FtraceEventTable table = new FtraceEventTable();
+        parser.parse("  Binder-Thread-12-345  (  300) [003] d..2  9.1: sched_wakeup: x", table);
+        assertEquals(1, table.size());
+        assertEquals("Binder-Thread-12", table.getThreadName(0));
+        assertEquals(345, table.getTid(0));
+        assertEquals(300, table.getPid(0));
+    }
+
+    /**
+     * Test that malformed lines are counted and skipped.
+     */
+    public void testParseMalformed() throws Exception {
+        FtraceParser parser = new FtraceParser();
+        FtraceEventTable table = new FtraceEventTable();
+        parser.parse("capturing trace... done\nTRACE:\n\n" + LEGACY_LINE + "\n"
+                + "  foo-12 [001] 1.5 no colon here\n", table);
+        assertEquals(1, table.size());
+        assertEquals(3, parser.getIgnoredLineCount());
+    }
+
+    /**
+     * Test that the event filter drops records before they reach the callback, and that
+     * rejected event names are not interned.
+     */
+    public void testEventFilter() throws Exception {
+        FtraceParser parser = new FtraceParser();
+        parser.setEventFilter("tracing_mark_write");
+        FtraceEventTable table = new FtraceEventTable(false);
+        parser.parse(TGID_LINE + "\n" + IRQ_INFO_LINE + "\n" + LEGACY_LINE + "\n", table);
+        assertEquals(2, table.size());
+        assertNull(table.getThreadName(0));
+        assertEquals("B|2893|draw", table.getPayload(0));
+        assertEquals("E", table.getPayload(1));
+        assertEquals(FtraceParser.UNKNOWN_EVENT, parser.getEventId("sched_switch"));
+    }
+
+    /**
+     * Test the allocation free payload accessors and that lines split across reads are joined.
+     */
+    public void testStreamingCallback() throws Exception {
+        final int[] matches = new int[2];
+        FtraceParser parser = new FtraceParser();
+        StringBuilder trace = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            trace.append(TGID_LINE).append('\n');
+        }
+        // a reader that returns a few characters at a time
+        Reader reader = new StringReader(trace.toString()) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws java.io.IOException {
+                return super.read(cbuf, off, Math.min(len, 7));
+            }
+        };
+        parser.parse(reader, new FtraceParser.Callback() {
+            @Override
+            public void onTraceEntry(FtraceParser.Entry entry) {
+                if (entry.payloadStartsWith("B|") && entry.payloadEndsWith("|draw")) {
+                    matches[0]++;
+                }
+            }
+
+            @Override
+            public void onFinished() {
+                matches[1]++;
+            }
+        });
+        assertEquals(5000, matches[0]);
+        assertEquals(1, matches[1]);
+    }
+
+    /**
+     * Test that the records found, and their tids and payloads, are the same as with the regex
+     * parser used before, on the trace {@link FtraceParserBenchmark} generates.
+     */
+    public void testSameRecordsAsRegexParser() throws Exception {
+        String trace = FtraceParserBenchmark.generateTrace(3000);
+        FtraceParserBenchmark.RegexParser regex = new FtraceParserBenchmark.RegexParser();
+        regex.parse(new StringReader(trace), null);
+        FtraceParserBenchmark.CountingCallback callback =
+                new FtraceParserBenchmark.CountingCallback();
+        new FtraceParser().parse(trace, callback);
+
+        assertEquals(3000, regex.mRecords);
+        assertEquals(regex.mRecords, callback.mRecords);
+        assertEquals(regex.mChecksum, callback.mChecksum);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link HostTestCache}.
+ */
+public class HostTestCacheTest extends TestCase {
+
+    private final AtomicInteger mComputations = new AtomicInteger();
+
+    @Override
+    protected void tearDown() throws Exception {
+        HostTestCache.clear();
+        super.tearDown();
+    }
+
+    /**
+     * Test that a value is computed once, and returned for each key it was computed for.
+     */
+    public void testGet() throws Exception {
+        int[] value = (int[]) HostTestCache.get("a", compute(new int[] {1}));
+        assertSame(value, HostTestCache.get("a", compute(new int[] {2})));
+        assertEquals(1, mComputations.get());
+
+        assertEquals(3, ((int[]) HostTestCache.get("b", compute(new int[] {3})))[0]);
+        assertEquals(2, mComputations.get());
+    }
+
+    /**
+     * Test that callers asking for a value while it is computed wait for it instead of computing
+     * it again.
+     */
+    public void testGet_concurrent() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> slow = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                mComputations.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "value";
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> first = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return HostTestCache.get("key", slow);
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<Object> second = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return HostTestCache.get("key", slow);
+                }
+            });
+            release.countDown();
+            assertEquals("value", first.get(10, TimeUnit.SECONDS));
+            assertEquals("value", second.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, mComputations.get());
+    }
+
+    /**
+     * Test that a failed computation is reported, and retried by the next caller.
+     */
+    public void testGet_failure() throws Exception {
+        try {
+            HostTestCache.get("key", new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    throw new IOException("broken");
+                }
+            });
+            fail("ExecutionException not thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals("value", HostTestCache.get("key", compute("value")));
+        assertEquals(1, mComputations.get());
+    }
+
+    private Callable<Object> compute(final Object value) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                mComputations.incrementAndGet();
+                return value;
+            }
+        };
+    }
+}
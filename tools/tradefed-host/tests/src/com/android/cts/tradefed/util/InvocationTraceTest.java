@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link InvocationTrace}.
+ */
+public class InvocationTraceTest extends TestCase {
+
+    private static final String TRACK = "serial1";
+    private static final String OTHER_TRACK = "serial2";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = FileUtil.createTempFile("trace", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that spans are only recorded while an invocation records.
+     */
+    public void testRecording() {
+        assertFalse(InvocationTrace.isEnabled());
+        InvocationTrace.startRecording();
+        try {
+            assertTrue(InvocationTrace.isEnabled());
+        } finally {
+            InvocationTrace.stopRecording(TRACK);
+        }
+        assertFalse(InvocationTrace.isEnabled());
+    }
+
+    /**
+     * Test that recording stays on until the last concurrent invocation stops, and that an
+     * invocation only writes its own spans.
+     */
+    public void testRecording_concurrent() throws Exception {
+        long start = InvocationTrace.startRecording();
+        InvocationTrace.startRecording();
+        try {
+            InvocationTrace.begin(TRACK, "mine").end();
+            InvocationTrace.begin(OTHER_TRACK, "theirs").end();
+            InvocationTrace.stopRecording(OTHER_TRACK);
+            assertTrue(InvocationTrace.isEnabled());
+            InvocationTrace.writeSummary(mFile, TRACK, start);
+            String summary = FileUtil.readStringFromFile(mFile);
+            assertTrue(summary, summary.contains("mine"));
+            assertFalse(summary, summary.contains("theirs"));
+        } finally {
+            InvocationTrace.stopRecording(TRACK);
+        }
+        assertFalse(InvocationTrace.isEnabled());
+    }
+
+    /**
+     * Test that the spans of an earlier invocation are forgotten.
+     */
+    public void testRecording_forgetsEarlierSpans() throws Exception {
+        InvocationTrace.startRecording();
+        InvocationTrace.begin(TRACK, "earlier").end();
+        InvocationTrace.stopRecording(TRACK);
+
+        // an invocation that started at the same time as the earlier one
+        long start = InvocationTrace.startRecording();
+        try {
+            InvocationTrace.writeSummary(mFile, TRACK, 0);
+            assertFalse(FileUtil.readStringFromFile(mFile).contains("earlier"));
+            InvocationTrace.begin(TRACK, "later").end();
+            InvocationTrace.writeSummary(mFile, TRACK, start);
+            assertTrue(FileUtil.readStringFromFile(mFile).contains("later"));
+        } finally {
+            InvocationTrace.stopRecording(TRACK);
+        }
+    }
+
+    /**
+     * Test that a span that isn't recorded does nothing.
+     */
+    public void testBegin_disabled() throws Exception {
+        long start = InvocationTrace.now();
+        InvocationTrace.begin(TRACK, "ignored").end();
+        InvocationTrace.startRecording();
+        try {
+            InvocationTrace.writeSummary(mFile, TRACK, start);
+            assertFalse(FileUtil.readStringFromFile(mFile).contains("ignored"));
+        } finally {
+            InvocationTrace.stopRecording(TRACK);
+        }
+    }
+
+    /**
+     * Test that names, details and tracks are escaped in the Chrome trace.
+     */
+    public void testWriteChromeTrace_escaping() throws Exception {
+        String track = "serial\"3";
+        long start = InvocationTrace.startRecording();
+        try {
+            InvocationTrace.begin(track, "phase\\1", "a \"quoted\"\ndetail\t").end();
+            InvocationTrace.writeChromeTrace(mFile, track, start);
+        } finally {
+            InvocationTrace.stopRecording(track);
+        }
+        String trace = FileUtil.readStringFromFile(mFile);
+        assertTrue(trace, trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n"));
+        assertTrue(trace, trace.endsWith("\n]}\n"));
+        assertTrue(trace, trace.contains(
+                "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":1," +
+                "\"args\":{\"name\":\"serial\\\"3\"}}"));
+        assertTrue(trace, trace.contains("{\"name\":\"phase\\\\1\",\"cat\":\"cts\",\"ph\":\"X\","));
+        assertTrue(trace, trace.contains(
+                ",\"args\":{\"detail\":\"a \\\"quoted\\\"\\u000adetail\\u0009\"}}"));
+    }
+
+    /**
+     * Test that the summary counts the spans of each phase, and lists the slowest spans.
+     */
+    public void testWriteSummary() throws Exception {
+        long start = InvocationTrace.startRecording();
+        try {
+            InvocationTrace.begin(TRACK, "install", "pkg1").end();
+            InvocationTrace.begin(TRACK, "install", "pkg2").end();
+            InvocationTrace.Span span = InvocationTrace.begin(TRACK, "testRun", "pkg1");
+            Thread.sleep(20);
+            span.end();
+            // a span is only recorded once
+            span.end();
+            InvocationTrace.writeSummary(mFile, TRACK, start);
+        } finally {
+            InvocationTrace.stopRecording(TRACK);
+        }
+        String[] lines = FileUtil.readStringFromFile(mFile).split("\n");
+        assertTrue(lines[0],
+                lines[0].matches("phase +count +total \\(s\\) +mean \\(ms\\) +max \\(ms\\)"));
+        // phases are sorted by total time
+        assertTrue(lines[1], lines[1].matches("testRun +1 +[0-9.]+ +[0-9.]+ +[0-9.]+"));
+        assertTrue(lines[2], lines[2].matches("install +2 +[0-9.]+ +[0-9.]+ +[0-9.]+"));
+        assertEquals("", lines[3]);
+        assertEquals("slowest spans", lines[4]);
+        assertTrue(lines[5], lines[5].matches(" *[0-9.]+ ms  serial1 +testRun pkg1"));
+        assertEquals(8, lines.length);
+    }
+}
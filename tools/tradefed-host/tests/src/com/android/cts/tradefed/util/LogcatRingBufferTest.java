@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LogcatRingBuffer}.
+ */
+public class LogcatRingBufferTest extends TestCase {
+
+    private LogcatRingBuffer mBuffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // the stream is never started, so no device is needed
+        mBuffer = new LogcatRingBuffer(null, 16);
+    }
+
+    /**
+     * Test that a snapshot holds what was written since the mark.
+     */
+    public void testSnapshot() {
+        write("line1\n");
+        long mark = mBuffer.mark();
+        write("line2\n");
+        assertEquals("line2\n", snapshot(mark));
+        assertEquals("line1\nline2\n", snapshot(0));
+    }
+
+    /**
+     * Test a snapshot that wraps around the end of the buffer.
+     */
+    public void testSnapshot_wrapped() {
+        write("0123456789\n");
+        long mark = mBuffer.mark();
+        write("abcdefgh\n");
+        assertEquals("abcdefgh\n", snapshot(mark));
+    }
+
+    /**
+     * Test that a snapshot of more than the buffer holds the most recent complete lines.
+     */
+    public void testSnapshot_truncated() {
+        write("first line\n");
+        write("second\n");
+        write("third\n");
+        assertEquals("second\nthird\n", snapshot(0));
+    }
+
+    /**
+     * Test that a write larger than the buffer keeps its tail.
+     */
+    public void testAddOutput_larger() {
+        write("0123456789abcdefghij");
+        assertEquals("456789abcdefghij", new String(mBuffer.snapshot(4)));
+        assertEquals(20, mBuffer.mark());
+    }
+
+    private void write(String data) {
+        byte[] bytes = data.getBytes();
+        mBuffer.addOutput(bytes, 0, bytes.length);
+    }
+
+    private String snapshot(long mark) {
+        return new String(mBuffer.snapshot(mark));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.ITestDevice;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link PackageStateTracker}.
+ */
+public class PackageStateTrackerTest extends TestCase {
+
+    private static final String PKG = "com.android.cts.foo";
+
+    private static final String DUMPSYS =
+            "Packages:\n" +
+            "  Package [com.android.cts.foobar] (1a2b3c):\n" +
+            "    codePath=/data/app/com.android.cts.foobar-1\n" +
+            "  Package [com.android.cts.foo] (4d5e6f):\n" +
+            "    userId=10057\n" +
+            "    codePath=/data/app/com.android.cts.foo-2\n" +
+            "    versionCode=3 targetSdk=23\n" +
+            "    timeStamp=2016-01-01 00:00:00\n" +
+            "    lastUpdateTime=2016-01-01 00:00:01\n" +
+            "    signatures=PackageSignatures{7e2f0e6 [53c7caa2]}\n" +
+            "\n" +
+            "Shared users:\n" +
+            "    codePath=/other\n";
+
+    private static final String STATE =
+            "codePath=/data/app/com.android.cts.foo-2\n" +
+            "versionCode=3\n" +
+            "lastUpdateTime=2016-01-01 00:00:01\n" +
+            "signatures=PackageSignatures{7e2f0e6 [53c7caa2]}\n";
+
+    private File mApk;
+    private ITestDevice mMockDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mApk = File.createTempFile("tracker", ".apk");
+        FileOutputStream out = new FileOutputStream(mApk);
+        out.write("apk".getBytes());
+        out.close();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        // a tracker of its own for each test
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(getName());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mApk.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that the state of a package is read from its own block of the output.
+     */
+    public void testParsePackageState() {
+        assertEquals(STATE, PackageStateTracker.parsePackageState(PKG, DUMPSYS));
+    }
+
+    /**
+     * Test that a package missing from the output is not installed.
+     */
+    public void testParsePackageState_missing() {
+        assertNull(PackageStateTracker.parsePackageState("com.android.cts.bar", DUMPSYS));
+        assertNull(PackageStateTracker.parsePackageState(PKG, ""));
+    }
+
+    /**
+     * Test that a package installed from the same apk is reused, and its data cleared only once
+     * it has been used.
+     */
+    public void testEnsureInstalled_reused() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false, false)).andReturn(null);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand("pm clear " + PKG))
+                .andReturn("Success\n");
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker tracker = PackageStateTracker.getInstance(mMockDevice);
+        assertNull(tracker.ensureInstalled(PKG, mApk, false));
+        // freshly installed
+        tracker.clearData(PKG);
+        assertNull(tracker.ensureInstalled(PKG, mApk, false));
+        tracker.clearData(PKG);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that a package whose install changed on the device is installed again.
+     */
+    public void testEnsureInstalled_changed() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS.replace("foo-2", "foo-3")).times(2);
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker tracker = PackageStateTracker.getInstance(mMockDevice);
+        assertNull(tracker.ensureInstalled(PKG, mApk));
+        assertNull(tracker.ensureInstalled(PKG, mApk));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that different install options install the package again.
+     */
+    public void testEnsureInstalled_options() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false)).andReturn(null);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false, "-t")).andReturn(null);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS).times(2);
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker tracker = PackageStateTracker.getInstance(mMockDevice);
+        assertNull(tracker.ensureInstalled(PKG, mApk));
+        assertNull(tracker.ensureInstalled(PKG, mApk, "-t"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an install error is returned, and the package not tracked.
+     */
+    public void testEnsureInstalled_error() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false)).andReturn("FAILED");
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker tracker = PackageStateTracker.getInstance(mMockDevice);
+        assertEquals("FAILED", tracker.ensureInstalled(PKG, mApk));
+        tracker.uninstallAll();
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the packages left installed are uninstalled when the device is released.
+     */
+    public void testReleaseDevice() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false)).andReturn(null);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS);
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker.getInstance(mMockDevice).ensureInstalled(PKG, mApk);
+        PackageStateTracker.releaseDevice(mMockDevice);
+        // nothing left to uninstall
+        PackageStateTracker.releaseDevice(mMockDevice);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an invalidated package is installed again when needed, and still uninstalled when
+     * the device is released.
+     */
+    public void testReleaseDevice_invalidated() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null).times(3);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS).times(2);
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker tracker = PackageStateTracker.getInstance(mMockDevice);
+        tracker.ensureInstalled(PKG, mApk);
+        tracker.invalidate(PKG);
+        tracker.ensureInstalled(PKG, mApk);
+        tracker.invalidate(PKG);
+        PackageStateTracker.releaseDevice(mMockDevice);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that a package whose data could not be cleared is uninstalled when the device is
+     * released.
+     */
+    public void testReleaseDevice_clearFailed() throws Exception {
+        EasyMock.expect(mMockDevice.uninstallPackage(PKG)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.installPackage(mApk, false)).andReturn(null);
+        EasyMock.expect(mMockDevice.executeShellCommand("dumpsys package " + PKG))
+                .andReturn(DUMPSYS);
+        EasyMock.expect(mMockDevice.executeShellCommand("pm clear " + PKG))
+                .andReturn("Failed\n");
+        EasyMock.replay(mMockDevice);
+
+        PackageStateTracker tracker = PackageStateTracker.getInstance(mMockDevice);
+        tracker.ensureInstalled(PKG, mApk);
+        tracker.clearData(PKG);
+        tracker.clearData(PKG);
+        PackageStateTracker.releaseDevice(mMockDevice);
+        EasyMock.verify(mMockDevice);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import com.android.tradefed.device.CollectingOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Host side of {@link BatchMain}: runs the vm-tests of a generated test class
+ * in one VM on the device the first time one of them is asked for, and hands
+ * out the output of each test. A test the batch didn't complete, because the
+ * VM crashed or the test timed out, is left to the caller to run in a VM of
+ * its own.
+ */
+public class VmTestBatch {
+
+    private static final Pattern RESULT_PATTERN = Pattern.compile("#result (\\S+) (\\d+)");
+
+    /** The outputs not handed out yet, by device serial and batch command. */
+    private static final Map<String, Map<String, String>> sResults =
+            new HashMap<String, Map<String, String>>();
+
+    /**
+     * Returns the output of a test run by a batch, running the batch if it
+     * hasn't run on the device yet. Each output is handed out once, so a
+     * retried test runs in a VM of its own.
+     *
+     * @param device the device to run the batch on
+     * @param batchCmd the shell command that runs {@link BatchMain}
+     * @param mainClass the Main class of the test
+     * @return the output of the test, empty if it passed, or null if the
+     *         batch didn't complete the test
+     */
+    public static synchronized String getOutput(ITestDevice device, String batchCmd,
+            String mainClass) throws DeviceNotAvailableException {
+        String key = device.getSerialNumber() + " " + batchCmd;
+        Map<String, String> results = sResults.get(key);
+        if (results == null) {
+            // recorded before the batch runs, so a batch that fails isn't run again
+            results = new HashMap<String, String>();
+            sResults.put(key, results);
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            device.executeShellCommand(batchCmd, receiver, 6, TimeUnit.MINUTES, 0);
+            parseResults(receiver.getOutput(), results);
+        }
+        return results.remove(mainClass);
+    }
+
+    /**
+     * Parses the output of {@link BatchMain}. A result cut short by a crash is
+     * ignored.
+     */
+    static void parseResults(String batchOutput, Map<String, String> results) {
+        String[] lines = batchOutput.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            Matcher matcher = RESULT_PATTERN.matcher(stripReturn(lines[i]));
+            if (!matcher.matches()) {
+                continue;
+            }
+            int count = Integer.parseInt(matcher.group(2));
+            if (i + count >= lines.length) {
+                return;
+            }
+            StringBuilder output = new StringBuilder();
+            for (int j = 1; j <= count; j++) {
+                output.append(stripReturn(lines[i + j])).append('\n');
+            }
+            results.put(matcher.group(1), output.toString());
+            i += count;
+        }
+    }
+
+    /** Removes the carriage return adb shell may add to a line. */
+    private static String stripReturn(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Runs the Main classes of many vm-tests in one VM, so they don't each pay for
+ * a VM launch.
+ * <p>
+ * Usage: BatchMain &lt;timeout-ms&gt; &lt;batch-file&gt;, where each line of
+ * the batch file names a Main class and the class path to load it from,
+ * separated by a space. Each test is loaded by a class loader of its own and
+ * runs on a thread of its own. For each test that completes, the runner prints
+ * "#result &lt;main-class&gt; &lt;line-count&gt;" followed by that many lines
+ * of output the test printed, none if it passed. If a test doesn't complete
+ * within the timeout, the runner exits, leaving it and the remaining tests to
+ * be run in a VM each.
+ * <p>
+ * Off the device the test jars are loaded as plain class files, so the runner
+ * can also be tried on a host VM against the jar form of the tests.
+ */
+public class BatchMain implements Runnable {
+
+    private final String mainClass;
+    private final ClassLoader loader;
+    private Throwable thrown;
+
+    private BatchMain(String mainClass, ClassLoader loader) {
+        this.mainClass = mainClass;
+        this.loader = loader;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: BatchMain <timeout-ms> <batch-file>");
+            System.exit(2);
+        }
+        long timeoutMs = Long.parseLong(args[0]);
+        BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+        boolean completed;
+        try {
+            completed = runBatch(reader, timeoutMs, System.out);
+        } finally {
+            reader.close();
+        }
+        if (!completed) {
+            // the test that timed out may still be running
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the tests of a batch file, printing their results to out.
+     *
+     * @return false if a test didn't complete within the timeout, in which
+     *         case the remaining tests weren't run
+     */
+    static boolean runBatch(BufferedReader reader, long timeoutMs, PrintStream out)
+            throws Exception {
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            String mainClass = line.substring(0, space);
+            String classPath = line.substring(space + 1);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PrintStream testOut = new PrintStream(output, true);
+            System.setOut(testOut);
+            System.setErr(testOut);
+            boolean completed;
+            try {
+                completed = runTest(mainClass, classPath, timeoutMs, testOut);
+            } finally {
+                System.setOut(systemOut);
+                System.setErr(systemErr);
+            }
+            if (!completed) {
+                out.println("#timeout " + mainClass);
+                out.flush();
+                return false;
+            }
+            printResult(out, mainClass, output.toString());
+        }
+        out.println("#done");
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Runs the main method of a test, printing anything it throws the way an
+     * uncaught exception would be.
+     *
+     * @return false if the test didn't complete within the timeout
+     */
+    private static boolean runTest(String mainClass, String classPath, long timeoutMs,
+            PrintStream testOut) throws InterruptedException {
+        BatchMain test;
+        try {
+            test = new BatchMain(mainClass, createClassLoader(classPath));
+        } catch (Exception e) {
+            e.printStackTrace(testOut);
+            return true;
+        }
+        Thread thread = new Thread(test, mainClass);
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(timeoutMs);
+        if (thread.isAlive()) {
+            return false;
+        }
+        if (test.thrown != null) {
+            testOut.print("Exception in thread \"main\" ");
+            test.thrown.printStackTrace(testOut);
+        }
+        return true;
+    }
+
+    public void run() {
+        try {
+            Class<?> c = Class.forName(mainClass, true, loader);
+            c.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            thrown = e.getCause();
+        } catch (Throwable t) {
+            thrown = t;
+        }
+    }
+
+    /**
+     * Creates a class loader for the jars of a test. Its parent is the boot
+     * class loader, so the test gets its own copy of the dexcore classes too,
+     * just as when it runs in a VM of its own.
+     */
+    private static ClassLoader createClassLoader(String classPath) throws Exception {
+        ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+        Class<?> dexClassLoader;
+        try {
+            dexClassLoader = Class.forName("dalvik.system.DexClassLoader");
+        } catch (ClassNotFoundException e) {
+            String[] entries = classPath.split(":");
+            URL[] urls = new URL[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                urls[i] = new File(entries[i]).toURI().toURL();
+            }
+            return new URLClassLoader(urls, parent);
+        }
+        return (ClassLoader) dexClassLoader
+                .getConstructor(String.class, String.class, String.class, ClassLoader.class)
+                .newInstance(classPath, System.getProperty("java.io.tmpdir"), null, parent);
+    }
+
+    private static void printResult(PrintStream out, String mainClass, String output) {
+        String[] lines = output.split("\n", -1);
+        int count = lines.length;
+        if (output.endsWith("\n") || output.length() == 0) {
+            // the last line is terminated, or there is no output at all
+            count--;
+        }
+        out.println("#result " + mainClass + " " + count);
+        for (int i = 0; i < count; i++) {
+            out.println(lines[i]);
+        }
+        out.flush();
+    }
+}
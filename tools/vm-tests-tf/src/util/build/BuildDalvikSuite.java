@@ -76,6 +76,12 @@ public class BuildDalvikSuite {
 
     private static final String TARGET_JAR_ROOT_PATH = "/data/local/tmp/vm-tests";
 
+    // run the tests of each test class in one VM through dot.junit.BatchMain, and only the
+    // tests the batch doesn't complete in a VM each. Set -Dvm-tests.batch=false to turn off.
+    private static final boolean BATCH =
+            Boolean.parseBoolean(System.getProperty("vm-tests.batch", "true"));
+    private static final long BATCH_TEST_TIMEOUT_MS = 2 * 60 * 1000;
+
     private int testClassCnt = 0;
     private int testMethodsCnt = 0;
     private boolean useJack;
@@ -90,6 +96,9 @@ public class BuildDalvikSuite {
     private LinkedHashMap<String, List<String>> map = new LinkedHashMap<String,
     List<String>>();
 
+    // the .d files of the suite, assembled all at once before the jars are built
+    private Set<DasmBuildStep> dasmBuildSteps = new HashSet<DasmBuildStep>();
+
     private class MethodData {
         String methodBody, constraint, title;
     }
@@ -193,6 +202,8 @@ public class BuildDalvikSuite {
     private String curJunitFileName = null;
     private String curJunitName = null;
     private String curJunitFileData = "";
+    private String curBatchFileName = null;
+    private String curBatchFileData = "";
 
     private SourceBuildStep hostJunitBuildStep;
 
@@ -209,6 +220,11 @@ public class BuildDalvikSuite {
             curJunitFileName = null;
             curJunitFileData = "";
         }
+        if (curBatchFileName != null) {
+            writeToFileMkdir(new File(curBatchFileName), curBatchFileData);
+            curBatchFileName = null;
+            curBatchFileData = "";
+        }
     }
 
     private void openCTSHostFileFor(String pName, String classOnlyName) {
@@ -228,8 +244,13 @@ public class BuildDalvikSuite {
         "import com.android.tradefed.testtype.IAbiReceiver;\n" +
         "import com.android.tradefed.testtype.DeviceTestCase;\n" +
         "import com.android.tradefed.util.AbiFormatter;\n" +
+        (BATCH ? "import dot.junit.VmTestBatch;\n" : "") +
         "\n" +
         "public class " + sourceName + " extends DeviceTestCase implements IAbiReceiver {\n";
+
+        // the list of Main classes the batch runner runs for this test class
+        curBatchFileName = OUTPUT_FOLDER + "/" + pName.replaceAll("\\.","/") + "/" +
+        classOnlyName + ".batch";
     }
 
     private String getShellExecJavaLine(String classpath, String mainclass) {
@@ -239,14 +260,42 @@ public class BuildDalvikSuite {
       StringBuilder code = new StringBuilder();
       code.append("    String cmd = AbiFormatter.formatCmdForAbi(\"")
           .append(cmd)
-          .append("\", mAbi.getBitness());\n")
-          .append("    CollectingOutputReceiver receiver = new CollectingOutputReceiver();\n")
-          .append("    getDevice().executeShellCommand(cmd, receiver, 6, TimeUnit.MINUTES, 1);\n")
-          .append("    // A sucessful adb shell command returns an empty string.\n")
-          .append("    assertEquals(cmd, \"\", receiver.getOutput());");
+          .append("\", mAbi.getBitness());\n");
+      if (BATCH) {
+          code.append("    String output = VmTestBatch.getOutput(getDevice(), ")
+              .append("AbiFormatter.formatCmdForAbi(\"")
+              .append(getBatchCmd())
+              .append("\", mAbi.getBitness()), \"")
+              .append(mainclass)
+              .append("\");\n")
+              .append("    if (output == null) {\n")
+              .append("        CollectingOutputReceiver receiver = new CollectingOutputReceiver();\n")
+              .append("        getDevice().executeShellCommand(cmd, receiver, 6, TimeUnit.MINUTES, 1);\n")
+              .append("        output = receiver.getOutput();\n")
+              .append("    }\n")
+              .append("    // A sucessful adb shell command returns an empty string.\n")
+              .append("    assertEquals(cmd, \"\", output);");
+      } else {
+          code.append("    CollectingOutputReceiver receiver = new CollectingOutputReceiver();\n")
+              .append("    getDevice().executeShellCommand(cmd, receiver, 6, TimeUnit.MINUTES, 1);\n")
+              .append("    // A sucessful adb shell command returns an empty string.\n")
+              .append("    assertEquals(cmd, \"\", receiver.getOutput());");
+      }
       return code.toString();
     }
 
+    /**
+     * Returns the command that runs the Main classes listed in the batch file of the current
+     * test class in one VM.
+     */
+    private String getBatchCmd() {
+      String batchFile = TARGET_JAR_ROOT_PATH + curBatchFileName.substring(OUTPUT_FOLDER.length());
+      return String.format("ANDROID_DATA=%s dalvikvm|#ABI#| -Xmx512M -Xss32K " +
+              "-Djava.io.tmpdir=%s -classpath %s/dot/junit/dexcore.jar dot.junit.BatchMain %d %s",
+              TARGET_JAR_ROOT_PATH, TARGET_JAR_ROOT_PATH, TARGET_JAR_ROOT_PATH,
+              BATCH_TEST_TIMEOUT_MS, batchFile);
+    }
+
     private String getWarningMessage() {
         return "//Autogenerated code by " + this.getClass().getName() + "; do not edit.\n";
     }
@@ -276,6 +325,10 @@ public class BuildDalvikSuite {
         //"dot.junit.opcodes.add_double_2addr.Main_testN2";
         String mainclass = pName + ".Main_" + method;
         curJunitFileData += getShellExecJavaLine(cp, mainclass);
+        if (!dependentTestClassNames.isEmpty()) {
+            // only these get a Main class generated
+            curBatchFileData += mainclass + " " + cp + "\n";
+        }
         curJunitFileData += "\n}\n\n";
     }
 
@@ -288,6 +341,12 @@ public class BuildDalvikSuite {
         SourceBuildStep srcBuildStep;
         hostJunitBuildStep = new JavacBuildStep(
             HOSTJUNIT_CLASSES_OUTPUT_FOLDER, CLASS_PATH);
+        if (BATCH) {
+            // the host side of the batch runner, which needs tradefed and so isn't part of src
+            File batchSource = new File(new File(JAVASRC_FOLDER).getParentFile(),
+                    "src-host/dot/junit/VmTestBatch.java");
+            hostJunitBuildStep.addSourceFile(batchSource.getAbsolutePath());
+        }
 
         srcBuildStep = new JavacBuildStep(CLASSES_OUTPUT_FOLDER, CLASS_PATH);
 
@@ -477,6 +536,10 @@ public class BuildDalvikSuite {
                 System.exit(1);
             }
         }
+        if (!DasmBuildStep.buildAll(dasmBuildSteps)) {
+            System.out.println("building failed. dasm build steps");
+            System.exit(1);
+        }
         for (BuildStep buildStep : targets) {
             if (!buildStep.build()) {
                 System.out.println("building failed. buildStep: " +
@@ -528,6 +591,7 @@ public class BuildDalvikSuite {
                     OUTPUT_FOLDER, fileName + ".dex");
 
             DasmBuildStep buildStep = new DasmBuildStep(inputFile, dexFile);
+            dasmBuildSteps.add(buildStep);
 
             BuildStep.BuildFile jarFile = new BuildStep.BuildFile(
                     OUTPUT_FOLDER, fileName + ".jar");
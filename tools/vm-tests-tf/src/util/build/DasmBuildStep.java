@@ -29,12 +29,23 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 class DasmBuildStep extends BuildStep {
 
 
     boolean generate_linenum = false;
 
+    // set once the .dex file was generated by buildAll
+    private volatile boolean built = false;
+
     DasmBuildStep(BuildFile inputFile, BuildFile outputFile) {
         super(inputFile, outputFile);
 
@@ -42,12 +53,55 @@ class DasmBuildStep extends BuildStep {
 
     @Override
     boolean build() {
+        if (built) {
+            return true;
+        }
         if (super.build()) {
             return assemble(inputFile.fileName);
         }
         return false;
     }
 
+    /**
+     * Assembles the given steps on one thread per processor, so that the
+     * thousands of .d files of the suite don't have to be assembled one after
+     * the other. The steps are not built again when their jar is built.
+     *
+     * @return false if any step failed
+     */
+    static boolean buildAll(Collection<DasmBuildStep> steps) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final DasmBuildStep step : steps) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        step.built = step.build();
+                        return step.built;
+                    }
+                }));
+            }
+            boolean ok = true;
+            for (Future<Boolean> result : results) {
+                ok &= result.get();
+            }
+            return ok;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     private static Reader createReader(String fname) throws IOException {
         FileInputStream fs = new FileInputStream(fname);
         InputStreamReader ir;
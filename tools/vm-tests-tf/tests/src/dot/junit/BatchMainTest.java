@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dot.junit;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link BatchMain}. The tests of a batch are the Main classes
+ * below, loaded from the class path of this test.
+ */
+public class BatchMainTest extends TestCase {
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    /** A test that passes. */
+    public static class PassingMain {
+        public static void main(String[] args) {
+        }
+    }
+
+    /** A test that fails by printing, without ending its last line. */
+    public static class PrintingMain {
+        public static void main(String[] args) {
+            System.out.println("line1");
+            System.err.print("line2");
+        }
+    }
+
+    /** A test that fails by throwing. */
+    public static class ThrowingMain {
+        public static void main(String[] args) {
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    /** A test that never completes. */
+    public static class HangingMain {
+        public static void main(String[] args) throws InterruptedException {
+            Thread.sleep(60 * 1000);
+        }
+    }
+
+    /** Counts its runs, to check that each test gets classes of its own. */
+    public static class CountingMain {
+        static int sRuns = 0;
+
+        public static void main(String[] args) {
+            System.out.print(++sRuns);
+        }
+    }
+
+    private String mClassPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClassPath = new File(BatchMainTest.class.getProtectionDomain().getCodeSource()
+                .getLocation().toURI()).getPath();
+    }
+
+    public void testRunBatch_passing() throws Exception {
+        assertEquals("#result " + PassingMain.class.getName() + " 0\n#done\n",
+                runBatch(true, PassingMain.class));
+    }
+
+    public void testRunBatch_output() throws Exception {
+        assertEquals("#result " + PrintingMain.class.getName() + " 2\nline1\nline2\n#done\n",
+                runBatch(true, PrintingMain.class));
+    }
+
+    public void testRunBatch_exception() throws Exception {
+        String[] lines = runBatch(true, ThrowingMain.class).split("\n");
+        assertTrue(lines[0], lines[0].startsWith("#result " + ThrowingMain.class.getName()));
+        assertEquals("Exception in thread \"main\" java.lang.IllegalStateException: boom",
+                lines[1]);
+        assertTrue(lines[2], lines[2].trim().startsWith("at " + ThrowingMain.class.getName()));
+        assertEquals("#done", lines[lines.length - 1]);
+    }
+
+    public void testRunBatch_missingClass() throws Exception {
+        String output = runBatch(true, "dot.junit.NoSuchMain");
+        assertTrue(output, output.startsWith("#result dot.junit.NoSuchMain "));
+        assertTrue(output, output.contains(
+                "Exception in thread \"main\" java.lang.ClassNotFoundException"));
+        assertTrue(output, output.endsWith("#done\n"));
+    }
+
+    public void testRunBatch_timeout() throws Exception {
+        assertEquals("#result " + PassingMain.class.getName() + " 0\n"
+                + "#timeout " + HangingMain.class.getName() + "\n",
+                runBatch(false, 100, PassingMain.class.getName(), HangingMain.class.getName(),
+                        PrintingMain.class.getName()));
+    }
+
+    public void testRunBatch_ownClassLoader() throws Exception {
+        String name = CountingMain.class.getName();
+        assertEquals("#result " + name + " 1\n1\n#result " + name + " 1\n1\n#done\n",
+                runBatch(true, name, name));
+    }
+
+    /**
+     * Test that the host side parses what the batch prints.
+     */
+    public void testRunBatch_parsed() throws Exception {
+        String output = runBatch(true, PassingMain.class.getName(),
+                PrintingMain.class.getName(), ThrowingMain.class.getName());
+        Map<String, String> results = new HashMap<String, String>();
+        VmTestBatch.parseResults(output, results);
+        assertEquals(3, results.size());
+        assertEquals("", results.get(PassingMain.class.getName()));
+        assertEquals("line1\nline2\n", results.get(PrintingMain.class.getName()));
+        assertTrue(results.get(ThrowingMain.class.getName()).startsWith(
+                "Exception in thread \"main\" java.lang.IllegalStateException: boom\n"));
+    }
+
+    private String runBatch(boolean completes, Class<?> mainClass) throws Exception {
+        return runBatch(completes, mainClass.getName());
+    }
+
+    private String runBatch(boolean completes, String... mainClasses) throws Exception {
+        return runBatch(completes, TIMEOUT_MS, mainClasses);
+    }
+
+    private String runBatch(boolean completes, long timeoutMs, String... mainClasses)
+            throws Exception {
+        StringBuilder batch = new StringBuilder();
+        for (String mainClass : mainClasses) {
+            batch.append(mainClass).append(' ').append(mClassPath).append('\n');
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, true);
+        assertEquals(completes, BatchMain.runBatch(
+                new BufferedReader(new StringReader(batch.toString())), timeoutMs, out));
+        return output.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+}
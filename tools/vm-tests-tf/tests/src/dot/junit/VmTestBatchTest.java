@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dot.junit;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.CollectingOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link VmTestBatch}.
+ */
+public class VmTestBatchTest extends TestCase {
+
+    private Map<String, String> mResults;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResults = new HashMap<String, String>();
+    }
+
+    public void testParseResults() {
+        VmTestBatch.parseResults("#result a.Main_1 0\n"
+                + "#result a.Main_2 2\n"
+                + "line1\n"
+                + "#result a.Main_9 0\n"
+                + "#result a.Main_3 1\n"
+                + "line3\n"
+                + "#done\n", mResults);
+        assertEquals(3, mResults.size());
+        assertEquals("", mResults.get("a.Main_1"));
+        // the lines of a result are output even when they look like a result
+        assertEquals("line1\n#result a.Main_9 0\n", mResults.get("a.Main_2"));
+        assertEquals("line3\n", mResults.get("a.Main_3"));
+    }
+
+    public void testParseResults_carriageReturns() {
+        VmTestBatch.parseResults("#result a.Main_1 1\r\nline1\r\n#done\r\n", mResults);
+        assertEquals("line1\n", mResults.get("a.Main_1"));
+    }
+
+    public void testParseResults_noiseBetweenResults() {
+        VmTestBatch.parseResults("dalvikvm: some warning\n"
+                + "#result a.Main_1 0\n"
+                + "another warning\n"
+                + "#result a.Main_2 0\n", mResults);
+        assertEquals(2, mResults.size());
+    }
+
+    /**
+     * Test that a result cut short by a crash of the VM is ignored, along
+     * with the tests that never ran.
+     */
+    public void testParseResults_truncated() {
+        VmTestBatch.parseResults("#result a.Main_1 0\n"
+                + "#result a.Main_2 3\n"
+                + "line1\n"
+                + "line2\n", mResults);
+        assertEquals(1, mResults.size());
+        assertEquals("", mResults.get("a.Main_1"));
+    }
+
+    /**
+     * Test that the test that timed out, and the ones after it, have no
+     * result.
+     */
+    public void testParseResults_timeout() {
+        VmTestBatch.parseResults("#result a.Main_1 1\n"
+                + "line1\n"
+                + "#timeout a.Main_2\n", mResults);
+        assertEquals(1, mResults.size());
+        assertEquals("line1\n", mResults.get("a.Main_1"));
+    }
+
+    public void testParseResults_empty() {
+        VmTestBatch.parseResults("", mResults);
+        assertTrue(mResults.isEmpty());
+    }
+
+    /**
+     * Test that the batch runs once, and that each output is handed out once,
+     * so that retried tests and tests the batch didn't complete fall back to
+     * a VM of their own.
+     */
+    public void testGetOutput() throws Exception {
+        String batchCmd = "batch testGetOutput";
+        ITestDevice device = createDevice(batchCmd, "#result a.Main_1 0\n"
+                + "#result a.Main_2 1\n"
+                + "failed\n"
+                + "#timeout a.Main_3\n");
+
+        assertEquals("failed\n", VmTestBatch.getOutput(device, batchCmd, "a.Main_2"));
+        assertEquals("", VmTestBatch.getOutput(device, batchCmd, "a.Main_1"));
+        assertNull(VmTestBatch.getOutput(device, batchCmd, "a.Main_3"));
+        assertNull(VmTestBatch.getOutput(device, batchCmd, "a.Main_1"));
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test that a batch that produced nothing isn't run again, and that all
+     * of its tests fall back to a VM of their own.
+     */
+    public void testGetOutput_failedBatch() throws Exception {
+        String batchCmd = "batch testGetOutput_failedBatch";
+        ITestDevice device = createDevice(batchCmd, "");
+
+        assertNull(VmTestBatch.getOutput(device, batchCmd, "a.Main_1"));
+        assertNull(VmTestBatch.getOutput(device, batchCmd, "a.Main_2"));
+        EasyMock.verify(device);
+    }
+
+    /**
+     * @return a device on which the batch command runs once, printing the
+     *         given output
+     */
+    private static ITestDevice createDevice(String batchCmd, final String output)
+            throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andReturn("serial").anyTimes();
+        device.executeShellCommand(EasyMock.eq(batchCmd),
+                EasyMock.isA(CollectingOutputReceiver.class), EasyMock.eq(6L),
+                EasyMock.eq(TimeUnit.MINUTES), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] data = output.getBytes();
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        }).once();
+        EasyMock.replay(device);
+        return device;
+    }
+}